@@ -60,7 +60,7 @@ import com.sun.btrace.comm.StringMapDataCommand;
 import com.sun.btrace.comm.GridDataCommand;
 import com.sun.btrace.org.jctools.queues.MessagePassingQueue;
 import com.sun.btrace.org.jctools.queues.MpmcArrayQueue;
-import com.sun.btrace.org.jctools.queues.MpscChunkedArrayQueue;
+import com.sun.btrace.profiling.CallTreeProfiler;
 import com.sun.btrace.profiling.MethodInvocationProfiler;
 
 import java.lang.management.GarbageCollectorMXBean;
@@ -92,6 +92,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
 import java.util.Properties;
 import java.util.Set;
 import java.util.Timer;
@@ -100,11 +101,13 @@ import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadFactory;
 import javax.management.ListenerNotFoundException;
+import javax.management.MalformedObjectNameException;
 import javax.management.MBeanServer;
 import javax.management.Notification;
 import javax.management.NotificationEmitter;
 import javax.management.NotificationListener;
 import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import javax.management.openmbean.CompositeData;
 
 import java.lang.management.OperatingSystemMXBean;
@@ -112,6 +115,7 @@ import java.lang.reflect.Field;
 import java.util.HashSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 import sun.misc.Perf;
 import sun.misc.Unsafe;
@@ -156,7 +160,7 @@ public final class BTraceRuntime  {
         }
     }
 
-    private static final class ConsumerWrapper implements MessagePassingQueue.Consumer<Command> {
+    private static final class ConsumerWrapper implements CommandBuffer.Sink {
         private final CommandListener cmdHandler;
         private final AtomicBoolean exitSignal;
 
@@ -176,6 +180,28 @@ public final class BTraceRuntime  {
                 exitSignal.set(true);
             }
         }
+
+        @Override
+        public boolean isReady() {
+            try {
+                return cmdHandler.isReady();
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+                // let the commands fail in the handler
+                return true;
+            }
+        }
+
+        @Override
+        public boolean flush() {
+            try {
+                return cmdHandler.flush();
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+                // retrying would not help
+                return true;
+            }
+        }
     }
     // we need Unsafe to load BTrace class bytes as
     // bootstrap class
@@ -198,8 +224,13 @@ public final class BTraceRuntime  {
     private static final int CMD_QUEUE_LIMIT_DEFAULT = 100;
     public static final String CMD_QUEUE_LIMIT_KEY = "com.sun.btrace.runtime.cmdQueueLimit";
 
-    // the command FIFO queue upper limit
+    // the command FIFO queue overflow policy
+    private static final CommandBuffer.OverflowPolicy CMD_QUEUE_POLICY_DEFAULT = CommandBuffer.OverflowPolicy.BLOCK;
+    public static final String CMD_QUEUE_POLICY_KEY = "com.sun.btrace.runtime.cmdQueuePolicy";
+
+    // the command FIFO queue upper limit (per probe thread stripe)
     private static int CMD_QUEUE_LIMIT;
+    private static CommandBuffer.OverflowPolicy CMD_QUEUE_POLICY;
 
     static {
         setupCmdQueueParams();
@@ -299,7 +330,7 @@ public final class BTraceRuntime  {
     private volatile NotificationListener memoryListener;
 
     // Command queue for the client
-    private final MpscChunkedArrayQueue<Command> queue;
+    private final CommandBuffer queue;
 
     private static class SpeculativeQueueManager {
         // maximum number of speculative buffers
@@ -356,13 +387,15 @@ public final class BTraceRuntime  {
             currentSpeculationId.set(id);
         }
 
-        void commit(int id, MpscChunkedArrayQueue<Command> result) {
+        void commit(int id, CommandBuffer result) {
             validateId(id);
             currentSpeculationId.set(null);
             final MpmcArrayQueue<Command> sb = speculativeQueues.get(id);
             if (sb != null) {
-                result.addAll(sb);
-                sb.clear();
+                Command cmd;
+                while ((cmd = sb.relaxedPoll()) != null) {
+                    result.offer(cmd);
+                }
             }
         }
 
@@ -397,15 +430,14 @@ public final class BTraceRuntime  {
         @Override
         public int idle(int i) {
             if (exitting.get()) return 0;
-            try {
-                if (i < 3000) {
-                    Thread.yield();
-                } else if (i < 3100) {
-                    Thread.sleep(1);
-                } else {
-                    Thread.sleep(500);
-                }
-            } catch (InterruptedException e) {
+            // parking instead of sleeping - probe threads facing a full
+            // buffer will unpark the command thread
+            if (i < 3000) {
+                Thread.yield();
+            } else if (i < 3100) {
+                LockSupport.parkNanos(1000000L);
+            } else {
+                LockSupport.parkNanos(500000000L);
             }
             return i+1;
         }
@@ -429,8 +461,15 @@ public final class BTraceRuntime  {
     public BTraceRuntime(final String className, String[] args,
                          final CommandListener cmdListener,
                          DebugSupport ds, Instrumentation inst) {
+        this(className, args, cmdListener, null, ds, inst);
+    }
+
+    public BTraceRuntime(final String className, String[] args,
+                         final CommandListener cmdListener,
+                         SharedSettings settings,
+                         DebugSupport ds, Instrumentation inst) {
         this.args = args;
-        this.queue = new MpscChunkedArrayQueue<>(CMD_QUEUE_LIMIT_DEFAULT);
+        this.queue = new CommandBuffer(getCmdQueueLimit(settings), getCmdQueuePolicy(settings));
         this.specQueueManager = new SpeculativeQueueManager();
         this.className = className;
         this.instrumentation = inst;
@@ -447,6 +486,11 @@ public final class BTraceRuntime  {
                         waitStrategy, exitCondition
                     );
                 } finally {
+                    long dropped = queue.getDropped();
+                    if (dropped > 0) {
+                        debugPrint(dropped + " commands dropped due to the " + queue.getPolicy() + " overflow policy");
+                    }
+                    unregisterQueueMBean();
                     runtimes.remove(className);
                     queue.clear();
                     specQueueManager.clear();
@@ -857,6 +901,18 @@ public final class BTraceRuntime  {
         current.specQueueManager.commit(id, current.queue);
     }
 
+    static long droppedCommands() {
+        return getCurrent().queue.getDropped();
+    }
+
+    static long coalescedCommands() {
+        return getCurrent().queue.getCoalesced();
+    }
+
+    static long deliveredCommands() {
+        return getCurrent().queue.getDelivered();
+    }
+
     /**
      * Indicates whether two given objects are "equal to" one another.
      * For bootstrap classes, returns the result of calling Object.equals()
@@ -1182,6 +1238,31 @@ public final class BTraceRuntime  {
         }
     }
 
+    // the number of patterns compiled from non-constant regular expressions to keep
+    private static final int PATTERN_CACHE_SIZE = 256;
+    // lock-free; when full an arbitrary entry is evicted to make room
+    private static final Map<String, Pattern> patternCache = new ConcurrentHashMap<>();
+
+    /**
+     * @see BTraceUtils.Strings#matches(java.lang.String, java.lang.String)
+     */
+    static boolean matches(String regex, String input) {
+        // the constant expressions are precompiled by the preprocessor
+        Pattern p = patternCache.get(regex);
+        if (p == null) {
+            p = Pattern.compile(regex);
+            if (patternCache.size() >= PATTERN_CACHE_SIZE) {
+                Iterator<Pattern> iter = patternCache.values().iterator();
+                if (iter.hasNext()) {
+                    iter.next();
+                    iter.remove();
+                }
+            }
+            patternCache.put(regex, p);
+        }
+        return p.matcher(input).matches();
+    }
+
     /**
      * @see BTraceUtils#instanceOf(java.lang.Object, java.lang.String)
      */
@@ -1195,17 +1276,8 @@ public final class BTraceRuntime  {
             }
             return false;
         }
-        Class objClass = obj.getClass();
-        ClassLoader cl = objClass.getClassLoader();
-        cl = cl != null ? cl : ClassLoader.getSystemClassLoader();
-        try {
-            Class target = cl.loadClass(className);
-            return target.isAssignableFrom(objClass);
-        } catch (ClassNotFoundException e) {
-            // non-existing class
-            getCurrent().debugPrint(e);
-            return false;
-        }
+        // resolving the class on each call would contend on the class loading lock
+        return ReflectionCache.isInstanceOf(obj.getClass(), className);
     }
 
     private final static class BTraceAtomicInteger extends AtomicInteger {
@@ -1832,6 +1904,10 @@ public final class BTraceRuntime  {
         return new Aggregation(type);
     }
 
+    static Aggregation newAggregation(AggregationFunction type, int precision) {
+        return new Aggregation(type, precision);
+    }
+
     static AggregationKey newAggregationKey(Object... elements) {
         return new AggregationKey(elements);
     }
@@ -1844,6 +1920,30 @@ public final class BTraceRuntime  {
         aggregation.add(key, value);
     }
 
+    static void addToAggregation(Aggregation aggregation, long key, long value) {
+        aggregation.add(key, value);
+    }
+
+    static void addToAggregation(Aggregation aggregation, String key, long value) {
+        aggregation.add(key, value);
+    }
+
+    static long percentile(Aggregation aggregation, double percentile) {
+        return aggregation.getPercentile(percentile);
+    }
+
+    static long percentile(Aggregation aggregation, AggregationKey key, double percentile) {
+        return aggregation.getPercentile(key, percentile);
+    }
+
+    static long percentile(Aggregation aggregation, long key, double percentile) {
+        return aggregation.getPercentile(key, percentile);
+    }
+
+    static long percentile(Aggregation aggregation, String key, double percentile) {
+        return aggregation.getPercentile(key, percentile);
+    }
+
     static void clearAggregation(Aggregation aggregation) {
         aggregation.clear();
     }
@@ -1856,10 +1956,24 @@ public final class BTraceRuntime  {
         getCurrent().send(new GridDataCommand(name, aggregation.getData()));
     }
 
+    /**
+     * @see BTraceUtils.Aggregations#printAggregation(java.lang.String, com.sun.btrace.aggregation.Aggregation, int)
+     */
+    static void printAggregation(String name, Aggregation aggregation, int count) {
+        getCurrent().send(new GridDataCommand(name, aggregation.getData(count)));
+    }
+
     static void printSnapshot(String name, Profiler.Snapshot snapshot) {
         getCurrent().send(new GridDataCommand(name, snapshot.getGridData()));
     }
 
+    /**
+     * @see BTraceUtils.Profiling#printCallTree(java.lang.String, com.sun.btrace.Profiler)
+     */
+    static void printCallTree(String name, Profiler.Snapshot snapshot) {
+        getCurrent().send(new GridDataCommand(name, snapshot.getCallTreeGridData()));
+    }
+
     /**
      * Prints profiling snapshot using the provided format
      * @param name The name of the aggregation to be used in the textual output
@@ -1934,6 +2048,13 @@ public final class BTraceRuntime  {
         return new MethodInvocationProfiler(expectedMethodCnt);
     }
 
+    /**
+     * @see BTraceUtils.Profiling#newProfiler(int, boolean)
+     */
+    static Profiler newProfiler(int expectedMethodCnt, boolean callTree) {
+        return callTree ? new CallTreeProfiler(expectedMethodCnt) : new MethodInvocationProfiler(expectedMethodCnt);
+    }
+
     /**
      * @see BTraceUtils.Profiling#recordEntry(com.sun.btrace.Profiler, java.lang.String)
      */
@@ -1948,6 +2069,27 @@ public final class BTraceRuntime  {
         profiler.recordExit(methodName, duration);
     }
 
+    /**
+     * @see BTraceUtils.Profiling#blockId(java.lang.String)
+     */
+    static int profilerBlockId(String blockName) {
+        return Profiler.blockId(blockName);
+    }
+
+    /**
+     * @see BTraceUtils.Profiling#recordEntry(com.sun.btrace.Profiler, int)
+     */
+    static void recordEntry(Profiler profiler, int blockId) {
+        profiler.recordEntry(blockId);
+    }
+
+    /**
+     * @see BTraceUtils.Profiling#recordExit(com.sun.btrace.Profiler, int, long)
+     */
+    static void recordExit(Profiler profiler, int blockId, long duration) {
+        profiler.recordExit(blockId, duration);
+    }
+
     /**
      * @see BTraceUtils.Profiling#snapshot(com.sun.btrace.Profiler)
      */
@@ -2246,19 +2388,7 @@ public final class BTraceRuntime  {
     }
 
     private void enqueue(Command cmd) {
-        int backoffCntr = 0;
-        while (!queue.relaxedOffer(cmd)) {
-            try {
-                if (backoffCntr < 3000) {
-                    Thread.yield();
-                } else if (backoffCntr < 3100) {
-                    Thread.sleep(1);
-                } else {
-                    Thread.sleep(100);
-                }
-            } catch (InterruptedException e) {}
-            backoffCntr++;
-        }
+        queue.offer(cmd);
     }
 
     private void handleExceptionImpl(Throwable th) {
@@ -2500,6 +2630,36 @@ public final class BTraceRuntime  {
         }
 
         BTraceMBean.registerMBean(clazz);
+        registerQueueMBean();
+    }
+
+    private void registerQueueMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = getQueueMBeanName();
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+            server.registerMBean(new StandardMBean(queue, CommandQueueMXBean.class, true), on);
+        } catch (Exception e) {
+            debugPrint(e);
+        }
+    }
+
+    private void unregisterQueueMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = getQueueMBeanName();
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+        } catch (Exception e) {
+            debugPrint(e);
+        }
+    }
+
+    private ObjectName getQueueMBeanName() throws MalformedObjectNameException {
+        return new ObjectName("btrace:type=CommandQueue,name=" + ObjectName.quote(className));
     }
 
     private static String resolveFileName(String name) {
@@ -2593,6 +2753,37 @@ public final class BTraceRuntime  {
                 CMD_QUEUE_LIMIT = CMD_QUEUE_LIMIT_DEFAULT;
             }
         }
+        String policy = System.getProperty(CMD_QUEUE_POLICY_KEY, null);
+        if (policy == null) {
+            CMD_QUEUE_POLICY = CMD_QUEUE_POLICY_DEFAULT;
+        } else {
+            CMD_QUEUE_POLICY = CommandBuffer.OverflowPolicy.parse(policy);
+            if (CMD_QUEUE_POLICY == null) {
+                warning("\"" + policy + "\" is not a valid overflow policy. " +
+                        "Using the default cmd queue overflow policy " + CMD_QUEUE_POLICY_DEFAULT);
+                CMD_QUEUE_POLICY = CMD_QUEUE_POLICY_DEFAULT;
+            }
+        }
+    }
+
+    private static int getCmdQueueLimit(SharedSettings settings) {
+        if (settings != null && settings.getCmdQueueLimit() > 0) {
+            return settings.getCmdQueueLimit();
+        }
+        return CMD_QUEUE_LIMIT;
+    }
+
+    private static CommandBuffer.OverflowPolicy getCmdQueuePolicy(SharedSettings settings) {
+        String policy = settings != null ? settings.getCmdQueuePolicy() : null;
+        if (policy != null) {
+            CommandBuffer.OverflowPolicy p = CommandBuffer.OverflowPolicy.parse(policy);
+            if (p != null) {
+                return p;
+            }
+            warning("\"" + policy + "\" is not a valid overflow policy. " +
+                    "Using the default cmd queue overflow policy " + CMD_QUEUE_POLICY);
+        }
+        return CMD_QUEUE_POLICY;
     }
 
     private void debugPrint(String msg) {
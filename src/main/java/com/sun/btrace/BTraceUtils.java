@@ -29,8 +29,6 @@ import com.sun.btrace.annotations.ProbeClassName;
 import com.sun.btrace.annotations.ProbeMethodName;
 import com.sun.btrace.annotations.Self;
 import java.lang.reflect.Modifier;
-import java.security.AccessController;
-import java.security.PrivilegedAction;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.regex.PatternSyntaxException;
@@ -3253,6 +3251,9 @@ public class BTraceUtils {
 
     /**
      * Prints the aggregation.
+     * <p>The whole aggregation is sorted and copied for printing. For large aggregations
+     * printed often {@linkplain #printAggregation(java.lang.String, com.sun.btrace.aggregation.Aggregation, int)}
+     * is considerably cheaper.
      */
     public static void printAggregation(String name, Aggregation aggregation) {
     	Aggregations.printAggregation(name, aggregation);
@@ -3271,6 +3272,17 @@ public class BTraceUtils {
     	Aggregations.printAggregation(name, aggregation, format);
     }
 
+    /**
+     * Prints only the largest or smallest <code>abs(count)</code> aggregated values.
+     * @param name The name of the aggregation to be used in the textual output
+     * @param aggregation The aggregation to print
+     * @param count the number of elements to print. If negative, the smallest <code>abs(count)</code> elements are printed.
+     * @since 1.3
+     */
+    public static void printAggregation(String name, Aggregation aggregation, int count) {
+    	Aggregations.printAggregation(name, aggregation, count);
+    }
+
     /********** Namespaced methods ******************/
 
     /*
@@ -3754,7 +3766,7 @@ public class BTraceUtils {
          *          If the expression's syntax is invalid
          */
         public static boolean matches(String regex, String input) {
-            return Pattern.matches(regex, input);
+            return BTraceRuntime.matches(regex, input);
         }
 
         /**
@@ -4994,6 +5006,18 @@ public class BTraceUtils {
             return BTraceRuntime.newAggregation(type);
         }
 
+        /**
+         * Creates a new aggregation based on the given aggregation function type and precision.
+         * The precision is used only by {@linkplain AggregationFunction#PERCENTILE} where it is
+         * the number of significant decimal digits (1 to 3) the reported percentiles maintain.
+         *
+         * @param type the aggregating function to be performed on the data being added to the aggregation.
+         * @param precision the number of significant decimal digits
+         */
+        public static Aggregation newAggregation(AggregationFunction type, int precision) {
+            return BTraceRuntime.newAggregation(type, precision);
+        }
+
         /**
          * Creates a grouping aggregation key with the provided value. The value must be a String or Number type.
          *
@@ -5058,6 +5082,71 @@ public class BTraceUtils {
             BTraceRuntime.addToAggregation(aggregation, key, value);
         }
 
+        /**
+         * Adds a value to the aggregation grouped by a primitive key (eg. an id). Unlike
+         * {@linkplain #addToAggregation(Aggregation, AggregationKey, long)} it does not need
+         * an {@linkplain AggregationKey} instance and does not allocate once the key is known
+         * to the aggregation.
+         *
+         * @param aggregation the aggregation to which the value should be added
+         * @param key the grouping key
+         */
+        public static void addToAggregation(Aggregation aggregation, long key, long value) {
+            BTraceRuntime.addToAggregation(aggregation, key, value);
+        }
+
+        /**
+         * Adds a value to the aggregation grouped by a string key. Unlike
+         * {@linkplain #addToAggregation(Aggregation, AggregationKey, long)} it does not need
+         * an {@linkplain AggregationKey} instance and does not allocate once the key is known
+         * to the aggregation.
+         *
+         * @param aggregation the aggregation to which the value should be added
+         * @param key the grouping key
+         */
+        public static void addToAggregation(Aggregation aggregation, String key, long value) {
+            BTraceRuntime.addToAggregation(aggregation, key, value);
+        }
+
+        /**
+         * Returns the value at the given percentile of a {@linkplain AggregationFunction#PERCENTILE}
+         * aggregation with no grouping key.
+         *
+         * @param aggregation the percentile aggregation
+         * @param percentile the percentile in the range of 0 to 100; 100 gives the maximum value
+         * @return the value at the given percentile or 0 if no value has been added yet
+         */
+        public static long percentile(Aggregation aggregation, double percentile) {
+            return BTraceRuntime.percentile(aggregation, percentile);
+        }
+
+        /**
+         * Returns the value at the given percentile for a grouping key of a
+         * {@linkplain AggregationFunction#PERCENTILE} aggregation.
+         *
+         * @param aggregation the percentile aggregation
+         * @param key the grouping aggregation key
+         * @param percentile the percentile in the range of 0 to 100; 100 gives the maximum value
+         * @return the value at the given percentile or 0 if no value has been added for the key yet
+         */
+        public static long percentile(Aggregation aggregation, AggregationKey key, double percentile) {
+            return BTraceRuntime.percentile(aggregation, key, percentile);
+        }
+
+        /**
+         * @see #percentile(Aggregation, AggregationKey, double)
+         */
+        public static long percentile(Aggregation aggregation, long key, double percentile) {
+            return BTraceRuntime.percentile(aggregation, key, percentile);
+        }
+
+        /**
+         * @see #percentile(Aggregation, AggregationKey, double)
+         */
+        public static long percentile(Aggregation aggregation, String key, double percentile) {
+            return BTraceRuntime.percentile(aggregation, key, percentile);
+        }
+
         /**
          * Resets values within the aggregation to the default. This will affect all values within the aggregation
          * when multiple aggregation keys have been used.
@@ -5093,6 +5182,20 @@ public class BTraceUtils {
             BTraceRuntime.printAggregation(name, aggregation, format);
         }
 
+        /**
+         * Prints only the largest or smallest <code>abs(count)</code> aggregated values.
+         * <p>Unlike {@linkplain #truncateAggregation(com.sun.btrace.aggregation.Aggregation, int)}
+         * the aggregation is left intact and it does not need to be sorted as a whole.
+         *
+         * @param name The name of the aggregation to be used in the textual output
+         * @param aggregation The aggregation to print
+         * @param count the number of elements to print. If negative, the smallest <code>abs(count)</code> elements are printed.
+         * @since 1.3
+         */
+        public static void printAggregation(String name, Aggregation aggregation, int count) {
+            BTraceRuntime.printAggregation(name, aggregation, count);
+        }
+
         public static void printAggregation(String name, String format, Collection<Aggregation> aggregationList) {
             Aggregation[] aggregationArray = new Aggregation[aggregationList.size()];
             int index = 0;
@@ -5130,6 +5233,23 @@ public class BTraceUtils {
             return BTraceRuntime.newProfiler(expectedBlockCnt);
         }
 
+        /**
+         * Creates a new {@linkplain Profiler} instance, optionally
+         * recording the calling context tree.
+         * <p>
+         * The calling context tree profiler keeps the metrics per the path
+         * of the entered blocks rather than per block only. The flat per-block
+         * metrics are still available but the min/max values are not tracked.
+         * @param expectedBlockCnt The expected count of the distinct blocks
+         *                          to be recorded.
+         * @param callTree {@code true} to record the calling context tree
+         * @return Returns a new {@linkplain Profiler} instance
+         * @since 1.3
+         */
+        public static Profiler newProfiler(int expectedBlockCnt, boolean callTree) {
+            return BTraceRuntime.newProfiler(expectedBlockCnt, callTree);
+        }
+
         /**
          * Records the entry to a particular code block
          * @param profiler The {@linkplain Profiler} instance to use
@@ -5149,6 +5269,42 @@ public class BTraceUtils {
             BTraceRuntime.recordExit(profiler, blockName, duration);
         }
 
+        /**
+         * Resolves the id of a code block for use with
+         * {@linkplain #recordEntry(com.sun.btrace.Profiler, int)} and
+         * {@linkplain #recordExit(com.sun.btrace.Profiler, int, long)}.
+         * <p>
+         * Resolving the id once (eg. into a static field) saves hashing
+         * the block name on each recorded invocation.
+         * @param blockName The block identifier
+         * @return The block id
+         * @since 1.3
+         */
+        public static int blockId(String blockName) {
+            return BTraceRuntime.profilerBlockId(blockName);
+        }
+
+        /**
+         * Records the entry to a particular code block
+         * @param profiler The {@linkplain Profiler} instance to use
+         * @param blockId The block id obtained from {@linkplain #blockId(java.lang.String)}
+         * @since 1.3
+         */
+        public static void recordEntry(Profiler profiler, int blockId) {
+            BTraceRuntime.recordEntry(profiler, blockId);
+        }
+
+        /**
+         * Records the exit out of a particular code block
+         * @param profiler The {@linkplain Profiler} instance to use
+         * @param blockId The block id obtained from {@linkplain #blockId(java.lang.String)}
+         * @param duration The time spent in the mentioned block
+         * @since 1.3
+         */
+        public static void recordExit(Profiler profiler, int blockId, long duration) {
+            BTraceRuntime.recordExit(profiler, blockId, duration);
+        }
+
         /**
          * Creates a new snapshot of the profiling metrics collected sofar
          * @param profiler The {@linkplain Profiler} instance to use
@@ -5178,6 +5334,28 @@ public class BTraceUtils {
         public static void printSnapshot(String name, Profiler profiler, String format) {
             BTraceRuntime.printSnapshot(name, profiler.snapshot(), format);
         }
+
+        /**
+         * Prints the calling context tree with the nested blocks indented.
+         * Falls back to the flat view if the profiler does not record the tree.
+         * @param name The name to be used in the textual output
+         * @param profiler The {@linkplain Profiler} instance to use
+         * @since 1.3
+         */
+        public static void printCallTree(String name, Profiler profiler) {
+            BTraceRuntime.printCallTree(name, profiler.snapshot());
+        }
+
+        /**
+         * Renders the calling context tree in the collapsed stack format
+         * (one "a;b;c selfTime" line per context) usable for flame graphs
+         * @param profiler The {@linkplain Profiler} instance to use
+         * @return the collapsed stacks; empty if the profiler does not record the tree
+         * @since 1.3
+         */
+        public static String collapsedStacks(Profiler profiler) {
+            return profiler.snapshot().getCollapsedStacks();
+        }
     }
 
     /*
@@ -5353,11 +5531,11 @@ public class BTraceUtils {
          * using the given class loader.
          */
         public static Class classForName(String name, ClassLoader cl) {
-            try {
-                return Class.forName(name, false, cl);
-            } catch (ClassNotFoundException exp) {
-                throw translate(exp);
+            Class clz = ReflectionCache.findClass(name, cl);
+            if (clz == null) {
+                throw translate(new ClassNotFoundException(name));
             }
+            return clz;
         }
 
         /**
@@ -6706,6 +6884,41 @@ public class BTraceUtils {
         }
     }
 
+    /*
+     * Wraps the BTrace output (command queue) statistics related utility methods
+     */
+    public static class Output {
+        /**
+         * Returns the number of commands (messages, data, etc.) this script
+         * has lost because its command queue was full. Depends on the
+         * {@code cmdQueuePolicy} in effect.
+         *
+         * @return the number of dropped commands
+         */
+        public static long droppedCommands() {
+            return BTraceRuntime.droppedCommands();
+        }
+
+        /**
+         * Returns the number of messages which were merged into
+         * a preceding message before delivering them to the client.
+         *
+         * @return the number of coalesced commands
+         */
+        public static long coalescedCommands() {
+            return BTraceRuntime.coalescedCommands();
+        }
+
+        /**
+         * Returns the number of commands delivered to the client so far.
+         *
+         * @return the number of delivered commands
+         */
+        public static long deliveredCommands() {
+            return BTraceRuntime.deliveredCommands();
+        }
+    }
+
     /*
      * Wraps the jvmstat counters related BTrace utility methods
      * @since 1.2
@@ -6782,37 +6995,24 @@ public class BTraceUtils {
 
     private static Field getField(final Class clazz, final String name,
             final boolean throwError) {
-        return AccessController.doPrivileged(new PrivilegedAction<Field>() {
-            public Field run() {
-                try {
-                    Field field = clazz.getDeclaredField(name);
-                    field.setAccessible(true);
-                    return field;
-                } catch (Exception exp) {
-                    if (throwError) {
-                       throw translate(exp);
-                    } else {
-                       return null;
-                    }
-                }
+        Field field;
+        try {
+            field = ReflectionCache.getField(clazz, name);
+        } catch (Exception exp) {
+            if (throwError) {
+               throw translate(exp);
+            } else {
+               return null;
             }
-        });
+        }
+        if (field == null && throwError) {
+            throw translate(new NoSuchFieldException(name));
+        }
+        return field;
     }
 
     private static Field[] getAllFields(final Class clazz) {
-        return AccessController.doPrivileged(new PrivilegedAction<Field[]>() {
-            public Field[] run() {
-                try {
-                    Field[] fields = clazz.getDeclaredFields();
-                    for (Field f : fields) {
-                        f.setAccessible(true);
-                    }
-                    return fields;
-                } catch (Exception exp) {
-                    throw translate(exp);
-                }
-            }
-        });
+        return ReflectionCache.getAllFields(clazz);
     }
 
     private static void addFieldValues(StringBuilder buf, Object obj,
@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2008, 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace;
+
+import com.sun.btrace.comm.Command;
+import com.sun.btrace.comm.MessageCommand;
+import com.sun.btrace.org.jctools.queues.MessagePassingQueue;
+import com.sun.btrace.org.jctools.queues.MpmcArrayQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, striped buffer of the commands sent by a BTrace client.
+ * <p>
+ * Probe threads are spread over several independent ring buffers (stripes)
+ * by their thread id so that threads running on different cores do not
+ * compete for the same producer index. All the commands sent by one thread
+ * end up in the same stripe and keep their relative order. The command thread
+ * is the only consumer - it drains all the stripes in batches.
+ * <p>
+ * When a stripe is full the configured {@linkplain OverflowPolicy} is applied.
+ * A probe thread never sleeps here; even with {@linkplain OverflowPolicy#BLOCK}
+ * it only wakes up the command thread and yields until there is room.
+ * <p>
+ * Consecutive plain messages buffered in one stripe are coalesced into
+ * a single {@linkplain MessageCommand} when drained, saving the per-command
+ * cost in the client handler. A stripe may be shared by several threads, so
+ * a coalesced message can interleave the output of those threads - in the
+ * same order as they were buffered.
+ * <p>
+ * The {@linkplain Command#EXIT} command is not buffered. It is delivered
+ * after the commands which had been buffered at the time it was sent.
+ * <p>
+ * The command thread does not drain the buffer while the {@linkplain Sink}
+ * is not ready; the commands accumulate in the stripes and the overflow
+ * policy takes care of the probe threads.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class CommandBuffer implements CommandQueueMXBean {
+    /**
+     * What to do when a probe thread finds its stripe full
+     */
+    enum OverflowPolicy {
+        /**
+         * Wait (yielding) until the command thread makes room
+         */
+        BLOCK,
+        /**
+         * Evict the oldest buffered command to make room for the new one
+         */
+        DROP_OLDEST,
+        /**
+         * Discard the new command
+         */
+        DROP_NEWEST,
+        /**
+         * Keep every {@linkplain #SAMPLE_RATE}-th overflowing command
+         * (evicting the oldest one) and discard the rest
+         */
+        SAMPLE;
+
+        /**
+         * @param val policy name; case insensitive, '-' may be used instead of '_'
+         *            and 'drop' stands for {@linkplain #DROP_NEWEST}
+         * @return the corresponding policy or {@code null}
+         */
+        static OverflowPolicy parse(String val) {
+            String normalized = val.trim().toUpperCase().replace('-', '_');
+            if (normalized.equals("DROP")) {
+                return DROP_NEWEST;
+            }
+            for (OverflowPolicy p : values()) {
+                if (p.name().equals(normalized)) {
+                    return p;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The receiver of the drained commands
+     */
+    interface Sink extends MessagePassingQueue.Consumer<Command> {
+        /**
+         * @return {@code false} if the commands should be left buffered for now
+         */
+        boolean isReady();
+
+        /**
+         * Called when the buffer has been drained after delivering some commands
+         * @return {@code false} if the sink still holds some unsent data; it
+         *         will be flushed again on the next idle pass
+         */
+        boolean flush();
+    }
+
+    private static final int MIN_STRIPE_CAPACITY = 16;
+    private static final long STALL_PARK_NS = 1000000L; // 1ms
+    private static final int MAX_STRIPES = 64;
+    private static final int DRAIN_BATCH = 256;
+    private static final int MAX_COALESCED_LENGTH = 8192;
+    static final int SAMPLE_RATE = 10;
+
+    private static final class Stripe {
+        private final MpmcArrayQueue<Command> queue;
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong overflows = new AtomicLong();
+
+        Stripe(int capacity) {
+            queue = new MpmcArrayQueue<>(capacity);
+        }
+    }
+
+    /**
+     * Merges runs of plain messages before handing them over to the consumer.
+     * Used only by the command thread.
+     */
+    private final class Coalescer implements MessagePassingQueue.Consumer<Command> {
+        private final StringBuilder text = new StringBuilder();
+        private MessagePassingQueue.Consumer<Command> target;
+        private MessageCommand pending;
+        private int merged;
+
+        @Override
+        public void accept(Command cmd) {
+            if (isPlainMessage(cmd)) {
+                String msg = ((MessageCommand)cmd).getMessage();
+                if (pending == null) {
+                    pending = (MessageCommand)cmd;
+                    return;
+                }
+                int len = merged > 0 ? text.length() : pending.getMessage().length();
+                if (len + msg.length() <= MAX_COALESCED_LENGTH) {
+                    if (merged == 0) {
+                        text.append(pending.getMessage());
+                    }
+                    text.append(msg);
+                    merged++;
+                    return;
+                }
+                flush();
+                pending = (MessageCommand)cmd;
+                return;
+            }
+            flush();
+            deliver(cmd);
+        }
+
+        void flush() {
+            if (pending == null) {
+                return;
+            }
+            if (merged > 0) {
+                coalesced += merged;
+                deliver(new MessageCommand(text.toString()));
+                text.setLength(0);
+                merged = 0;
+            } else {
+                deliver(pending);
+            }
+            pending = null;
+        }
+
+        private void deliver(Command cmd) {
+            delivered++;
+            target.accept(cmd);
+        }
+
+        private boolean isPlainMessage(Command cmd) {
+            return cmd.getType() == Command.MESSAGE
+                && cmd.getClass() == MessageCommand.class
+                && ((MessageCommand)cmd).getTime() == 0L
+                && ((MessageCommand)cmd).getMessage() != null;
+        }
+    }
+
+    private final Stripe[] stripes;
+    private final int mask;
+    private final OverflowPolicy policy;
+    private final Coalescer coalescer = new Coalescer();
+
+    private volatile Command exitCmd;
+    private volatile Thread consumerThread;
+
+    // written only by the command thread
+    private volatile long delivered;
+    private volatile long coalesced;
+    private volatile long stalls;
+
+    CommandBuffer(int stripeCapacity, OverflowPolicy policy) {
+        int cnt = nextPow2(Math.min(Runtime.getRuntime().availableProcessors(), MAX_STRIPES));
+        int capacity = nextPow2(Math.max(stripeCapacity, MIN_STRIPE_CAPACITY));
+        this.stripes = new Stripe[cnt];
+        for (int i = 0; i < cnt; i++) {
+            stripes[i] = new Stripe(capacity);
+        }
+        this.mask = cnt - 1;
+        this.policy = policy;
+    }
+
+    OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    @Override
+    public String getOverflowPolicy() {
+        return policy.name();
+    }
+
+    /**
+     * Adds a command to the buffer of the current thread.
+     * @param cmd the command
+     * @return {@code true} if the command was accepted;
+     *         {@code false} if it was discarded due to the overflow policy
+     */
+    boolean offer(Command cmd) {
+        if (cmd.getType() == Command.EXIT) {
+            exitCmd = cmd;
+            wakeUp();
+            return true;
+        }
+        Stripe s = stripes[(int)Thread.currentThread().getId() & mask];
+        if (s.queue.relaxedOffer(cmd)) {
+            return true;
+        }
+        return onOverflow(s, cmd);
+    }
+
+    /**
+     * Drains the buffer until the exit condition says otherwise. Must be
+     * called only from one thread - the command thread.
+     */
+    void drain(Sink c,
+               MessagePassingQueue.WaitStrategy w,
+               MessagePassingQueue.ExitCondition exit) {
+        consumerThread = Thread.currentThread();
+        try {
+            int idleCounter = 0;
+            boolean pendingFlush = false;
+            while (exit.keepRunning()) {
+                // a pending exit is delivered no matter what
+                if (exitCmd == null && !c.isReady()) {
+                    stalls++;
+                    LockSupport.parkNanos(STALL_PARK_NS);
+                    continue;
+                }
+                if (drain(c) == 0) {
+                    if (pendingFlush) {
+                        // keep on retrying until the sink has passed on everything
+                        pendingFlush = !c.flush();
+                    }
+                    idleCounter = w.idle(idleCounter);
+                } else {
+                    pendingFlush = true;
+                    idleCounter = 0;
+                }
+            }
+        } finally {
+            consumerThread = null;
+        }
+    }
+
+    /**
+     * Runs one pass over all the stripes.
+     * @return number of delivered commands
+     */
+    int drain(MessagePassingQueue.Consumer<Command> c) {
+        coalescer.target = c;
+        Command exit = exitCmd;
+        int cnt = 0;
+        for (Stripe s : stripes) {
+            // in case of a pending exit drain each stripe fully
+            cnt += s.queue.drain(coalescer, exit != null ? s.queue.capacity() : DRAIN_BATCH);
+            coalescer.flush();
+        }
+        if (exit != null) {
+            exitCmd = null;
+            coalescer.deliver(exit);
+            cnt++;
+        }
+        return cnt;
+    }
+
+    /**
+     * @return the number of commands discarded due to the overflow policy
+     */
+    @Override
+    public long getDropped() {
+        long sum = 0;
+        for (Stripe s : stripes) {
+            sum += s.dropped.get();
+        }
+        return sum;
+    }
+
+    /**
+     * @return the number of commands merged into a preceding message
+     */
+    @Override
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * @return the number of commands handed over to the client
+     */
+    @Override
+    public long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * @return the number of times the command thread paused because the sink was not ready
+     */
+    @Override
+    public long getBackpressureStalls() {
+        return stalls;
+    }
+
+    void clear() {
+        for (Stripe s : stripes) {
+            s.queue.clear();
+        }
+        exitCmd = null;
+    }
+
+    private boolean onOverflow(Stripe s, Command cmd) {
+        Thread consumer = consumerThread;
+        if (consumer == Thread.currentThread()) {
+            // the command thread itself can never wait for a free slot
+            s.dropped.incrementAndGet();
+            return false;
+        }
+        wakeUp();
+        switch (policy) {
+            case SAMPLE: {
+                if (s.overflows.incrementAndGet() % SAMPLE_RATE != 0) {
+                    s.dropped.incrementAndGet();
+                    return false;
+                }
+                // this one is sampled; make room for it the same way as DROP_OLDEST
+                return dropOldest(s, cmd);
+            }
+            case DROP_OLDEST: {
+                return dropOldest(s, cmd);
+            }
+            case BLOCK: {
+                while (!s.queue.relaxedOffer(cmd)) {
+                    if (consumerThread == null) {
+                        // nobody is going to make room any more
+                        s.dropped.incrementAndGet();
+                        return false;
+                    }
+                    Thread.yield();
+                }
+                return true;
+            }
+            default: {
+                s.dropped.incrementAndGet();
+                return false;
+            }
+        }
+    }
+
+    private static boolean dropOldest(Stripe s, Command cmd) {
+        do {
+            if (s.queue.relaxedPoll() != null) {
+                s.dropped.incrementAndGet();
+            }
+        } while (!s.queue.relaxedOffer(cmd));
+        return true;
+    }
+
+    private void wakeUp() {
+        Thread t = consumerThread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    private static int nextPow2(int val) {
+        int p = Integer.highestOneBit(Math.max(val, 1));
+        return p == val ? p : p << 1;
+    }
+}
@@ -36,4 +36,23 @@ import java.io.IOException;
  */
 public interface CommandListener {
     public void onCommand(Command cmd) throws IOException;
+
+    /**
+     * Called when all the commands sent so far have been delivered.
+     * A listener buffering the commands should pass them on now.
+     * @return {@code false} if some data could not be passed on without
+     *         blocking; the sender will call this method again later
+     */
+    default boolean flush() throws IOException {
+        return true;
+    }
+
+    /**
+     * Allows the listener to signal backpressure. While it returns {@code false}
+     * the commands stay in the sender's queue, subject to its overflow policy.
+     * @return {@code true} if the listener can accept more commands without blocking
+     */
+    default boolean isReady() throws IOException {
+        return true;
+    }
 }
\ No newline at end of file
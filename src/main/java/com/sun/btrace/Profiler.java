@@ -26,6 +26,7 @@
 package com.sun.btrace;
 
 import com.sun.btrace.annotations.Property;
+import com.sun.btrace.profiling.BlockRegistry;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
@@ -126,6 +127,28 @@ public abstract class Profiler {
         }
     }
 
+    /**
+     * A node of the calling context tree - a block in one particular
+     * calling context (the path from the root)
+     *
+     * @since 1.3
+     */
+    final public static class CallNode {
+        final public String blockName;
+        final public long invocations;
+        final public long selfTime;
+        final public long wallTime;
+        final public CallNode[] children;
+
+        public CallNode(String blockName, long invocations, long selfTime, long wallTime, CallNode[] children) {
+            this.blockName = blockName;
+            this.invocations = invocations;
+            this.selfTime = selfTime;
+            this.wallTime = wallTime;
+            this.children = children;
+        }
+    }
+
     /**
      * Snapshot is an immutable image of the current profiling data collected
      * by the {@linkplain Profiler}
@@ -138,11 +161,73 @@ public abstract class Profiler {
         final public long timeStamp;
         final public long timeInterval;
         final public Record[] total;
+        /**
+         * The root of the calling context tree; the root itself represents
+         * no block. {@code null} if the profiler does not collect the tree.
+         */
+        final public CallNode callTree;
 
         public Snapshot(Record[] data, long startTs, long stopTs) {
+            this(data, null, startTs, stopTs);
+        }
+
+        public Snapshot(Record[] data, CallNode callTree, long startTs, long stopTs) {
             this.timeStamp = stopTs;
             this.timeInterval = stopTs - startTs;
             this.total = data;
+            this.callTree = callTree;
+        }
+
+        /**
+         * Renders the calling context tree in the collapsed stack format
+         * consumed by the flame graph tools - one line per calling context
+         * with the frames separated by ';' followed by the self time in nanoseconds
+         * @return the collapsed stacks or an empty string if there is no calling context tree
+         */
+        public String getCollapsedStacks() {
+            StringBuilder sb = new StringBuilder();
+            if (callTree != null) {
+                for (CallNode c : callTree.children) {
+                    appendCollapsed(c, new StringBuilder(), sb);
+                }
+            }
+            return sb.toString();
+        }
+
+        private static void appendCollapsed(CallNode n, StringBuilder path, StringBuilder sb) {
+            int len = path.length();
+            if (len > 0) {
+                path.append(';');
+            }
+            path.append(n.blockName);
+            if (n.selfTime > 0) {
+                sb.append(path).append(' ').append(n.selfTime).append('\n');
+            }
+            for (CallNode c : n.children) {
+                appendCollapsed(c, path, sb);
+            }
+            path.setLength(len);
+        }
+
+        List<Object[]> getCallTreeGridData() {
+            if (callTree == null) {
+                return getGridData();
+            }
+            List<Object[]> rslt = new ArrayList<Object[]>();
+            rslt.add(new Object[]{"Block", "Invocations", "SelfTime.Total", "SelfTime.Avg", "WallTime.Total", "WallTime.Avg"});
+            for (CallNode c : callTree.children) {
+                addCallTreeRows(c, "", rslt);
+            }
+            return rslt;
+        }
+
+        private static void addCallTreeRows(CallNode n, String indent, List<Object[]> rslt) {
+            long inv = Math.max(n.invocations, 1);
+            rslt.add(new Object[]{indent + n.blockName, n.invocations, n.selfTime, n.selfTime / inv,
+                                  n.wallTime, n.wallTime / inv});
+            for (CallNode c : n.children) {
+                addCallTreeRows(c, indent + "  ", rslt);
+            }
         }
 
         List<Object[]> getGridData() {
@@ -207,6 +292,42 @@ public abstract class Profiler {
      */
     public abstract void recordExit(String blockName, long duration);
 
+    /**
+     * Records the event of entering an execution unit identified by its
+     * block id obtained from {@linkplain #blockId(java.lang.String)}<br/>
+     * Must be paired with a call to {@linkplain Profiler#recordExit(int, long) }
+     * with the same blockId, eventually
+     * @param blockId The execution unit id
+     * @since 1.3
+     */
+    public void recordEntry(int blockId) {
+        recordEntry(BlockRegistry.nameOf(blockId));
+    }
+
+    /**
+     * Records the event of exiting an execution unit identified by its
+     * block id obtained from {@linkplain #blockId(java.lang.String)}<br/>
+     * Must be preceded by a call to {@linkplain Profiler#recordEntry(int) }
+     * with the same blockId
+     * @param blockId The execution unit id
+     * @param duration Invocation duration in nanoseconds
+     * @since 1.3
+     */
+    public void recordExit(int blockId, long duration) {
+        recordExit(BlockRegistry.nameOf(blockId), duration);
+    }
+
+    /**
+     * Resolves the id of the given execution unit. The id is stable for
+     * the lifetime of the JVM and is shared by all {@linkplain Profiler} instances.
+     * @param blockName The execution unit identifier (eg. method FQN)
+     * @return The block id
+     * @since 1.3
+     */
+    public static int blockId(String blockName) {
+        return BlockRegistry.idOf(blockName);
+    }
+
     /**
      * Creates an immutable snapshot of the collected profiling data
      * @return Returns the immutable {@linkplain Snapshot} instance
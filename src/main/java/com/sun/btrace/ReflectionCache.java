@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the Classpath exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.btrace;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches the classes and fields resolved by the probe code.
+ * <p>
+ * Resolving a class by name takes the class loading lock and looking up a field
+ * requires a privileged action; both are too expensive to be done on each probe hit.
+ * The per-class results are kept in {@linkplain ClassValue}s and do not prevent the
+ * classes from being unloaded. The classes resolved by name are cached per class
+ * loader, weakly. The failed lookups are cached as well. None of the lookups takes
+ * a lock.
+ * </p>
+ *
+ * @author Jaroslav Bachorik
+ */
+final class ReflectionCache {
+    // marks a failed lookup
+    private static final Object MISSING = new Object();
+
+    // class -> the results of instanceOf checks by the target class name
+    private static final ClassValue<ConcurrentMap<String, Boolean>> INSTANCE_OF = new ClassValue<ConcurrentMap<String, Boolean>>() {
+        @Override
+        protected ConcurrentMap<String, Boolean> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    // class -> the declared fields by name
+    private static final ClassValue<ConcurrentMap<String, Object>> FIELDS = new ClassValue<ConcurrentMap<String, Object>>() {
+        @Override
+        protected ConcurrentMap<String, Object> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    // class -> all the declared fields, made accessible
+    private static final ClassValue<Field[]> ALL_FIELDS = new ClassValue<Field[]>() {
+        @Override
+        protected Field[] computeValue(final Class<?> type) {
+            return AccessController.doPrivileged(new PrivilegedAction<Field[]>() {
+                @Override
+                public Field[] run() {
+                    Field[] fields = type.getDeclaredFields();
+                    for (Field f : fields) {
+                        f.setAccessible(true);
+                    }
+                    return fields;
+                }
+            });
+        }
+    };
+
+    /*
+     * class loader -> class name -> weak reference to the class or MISSING;
+     * the classes are referenced weakly not to keep their loaders reachable
+     */
+    private static final ConcurrentMap<LoaderRef, ConcurrentMap<String, Object>> CLASSES = new ConcurrentHashMap<>();
+    // the classes resolved by the bootstrap class loader
+    private static final ConcurrentMap<String, Object> BOOTSTRAP_CLASSES = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<ClassLoader> STALE_LOADERS = new ReferenceQueue<>();
+
+    /**
+     * A weak reference to a class loader comparing the loaders by identity
+     */
+    private static final class LoaderRef extends WeakReference<ClassLoader> {
+        private final int hash;
+
+        LoaderRef(ClassLoader cl, ReferenceQueue<ClassLoader> queue) {
+            super(cl, queue);
+            hash = System.identityHashCode(cl);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof LoaderRef)) {
+                return false;
+            }
+            ClassLoader cl = get();
+            return cl != null && cl == ((LoaderRef)obj).get();
+        }
+    }
+
+    private ReflectionCache() {}
+
+    /**
+     * @param objClass the class of the checked object
+     * @param className the name of the target class, resolved by the loader of objClass
+     * @return true if objClass is assignable to the target class; false if it is not
+     *         or the target class can not be resolved
+     */
+    static boolean isInstanceOf(Class<?> objClass, String className) {
+        ConcurrentMap<String, Boolean> results = INSTANCE_OF.get(objClass);
+        Boolean result = results.get(className);
+        if (result == null) {
+            ClassLoader cl = objClass.getClassLoader();
+            Class<?> target = findClass(className, cl != null ? cl : ClassLoader.getSystemClassLoader(), true);
+            result = target != null && target.isAssignableFrom(objClass);
+            results.put(className, result);
+        }
+        return result;
+    }
+
+    /**
+     * Resolves a class by name without initializing it
+     * @return the class or null if it can not be found
+     */
+    static Class<?> findClass(String name, ClassLoader cl) {
+        return findClass(name, cl, false);
+    }
+
+    private static Class<?> findClass(String name, ClassLoader cl, boolean useLoadClass) {
+        ConcurrentMap<String, Object> classes = getClasses(cl);
+        Object cached = classes.get(name);
+        if (cached == MISSING) {
+            return null;
+        }
+        if (cached != null) {
+            Class<?> clz = (Class<?>)((WeakReference<?>)cached).get();
+            if (clz != null) {
+                return clz;
+            }
+        }
+        try {
+            Class<?> clz = useLoadClass ? cl.loadClass(name) : Class.forName(name, false, cl);
+            classes.put(name, new WeakReference<>(clz));
+            return clz;
+        } catch (ClassNotFoundException e) {
+            classes.put(name, MISSING);
+            return null;
+        }
+    }
+
+    private static ConcurrentMap<String, Object> getClasses(ClassLoader cl) {
+        if (cl == null) {
+            return BOOTSTRAP_CLASSES;
+        }
+        ConcurrentMap<String, Object> classes = CLASSES.get(new LoaderRef(cl, null));
+        if (classes == null) {
+            expungeStaleLoaders();
+            ConcurrentMap<String, Object> newClasses = new ConcurrentHashMap<>();
+            classes = CLASSES.putIfAbsent(new LoaderRef(cl, STALE_LOADERS), newClasses);
+            if (classes == null) {
+                classes = newClasses;
+            }
+        }
+        return classes;
+    }
+
+    private static void expungeStaleLoaders() {
+        Reference<? extends ClassLoader> ref;
+        while ((ref = STALE_LOADERS.poll()) != null) {
+            CLASSES.remove(ref);
+        }
+    }
+
+    /**
+     * Looks up a declared field and makes it accessible
+     * @return the field or null if the class does not declare it
+     * @throws SecurityException if the field can not be accessed
+     */
+    static Field getField(final Class<?> clazz, final String name) {
+        ConcurrentMap<String, Object> fields = FIELDS.get(clazz);
+        Object cached = fields.get(name);
+        if (cached == null) {
+            cached = AccessController.doPrivileged(new PrivilegedAction<Object>() {
+                @Override
+                public Object run() {
+                    try {
+                        Field field = clazz.getDeclaredField(name);
+                        field.setAccessible(true);
+                        return field;
+                    } catch (NoSuchFieldException e) {
+                        return MISSING;
+                    }
+                }
+            });
+            fields.put(name, cached);
+        }
+        return cached != MISSING ? (Field)cached : null;
+    }
+
+    /**
+     * @return all the declared fields of the class, made accessible; the array must not be modified
+     */
+    static Field[] getAllFields(Class<?> clazz) {
+        return ALL_FIELDS.get(clazz);
+    }
+}
@@ -40,9 +40,28 @@ final public class SharedSettings {
     public static final String PROBE_DESC_PATH_KEY = "probeDescPath";
     public static final String STATSD_HOST_KEY = "statsdHost";
     public static final String STATSD_PORT_KEY = "statsdPort";
+    public static final String STATSD_MTU_KEY = "statsdMtu";
+    public static final String STATSD_FLUSH_KEY = "statsdFlush";
     public static final String FILEROLL_INTERVAL_KEY = "fileRollMilliseconds";
     public static final String FILEROLL_MAXROLLS_KEY = "fileRollMaxRolls";
+    public static final String FILEROLL_SIZE_KEY = "fileRollSize";
+    public static final String FILEROLL_COMPRESS_KEY = "fileRollCompress";
+    public static final String FILE_PREALLOCATE_KEY = "filePreallocate";
     public static final String OUTPUT_FILE_KEY = "scriptOutputFile";
+    public static final String OUTPUT_FORMAT_KEY = "scriptOutputFormat";
+    public static final String OUTPUT_FORMAT_TEXT = "text";
+    public static final String OUTPUT_FORMAT_BINARY = "binary";
+    /**
+     * The output files with this extension are always written in the binary format
+     */
+    public static final String BINARY_OUTPUT_EXT = ".btrc";
+    public static final String CMD_QUEUE_LIMIT_KEY = "cmdQueueLimit";
+    public static final String CMD_QUEUE_POLICY_KEY = "cmdQueuePolicy";
+    /**
+     * The wire protocol version supported by a remote client. It is a property of
+     * the connection and is not kept in the settings - see {@linkplain com.sun.btrace.comm.WireIO}
+     */
+    public static final String WIRE_PROTOCOL_KEY = "wireProtocol";
 
     public static final SharedSettings GLOBAL = new SharedSettings();
 
@@ -54,11 +73,19 @@ final public class SharedSettings {
     private String probeDescPath = ".";
     private String statsdHost = null;
     private int statsdPort = 8125; // default statsd port
+    private int statsdMtu = 512; // max. packet size
+    private int statsdFlush = 1000; // pre-aggregation interval in ms
     private int fileRollMilliseconds = Integer.MIN_VALUE;
     private int fileRollMaxRolls = 5; // default hold max 100 logs
+    private long fileRollSize = 0; // in bytes; 0 = do not roll by size
+    private boolean fileRollCompress = false;
+    private long filePreallocate = 0; // in bytes; 0 = no preallocation
     private String outputFile;
     private String outputDir;
+    private String outputFormat = OUTPUT_FORMAT_TEXT;
     private String clientName;
+    private int cmdQueueLimit = -1; // use the runtime default
+    private String cmdQueuePolicy = null; // use the runtime default
 
     public void from(Map<String, Object> params) {
         Boolean b = (Boolean)params.get(DEBUG_KEY);
@@ -93,6 +120,14 @@ final public class SharedSettings {
         if (i != null) {
             statsdPort = i;
         }
+        i = (Integer)params.get(STATSD_MTU_KEY);
+        if (i != null) {
+            statsdMtu = i;
+        }
+        i = (Integer)params.get(STATSD_FLUSH_KEY);
+        if (i != null) {
+            statsdFlush = i;
+        }
         i = (Integer)params.get(FILEROLL_INTERVAL_KEY);
         if (i != null) {
             fileRollMilliseconds = i;
@@ -101,24 +136,56 @@ final public class SharedSettings {
         if (i != null) {
             fileRollMaxRolls = i;
         }
+        Number n = (Number)params.get(FILEROLL_SIZE_KEY);
+        if (n != null) {
+            fileRollSize = n.longValue();
+        }
+        b = (Boolean)params.get(FILEROLL_COMPRESS_KEY);
+        if (b != null) {
+            fileRollCompress = b;
+        }
+        n = (Number)params.get(FILE_PREALLOCATE_KEY);
+        if (n != null) {
+            filePreallocate = n.longValue();
+        }
         s = (String)params.get(OUTPUT_FILE_KEY);
         if (s != null && !s.isEmpty()) {
             outputFile = s;
         }
+        s = (String)params.get(OUTPUT_FORMAT_KEY);
+        if (s != null && !s.isEmpty()) {
+            outputFormat = s;
+        }
+        i = (Integer)params.get(CMD_QUEUE_LIMIT_KEY);
+        if (i != null) {
+            cmdQueueLimit = i;
+        }
+        s = (String)params.get(CMD_QUEUE_POLICY_KEY);
+        if (s != null && !s.isEmpty()) {
+            cmdQueuePolicy = s;
+        }
     }
 
     public void from(SharedSettings other) {
         clientName = other.clientName;
+        cmdQueueLimit = other.cmdQueueLimit;
+        cmdQueuePolicy = other.cmdQueuePolicy;
         debug = other.debug;
         dumpDir = other.dumpDir;
         fileRollMilliseconds = other.fileRollMilliseconds;
         fileRollMaxRolls = other.fileRollMaxRolls;
+        fileRollSize = other.fileRollSize;
+        fileRollCompress = other.fileRollCompress;
+        filePreallocate = other.filePreallocate;
         outputFile = other.outputFile;
         outputDir = other.outputDir;
+        outputFormat = other.outputFormat;
         probeDescPath = other.probeDescPath;
         retransformStartup = other.retransformStartup;
         statsdHost = other.statsdHost;
         statsdPort = other.statsdPort;
+        statsdMtu = other.statsdMtu;
+        statsdFlush = other.statsdFlush;
         trackRetransforms = other.trackRetransforms;
         trusted = other.trusted;
     }
@@ -191,6 +258,22 @@ final public class SharedSettings {
         this.statsdPort = statsdPort;
     }
 
+    public int getStatsdMtu() {
+        return statsdMtu;
+    }
+
+    public void setStatsdMtu(int statsdMtu) {
+        this.statsdMtu = statsdMtu;
+    }
+
+    public int getStatsdFlush() {
+        return statsdFlush;
+    }
+
+    public void setStatsdFlush(int statsdFlush) {
+        this.statsdFlush = statsdFlush;
+    }
+
     public int getFileRollMilliseconds() {
         return fileRollMilliseconds;
     }
@@ -207,6 +290,30 @@ final public class SharedSettings {
         this.fileRollMaxRolls = fileRollMaxRolls;
     }
 
+    public long getFileRollSize() {
+        return fileRollSize;
+    }
+
+    public void setFileRollSize(long fileRollSize) {
+        this.fileRollSize = fileRollSize;
+    }
+
+    public boolean isFileRollCompress() {
+        return fileRollCompress;
+    }
+
+    public void setFileRollCompress(boolean fileRollCompress) {
+        this.fileRollCompress = fileRollCompress;
+    }
+
+    public long getFilePreallocate() {
+        return filePreallocate;
+    }
+
+    public void setFilePreallocate(long filePreallocate) {
+        this.filePreallocate = filePreallocate;
+    }
+
     public void setRetransformStartup(boolean val) {
         this.retransformStartup = val;
     }
@@ -231,6 +338,22 @@ final public class SharedSettings {
         return outputDir;
     }
 
+    public String getOutputFormat() {
+        return outputFormat;
+    }
+
+    public void setOutputFormat(String outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+
+    /**
+     * @return {@code true} if the output file is to be written in the binary format
+     */
+    public boolean isBinaryOutput() {
+        return OUTPUT_FORMAT_BINARY.equals(outputFormat) ||
+               (outputFile != null && outputFile.endsWith(BINARY_OUTPUT_EXT));
+    }
+
     public String getClientName() {
         return clientName;
     }
@@ -238,4 +361,20 @@ final public class SharedSettings {
     public void setClientName(String clientName) {
         this.clientName = clientName;
     }
+
+    public int getCmdQueueLimit() {
+        return cmdQueueLimit;
+    }
+
+    public void setCmdQueueLimit(int cmdQueueLimit) {
+        this.cmdQueueLimit = cmdQueueLimit;
+    }
+
+    public String getCmdQueuePolicy() {
+        return cmdQueuePolicy;
+    }
+
+    public void setCmdQueuePolicy(String cmdQueuePolicy) {
+        this.cmdQueuePolicy = cmdQueuePolicy;
+    }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the Classpath exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Blocking input stream over a socket channel in non-blocking mode.
+ * The reading thread waits for data on its own selector.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class ChannelInputStream extends InputStream {
+    private final SocketChannel ch;
+    private final Selector selector;
+    private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+    // the maximum time to wait for data [ms]; 0 means forever
+    private volatile long timeout = 0;
+
+    ChannelInputStream(SocketChannel ch) throws IOException {
+        this.ch = ch;
+        this.selector = Selector.open();
+        ch.register(selector, SelectionKey.OP_READ);
+        buffer.flip();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int cnt = Math.min(len, buffer.remaining());
+        buffer.get(b, off, cnt);
+        return cnt;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return buffer.remaining();
+    }
+
+    /**
+     * Sets the maximum time a read will wait for data
+     * @param timeout the timeout in milliseconds; 0 means no timeout
+     */
+    void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // wakes up a thread blocked in read()
+        selector.close();
+    }
+
+    private boolean fill() throws IOException {
+        long limit = timeout;
+        long deadline = limit > 0 ? System.currentTimeMillis() + limit : 0;
+        while (!buffer.hasRemaining()) {
+            if (!selector.isOpen()) {
+                throw new IOException("stream closed");
+            }
+            buffer.clear();
+            int cnt = ch.read(buffer);
+            buffer.flip();
+            if (cnt < 0) {
+                return false;
+            }
+            if (cnt == 0) {
+                try {
+                    if (deadline > 0) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            throw new SocketTimeoutException("no data received in " + limit + "ms");
+                        }
+                        selector.select(remaining);
+                    } else {
+                        selector.select();
+                    }
+                } catch (ClosedSelectorException e) {
+                    throw new IOException("stream closed");
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+        return true;
+    }
+}
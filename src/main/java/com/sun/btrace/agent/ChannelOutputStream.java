@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the Classpath exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.agent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batching output stream over a non-blocking socket channel.
+ * <p>
+ * The written data is collected in a reusable direct buffer and it is sent
+ * only when {@linkplain #commit()} finds the size or the time watermark
+ * exceeded or when {@linkplain #send()} is called explicitly - typically
+ * when the command thread has drained all the pending commands.
+ * {@linkplain #flush()} does not send anything.
+ * <p>
+ * Nothing here ever blocks waiting for the socket except {@linkplain #sendAll(long)}
+ * and {@linkplain #close()}. The data the socket can not take at the moment
+ * is kept in a backlog and sent, together with the buffer, in one gathering
+ * write the next time. {@linkplain #isCongested()} tells the caller to stop
+ * producing more data.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class ChannelOutputStream extends OutputStream {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // the buffered data is sent when it exceeds the size or it is older than the delay
+    private static final int FLUSH_SIZE = 32 * 1024;
+    private static final long FLUSH_DELAY_NS = TimeUnit.MILLISECONDS.toNanos(50);
+    // the amount of unsent data considered as congestion
+    private static final int HIGH_WATERMARK = 1024 * 1024;
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+
+    private final SocketChannel ch;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    // unsent data preceding the buffer content; in read mode
+    private final ArrayDeque<ByteBuffer> backlog = new ArrayDeque<>();
+    private long backlogSize = 0;
+    // the watermarks, relative to the last send attempt, so that a congested
+    // socket is not retried for every single write
+    private long sendSize = FLUSH_SIZE;
+    private long sendTime;
+    private Selector writeSelector;
+    private boolean closed = false;
+
+    /**
+     * @param ch a socket channel in non-blocking mode
+     */
+    ChannelOutputStream(SocketChannel ch) {
+        this.ch = ch;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            makeRoom();
+        }
+        markPending();
+        buffer.put((byte)b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        if (len > buffer.remaining()) {
+            makeRoom();
+            markPending();
+            if (len > buffer.remaining()) {
+                // larger than the whole buffer; queue a copy for the gathering write
+                backlog.add(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+                backlogSize += len;
+                return;
+            }
+        } else {
+            markPending();
+        }
+        buffer.put(b, off, len);
+    }
+
+    /**
+     * Does not send anything; the data is sent by {@linkplain #commit()},
+     * {@linkplain #send()} or {@linkplain #sendAll(long)}
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * To be called after a unit of data (a command) has been written.
+     * Sends the pending data if the size or the time watermark is exceeded.
+     */
+    synchronized void commit() throws IOException {
+        long size = getPendingSize();
+        if (size == 0) {
+            return;
+        }
+        if (size >= sendSize || System.nanoTime() - sendTime >= FLUSH_DELAY_NS) {
+            send();
+        }
+    }
+
+    /**
+     * Sends as much of the pending data as the socket takes without blocking
+     * @return {@code true} if all the pending data has been sent
+     */
+    synchronized boolean send() throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        if (getPendingSize() == 0) {
+            return true;
+        }
+        buffer.flip();
+        try {
+            ByteBuffer[] srcs = backlog.toArray(new ByteBuffer[backlog.size() + 1]);
+            srcs[srcs.length - 1] = buffer;
+            int first = 0;
+            while (first < srcs.length) {
+                if (ch.write(srcs, first, srcs.length - first) == 0) {
+                    break;
+                }
+                while (first < srcs.length && !srcs[first].hasRemaining()) {
+                    first++;
+                }
+            }
+        } catch (IOException e) {
+            // report a broken connection the same way the socket streams do
+            SocketException se = new SocketException(e.getMessage());
+            se.initCause(e);
+            throw se;
+        } finally {
+            buffer.compact();
+        }
+        while (!backlog.isEmpty() && !backlog.peekFirst().hasRemaining()) {
+            backlog.pollFirst();
+        }
+        backlogSize = 0;
+        for (ByteBuffer bb : backlog) {
+            backlogSize += bb.remaining();
+        }
+        long size = getPendingSize();
+        sendSize = size + FLUSH_SIZE;
+        sendTime = System.nanoTime();
+        return size == 0;
+    }
+
+    /**
+     * Sends all the pending data, waiting for the socket if necessary
+     * @param timeoutMs the maximum time to wait
+     * @return {@code true} if all the pending data has been sent
+     */
+    synchronized boolean sendAll(long timeoutMs) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!send()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            if (writeSelector == null) {
+                writeSelector = Selector.open();
+                ch.register(writeSelector, SelectionKey.OP_WRITE);
+            }
+            writeSelector.select(remaining);
+            writeSelector.selectedKeys().clear();
+        }
+        return true;
+    }
+
+    /**
+     * Tries to reduce the pending data when there is too much of it
+     * @return {@code true} if the amount of unsent data is still above the high watermark
+     */
+    synchronized boolean isCongested() throws IOException {
+        if (getPendingSize() <= HIGH_WATERMARK) {
+            return false;
+        }
+        send();
+        return getPendingSize() > HIGH_WATERMARK;
+    }
+
+    synchronized long getPendingSize() {
+        return backlogSize + buffer.position();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (ch.isOpen()) {
+                sendAll(CLOSE_TIMEOUT_MS);
+            }
+        } finally {
+            closed = true;
+            if (writeSelector != null) {
+                writeSelector.close();
+            }
+        }
+    }
+
+    /**
+     * Must be called before adding data to remember when the oldest pending data was written
+     */
+    private void markPending() {
+        if (getPendingSize() == 0) {
+            sendSize = FLUSH_SIZE;
+            sendTime = System.nanoTime();
+        }
+    }
+
+    /**
+     * Frees the buffer - by sending its content or by moving it to the backlog
+     */
+    private void makeRoom() throws IOException {
+        if (send() || buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer).flip();
+        buffer.clear();
+        backlog.add(copy);
+        backlogSize += copy.remaining();
+    }
+}
@@ -40,6 +40,7 @@ import com.sun.btrace.CommandListener;
 import com.sun.btrace.comm.ErrorCommand;
 import com.sun.btrace.comm.ExitCommand;
 import com.sun.btrace.comm.InstrumentCommand;
+import com.sun.btrace.comm.MappedTraceWriter;
 import com.sun.btrace.comm.OkayCommand;
 import com.sun.btrace.comm.RenameCommand;
 import com.sun.btrace.PerfReader;
@@ -51,18 +52,22 @@ import com.sun.btrace.runtime.InstrumentUtils;
 import com.sun.btrace.util.templates.impl.MethodTrackingExpander;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.lang.annotation.Annotation;
 import java.lang.instrument.Instrumentation;
 import java.lang.instrument.UnmodifiableClassException;
 import java.lang.management.ManagementFactory;
 import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import sun.reflect.annotation.AnnotationParser;
@@ -78,6 +83,18 @@ import sun.reflect.annotation.AnnotationType;
  */
 abstract class Client implements CommandListener {
     private static final Map<String, PrintWriter> WRITER_MAP = new HashMap<>();
+    private static final Map<String, MappedTraceWriter> RECORDER_MAP = new HashMap<>();
+    private static final int FILTER_MIN_CLASSES_PER_THREAD = 2048;
+    private static final int RETRANSFORM_INITIAL_BATCH = 256;
+    private static final int RETRANSFORM_MIN_BATCH = 16;
+    private static final int RETRANSFORM_MAX_BATCH = 4096;
+    // the target duration of retransforming one batch of classes
+    private static final long RETRANSFORM_BATCH_PAUSE_NS = 50 * 1000 * 1000L;
+    /*
+     * the upper limit of the time spent in retransformClasses during the startup retransformation;
+     * this is the pause the application threads see in total
+     */
+    private static final long RETRANSFORM_MAX_STARTUP_PAUSE_NS = 10 * 1000 * 1000 * 1000L;
 
     protected final Instrumentation inst;
     private volatile BTraceRuntime runtime;
@@ -85,8 +102,9 @@ abstract class Client implements CommandListener {
     private byte[] btraceCode;
     private BTraceProbe probe;
 
-    private Timer flusher;
     protected volatile PrintWriter out;
+    // the binary recording; replaces 'out' when the binary output format is selected
+    protected volatile MappedTraceWriter recorder;
 
     protected final SharedSettings settings;
     protected final DebugSupport debug;
@@ -131,50 +149,65 @@ abstract class Client implements CommandListener {
             String output = (outputDir != null ? outputDir + File.separator : "") + outputFile;
             outputFile = templateOutputFileName(output);
             infoPrint("Redirecting output to " + outputFile);
+            if (settings.isBinaryOutput()) {
+                setupRecorder(outputFile);
+                return;
+            }
         }
-        out = WRITER_MAP.get(outputFile);
-        if (out == null) {
-            if (outputFile.equals("::stdout")) {
-                out = new PrintWriter(System.out);
-            } else {
-                if (settings.getFileRollMilliseconds() > 0) {
-                    out = new PrintWriter(new BufferedWriter(
-                        TraceOutputWriter.rollingFileWriter(new File(outputFile), settings)
-                    ));
+        // the clients are set up concurrently; they must share one writer per file
+        synchronized (WRITER_MAP) {
+            out = WRITER_MAP.get(outputFile);
+            if (out == null) {
+                Writer w;
+                if (outputFile.equals("::stdout")) {
+                    w = new BufferedWriter(new OutputStreamWriter(System.out));
                 } else {
-                    out = new PrintWriter(new BufferedWriter(TraceOutputWriter.fileWriter(new File(outputFile), settings)));
+                    // the trace output writers do their own buffering
+                    if (settings.getFileRollMilliseconds() > 0 || settings.getFileRollSize() > 0) {
+                        w = TraceOutputWriter.rollingFileWriter(new File(outputFile), settings);
+                    } else {
+                        w = TraceOutputWriter.fileWriter(new File(outputFile), settings);
+                    }
                 }
+                out = new PrintWriter(new FlushingWriter(w, flushMaxAge()));
+                WRITER_MAP.put(outputFile, out);
+                out.append("### BTrace Log: " + DateFormat.getInstance().format(new Date()) + "\n\n");
             }
-            WRITER_MAP.put(outputFile, out);
-            out.append("### BTrace Log: " + DateFormat.getInstance().format(new Date()) + "\n\n");
-            startFlusher();
         }
         outputName = outputFile;
     }
 
-    private void startFlusher() {
-        int flushInterval;
+    private void setupRecorder(String outputFile) {
+        synchronized (RECORDER_MAP) {
+            recorder = RECORDER_MAP.get(outputFile);
+            if (recorder == null) {
+                try {
+                    recorder = new MappedTraceWriter(new File(outputFile), settings.getFileRollSize(),
+                                                     settings.getFileRollMaxRolls());
+                } catch (IOException e) {
+                    debugPrint(e);
+                    return;
+                }
+                // the recorded data is visible to the readers without any flushing
+                RECORDER_MAP.put(outputFile, recorder);
+            }
+        }
+        outputName = outputFile;
+    }
+
+    /**
+     * @return the maximum age of the unflushed output in milliseconds;
+     *         configured in seconds by 'com.sun.btrace.FileClient.flush'
+     */
+    private static long flushMaxAge() {
+        long flushSec;
         String flushIntervalStr = System.getProperty("com.sun.btrace.FileClient.flush", "5");
         try {
-            flushInterval = Integer.parseInt(flushIntervalStr);
+            flushSec = Long.parseLong(flushIntervalStr);
         } catch (NumberFormatException e) {
-            flushInterval = 5; // default
-        }
-
-        final int flushSec  = flushInterval;
-        if (flushSec > -1) {
-            flusher = new Timer("BTrace FileClient Flusher", true);
-            flusher.scheduleAtFixedRate(new TimerTask() {
-                @Override
-                public void run() {
-                    if (out != null) {
-                        out.flush();
-                    }
-                }
-            }, flushSec, flushSec);
-        } else {
-            flusher = null;
+            flushSec = 5; // default
         }
+        return flushSec > -1 ? TimeUnit.SECONDS.toMillis(flushSec) : -1;
     }
 
     private String templateOutputFileName(String fName) {
@@ -278,7 +311,7 @@ abstract class Client implements CommandListener {
         if (isDebug()) {
             debugPrint("creating BTraceRuntime instance for " + probe.getClassName());
         }
-        this.runtime = new BTraceRuntime(probe.getClassName(), args, this, debug, inst);
+        this.runtime = new BTraceRuntime(probe.getClassName(), args, this, settings, debug, inst);
         Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
             @Override
             public void run() {
@@ -312,13 +345,18 @@ abstract class Client implements CommandListener {
     }
 
     protected void closeAll() throws IOException {
-        if (flusher != null) {
-            flusher.cancel();
-        }
         if (out != null) {
             out.close();
         }
-        WRITER_MAP.remove(outputName);
+        if (recorder != null) {
+            recorder.close();
+        }
+        synchronized (WRITER_MAP) {
+            WRITER_MAP.remove(outputName);
+        }
+        synchronized (RECORDER_MAP) {
+            RECORDER_MAP.remove(outputName);
+        }
     }
 
     protected final void errorExit(Throwable th) throws IOException {
@@ -360,7 +398,7 @@ abstract class Client implements CommandListener {
         return probe != null ? probe.getClassName() : "<unknown>";
     }
 
-    final boolean isCandidate(Class c) {
+    final boolean isCandidate(Class<?> c) {
         String cname = c.getName().replace('.', '/');
         if (c.isInterface() || c.isPrimitive() || c.isArray()) {
             return false;
@@ -420,44 +458,226 @@ abstract class Client implements CommandListener {
         return new NullPerfReaderImpl();
     }
 
-    void retransformLoaded() throws UnmodifiableClassException {
-        if (runtime != null) {
-            if (probe.isTransforming() && settings.isRetransformStartup()) {
-                ArrayList<Class> list = new ArrayList<>();
-                debugPrint("retransforming loaded classes");
-                debugPrint("filtering loaded classes");
-                ClassCache cc = ClassCache.getInstance();
-                for (Class c : inst.getAllLoadedClasses()) {
-                    if (c != null) {
-                        cc.get(c);
-                        if (inst.isModifiableClass(c) &&  isCandidate(c)) {
-                            debugPrint("candidate " + c + " added");
-                            list.add(c);
+    /**
+     * Retransforms the loaded classes without limiting the total pause,
+     * eg. to remove the instrumentation.
+     */
+    void retransformLoaded() {
+        retransformLoaded(Collections.singletonList(this), Long.MAX_VALUE);
+    }
+
+    /**
+     * Retransforms the loaded classes for several clients at once.
+     * The loaded classes are filtered in one pass and each class is retransformed
+     * only once even when it is instrumented by more than one client.
+     * The classes not retransformed within {@linkplain #RETRANSFORM_MAX_STARTUP_PAUSE_NS}
+     * are left uninstrumented until they are redefined or reloaded.
+     * <p>
+     * A client whose candidate classes could not be retransformed receives an
+     * {@linkplain ErrorCommand}, the rest of the clients an {@linkplain OkayCommand}.
+     * @param clients the clients sharing the same instrumentation
+     */
+    static void retransformLoaded(List<Client> clients) {
+        retransformLoaded(clients, RETRANSFORM_MAX_STARTUP_PAUSE_NS);
+    }
+
+    private static void retransformLoaded(List<Client> clients, long maxPause) {
+        List<Client> transforming = new ArrayList<>(clients.size());
+        for (Client c : clients) {
+            if (c.runtime != null && c.probe.isTransforming() && c.settings.isRetransformStartup()) {
+                transforming.add(c);
+            }
+        }
+        boolean[] failed = new boolean[transforming.size()];
+        if (!transforming.isEmpty()) {
+            Client first = transforming.get(0);
+            first.debugPrint("retransforming loaded classes");
+            first.debugPrint("filtering loaded classes");
+            int[] counts = new int[transforming.size()];
+            List<Class<?>> list = filterCandidates(transforming, first.inst.getAllLoadedClasses(), counts);
+            if (!list.isEmpty()) {
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] > 0) {
+                        transforming.get(i).startRetransformClasses(counts[i]);
+                    }
+                }
+                if (first.isDebug()) {
+                    for(Class<?> c : list) {
+                        try {
+                            first.debugPrint("Attempting to retransform class: " + c.getName());
+                            first.inst.retransformClasses(c);
+                        } catch (VerifyError e) {
+                            first.debugPrint("verification error: " + c.getName());
+                        } catch (UnmodifiableClassException e) {
+                            retransformFailed(transforming, new Class<?>[]{c}, e, failed);
                         }
                     }
+                } else {
+                    int done = retransformInBatches(transforming, list, maxPause, failed);
+                    if (done < list.size()) {
+                        first.infoPrint("retransformation pause limit reached; " + (list.size() - done) +
+                                        " of " + list.size() + " loaded classes were not instrumented");
+                    }
                 }
-                list.trimToSize();
-                int size = list.size();
-                if (size > 0) {
-                    Class[] classes = new Class[size];
-                    list.toArray(classes);
-                    startRetransformClasses(size);
-                    if (isDebug()) {
-                        for(Class c : classes) {
-                            try {
-                                debugPrint("Attempting to retransform class: " + c.getName());
-                                inst.retransformClasses(c);
-                            } catch (VerifyError e) {
-                                debugPrint("verification error: " + c.getName());
+            }
+        }
+        for (Client c : clients) {
+            int idx = transforming.indexOf(c);
+            if (c.runtime != null && (idx == -1 || !failed[idx])) {
+                c.runtime.send(new OkayCommand());
+            }
+        }
+    }
+
+    /**
+     * Reports a failed retransformation to the clients having any candidates among the given classes
+     */
+    private static void retransformFailed(List<Client> clients, Class<?>[] classes, UnmodifiableClassException e, boolean[] failed) {
+        for (int i = 0; i < failed.length; i++) {
+            Client client = clients.get(i);
+            if (!failed[i]) {
+                for (Class<?> c : classes) {
+                    if (client.isCandidate(c)) {
+                        client.debugPrint(e);
+                        client.runtime.send(new ErrorCommand(e));
+                        failed[i] = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Filters the retransformation candidates using all available CPUs.
+     * The calling thread takes part in the filtering.
+     * @param clients the clients to filter the candidates for
+     * @param loaded the loaded classes
+     * @param counts receives the number of candidates per client
+     * @return the candidates of any of the clients
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Class<?>> filterCandidates(final List<Client> clients, final Class<?>[] loaded, int[] counts) {
+        final int workers = Math.min(Runtime.getRuntime().availableProcessors(), loaded.length / FILTER_MIN_CLASSES_PER_THREAD + 1);
+        if (workers == 1) {
+            return filterCandidates(clients, loaded, 0, 1, counts);
+        }
+        final List<Class<?>>[] results = (List<Class<?>>[])new List<?>[workers];
+        final int[][] workerCounts = new int[workers][counts.length];
+        Thread[] threads = new Thread[workers - 1];
+        for (int i = 1; i < workers; i++) {
+            final int offset = i;
+            threads[i - 1] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    boolean entered = BTraceRuntime.enter();
+                    try {
+                        results[offset] = filterCandidates(clients, loaded, offset, workers, workerCounts[offset]);
+                    } finally {
+                        if (entered) {
+                            BTraceRuntime.leave();
+                        }
+                    }
+                }
+            }, "BTrace Class Filter #" + i);
+            threads[i - 1].setDaemon(true);
+            threads[i - 1].start();
+        }
+        results[0] = filterCandidates(clients, loaded, 0, workers, workerCounts[0]);
+
+        boolean interrupted = false;
+        for (Thread t : threads) {
+            while (t.isAlive()) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<Class<?>> candidates = new ArrayList<>();
+        for (List<Class<?>> r : results) {
+            if (r != null) {
+                candidates.addAll(r);
+            }
+        }
+        for (int[] wc : workerCounts) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += wc[i];
+            }
+        }
+        return candidates;
+    }
+
+    private static List<Class<?>> filterCandidates(List<Client> clients, Class<?>[] loaded, int offset, int step, int[] counts) {
+        Instrumentation inst = clients.get(0).inst;
+        List<Class<?>> candidates = new ArrayList<>();
+        for (int i = offset; i < loaded.length; i += step) {
+            Class<?> c = loaded[i];
+            if (c != null) {
+                try {
+                    if (inst.isModifiableClass(c)) {
+                        boolean candidate = false;
+                        for (int j = 0; j < counts.length; j++) {
+                            Client client = clients.get(j);
+                            if (client.isCandidate(c)) {
+                                client.debugPrint("candidate " + c + " added");
+                                counts[j]++;
+                                candidate = true;
                             }
                         }
-                    } else {
-                        inst.retransformClasses(classes);
+                        if (candidate) {
+                            candidates.add(c);
+                        }
                     }
+                } catch (Throwable t) {
+                    clients.get(0).debugPrint(t);
                 }
             }
-            runtime.send(new OkayCommand());
         }
+        return candidates;
+    }
+
+    /**
+     * Retransforms the classes in batches. The batch size is adapted so that
+     * retransforming one batch takes about {@linkplain #RETRANSFORM_BATCH_PAUSE_NS}.
+     * After each batch the retransformation pauses for as long as the batch took
+     * so the application threads can make progress. The time spent retransforming
+     * adds up to about <code>maxPause</code> at most; the remaining classes are skipped.
+     * A batch failing to retransform is reported to the clients having candidates in it.
+     * @return the number of the processed classes
+     */
+    private static int retransformInBatches(List<Client> clients, List<Class<?>> classes, long maxPause, boolean[] failed) {
+        Instrumentation inst = clients.get(0).inst;
+        int batchSize = RETRANSFORM_INITIAL_BATCH;
+        long pauseBudget = maxPause;
+        int from = 0;
+        while (from < classes.size() && pauseBudget > 0) {
+            int to = Math.min(from + batchSize, classes.size());
+            Class<?>[] batch = classes.subList(from, to).toArray(new Class<?>[to - from]);
+            long ts = System.nanoTime();
+            try {
+                inst.retransformClasses(batch);
+            } catch (UnmodifiableClassException e) {
+                retransformFailed(clients, batch, e, failed);
+            }
+            long dur = System.nanoTime() - ts;
+            from = to;
+            pauseBudget -= dur;
+            if (dur > RETRANSFORM_BATCH_PAUSE_NS) {
+                batchSize = Math.max(RETRANSFORM_MIN_BATCH, batchSize / 2);
+            } else if (dur < RETRANSFORM_BATCH_PAUSE_NS / 2) {
+                batchSize = Math.min(RETRANSFORM_MAX_BATCH, batchSize * 2);
+            }
+            if (from < classes.size()) {
+                LockSupport.parkNanos(dur);
+            }
+        }
+        return from;
     }
 
     private static String pid() {
@@ -73,7 +73,9 @@ class FileClient extends Client {
                 break;
             default:
                 if (cmd instanceof PrintableCommand) {
-                    if (out == null) {
+                    if (recorder != null) {
+                        recorder.write(cmd);
+                    } else if (out == null) {
                         DebugSupport.warning("No output stream. Received DataCommand.");
                     } else {
                         ((PrintableCommand) cmd).print(out);
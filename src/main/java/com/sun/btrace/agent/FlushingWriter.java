@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the Classpath exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.btrace.agent;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A writer flushing its delegate adaptively - once the amount of the
+ * unflushed data reaches a watermark or the oldest unflushed data reaches
+ * the maximum age.
+ * <p>
+ * All the instances share one scheduler thread. A flush is scheduled only
+ * when a clean writer receives data so the idle writers cost nothing.
+ * <p>
+ * A {@linkplain TraceOutputWriter} hands its buffers over to the I/O thread
+ * as soon as they fill up, so it is flushed only by age - a watermark
+ * below its buffer size would just hand over partially filled buffers.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class FlushingWriter extends Writer {
+    private static final int DEFAULT_WATERMARK = 64 * 1024;
+    private static final int NO_WATERMARK = Integer.MAX_VALUE;
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "BTrace Output Flusher");
+                t.setDaemon(true);
+                return t;
+            }
+        }
+    );
+
+    private final Writer delegate;
+    private final long maxAgeNs;
+    private final int watermark;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushAged();
+        }
+    };
+
+    // @GuardedBy lock
+    private long dirty = 0;
+    private long firstDirtyTs = 0L;
+    private boolean scheduled = false;
+    private boolean closed = false;
+
+    /**
+     * @param delegate the writer to flush
+     * @param maxAgeMs the maximum age of the unflushed data in milliseconds;
+     *                 0 to flush after each write, negative to flush only on the watermark
+     */
+    FlushingWriter(Writer delegate, long maxAgeMs) {
+        this(delegate, maxAgeMs, delegate instanceof TraceOutputWriter ? NO_WATERMARK : DEFAULT_WATERMARK);
+    }
+
+    FlushingWriter(Writer delegate, long maxAgeMs, int watermark) {
+        this.delegate = delegate;
+        this.maxAgeNs = TimeUnit.MILLISECONDS.toNanos(maxAgeMs);
+        this.watermark = watermark;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        synchronized (lock) {
+            delegate.write(cbuf, off, len);
+            dirty(len);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        synchronized (lock) {
+            delegate.write(str, off, len);
+            dirty(len);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        synchronized (lock) {
+            dirty = 0;
+            delegate.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            dirty = 0;
+            delegate.close();
+        }
+    }
+
+    private void dirty(int len) throws IOException {
+        if (dirty == 0) {
+            firstDirtyTs = System.nanoTime();
+        }
+        dirty += len;
+        if (dirty >= watermark || maxAgeNs == 0) {
+            flush();
+        } else if (!scheduled && maxAgeNs > 0) {
+            scheduled = true;
+            SCHEDULER.schedule(flushTask, maxAgeNs, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void flushAged() {
+        synchronized (lock) {
+            scheduled = false;
+            if (closed || dirty == 0) {
+                // flushed meanwhile; the next write will schedule a new flush
+                return;
+            }
+            long age = System.nanoTime() - firstDirtyTs;
+            if (age < maxAgeNs) {
+                // the data flushed by the watermark was replaced by younger data
+                scheduled = true;
+                SCHEDULER.schedule(flushTask, maxAgeNs - age, TimeUnit.NANOSECONDS);
+                return;
+            }
+            try {
+                flush();
+            } catch (IOException e) {
+                // ignore; the owner will get the error on its next write
+            }
+        }
+    }
+}
@@ -30,20 +30,26 @@ import com.sun.btrace.SharedSettings;
 import java.io.File;
 import java.io.IOException;
 import java.lang.instrument.Instrumentation;
-import java.lang.instrument.UnmodifiableClassException;
-import java.net.Socket;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.StringTokenizer;
 import java.util.jar.JarFile;
 import com.sun.btrace.BTraceRuntime;
 import com.sun.btrace.runtime.Constants;
-import com.sun.btrace.comm.ErrorCommand;
 import com.sun.btrace.util.Messages;
 import java.io.InputStream;
 import java.net.URL;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -82,6 +88,10 @@ public final class Main {
     };
 
     private static final ExecutorService serializedExecutor = Executors.newSingleThreadExecutor(daemonizedThreadFactory);
+    // the remote clients are set up concurrently; a slow client does not hold back the others
+    private static final ExecutorService handshakeExecutor = Executors.newCachedThreadPool(daemonizedThreadFactory);
+    // the clients waiting for the loaded classes to be retransformed
+    private static final Queue<Client> pendingClients = new ConcurrentLinkedQueue<>();
 
     public static void premain(String args, Instrumentation inst) {
         main(args, inst);
@@ -309,9 +319,19 @@ public final class Main {
         }
 
         p = argMap.get("cmdQueueLimit");
-        if (p != null) {
+        if (p != null && p.length() > 0) {
             debugPrint("cmdQueueLimit provided: " + p);
-            System.setProperty(BTraceRuntime.CMD_QUEUE_LIMIT_KEY, p);
+            try {
+                settings.setCmdQueueLimit(Integer.parseInt(p));
+            } catch (NumberFormatException e) {
+                DebugSupport.warning("Invalid cmdQueueLimit: " + p);
+            }
+        }
+
+        p = argMap.get("cmdQueuePolicy");
+        if (p != null && p.length() > 0) {
+            debugPrint("cmdQueuePolicy provided: " + p);
+            settings.setCmdQueuePolicy(p);
         }
 
         p = argMap.get("trackRetransforms");
@@ -336,6 +356,14 @@ public final class Main {
             }
         }
 
+        p = argMap.get("scriptOutputFormat");
+        if (p != null && p.length() > 0) {
+            settings.setOutputFormat(p);
+            if (isDebug()) {
+                debugPrint("scriptOutputFormat is " + p);
+            }
+        }
+
         p = argMap.get("fileRollMilliseconds");
         if (p != null && p.length() > 0) {
             Long msParsed = null;
@@ -366,6 +394,30 @@ public final class Main {
                 settings.setFileRollMaxRolls(rolls);
             }
         }
+
+        p = argMap.get("fileRollSize");
+        if (p != null && p.length() > 0) {
+            try {
+                settings.setFileRollSize(parseSize(p));
+                if (isDebug()) {
+                    debugPrint("fileRollSize is " + settings.getFileRollSize());
+                }
+            } catch (NumberFormatException nfe) {
+                DebugSupport.warning("Invalid file roll size: " + p);
+            }
+        }
+
+        p = argMap.get("fileRollCompress");
+        settings.setFileRollCompress(p != null && "true".equals(p));
+
+        p = argMap.get("filePreallocate");
+        if (p != null && p.length() > 0) {
+            try {
+                settings.setFilePreallocate(parseSize(p));
+            } catch (NumberFormatException nfe) {
+                DebugSupport.warning("Invalid file preallocation size: " + p);
+            }
+        }
         boolean trusted = false;
         p = argMap.get("unsafe");
         trusted |= (p != null && "true".equals(p));
@@ -392,6 +444,22 @@ public final class Main {
                 settings.setStatsdHost(parts[0].trim());
             }
         }
+        p = argMap.get("statsdMtu");
+        if (p != null) {
+            try {
+                settings.setStatsdMtu(Integer.parseInt(p));
+            } catch (NumberFormatException e) {
+                DebugSupport.warning("Invalid statsd MTU: " + p);
+            }
+        }
+        p = argMap.get("statsdFlush");
+        if (p != null) {
+            try {
+                settings.setStatsdFlush(Integer.parseInt(p));
+            } catch (NumberFormatException e) {
+                DebugSupport.warning("Invalid statsd flush interval: " + p);
+            }
+        }
 
         String probeDescPath = argMap.get("probeDescPath");
         settings.setProbeDescPath(probeDescPath != null ? probeDescPath : ".");
@@ -400,6 +468,23 @@ public final class Main {
         }
     }
 
+    /**
+     * Parses a size in bytes with an optional k/m/g suffix
+     */
+    private static long parseSize(String p) {
+        p = p.trim().toLowerCase();
+        long unit = 1;
+        switch (p.charAt(p.length() - 1)) {
+            case 'k': unit = 1024L; break;
+            case 'm': unit = 1024L * 1024; break;
+            case 'g': unit = 1024L * 1024 * 1024; break;
+        }
+        if (unit > 1) {
+            p = p.substring(0, p.length() - 1);
+        }
+        return Long.parseLong(p) * unit;
+    }
+
     private static void processClasspaths() {
         String bootClassPath = argMap.get("bootClassPath");
         if (bootClassPath != null) {
@@ -551,7 +636,8 @@ public final class Main {
                 error("invalid port assuming default..");
             }
         }
-        ServerSocket ss;
+        ServerSocketChannel ss;
+        Selector selector;
         try {
             if (isDebug()) {
                 debugPrint("starting server at " + port);
@@ -561,48 +647,103 @@ public final class Main {
             if (scriptOutputFile != null && scriptOutputFile.length() > 0) {
                 System.setProperty("btrace.output", scriptOutputFile);
             }
-            ss = new ServerSocket(port);
+            ss = ServerSocketChannel.open();
+            ss.bind(new InetSocketAddress(port));
+            ss.configureBlocking(false);
+            selector = Selector.open();
+            ss.register(selector, SelectionKey.OP_ACCEPT);
         } catch (IOException ioexp) {
             ioexp.printStackTrace();
             return;
         }
 
-        while (true) {
+        while (!Thread.currentThread().isInterrupted()) {
             try {
                 if (isDebug()) {
                     debugPrint("waiting for clients");
                 }
-                Socket sock = ss.accept();
-                if (isDebug()) {
-                    debugPrint("client accepted " + sock);
+                selector.select();
+                selector.selectedKeys().clear();
+                SocketChannel sock;
+                while ((sock = ss.accept()) != null) {
+                    if (isDebug()) {
+                        debugPrint("client accepted " + sock);
+                    }
+                    handshake(sock);
                 }
-                ClientContext ctx = new ClientContext(inst, transformer, settings);
-                Client client = new RemoteClient(ctx, sock);
-                handleNewClient(client).get();
-            } catch (RuntimeException | IOException | ExecutionException re) {
+            } catch (ClosedSelectorException e) {
+                return;
+            } catch (RuntimeException | IOException re) {
                 if (isDebug()) {
                     debugPrint(re);
                 }
-            } catch (InterruptedException e) {
-                return;
             }
         }
     }
 
+    /**
+     * Sets up a remote client without blocking the server loop.
+     * The channel is closed if the client fails to send its script.
+     * The handshakes run concurrently, so each connection applies
+     * its SET_PARAMS to its own copy of the agent settings.
+     */
+    private static void handshake(final SocketChannel sock) {
+        handshakeExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                boolean entered = BTraceRuntime.enter();
+                try {
+                    // SET_PARAMS must not leak into the agent-wide settings
+                    SharedSettings clientSettings = new SharedSettings();
+                    clientSettings.from(settings);
+                    ClientContext ctx = new ClientContext(inst, transformer, clientSettings);
+                    Client client = new RemoteClient(ctx, sock);
+                    handleNewClient(client);
+                } catch (RuntimeException | IOException re) {
+                    if (isDebug()) {
+                        debugPrint(re);
+                    }
+                    try {
+                        sock.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                } finally {
+                    if (entered) {
+                        BTraceRuntime.leave();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Schedules the retransformation of the loaded classes for the new client.
+     * The clients arriving while a retransformation is running are handled
+     * together in the next single pass over the loaded classes.
+     * @return a future completing when the client has been handled
+     */
     private static Future<?> handleNewClient(final Client client) {
+        pendingClients.add(client);
         return serializedExecutor.submit(new Runnable() {
 
             @Override
             public void run() {
+                List<Client> clients = new ArrayList<>();
+                Client c;
+                while ((c = pendingClients.poll()) != null) {
+                    clients.add(c);
+                }
+                if (clients.isEmpty()) {
+                    // already handled by a previous batch
+                    return;
+                }
                 boolean entered = BTraceRuntime.enter();
                 try {
-                    client.debugPrint("new Client created " + client);
-                    client.retransformLoaded();
-                } catch (UnmodifiableClassException uce) {
-                    if (isDebug()) {
-                        debugPrint(uce);
+                    for (Client cl : clients) {
+                        cl.debugPrint("new Client created " + cl);
                     }
-                    client.getRuntime().send(new ErrorCommand(uce));
+                    Client.retransformLoaded(clients);
                 } finally {
                     if (entered) {
                         BTraceRuntime.leave();
@@ -28,7 +28,6 @@ package com.sun.btrace.agent;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.net.Socket;
 import com.sun.btrace.BTraceRuntime;
 import com.sun.btrace.BTraceUtils;
 import com.sun.btrace.comm.Command;
@@ -39,22 +38,41 @@ import com.sun.btrace.comm.PrintableCommand;
 import com.sun.btrace.comm.SetSettingsCommand;
 import com.sun.btrace.comm.WireIO;
 import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
 
 /**
  * Represents a remote client communicated by socket.
+ * <p>
+ * The socket channel is used in non-blocking mode. The commands are
+ * written to a {@linkplain ChannelOutputStream} and sent in batches;
+ * while the client does not keep up the command thread is told
+ * to leave the commands queued.
  *
  * @author A. Sundararajan
  */
 class RemoteClient extends Client {
-    private volatile Socket sock;
+    private static final long HANDSHAKE_TIMEOUT_MS = 5000;
+
+    private volatile SocketChannel channel;
+    private volatile ChannelOutputStream output;
     private volatile ObjectInputStream ois;
     private volatile ObjectOutputStream oos;
+    private volatile WireIO.Writer writer;
 
-    RemoteClient(ClientContext ctx, Socket sock) throws IOException {
+    RemoteClient(ClientContext ctx, SocketChannel channel) throws IOException {
         super(ctx);
-        this.sock = sock;
-        this.ois = new ObjectInputStream(sock.getInputStream());
-        this.oos = new ObjectOutputStream(sock.getOutputStream());
+        this.channel = channel;
+        channel.configureBlocking(false);
+        this.output = new ChannelOutputStream(channel);
+        this.oos = new ObjectOutputStream(output);
+        // the client is waiting for the stream header
+        output.sendAll(HANDSHAKE_TIMEOUT_MS);
+        // a stuck client must not hold the handshake forever
+        ChannelInputStream input = new ChannelInputStream(channel);
+        input.setTimeout(HANDSHAKE_TIMEOUT_MS);
+        this.ois = new ObjectInputStream(input);
+        this.writer = new WireIO.Writer(oos, WireIO.LEGACY_PROTOCOL);
         boolean hasInstrument = false;
         while (!hasInstrument) {
             Command cmd = WireIO.read(ois);
@@ -69,7 +87,10 @@ class RemoteClient extends Client {
                     break;
                 }
                 case Command.SET_PARAMS: {
-                    settings.from(((SetSettingsCommand)cmd).getParams());
+                    Map<String, Object> params = ((SetSettingsCommand)cmd).getParams();
+                    settings.from(params);
+                    // the protocol is negotiated per connection
+                    writer = new WireIO.Writer(oos, WireIO.getProtocolVersion(params));
                     setupWriter();
                     break;
                 }
@@ -79,6 +100,7 @@ class RemoteClient extends Client {
                 }
             }
         }
+        input.setTimeout(0);
 
         BTraceRuntime.initUnsafe();
         Thread cmdHandler = new Thread(new Runnable() {
@@ -120,36 +142,74 @@ class RemoteClient extends Client {
 
     @Override
     public void onCommand(Command cmd) throws IOException {
+        WireIO.Writer w = writer;
         if (oos == null) {
             throw new IOException("no output stream");
         }
         if (isDebug()) {
             debugPrint("client " + getClassName() + ": got " + cmd);
         }
-        boolean isConnected = true;
-        try {
-            oos.reset();
-        } catch (SocketException e) {
-            isConnected = false;
-        }
-
         switch (cmd.getType()) {
             case Command.EXIT:
-                if (isConnected) {
-                    WireIO.write(oos, cmd);
-                }
+                write(w, cmd);
+                // the remaining data is sent while closing the stream
                 onExit(((ExitCommand)cmd).getExitCode());
                 break;
             default:
+                if (recorder != null && cmd instanceof PrintableCommand) {
+                    recorder.write(cmd);
+                    return;
+                }
                 if (out != null) {
                     if (cmd instanceof PrintableCommand) {
                         ((PrintableCommand) cmd).print(out);
                         return;
                     }
                 }
-                if (isConnected) {
-                    WireIO.write(oos, cmd);
-                }
+                write(w, cmd);
+        }
+    }
+
+    @Override
+    public boolean flush() throws IOException {
+        ObjectOutputStream s = oos;
+        ChannelOutputStream o = output;
+        if (s == null || o == null) {
+            return true;
+        }
+        try {
+            // push the data held in the object stream's block buffer first
+            s.flush();
+            return o.send();
+        } catch (SocketException e) {
+            debugPrint(e);
+            // the client has disconnected; nothing more can be sent
+            return true;
+        }
+    }
+
+    @Override
+    public boolean isReady() throws IOException {
+        ChannelOutputStream o = output;
+        try {
+            return o == null || !o.isCongested();
+        } catch (SocketException e) {
+            // the client has disconnected; let the commands be discarded
+            debugPrint(e);
+            return true;
+        }
+    }
+
+    private void write(WireIO.Writer w, Command cmd) throws IOException {
+        try {
+            w.write(cmd);
+            ChannelOutputStream o = output;
+            if (o != null) {
+                o.commit();
+            }
+        } catch (SocketException e) {
+            // the client has disconnected; nobody to send the command to
+            debugPrint(e);
         }
     }
 
@@ -165,9 +225,10 @@ class RemoteClient extends Client {
             ois.close();
             ois = null;
         }
-        if (sock != null) {
-            sock.close();
-            sock = null;
+        output = null;
+        if (channel != null) {
+            channel.close();
+            channel = null;
         }
     }
 }
\ No newline at end of file
@@ -28,11 +28,27 @@ package com.sun.btrace.agent;
 import com.sun.btrace.DebugSupport;
 import com.sun.btrace.SharedSettings;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * This class represents various strategies available for dumping BTrace
@@ -47,141 +63,319 @@ abstract class TraceOutputWriter extends Writer {
         debug = new DebugSupport(settings);
     }
 
-    static private class SimpleFileOutput extends TraceOutputWriter {
-        final private FileWriter delegate;
+    /**
+     * The output is encoded as UTF-8 into pooled direct buffers on the caller's
+     * thread. The filled buffers are written to a {@linkplain FileChannel} by
+     * a dedicated I/O thread which also takes care of rolling the file
+     * by size and/or time and of handing the rolled segments over for compression.
+     * <p>
+     * When all the buffers are waiting to be written the writing thread is
+     * blocked until a buffer is recycled.
+     */
+    static private class ChannelFileOutput extends TraceOutputWriter {
+        private static final int BUFFER_SIZE = 256 * 1024;
+        private static final int BUFFER_COUNT = 4;
+        private static final long IDLE_WAIT_MS = 1000;
+        private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+        private final File output;
+        private final String path, baseName;
+        private final long rollSize, rollInterval, preallocate;
+        private final int maxRolls;
+        private final boolean compress;
+
+        private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BUFFER_COUNT);
+        private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(BUFFER_COUNT + 1);
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                                                .onMalformedInput(CodingErrorAction.REPLACE)
+                                                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final Thread ioThread;
+        private final ExecutorService compressor;
+        private volatile IOException failure = null;
 
-        public SimpleFileOutput(File output, SharedSettings settings) throws IOException {
+        // @GuardedBy this
+        private ByteBuffer current;
+        // @GuardedBy this; the high surrogate of a pair split between two writes
+        private char pendingHigh = 0;
+        // @GuardedBy this
+        private boolean closed = false;
+
+        // accessed from the I/O thread only
+        private FileChannel channel;
+        private long position, segmentStart;
+        private int counter = 1;
+
+        public ChannelFileOutput(File output, SharedSettings settings, boolean rolling) throws IOException {
             super(settings);
+            File parent = output.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            this.output = output;
+            this.path = parent != null ? parent.getAbsolutePath() : ".";
+            this.baseName = output.getName();
+            this.rollSize = rolling ? settings.getFileRollSize() : 0;
+            this.rollInterval = rolling ? settings.getFileRollMilliseconds() : 0;
+            this.maxRolls = settings.getFileRollMaxRolls();
+            this.compress = rolling && settings.isFileRollCompress();
+            this.preallocate = settings.getFilePreallocate();
+
             try {
-                File parent = output.getParentFile();
-                if (parent != null) {
-                    output.getParentFile().mkdirs();
-                }
-                delegate = new FileWriter(output);
+                openSegment();
             } catch (IOException e) {
                 debug.debug(e);
                 throw e;
             }
-        }
-        @Override
-        public void close() throws IOException {
-            delegate.close();
+            for (int i = 0; i < BUFFER_COUNT; i++) {
+                free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+            }
+            current = free.poll();
+
+            compressor = compress ? Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "BTrace Output Compressor");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }) : null;
+            ioThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ioLoop();
+                }
+            }, "BTrace Output Writer: " + baseName);
+            ioThread.setDaemon(true);
+            ioThread.start();
         }
 
         @Override
-        public void flush() throws IOException {
-            delegate.flush();
+        public synchronized void write(char[] cbuf, int off, int len) throws IOException {
+            ensureOpen();
+            if (len == 0) {
+                return;
+            }
+            CharBuffer in = CharBuffer.wrap(cbuf, off, len);
+            if (pendingHigh != 0) {
+                encode(CharBuffer.wrap(new char[]{pendingHigh, in.get()}));
+                pendingHigh = 0;
+            }
+            encode(in);
+            if (in.hasRemaining()) {
+                // an incomplete surrogate pair; the rest will come with the next write
+                pendingHigh = in.get();
+            }
         }
 
         @Override
-        public void write(char[] cbuf, int off, int len) throws IOException {
-            delegate.write(cbuf, off, len);
+        public synchronized void flush() throws IOException {
+            ensureOpen();
+            if (current.position() > 0) {
+                handOff();
+            }
         }
-    }
 
-    static abstract private class RollingFileWriter extends TraceOutputWriter {
-        final private ReentrantReadWriteLock writerLock = new ReentrantReadWriteLock();
-        // @GuardedBy writerLock
-        private FileWriter currentFileWriter;
-        private final String path, baseName;
-        private int counter = 1;
-        protected final SharedSettings settings;
-
-        public RollingFileWriter(File output, SharedSettings settings) throws IOException {
-            super(settings);
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                CharBuffer rest = pendingHigh != 0 ? CharBuffer.wrap(new char[]{pendingHigh}) : CharBuffer.allocate(0);
+                while (encoder.encode(rest, current, true).isOverflow()) {
+                    handOff();
+                }
+                while (encoder.flush(current).isOverflow()) {
+                    handOff();
+                }
+                if (current.position() > 0) {
+                    handOff();
+                }
+                put(EOF);
+            }
             try {
-                output.getParentFile().mkdirs();
-                currentFileWriter = new FileWriter(output);
-                path = output.getParentFile().getAbsolutePath();
-                baseName = output.getName();
-                this.settings = settings;
-            } catch (IOException e) {
-                debug.debug(e);
-                throw e;
+                ioThread.join();
+                if (compressor != null) {
+                    compressor.shutdown();
+                    compressor.awaitTermination(30, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw failure;
             }
         }
 
-        @Override
-        final public void close() throws IOException {
-            try {
-                writerLock.readLock().lock();
-                currentFileWriter.close();
-            } finally {
-                writerLock.readLock().unlock();
+        private void ensureOpen() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (failure != null) {
+                throw failure;
             }
         }
 
-        @Override
-        final public void flush() throws IOException {
-        	try {
-                writerLock.readLock().lock();
-                currentFileWriter.flush();
-            } finally {
-                writerLock.readLock().unlock();
+        private void encode(CharBuffer in) throws IOException {
+            while (encoder.encode(in, current, false).isOverflow()) {
+                handOff();
             }
+        }
 
-            if (needsRoll()) {
-                nextWriter();
+        /**
+         * Passes the current buffer to the I/O thread and takes a free one
+         */
+        private void handOff() throws IOException {
+            current.flip();
+            put(current);
+            try {
+                current = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
             }
         }
 
-        @Override
-        final public void write(char[] cbuf, int off, int len) throws IOException {
+        private void put(ByteBuffer bb) throws IOException {
             try {
-                writerLock.readLock().lock();
-                currentFileWriter.write(cbuf, off, len);
-            } finally {
-                writerLock.readLock().unlock();
+                filled.put(bb);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
             }
         }
 
-        private void nextWriter() {
+        private void ioLoop() {
             try {
-                writerLock.writeLock().lock();
-                currentFileWriter = getNextWriter();
-            } catch (IOException e) {
-                debug.debug(e);
+                while (true) {
+                    ByteBuffer bb = filled.poll(IDLE_WAIT_MS, TimeUnit.MILLISECONDS);
+                    if (bb == EOF) {
+                        break;
+                    }
+                    try {
+                        if (rollInterval > 0 && position > 0 &&
+                            System.currentTimeMillis() - segmentStart >= rollInterval) {
+                            roll();
+                        }
+                        if (bb != null) {
+                            writeOut(bb);
+                        }
+                    } catch (IOException e) {
+                        if (failure == null) {
+                            debug.debug(e);
+                            failure = e;
+                        }
+                        // keep recycling the buffers so that the writing threads are not blocked
+                    }
+                    if (bb != null) {
+                        bb.clear();
+                        free.offer(bb);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // shutting down
             } finally {
-                writerLock.writeLock().unlock();
+                try {
+                    closeSegment();
+                } catch (IOException e) {
+                    debug.debug(e);
+                }
             }
         }
 
-        private FileWriter getNextWriter() throws IOException {
-        	currentFileWriter.close();
-        	File scriptOutputFile_renameFrom = new File(path + File.separator + baseName);
-        	File scriptOutputFile_renameTo = new File(path + File.separator + baseName + "." + (counter++));
-
-            if (scriptOutputFile_renameTo.exists()) {
-            	scriptOutputFile_renameTo.delete();
+        private void writeOut(ByteBuffer bb) throws IOException {
+            if (rollSize > 0 && position > 0 && position + bb.remaining() > rollSize) {
+                // try to cut the segment at the end of a line
+                int limit = bb.limit();
+                int cut = lastNewLine(bb, (int)Math.min(limit, bb.position() + rollSize - position));
+                if (cut > 0) {
+                    bb.limit(cut);
+                    writeFully(bb);
+                    bb.limit(limit);
+                }
+                roll();
             }
-            scriptOutputFile_renameFrom.renameTo(scriptOutputFile_renameTo);
-            scriptOutputFile_renameFrom = new File(path + File.separator + baseName);
-            if (counter > settings.getFileRollMaxRolls()) {
-                counter = 1;
+            writeFully(bb);
+        }
+
+        private static int lastNewLine(ByteBuffer bb, int limit) {
+            for (int i = limit - 1; i >= bb.position(); i--) {
+                if (bb.get(i) == '\n') {
+                    return i + 1;
+                }
             }
-            return new FileWriter(scriptOutputFile_renameFrom);
+            return -1;
         }
 
-        abstract protected boolean needsRoll();
-    }
+        private void writeFully(ByteBuffer bb) throws IOException {
+            while (bb.hasRemaining()) {
+                position += channel.write(bb, position);
+            }
+        }
 
-    static private class TimeBasedRollingFileWriter extends RollingFileWriter {
-        private long lastTimeStamp = System.currentTimeMillis();
-        private final TimeUnit unit = TimeUnit.MILLISECONDS;
+        private void openSegment() throws IOException {
+            channel = FileChannel.open(output.toPath(), StandardOpenOption.CREATE,
+                                       StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            position = 0;
+            segmentStart = System.currentTimeMillis();
+            if (preallocate > 0) {
+                // extend the file up-front; the unused rest is cut off when the segment is closed
+                channel.write(ByteBuffer.wrap(new byte[1]), preallocate - 1);
+            }
+        }
 
-        public TimeBasedRollingFileWriter(File output, SharedSettings settings) throws IOException {
-            super(output, settings);
+        private void closeSegment() throws IOException {
+            if (channel != null && channel.isOpen()) {
+                try {
+                    if (preallocate > 0) {
+                        channel.truncate(position);
+                    }
+                } finally {
+                    channel.close();
+                }
+            }
         }
 
-        @Override
-        protected boolean needsRoll() {
-            long currTime = System.currentTimeMillis();
-            long myInterval =  currTime - lastTimeStamp;
-            if (unit.convert(myInterval, TimeUnit.MILLISECONDS) >= settings.getFileRollMilliseconds()) {
-                lastTimeStamp = currTime;
-                return true;
+        private void roll() throws IOException {
+            closeSegment();
+            File renameTo = new File(path + File.separator + baseName + "." + (counter++));
+            File compressed = new File(renameTo.getPath() + ".gz");
+            if (renameTo.exists()) {
+                renameTo.delete();
+            }
+            if (compressed.exists()) {
+                compressed.delete();
+            }
+            output.renameTo(renameTo);
+            if (counter > maxRolls) {
+                counter = 1;
             }
-            return false;
+            if (compress) {
+                compress(renameTo, compressed);
+            }
+            openSegment();
+        }
+
+        private void compress(final File from, final File to) {
+            compressor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buf = new byte[65536];
+                    try (InputStream is = new FileInputStream(from);
+                         OutputStream os = new GZIPOutputStream(new FileOutputStream(to), buf.length)) {
+                        int read;
+                        while ((read = is.read(buf)) > 0) {
+                            os.write(buf, 0, read);
+                        }
+                    } catch (IOException e) {
+                        debug.debug(e);
+                        to.delete();
+                        return;
+                    }
+                    from.delete();
+                }
+            });
         }
     }
 
@@ -194,7 +388,7 @@ abstract class TraceOutputWriter extends Writer {
     public static TraceOutputWriter fileWriter(File output, SharedSettings settings) {
         TraceOutputWriter instance = null;
         try {
-            instance = new SimpleFileOutput(output, settings);
+            instance = new ChannelFileOutput(output, settings, false);
         } catch (IOException e) {
             // ignore
         }
@@ -202,7 +396,7 @@ abstract class TraceOutputWriter extends Writer {
     }
 
     /**
-     * Time based rolling file writer. Defaults to 100 allowed output chunks.
+     * Size and/or time based rolling file writer. Defaults to 5 allowed output chunks.
      * @param output The file to put the output to
      * @param settings The shared settings
      * @return Returns an appropriate {@linkplain  TraceOutputWriter} instance or NULL
@@ -210,7 +404,7 @@ abstract class TraceOutputWriter extends Writer {
     public static TraceOutputWriter rollingFileWriter(File output, SharedSettings settings) {
         TraceOutputWriter instance = null;
         try {
-            instance = new TimeBasedRollingFileWriter(output, settings);
+            instance = new ChannelFileOutput(output, settings, true);
         } catch (IOException e) {
             // ignore
         }
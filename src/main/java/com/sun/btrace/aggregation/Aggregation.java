@@ -25,17 +25,24 @@
 package com.sun.btrace.aggregation;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.PriorityQueue;
+import java.util.Set;
 
 /**
  * BTrace stores the results of aggregating functions in an Aggregation. The aggregated values may be grouped using a
  * composite {@link AggregationKey}.
  * <p>
+ * For the most common single element keys there are the specialized {@link #add(long, long)} and
+ * {@link #add(String, long)} methods. They look up the aggregated value directly by the primitive (or string) key
+ * so adding data to an existing key allocates nothing. A single element {@link AggregationKey} holding a string or
+ * an integral number denotes the same key as the string or the primitive one; such a numeric key element is reported
+ * as a {@link Long}.
+ * <p>
  *
  * @author Christian Glencross
  */
@@ -43,7 +50,53 @@ public class Aggregation implements Cloneable {
 
     private static final AggregationKey NULL_AGGREGATION_KEY = new AggregationKey(new Object[0]);
     private final AggregationFunction type;
-    private final ConcurrentHashMap<AggregationKey, AggregationValue> values = new ConcurrentHashMap<>();
+    private final int precision;
+    // AggregationKey and String keys
+    private final ObjectKeyTable values = new ObjectKeyTable();
+    // primitive keys
+    private final LongKeyTable longValues = new LongKeyTable();
+
+    /**
+     * A single aggregated value together with its key in whichever table it lives.
+     * The value used for ordering is read only once, when the row is created; it may be
+     * costly to calculate (eg. for {@linkplain AggregationFunction#PERCENTILE}) and it must
+     * not change while the rows are being sorted.
+     */
+    private static final class Row {
+        private final Object key;
+        private final long longKey;
+        private final AggregationValue value;
+        private final long sortValue;
+
+        Row(Object key, long longKey, AggregationValue value) {
+            this(key, longKey, value, value.getValue());
+        }
+
+        Row(Object key, long longKey, AggregationValue value, long sortValue) {
+            this.key = key;
+            this.longKey = longKey;
+            this.value = value;
+            this.sortValue = sortValue;
+        }
+
+        boolean isLongKey() {
+            return key == null;
+        }
+
+        Object[] getKeyElements() {
+            if (key == null) {
+                return new Object[]{longKey};
+            } else if (key instanceof AggregationKey) {
+                return ((AggregationKey)key).getElements();
+            } else {
+                return new Object[]{key};
+            }
+        }
+
+        AggregationKey getAggregationKey() {
+            return key instanceof AggregationKey ? (AggregationKey)key : new AggregationKey(getKeyElements());
+        }
+    }
 
     /**
      * Creates an aggregation.
@@ -53,8 +106,22 @@ public class Aggregation implements Cloneable {
      *
      */
     public Aggregation(AggregationFunction type) {
+        this(type, -1);
+    }
+
+    /**
+     * Creates an aggregation with the given precision.
+     *
+     * @param type
+     *            the type of aggregation function to use
+     * @param precision
+     *            the number of significant decimal digits to maintain; used only by
+     *            {@link AggregationFunction#PERCENTILE}, a negative value means the default
+     */
+    public Aggregation(AggregationFunction type, int precision) {
         super();
         this.type = type;
+        this.precision = precision;
     }
 
     /**
@@ -77,24 +144,110 @@ public class Aggregation implements Cloneable {
      *            the value to be added
      */
     public void add(AggregationKey key, long data) {
-        AggregationValue aggregationValue = values.get(key);
-        if (aggregationValue == null) {
-            aggregationValue = type.newValue();
-            AggregationValue existing = values.putIfAbsent(key, aggregationValue);
-            if (existing != null) {
-                aggregationValue = existing;
+        Object[] elements = key.getElements();
+        if (elements.length == 1) {
+            // single element keys share the value with the same key added as a primitive or string one
+            Object element = elements[0];
+            if (element instanceof String) {
+                values.getOrCreate(element, this).add(data);
+                return;
+            } else if (isIntegral(element)) {
+                longValues.getOrCreate(((Number)element).longValue(), this).add(data);
+                return;
             }
         }
-        aggregationValue.add(data);
+        values.getOrCreate(key, this).add(data);
+    }
+
+    /**
+     * Adds an item of data to the aggregation with the specified primitive grouping key. Does not allocate unless
+     * the key is new to the aggregation.
+     *
+     * @param key
+     *            the aggregation key (eg. an id)
+     * @param data
+     *            the value to be added
+     */
+    public void add(long key, long data) {
+        longValues.getOrCreate(key, this).add(data);
+    }
+
+    /**
+     * Adds an item of data to the aggregation with the specified string grouping key. Does not allocate unless
+     * the key is new to the aggregation.
+     *
+     * @param key
+     *            the aggregation key
+     * @param data
+     *            the value to be added
+     */
+    public void add(String key, long data) {
+        if (key == null) {
+            add(new AggregationKey(new Object[]{null}), data);
+            return;
+        }
+        values.getOrCreate(key, this).add(data);
+    }
+
+    /**
+     * Returns the value at the given percentile for the empty key. Available only for
+     * {@link AggregationFunction#PERCENTILE} aggregations.
+     *
+     * @param percentile
+     *            the percentile in the range of &lt;0, 100&gt;; 100 returns the maximum
+     * @return the value at the given percentile or zero if there is no data
+     */
+    public long getPercentile(double percentile) {
+        return getPercentile(NULL_AGGREGATION_KEY, percentile);
+    }
+
+    /**
+     * Returns the value at the given percentile for the given key. Available only for
+     * {@link AggregationFunction#PERCENTILE} aggregations.
+     *
+     * @param key
+     *            the aggregation key
+     * @param percentile
+     *            the percentile in the range of &lt;0, 100&gt;; 100 returns the maximum
+     * @return the value at the given percentile or zero if there is no data for the key
+     */
+    public long getPercentile(AggregationKey key, double percentile) {
+        return getPercentile(getAggregationValue(key), percentile);
+    }
+
+    /**
+     * @see #getPercentile(AggregationKey, double)
+     */
+    public long getPercentile(long key, double percentile) {
+        return getPercentile(longValues.get(key), percentile);
+    }
+
+    /**
+     * @see #getPercentile(AggregationKey, double)
+     */
+    public long getPercentile(String key, double percentile) {
+        if (key == null) {
+            return getPercentile(new AggregationKey(new Object[]{null}), percentile);
+        }
+        return getPercentile(values.get(key), percentile);
     }
 
     /**
      * Resets all values in the aggregation to their default.
      */
     public void clear() {
-        for (AggregationValue value : values.values()) {
-            value.clear();
-        }
+        values.forEach(new ObjectKeyTable.Visitor() {
+            @Override
+            public void visit(Object key, AggregationValue value) {
+                value.clear();
+            }
+        });
+        longValues.forEach(new LongKeyTable.Visitor() {
+            @Override
+            public void visit(long key, AggregationValue value) {
+                value.clear();
+            }
+        });
     }
 
     /**
@@ -108,23 +261,42 @@ public class Aggregation implements Cloneable {
     public void truncate(int count) {
         if (count == 0) {
             values.clear();
+            longValues.clear();
         } else {
-            List<Map.Entry<AggregationKey, AggregationValue>> sortedContents = sort();
-
-            int collectionSize = sortedContents.size();
-            int numberToRemove = collectionSize - Math.abs(count);
-            if (numberToRemove < 0) {
+            if (values.size() + longValues.size() <= Math.abs(count)) {
                 return;
             }
-            List<Map.Entry<AggregationKey, AggregationValue>> removeContents;
-            if (count > 0) {
-                // Remove from the start of the list
-                removeContents = sortedContents.subList(0, numberToRemove);
-            } else {
-                removeContents = sortedContents.subList(collectionSize - numberToRemove, collectionSize);
+            final Set<AggregationValue> keep = Collections.newSetFromMap(new IdentityHashMap<AggregationValue, Boolean>());
+            for (Row row : select(count)) {
+                keep.add(row.value);
+            }
+            final List<Object> removeKeys = new ArrayList<>();
+            final long[][] removeLongKeys = new long[][]{new long[16]};
+            final int[] longKeys = new int[1];
+            values.forEach(new ObjectKeyTable.Visitor() {
+                @Override
+                public void visit(Object key, AggregationValue value) {
+                    if (!keep.contains(value)) {
+                        removeKeys.add(key);
+                    }
+                }
+            });
+            longValues.forEach(new LongKeyTable.Visitor() {
+                @Override
+                public void visit(long key, AggregationValue value) {
+                    if (!keep.contains(value)) {
+                        if (longKeys[0] == removeLongKeys[0].length) {
+                            removeLongKeys[0] = Arrays.copyOf(removeLongKeys[0], longKeys[0] * 2);
+                        }
+                        removeLongKeys[0][longKeys[0]++] = key;
+                    }
+                }
+            });
+            if (!removeKeys.isEmpty()) {
+                values.remove(removeKeys);
             }
-            for (int i = 0; i < removeContents.size(); i++) {
-                values.remove(removeContents.get(i).getKey());
+            if (longKeys[0] > 0) {
+                longValues.remove(Arrays.copyOf(removeLongKeys[0], longKeys[0]));
             }
         }
     }
@@ -133,21 +305,43 @@ public class Aggregation implements Cloneable {
      * Returns details of the aggregation in a tabular format which can be serialized across the wire and formatted for
      * display. The data is represented as a List of rows. The last element in each row represents the aggregated value,
      * the elements before this in the row contain the elements of the aggregating key.
+     * <p>
+     * All the values are sorted and a row is created for each of them; the data must stay consistent
+     * after it is handed over for printing. {@linkplain #getData(int)} selects only the requested rows.
      *
      * @return details of the aggregation in a tabular format.
      */
     public List<Object[]> getData() {
-        List<Entry<AggregationKey, AggregationValue>> sortedContents = sort();
-        List<Object[]> result = new ArrayList<>(sortedContents.size());
+        return toData(sort());
+    }
 
-        for (Entry<AggregationKey, AggregationValue> item : sortedContents) {
+    /**
+     * Returns only the largest or smallest <code>abs(count)</code> aggregated values in the same format as
+     * {@linkplain #getData()}. Unlike {@linkplain #truncate(int)} followed by {@linkplain #getData()}
+     * the aggregation is not modified and the whole aggregation is not sorted.
+     *
+     * @param count the number of rows to return. If negative, the smallest values are returned.
+     * @return the selected rows sorted by ascending value
+     */
+    public List<Object[]> getData(int count) {
+        return toData(count == 0 ? Collections.<Row>emptyList() : select(count));
+    }
 
-            Object[] keyElements = item.getKey().getElements();
-            int rowSize = keyElements.length + 1;
+    private static List<Object[]> toData(List<Row> sortedContents) {
+        List<Object[]> result = new ArrayList<>(sortedContents.size());
+
+        for (Row item : sortedContents) {
 
-            Object[] row = new Object[rowSize];
-            System.arraycopy(keyElements, 0, row, 0, keyElements.length);
-            row[rowSize - 1] = item.getValue().getData();
+            Object[] row;
+            if (item.key instanceof AggregationKey) {
+                Object[] keyElements = ((AggregationKey)item.key).getElements();
+                row = new Object[keyElements.length + 1];
+                System.arraycopy(keyElements, 0, row, 0, keyElements.length);
+            } else {
+                // a single element key; no need for the intermediate key array
+                row = new Object[]{item.isLongKey() ? (Object)item.longKey : item.key, null};
+            }
+            row[row.length - 1] = item.value.getData();
             result.add(row);
         }
 
@@ -161,9 +355,9 @@ public class Aggregation implements Cloneable {
      */
     public List<AggregationKey> getKeyData() {
     	List<AggregationKey> keyList = new ArrayList<>();
-    	List<Entry<AggregationKey, AggregationValue>> sortedContents = sort();
-    	for (Entry<AggregationKey, AggregationValue> item : sortedContents) {
-    		keyList.add(item.getKey());
+    	List<Row> sortedContents = sort();
+    	for (Row item : sortedContents) {
+    		keyList.add(item.getAggregationKey());
     	}
 
     	return keyList;
@@ -176,40 +370,118 @@ public class Aggregation implements Cloneable {
      * @return the value for the given key, or zero.
      */
     public Long getValueForKey(AggregationKey key) {
-    	AggregationValue aggregationValue = values.get(key);
+    	AggregationValue aggregationValue = getAggregationValue(key);
     	if (aggregationValue != null) {
     		return aggregationValue.getValue();
     	} else {
     		return 0L;
     	}
     }
+
+    AggregationValue newValue() {
+        return precision < 0 ? type.newValue() : type.newValue(precision);
+    }
+
+    private AggregationValue getAggregationValue(AggregationKey key) {
+        Object[] elements = key.getElements();
+        if (elements.length == 1) {
+            // see add(AggregationKey, long)
+            Object element = elements[0];
+            if (element instanceof String) {
+                return values.get(element);
+            } else if (isIntegral(element)) {
+                return longValues.get(((Number)element).longValue());
+            }
+        }
+        return values.get(key);
+    }
+
+    private static boolean isIntegral(Object element) {
+        return element instanceof Long || element instanceof Integer ||
+               element instanceof Short || element instanceof Byte;
+    }
+
+    private long getPercentile(AggregationValue value, double percentile) {
+        if (type != AggregationFunction.PERCENTILE) {
+            throw new UnsupportedOperationException("percentiles are available only for " + AggregationFunction.PERCENTILE + " aggregations");
+        }
+        return value != null ? ((Percentiles)value).getPercentile(percentile) : 0L;
+    }
+
     /**
      * @return a list of key/value pairs contained in this aggregation by sorted by ascending value.
      */
-    private List<Map.Entry<AggregationKey, AggregationValue>> sort() {
-        ArrayList<Map.Entry<AggregationKey, AggregationValue>> result = new ArrayList<>(
-                values.entrySet());
-        Collections.sort(result, new Comparator<Map.Entry<AggregationKey, AggregationValue>>() {
+    private List<Row> sort() {
+        final ArrayList<Row> result = new ArrayList<>(values.size() + longValues.size());
+        values.forEach(new ObjectKeyTable.Visitor() {
+            @Override
+            public void visit(Object key, AggregationValue value) {
+                result.add(new Row(key, 0, value));
+            }
+        });
+        longValues.forEach(new LongKeyTable.Visitor() {
+            @Override
+            public void visit(long key, AggregationValue value) {
+                result.add(new Row(null, key, value));
+            }
+        });
+        Collections.sort(result, ASCENDING);
+        return result;
+    }
 
+    /**
+     * Selects the largest (count &gt; 0) or smallest (count &lt; 0) values using a bounded heap
+     * @return the selected rows sorted by ascending value
+     */
+    private List<Row> select(int count) {
+        final int limit = Math.abs(count);
+        // the heap root is the row to be dropped first
+        final Comparator<Row> order = count > 0 ? ASCENDING : Collections.reverseOrder(ASCENDING);
+        final PriorityQueue<Row> heap = new PriorityQueue<>(Math.min(limit, 1024) + 1, order);
+        values.forEach(new ObjectKeyTable.Visitor() {
             @Override
-            public int compare(Entry<AggregationKey, AggregationValue> o1, Entry<AggregationKey, AggregationValue> o2) {
-                long i1 = o1.getValue().getValue();
-                long i2 = o2.getValue().getValue();
-                if (i1 < i2) {
-                    return -1;
-                } else if (i1 == i2) {
-                    return 0;
-                } else {
-                    return 1;
-                }
+            public void visit(Object key, AggregationValue value) {
+                offer(heap, limit, order, key, 0, value);
+            }
+        });
+        longValues.forEach(new LongKeyTable.Visitor() {
+            @Override
+            public void visit(long key, AggregationValue value) {
+                offer(heap, limit, order, null, key, value);
             }
         });
+        List<Row> result = new ArrayList<>(heap);
+        Collections.sort(result, ASCENDING);
         return result;
     }
 
+    private static void offer(PriorityQueue<Row> heap, int limit, Comparator<Row> order,
+                              Object key, long longKey, AggregationValue value) {
+        long sortValue = value.getValue();
+        if (heap.size() < limit) {
+            heap.add(new Row(key, longKey, value, sortValue));
+        } else if (compare(sortValue, heap.peek().sortValue, order == ASCENDING) > 0) {
+            // only the rows making it to the selection are allocated
+            heap.poll();
+            heap.add(new Row(key, longKey, value, sortValue));
+        }
+    }
+
+    private static int compare(long v1, long v2, boolean ascending) {
+        int c = Long.compare(v1, v2);
+        return ascending ? c : -c;
+    }
+
+    private static final Comparator<Row> ASCENDING = new Comparator<Row>() {
+        @Override
+        public int compare(Row o1, Row o2) {
+            return Long.compare(o1.sortValue, o2.sortValue);
+        }
+    };
+
     @Override
     protected Object clone() throws CloneNotSupportedException {
-        return new Aggregation(type);
+        return new Aggregation(type, precision);
     }
 
 }
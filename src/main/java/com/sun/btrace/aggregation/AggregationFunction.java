@@ -67,7 +67,28 @@ public enum AggregationFunction {
         public Quantize newValue() {
             return new Quantize();
         }
+    },
+    PERCENTILE {
+
+        public Percentiles newValue() {
+            return new Percentiles();
+        }
+
+        public Percentiles newValue(int precision) {
+            return new Percentiles(precision);
+        }
     };
 
     public abstract AggregationValue newValue();
+
+    /**
+     * Creates a new value with the given precision. Only {@linkplain #PERCENTILE} makes use of
+     * the precision (number of significant decimal digits); the other functions ignore it.
+     *
+     * @param precision the precision
+     * @return a new aggregation value
+     */
+    public AggregationValue newValue(int precision) {
+        return newValue();
+    }
 }
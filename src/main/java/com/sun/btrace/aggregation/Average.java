@@ -24,6 +24,8 @@
  */
 package com.sun.btrace.aggregation;
 
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * Aggregation function for computing the mean value.
  * <p>
@@ -32,26 +34,29 @@ package com.sun.btrace.aggregation;
  */
 class Average implements AggregationValue {
 
-    long sum = 0;
-    int count = 0;
+    // striped to avoid contention between cores; the sum and the count
+    // are read independently so a concurrent add may skew the mean slightly
+    LongAdder sum = new LongAdder();
+    LongAdder count = new LongAdder();
 
     @Override
-    public synchronized void clear() {
-        sum = 0;
-        count = 0;
+    public void clear() {
+        sum.reset();
+        count.reset();
     }
 
     @Override
-    public synchronized void add(long delta) {
-        sum += delta;
-        count++;
+    public void add(long delta) {
+        sum.add(delta);
+        count.increment();
     }
 
-    public synchronized long getValue() {
-        if (count == 0) {
+    public long getValue() {
+        long cnt = count.sum();
+        if (cnt == 0) {
             return 0; // Avoid division by zero
         }
-        return (int) (sum / count);
+        return (int) (sum.sum() / cnt);
     }
 
     public Object getData() {
@@ -24,7 +24,7 @@
  */
 package com.sun.btrace.aggregation;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Aggregation function for counting the number of values.
@@ -34,28 +34,29 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 class Count implements AggregationValue {
 
-    AtomicInteger value = new AtomicInteger();
+    // striped to avoid contention between cores
+    LongAdder value = new LongAdder();
 
     @Override
     public void clear() {
-        value.set(0);
+        value.reset();
     }
 
     public void add() {
-        value.incrementAndGet();
+        value.increment();
     }
 
     @Override
     public void add(long delta) {
     	if (delta >= 0) {
-    		value.incrementAndGet();
+    		value.increment();
     	} else {
-    		value.decrementAndGet();
+    		value.decrement();
     	}
     }
 
     public long getValue() {
-        return value.get();
+        return value.sum();
     }
 
     public Object getData() {
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2008, 2015, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the Classpath exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.aggregation;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Open-addressing hash table mapping primitive <code>long</code> keys to {@link AggregationValue}s.
+ * <p>
+ * Looking up an existing key is lock-free and does not allocate. Only adding a new key or removing keys
+ * takes the table lock; the slots are then either filled in place or the whole table is rebuilt and
+ * republished. The value instances are shared between the old and the new table so concurrent updates
+ * are never lost during a rehash.
+ * <p>
+ *
+ * @author Jaroslav Bachorik
+ */
+final class LongKeyTable {
+
+    interface Visitor {
+        void visit(long key, AggregationValue value);
+    }
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final class Table {
+        // a key slot is written before the corresponding value slot is published
+        private final long[] keys;
+        private final AtomicReferenceArray<AggregationValue> values;
+        private final int mask;
+        private int size;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+
+        boolean isFull() {
+            // keep the load factor under 0.5
+            return (size + 1) * 2 > keys.length;
+        }
+
+        void put(long key, AggregationValue value) {
+            int idx = index(key, mask);
+            while (values.get(idx) != null) {
+                idx = (idx + 1) & mask;
+            }
+            keys[idx] = key;
+            values.set(idx, value);
+            size++;
+        }
+    }
+
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+
+    AggregationValue get(long key) {
+        Table t = table;
+        int idx = index(key, t.mask);
+        AggregationValue v;
+        while ((v = t.values.get(idx)) != null) {
+            if (t.keys[idx] == key) {
+                return v;
+            }
+            idx = (idx + 1) & t.mask;
+        }
+        return null;
+    }
+
+    AggregationValue getOrCreate(long key, Aggregation owner) {
+        AggregationValue v = get(key);
+        return v != null ? v : insert(key, owner);
+    }
+
+    int size() {
+        return table.size;
+    }
+
+    void forEach(Visitor visitor) {
+        Table t = table;
+        for (int i = 0; i < t.keys.length; i++) {
+            AggregationValue v = t.values.get(i);
+            if (v != null) {
+                visitor.visit(t.keys[i], v);
+            }
+        }
+    }
+
+    synchronized void remove(long[] toRemove) {
+        long[] sorted = toRemove.clone();
+        Arrays.sort(sorted);
+        Table t = table;
+        Table newTable = new Table(t.keys.length);
+        for (int i = 0; i < t.keys.length; i++) {
+            AggregationValue v = t.values.get(i);
+            if (v != null && Arrays.binarySearch(sorted, t.keys[i]) < 0) {
+                newTable.put(t.keys[i], v);
+            }
+        }
+        table = newTable;
+    }
+
+    synchronized void clear() {
+        table = new Table(INITIAL_CAPACITY);
+    }
+
+    private synchronized AggregationValue insert(long key, Aggregation owner) {
+        AggregationValue v = get(key);
+        if (v != null) {
+            return v;
+        }
+        Table t = table;
+        if (t.isFull()) {
+            t = rehash(t);
+        }
+        v = owner.newValue();
+        t.put(key, v);
+        return v;
+    }
+
+    private Table rehash(Table t) {
+        Table newTable = new Table(t.keys.length << 1);
+        for (int i = 0; i < t.keys.length; i++) {
+            AggregationValue v = t.values.get(i);
+            if (v != null) {
+                newTable.put(t.keys[i], v);
+            }
+        }
+        table = newTable;
+        return newTable;
+    }
+
+    private static int index(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+}
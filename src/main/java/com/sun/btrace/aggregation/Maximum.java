@@ -24,6 +24,9 @@
  */
 package com.sun.btrace.aggregation;
 
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.function.LongBinaryOperator;
+
 /**
  * Aggregation function for computing the maximum value.
  * <p>
@@ -32,22 +35,28 @@ package com.sun.btrace.aggregation;
  */
 class Maximum implements AggregationValue {
 
-    long max = Long.MIN_VALUE;
+    private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(long left, long right) {
+            return Math.max(left, right);
+        }
+    };
+
+    // striped to avoid contention between cores
+    LongAccumulator max = new LongAccumulator(MAX, Long.MIN_VALUE);
 
     @Override
-    public synchronized void clear() {
-        max = Integer.MIN_VALUE;
+    public void clear() {
+        max.reset();
     }
 
     @Override
-    public synchronized void add(long value) {
-        if (value > max) {
-            max = value;
-        }
+    public void add(long value) {
+        max.accumulate(value);
     }
 
-    public synchronized long getValue() {
-        return max;
+    public long getValue() {
+        return max.get();
     }
 
     public Object getData() {
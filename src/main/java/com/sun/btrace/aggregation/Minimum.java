@@ -24,6 +24,9 @@
  */
 package com.sun.btrace.aggregation;
 
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.function.LongBinaryOperator;
+
 /**
  * Aggregation function for computing the minimum value.
  * <p>
@@ -32,22 +35,28 @@ package com.sun.btrace.aggregation;
  */
 class Minimum implements AggregationValue {
 
-    long min = Long.MAX_VALUE;
+    private static final LongBinaryOperator MIN = new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(long left, long right) {
+            return Math.min(left, right);
+        }
+    };
+
+    // striped to avoid contention between cores
+    LongAccumulator min = new LongAccumulator(MIN, Long.MAX_VALUE);
 
     @Override
-    public synchronized void clear() {
-        min = Integer.MAX_VALUE;
+    public void clear() {
+        min.reset();
     }
 
     @Override
-    public synchronized void add(long value) {
-        if (value < min) {
-            min = value;
-        }
+    public void add(long value) {
+        min.accumulate(value);
     }
 
-    public synchronized long getValue() {
-        return min;
+    public long getValue() {
+        return min.get();
     }
 
     public Object getData() {
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2008, 2015, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the Classpath exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.aggregation;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Open-addressing hash table mapping object keys (eg. {@link AggregationKey} or {@link String}) to
+ * {@link AggregationValue}s.
+ * <p>
+ * Works the same way as {@link LongKeyTable} - the lookups are lock-free and allocation-free, only adding
+ * a new key or removing keys takes the table lock.
+ * <p>
+ *
+ * @author Jaroslav Bachorik
+ */
+final class ObjectKeyTable {
+
+    interface Visitor {
+        void visit(Object key, AggregationValue value);
+    }
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final class Table {
+        // a key slot is written before the corresponding value slot is published
+        private final Object[] keys;
+        private final AtomicReferenceArray<AggregationValue> values;
+        private final int mask;
+        private int size;
+
+        Table(int capacity) {
+            keys = new Object[capacity];
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+
+        boolean isFull() {
+            // keep the load factor under 0.5
+            return (size + 1) * 2 > keys.length;
+        }
+
+        void put(Object key, AggregationValue value) {
+            int idx = index(key, mask);
+            while (values.get(idx) != null) {
+                idx = (idx + 1) & mask;
+            }
+            keys[idx] = key;
+            values.set(idx, value);
+            size++;
+        }
+    }
+
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+
+    AggregationValue get(Object key) {
+        Table t = table;
+        int idx = index(key, t.mask);
+        AggregationValue v;
+        while ((v = t.values.get(idx)) != null) {
+            Object k = t.keys[idx];
+            if (k == key || k.equals(key)) {
+                return v;
+            }
+            idx = (idx + 1) & t.mask;
+        }
+        return null;
+    }
+
+    AggregationValue getOrCreate(Object key, Aggregation owner) {
+        AggregationValue v = get(key);
+        return v != null ? v : insert(key, owner);
+    }
+
+    int size() {
+        return table.size;
+    }
+
+    void forEach(Visitor visitor) {
+        Table t = table;
+        for (int i = 0; i < t.keys.length; i++) {
+            AggregationValue v = t.values.get(i);
+            if (v != null) {
+                visitor.visit(t.keys[i], v);
+            }
+        }
+    }
+
+    synchronized void remove(Collection<?> toRemove) {
+        Set<?> removed = new HashSet<>(toRemove);
+        Table t = table;
+        Table newTable = new Table(t.keys.length);
+        for (int i = 0; i < t.keys.length; i++) {
+            AggregationValue v = t.values.get(i);
+            if (v != null && !removed.contains(t.keys[i])) {
+                newTable.put(t.keys[i], v);
+            }
+        }
+        table = newTable;
+    }
+
+    synchronized void clear() {
+        table = new Table(INITIAL_CAPACITY);
+    }
+
+    private synchronized AggregationValue insert(Object key, Aggregation owner) {
+        AggregationValue v = get(key);
+        if (v != null) {
+            return v;
+        }
+        Table t = table;
+        if (t.isFull()) {
+            t = rehash(t);
+        }
+        v = owner.newValue();
+        t.put(key, v);
+        return v;
+    }
+
+    private Table rehash(Table t) {
+        Table newTable = new Table(t.keys.length << 1);
+        for (int i = 0; i < t.keys.length; i++) {
+            AggregationValue v = t.values.get(i);
+            if (v != null) {
+                newTable.put(t.keys[i], v);
+            }
+        }
+        table = newTable;
+        return newTable;
+    }
+
+    private static int index(Object key, int mask) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
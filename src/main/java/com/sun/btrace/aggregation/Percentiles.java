@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2008, 2015, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the Classpath exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.aggregation;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Aggregation function that records the values in a log-linear histogram and calculates percentiles.
+ * <p>
+ * Each power-of-two range (octave) is split into a fixed number of linear sub-buckets so the relative error of
+ * any reported percentile is bounded by the configured precision (number of significant decimal digits) instead
+ * of a whole octave as with {@link Quantize}. The octaves are allocated lazily, on the first value falling into
+ * them, so only the actually used value range takes up memory. No raw samples are kept.
+ * <p>
+ * Negative values are recorded as zero.
+ * <p>
+ *
+ * @author Jaroslav Bachorik
+ */
+class Percentiles implements AggregationValue {
+    static final int DEFAULT_PRECISION = 2;
+    static final int MIN_PRECISION = 1;
+    static final int MAX_PRECISION = 3;
+
+    private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(long left, long right) {
+            return Math.max(left, right);
+        }
+    };
+
+    // number of bits addressing the sub-buckets of the linear region
+    private final int subBucketBits;
+    // number of sub-buckets per octave (the upper half of the linear region)
+    private final int subBucketHalf;
+    // chunk 0 covers the linear region <0, 2^subBucketBits); chunk N covers the octave
+    // with the bucket width of 2^N
+    private final AtomicReferenceArray<AtomicLongArray> chunks;
+    private final LongAccumulator max = new LongAccumulator(MAX, 0);
+
+    Percentiles() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * @param precision number of significant decimal digits to maintain; clamped to &lt;1, 3&gt;
+     */
+    Percentiles(int precision) {
+        precision = Math.max(MIN_PRECISION, Math.min(MAX_PRECISION, precision));
+        long singleUnitResolution = 2;
+        for (int i = 0; i < precision; i++) {
+            singleUnitResolution *= 10;
+        }
+        subBucketBits = 64 - Long.numberOfLeadingZeros(singleUnitResolution - 1);
+        subBucketHalf = 1 << (subBucketBits - 1);
+        chunks = new AtomicReferenceArray<>(64 - subBucketBits);
+    }
+
+    @Override
+    public void add(long data) {
+        if (data < 0) {
+            data = 0;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(data);
+        int chunk, offset;
+        if (msb < subBucketBits) {
+            chunk = 0;
+            offset = (int)data;
+        } else {
+            chunk = msb - subBucketBits + 1;
+            offset = (int)(data >>> chunk) - subBucketHalf;
+        }
+        getChunk(chunk).incrementAndGet(offset);
+        max.accumulate(data);
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < chunks.length(); i++) {
+            AtomicLongArray c = chunks.get(i);
+            if (c != null) {
+                for (int j = 0; j < c.length(); j++) {
+                    c.set(j, 0);
+                }
+            }
+        }
+        max.reset();
+    }
+
+    /**
+     * The 99th percentile. Used for ordering the aggregated values (eg. in {@link Aggregation#truncate(int)}).
+     * Each call walks a fresh copy of the histogram; the callers should not call it repeatedly.
+     */
+    @Override
+    public long getValue() {
+        return getPercentile(99d);
+    }
+
+    @Override
+    public PercentileData getData() {
+        long[] counts = snapshot();
+        return new PercentileData(
+            total(counts),
+            getPercentile(counts, 50d),
+            getPercentile(counts, 90d),
+            getPercentile(counts, 99d),
+            getPercentile(counts, 99.9d),
+            max.get()
+        );
+    }
+
+    /**
+     * @param percentile the percentile in the range of &lt;0, 100&gt;
+     * @return the (highest equivalent) value at the given percentile or 0 if no value has been recorded
+     */
+    long getPercentile(double percentile) {
+        return getPercentile(snapshot(), percentile);
+    }
+
+    /**
+     * Adds all the values recorded by another instance of the same precision.
+     */
+    void merge(Percentiles other) {
+        if (other.subBucketBits != subBucketBits) {
+            throw new IllegalArgumentException("can not merge percentiles of different precision");
+        }
+        for (int i = 0; i < other.chunks.length(); i++) {
+            AtomicLongArray c = other.chunks.get(i);
+            if (c != null) {
+                AtomicLongArray target = null;
+                for (int j = 0; j < c.length(); j++) {
+                    long cnt = c.get(j);
+                    if (cnt != 0) {
+                        if (target == null) {
+                            target = getChunk(i);
+                        }
+                        target.addAndGet(j, cnt);
+                    }
+                }
+            }
+        }
+        max.accumulate(other.max.get());
+    }
+
+    private long getPercentile(long[] counts, double percentile) {
+        long total = total(counts);
+        if (total == 0) {
+            return 0;
+        }
+        long maxVal = max.get();
+        if (percentile >= 100d) {
+            return maxVal;
+        }
+        long rank = Math.max(1, (long)Math.ceil((percentile / 100d) * total));
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            if (cumulative >= rank) {
+                return Math.min(highestEquivalentValue(i), maxVal);
+            }
+        }
+        return maxVal;
+    }
+
+    /**
+     * Copies the bucket counts into a flat array indexed by the global bucket index
+     */
+    private long[] snapshot() {
+        int chunkCnt = 0;
+        for (int i = chunks.length() - 1; i >= 0; i--) {
+            if (chunks.get(i) != null) {
+                chunkCnt = i + 1;
+                break;
+            }
+        }
+        if (chunkCnt == 0) {
+            return new long[0];
+        }
+        long[] counts = new long[(subBucketHalf << 1) + (chunkCnt - 1) * subBucketHalf];
+        for (int i = 0; i < chunkCnt; i++) {
+            AtomicLongArray c = chunks.get(i);
+            if (c != null) {
+                int base = chunkBase(i);
+                for (int j = 0; j < c.length(); j++) {
+                    counts[base + j] = c.get(j);
+                }
+            }
+        }
+        return counts;
+    }
+
+    private long highestEquivalentValue(int index) {
+        int linear = subBucketHalf << 1;
+        if (index < linear) {
+            return index;
+        }
+        int chunk = (index - linear) / subBucketHalf + 1;
+        int offset = (index - linear) % subBucketHalf;
+        long lower = ((long)(subBucketHalf + offset)) << chunk;
+        return lower + (1L << chunk) - 1;
+    }
+
+    private int chunkBase(int chunk) {
+        return chunk == 0 ? 0 : (subBucketHalf << 1) + (chunk - 1) * subBucketHalf;
+    }
+
+    private AtomicLongArray getChunk(int idx) {
+        AtomicLongArray c = chunks.get(idx);
+        if (c == null) {
+            c = new AtomicLongArray(idx == 0 ? subBucketHalf << 1 : subBucketHalf);
+            if (!chunks.compareAndSet(idx, null, c)) {
+                c = chunks.get(idx);
+            }
+        }
+        return c;
+    }
+
+    private static long total(long[] counts) {
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        return total;
+    }
+}
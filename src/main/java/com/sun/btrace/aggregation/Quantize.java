@@ -24,7 +24,7 @@
  */
 package com.sun.btrace.aggregation;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Aggregation function that calculates a power-of-two frequency distribution of the values.
@@ -46,13 +46,10 @@ class Quantize implements AggregationValue {
     // buckets[ZERO_INDEX + 1] counts the number of 1s
     // buckets[ZERO_INDEX + 2] counts 2s and 3s,
     // buckets[ZERO_INDEX + 3] counts numbers in the range 4 to 7
-    private AtomicLong[] buckets = new AtomicLong[ZERO_INDEX * 2];
+    private final AtomicLongArray buckets = new AtomicLongArray(ZERO_INDEX * 2);
 
     public Quantize() {
         super();
-        for (int i = 0; i < buckets.length; i++) {
-            buckets[i] = new AtomicLong();
-        }
     }
 
     /*
@@ -63,7 +60,7 @@ class Quantize implements AggregationValue {
     @Override
     public void add(long data) {
         int pos = getBucketIndex(data);
-        buckets[pos].incrementAndGet();
+        buckets.incrementAndGet(pos);
     }
 
     /**
@@ -90,8 +87,8 @@ class Quantize implements AggregationValue {
      */
     @Override
     public long getValue() {
-        for (int i = buckets.length - 1; i >= 0; i--) {
-            long value = buckets[i].get();
+        for (int i = buckets.length() - 1; i >= 0; i--) {
+            long value = buckets.get(i);
             if (value > 0) {
                 return getBucketLabel(i);
             }
@@ -106,16 +103,16 @@ class Quantize implements AggregationValue {
      */
     @Override
     public void clear() {
-        for (int i = 0; i < buckets.length; i++) {
-            buckets[i].set(0);
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
         }
     }
 
     public HistogramData getData() {
-        int minIndex = buckets.length;
+        int minIndex = buckets.length();
         int maxIndex = -1;
-        for (int i = 0; i < buckets.length; i++) {
-            if (buckets[i].get() != 0) {
+        for (int i = 0; i < buckets.length(); i++) {
+            if (buckets.get(i) != 0) {
                 minIndex = Math.min(i, minIndex);
                 maxIndex = Math.max(i, maxIndex);
             }
@@ -124,7 +121,7 @@ class Quantize implements AggregationValue {
             // No data points
             return null;
         }
-        if (maxIndex < buckets.length - 1) {
+        if (maxIndex < buckets.length() - 1) {
             maxIndex++;
         }
         if (minIndex > 0) {
@@ -135,7 +132,7 @@ class Quantize implements AggregationValue {
         long[] counts = new long[rows];
         for (int i = 0; i < rows; i++) {
             values[i] = getBucketLabel(minIndex + i);
-            counts[i] = buckets[minIndex + i].get();
+            counts[i] = buckets.get(minIndex + i);
         }
         return new HistogramData(values, counts);
     }
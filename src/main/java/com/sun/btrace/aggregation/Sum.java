@@ -24,7 +24,7 @@
  */
 package com.sun.btrace.aggregation;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Aggregation function for computing the sum of values.
@@ -34,20 +34,21 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 class Sum implements AggregationValue {
 
-    AtomicLong value = new AtomicLong();
+    // striped to avoid contention between cores
+    LongAdder value = new LongAdder();
 
     @Override
     public void clear() {
-        value.set(0);
+        value.reset();
     }
 
     @Override
     public void add(long delta) {
-        value.addAndGet(delta);
+        value.add(delta);
     }
 
     public long getValue() {
-        return value.get();
+        return value.sum();
     }
 
     public Object getData() {
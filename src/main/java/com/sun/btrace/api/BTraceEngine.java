@@ -50,4 +50,12 @@ public abstract class BTraceEngine {
      *         or null if it is not possible to run BTrace against the application
      */
     abstract public BTraceTask createTask(int pid);
+
+    /**
+     * Abstract factory method for {@linkplain BTraceFleet} instances
+     * @param script The script source code to be deployed
+     * @param pids The PIDs of the application processes to deploy the script to
+     * @return Returns a {@linkplain BTraceFleet} instance bound to the particular java processes
+     */
+    abstract public BTraceFleet createFleet(String script, int ... pids);
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the Classpath exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.btrace.api;
+
+import java.util.EventListener;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single BTrace script deployed to a set of Java processes at once
+ * <p>
+ * The script is compiled only once and then submitted to all the processes
+ * in parallel. The results of the particular processes are tagged by their PIDs.
+ * <pre>
+ * BTraceFleet fleet = BTraceEngine.newInstance().createFleet(script, pid1, pid2, pid3);
+ * fleet.start();
+ * </pre>
+ * </p>
+ *
+ * @author Jaroslav Bachorik
+ */
+public abstract class BTraceFleet {
+    /**
+     * Receives the BTrace commands of all the fleet tasks.
+     * <p>
+     * Each task dispatches its commands in order on its own thread; callbacks
+     * for different processes may therefore be invoked concurrently.
+     * </p>
+     */
+    public static abstract class MessageDispatcher implements EventListener {
+        public void onPrintMessage(int pid, String message) {}
+        public void onNumberMessage(int pid, String name, Number value) {}
+        public void onGrid(int pid, String name, List<Object[]> data) {}
+        public void onNumberMap(int pid, String name, Map<String, ? extends Number> data) {}
+        public void onStringMap(int pid, String name, Map<String, String> data) {}
+        public void onClassInstrumented(int pid, String name) {}
+        public void onError(int pid, Throwable cause) {}
+    }
+
+    /**
+     * @return Returns the tasks of the fleet, one per process
+     */
+    abstract public List<BTraceTask> getTasks();
+
+    /**
+     * Compiles the script and starts it in all the processes.
+     * Returns when all the tasks are either running or have failed.
+     * @return Returns the number of successfully started tasks
+     */
+    abstract public int start();
+
+    /**
+     * Stops the script in all the processes
+     */
+    abstract public void stop();
+
+    abstract public void addMessageDispatcher(MessageDispatcher dispatcher);
+
+    abstract public void removeMessageDispatcher(MessageDispatcher dispatcher);
+
+    /**
+     * Merges the latest grid data with the given name received from each process
+     * @param name The grid name
+     * @return Returns the rows of all the processes, ordered by PID; each row
+     *         is prefixed by the PID of the originating process
+     */
+    abstract public List<Object[]> getGrid(String name);
+
+    /**
+     * Merges the latest number maps with the given name received from each process
+     * @param name The map name
+     * @return Returns a map with the values of the same key summed over all the processes
+     */
+    abstract public Map<String, Number> getNumberMap(String name);
+
+    /**
+     * @param name The number name
+     * @return Returns the latest number with the given name received from each process, by PID
+     */
+    abstract public Map<Integer, Number> getNumbers(String name);
+}
@@ -30,16 +30,20 @@ import com.sun.btrace.client.Client;
 import com.sun.btrace.comm.Command;
 import com.sun.btrace.comm.RetransformationStartNotification;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EventListener;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import com.sun.btrace.api.BTraceEngine;
+import com.sun.btrace.api.BTraceFleet;
 import com.sun.btrace.api.BTraceSettings;
 import com.sun.btrace.api.BTraceTask;
 import com.sun.btrace.comm.ErrorCommand;
@@ -55,8 +59,10 @@ import java.lang.ref.WeakReference;
 import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.ServiceLoader;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  *
@@ -88,7 +94,7 @@ public class BTraceEngineImpl extends BTraceEngine {
     private PortLocator portLocator;
     private OutputProvider outputProvider;
 
-    private Map<BTraceTask, Client> clientMap = new HashMap<BTraceTask, Client>();
+    final private Map<BTraceTask, Client> clientMap = new ConcurrentHashMap<BTraceTask, Client>();
 
     final private Set<WeakReference<StateListener>> listeners = new HashSet<WeakReference<StateListener>>();
     final private ExecutorService commQueue = Executors.newCachedThreadPool();
@@ -162,6 +168,11 @@ public class BTraceEngineImpl extends BTraceEngine {
         return new BTraceTaskImpl(pid, this);
     }
 
+    @Override
+    public BTraceFleet createFleet(String script, int ... pids) {
+        return new BTraceFleetImpl(script, pids, this);
+    }
+
     void addListener(StateListener listener) {
         synchronized(listeners) {
             listeners.add(new WeakReference<StateListener>(listener));
@@ -191,12 +202,21 @@ public class BTraceEngineImpl extends BTraceEngine {
         return result;
     }
 
-    final private AtomicBoolean stopping = new AtomicBoolean(false);
+    int start(final BTraceFleetImpl fleet) {
+        LOGGER.finest("Starting BTrace fleet");
+
+        int started = doStart(fleet);
+        LOGGER.log(Level.FINEST, "BTrace fleet started {0} of {1} tasks", new Object[]{started, fleet.getTaskImpls().size()});
+        return started;
+    }
+
+    // the tasks currently being stopped
+    final private Set<BTraceTask> stopping = Collections.newSetFromMap(new ConcurrentHashMap<BTraceTask, Boolean>());
 
     boolean stop(final BTraceTask task) {
         LOGGER.finest("Attempting to stop BTrace task");
-        try {
-            if (stopping.compareAndSet(false, true)) {
+        if (stopping.add(task)) {
+            try {
                 LOGGER.finest("Stopping BTrace task");
                 boolean result = doStop(task);
                 LOGGER.log(Level.FINEST, "BTrace task {0}", result ? "stopped successfuly" : "not stopped");
@@ -204,95 +224,185 @@ public class BTraceEngineImpl extends BTraceEngine {
                     fireOnTaskStop(task);
                 }
                 return result;
+            } finally {
+                stopping.remove(task);
+            }
+        }
+        return true;
+    }
+
+    void stop(final BTraceFleetImpl fleet) {
+        List<Future<?>> stops = new ArrayList<>();
+        for (final BTraceTaskImpl task : fleet.getTaskImpls()) {
+            stops.add(commQueue.submit(new Runnable() {
+                @Override
+                public void run() {
+                    task.stop();
+                }
+            }));
+        }
+        try {
+            for (Future<?> f : stops) {
+                f.get();
             }
-            return true;
-        } finally {
-            stopping.set(false);
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, null, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     private boolean doStart(BTraceTask task) {
-        final AtomicBoolean result = new AtomicBoolean(false);
         final BTraceTaskImpl btrace = (BTraceTaskImpl) task;
         try {
-            final CountDownLatch latch = new CountDownLatch(1);
             final BTraceCompiler compiler = compilerFactory.newCompiler(btrace);
-            btrace.setState(BTraceTask.State.COMPILING);
-            final byte[] bytecode = compiler.compile(btrace.getScript(), task.getClassPath(), outputProvider.getStdErr(task));
-            if (bytecode.length == 0) {
-                btrace.setState(BTraceTask.State.FAILED);
+            final byte[] bytecode = compile(compiler, Collections.singletonList(btrace));
+            if (bytecode == null) {
                 return false;
             }
-            btrace.setState(BTraceTask.State.COMPILED);
+            return launch(btrace, compiler, bytecode).await();
+        } catch (InterruptedException ex) {
+            LOGGER.log(Level.WARNING, null, ex);
+        }
+        return false;
+    }
 
-            LOGGER.log(Level.FINEST, "Compiled the trace: {0} bytes", bytecode.length);
-            commQueue.submit(new Runnable() {
+    private int doStart(BTraceFleetImpl fleet) {
+        List<BTraceTaskImpl> tasks = fleet.getTaskImpls();
+        for (BTraceTaskImpl task : tasks) {
+            task.setState(BTraceTask.State.STARTING);
+        }
+        // all the tasks share the script so it is enough to compile it once
+        final BTraceCompiler compiler = compilerFactory.newCompiler(tasks.get(0));
+        final byte[] bytecode = compile(compiler, tasks);
+        if (bytecode == null) {
+            return 0;
+        }
+        List<Launch> launches = new ArrayList<>(tasks.size());
+        for (BTraceTaskImpl task : tasks) {
+            launches.add(launch(task, compiler, bytecode));
+        }
+        int started = 0;
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                BTraceTaskImpl task = tasks.get(i);
+                if (launches.get(i).await()) {
+                    started++;
+                    fireOnTaskStart(task);
+                } else {
+                    task.setState(BTraceTask.State.FAILED);
+                }
+            }
+        } catch (InterruptedException ex) {
+            LOGGER.log(Level.WARNING, null, ex);
+        }
+        return started;
+    }
 
-                public void run() {
-                    int  port = portLocator.getTaskPort(btrace);
-                    LOGGER.log(Level.FINEST, "BTrace agent listening on port {0}", port);
-                    BTraceSettings settings = settingsProvider.getSettings();
-                    final Client client = new Client(
-                        port, null, ".", settings.isDebugMode(), true,
-                        btrace.isTrusted(), settings.isDumpClasses(),
-                        settings.getDumpClassPath(),
-                        settings.getStatsd()
-                    );
-
-                    try {
-                        client.attach(String.valueOf(btrace.getPid()), compiler.getAgentJarPath(), compiler.getToolsJarPath(), null);
-                        Thread.sleep(200); // give the server side time to initialize and open the port
-                        client.submit(bytecode, new String[]{}, new CommandListener() {
-                            public void onCommand(Command cmd) throws IOException {
-                                LOGGER.log(Level.FINEST, "Received command: {0}", cmd.toString());
-                                switch (cmd.getType()) {
-                                    case Command.SUCCESS: {
-                                        if (btrace.getState() == BTraceTask.State.COMPILED) {
-                                            btrace.setState(BTraceTask.State.ACCEPTED);
-                                        } else if (EnumSet.of(BTraceTask.State.INSTRUMENTING, BTraceTask.State.ACCEPTED).contains(btrace.getState())) {
-                                            btrace.setState(BTraceTask.State.RUNNING);
-                                            result.set(true);
-                                            clientMap.put(btrace, client);
-                                            latch.countDown();
-                                        }
-                                        break;
-                                    }
-                                    case Command.EXIT: {
-                                        btrace.setState(BTraceTask.State.FINISHED);
-                                        latch.countDown();
-                                        stop(btrace);
-                                        break;
-                                    }
-                                    case Command.RETRANSFORMATION_START: {
-                                        int numClasses = ((RetransformationStartNotification)cmd).getNumClasses();
-                                        btrace.setInstrClasses(numClasses);
-                                        btrace.setState(BTraceTask.State.INSTRUMENTING);
-                                        break;
-                                    }
-                                    case Command.ERROR: {
-                                        ((ErrorCommand)cmd).getCause().printStackTrace(outputProvider.getStdErr(btrace));
-                                        btrace.setState(BTraceTask.State.FAILED);
-                                        latch.countDown();
-                                        stop(btrace);
-                                        break;
+    /**
+     * Compiles the script shared by the given tasks
+     * @return Returns the bytecode or null if the compilation has failed
+     */
+    private byte[] compile(BTraceCompiler compiler, List<BTraceTaskImpl> tasks) {
+        BTraceTaskImpl btrace = tasks.get(0);
+        for (BTraceTaskImpl task : tasks) {
+            task.setState(BTraceTask.State.COMPILING);
+        }
+        byte[] bytecode = compiler.compile(btrace.getScript(), btrace.getClassPath(), outputProvider.getStdErr(btrace));
+        boolean compiled = bytecode != null && bytecode.length > 0;
+        for (BTraceTaskImpl task : tasks) {
+            task.setState(compiled ? BTraceTask.State.COMPILED : BTraceTask.State.FAILED);
+        }
+        if (!compiled) {
+            return null;
+        }
+        LOGGER.log(Level.FINEST, "Compiled the trace: {0} bytes", bytecode.length);
+        return bytecode;
+    }
+
+    /**
+     * The outcome of submitting the compiled trace to a process
+     */
+    private static final class Launch {
+        final private CountDownLatch latch = new CountDownLatch(1);
+        final private AtomicBoolean result = new AtomicBoolean(false);
+
+        void done(boolean value) {
+            result.set(value);
+            latch.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            latch.await();
+            return result.get();
+        }
+    }
+
+    /**
+     * Attaches to the task process and submits the compiled trace asynchronously.
+     * The client waits for the agent to open its port rather than sleeping for a fixed time.
+     */
+    private Launch launch(final BTraceTaskImpl btrace, final BTraceCompiler compiler, final byte[] bytecode) {
+        final Launch launch = new Launch();
+        commQueue.submit(new Runnable() {
+
+            public void run() {
+                int  port = portLocator.getTaskPort(btrace);
+                LOGGER.log(Level.FINEST, "BTrace agent listening on port {0}", port);
+                BTraceSettings settings = settingsProvider.getSettings();
+                final Client client = new Client(
+                    port, null, ".", settings.isDebugMode(), true,
+                    btrace.isTrusted(), settings.isDumpClasses(),
+                    settings.getDumpClassPath(),
+                    settings.getStatsd()
+                );
+
+                try {
+                    client.attach(String.valueOf(btrace.getPid()), compiler.getAgentJarPath(), compiler.getToolsJarPath(), null);
+                    client.submit(bytecode, new String[]{}, new CommandListener() {
+                        public void onCommand(Command cmd) throws IOException {
+                            LOGGER.log(Level.FINEST, "Received command: {0}", cmd.toString());
+                            switch (cmd.getType()) {
+                                case Command.SUCCESS: {
+                                    if (btrace.getState() == BTraceTask.State.COMPILED) {
+                                        btrace.setState(BTraceTask.State.ACCEPTED);
+                                    } else if (EnumSet.of(BTraceTask.State.INSTRUMENTING, BTraceTask.State.ACCEPTED).contains(btrace.getState())) {
+                                        btrace.setState(BTraceTask.State.RUNNING);
+                                        clientMap.put(btrace, client);
+                                        launch.done(true);
                                     }
+                                    break;
+                                }
+                                case Command.EXIT: {
+                                    btrace.setState(BTraceTask.State.FINISHED);
+                                    launch.done(false);
+                                    stop(btrace);
+                                    break;
+                                }
+                                case Command.RETRANSFORMATION_START: {
+                                    int numClasses = ((RetransformationStartNotification)cmd).getNumClasses();
+                                    btrace.setInstrClasses(numClasses);
+                                    btrace.setState(BTraceTask.State.INSTRUMENTING);
+                                    break;
+                                }
+                                case Command.ERROR: {
+                                    ((ErrorCommand)cmd).getCause().printStackTrace(outputProvider.getStdErr(btrace));
+                                    btrace.setState(BTraceTask.State.FAILED);
+                                    launch.done(false);
+                                    stop(btrace);
+                                    break;
                                 }
-                                btrace.dispatchCommand(cmd);
                             }
-                        });
-                    } catch (Exception e) {
-                        LOGGER.log(Level.FINE, e.getLocalizedMessage(), e);
-                        result.set(false);
-                        latch.countDown();
-                    }
+                            btrace.dispatchCommand(cmd);
+                        }
+                    });
+                } catch (Exception e) {
+                    LOGGER.log(Level.FINE, e.getLocalizedMessage(), e);
+                    launch.done(false);
                 }
-            });
-            latch.await();
-
-        } catch (InterruptedException ex) {
-            LOGGER.log(Level.WARNING, null, ex);
-        }
-        return result.get();
+            }
+        });
+        return launch;
     }
 
     private boolean doStop(BTraceTask task) {
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the Classpath exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.btrace.api.impl;
+
+import com.sun.btrace.api.BTraceFleet;
+import com.sun.btrace.api.BTraceTask;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class BTraceFleetImpl extends BTraceFleet {
+    final private List<BTraceTaskImpl> tasks;
+    final private BTraceEngineImpl engine;
+
+    final private Set<MessageDispatcher> messageDispatchers = new HashSet<>();
+
+    // the latest data received from each process; name -> pid -> data
+    final private ConcurrentMap<String, ConcurrentMap<Integer, List<Object[]>>> grids = new ConcurrentHashMap<>();
+    final private ConcurrentMap<String, ConcurrentMap<Integer, Map<String, ? extends Number>>> numberMaps = new ConcurrentHashMap<>();
+    final private ConcurrentMap<String, ConcurrentMap<Integer, Number>> numbers = new ConcurrentHashMap<>();
+
+    BTraceFleetImpl(String script, int[] pids, BTraceEngineImpl engine) {
+        if (pids.length == 0) {
+            throw new IllegalArgumentException("No process to deploy the script to");
+        }
+        this.engine = engine;
+        List<BTraceTaskImpl> list = new ArrayList<>(pids.length);
+        for (int pid : pids) {
+            BTraceTaskImpl task = new BTraceTaskImpl(pid, engine);
+            task.setScript(script);
+            task.addMessageDispatcher(new TaskDispatcher(pid));
+            list.add(task);
+        }
+        this.tasks = Collections.unmodifiableList(list);
+    }
+
+    @Override
+    public List<BTraceTask> getTasks() {
+        return Collections.<BTraceTask>unmodifiableList(tasks);
+    }
+
+    List<BTraceTaskImpl> getTaskImpls() {
+        return tasks;
+    }
+
+    @Override
+    public int start() {
+        return engine.start(this);
+    }
+
+    @Override
+    public void stop() {
+        engine.stop(this);
+    }
+
+    @Override
+    public void addMessageDispatcher(MessageDispatcher dispatcher) {
+        synchronized (messageDispatchers) {
+            messageDispatchers.add(dispatcher);
+        }
+    }
+
+    @Override
+    public void removeMessageDispatcher(MessageDispatcher dispatcher) {
+        synchronized (messageDispatchers) {
+            messageDispatchers.remove(dispatcher);
+        }
+    }
+
+    @Override
+    public List<Object[]> getGrid(String name) {
+        List<Object[]> result = new ArrayList<>();
+        Map<Integer, List<Object[]>> perVm = grids.get(name);
+        if (perVm != null) {
+            for (Map.Entry<Integer, List<Object[]>> e : new TreeMap<>(perVm).entrySet()) {
+                for (Object[] row : e.getValue()) {
+                    Object[] tagged = new Object[row.length + 1];
+                    tagged[0] = e.getKey();
+                    System.arraycopy(row, 0, tagged, 1, row.length);
+                    result.add(tagged);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Number> getNumberMap(String name) {
+        Map<String, Number> result = new HashMap<>();
+        Map<Integer, Map<String, ? extends Number>> perVm = numberMaps.get(name);
+        if (perVm != null) {
+            for (Map<String, ? extends Number> data : perVm.values()) {
+                for (Map.Entry<String, ? extends Number> e : data.entrySet()) {
+                    result.put(e.getKey(), sum(result.get(e.getKey()), e.getValue()));
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<Integer, Number> getNumbers(String name) {
+        Map<Integer, Number> perVm = numbers.get(name);
+        return perVm != null ? new TreeMap<>(perVm) : Collections.<Integer, Number>emptyMap();
+    }
+
+    private static Number sum(Number a, Number b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (isIntegral(a) && isIntegral(b)) {
+            return a.longValue() + b.longValue();
+        }
+        return a.doubleValue() + b.doubleValue();
+    }
+
+    private static boolean isIntegral(Number n) {
+        return n instanceof Long || n instanceof Integer || n instanceof Short || n instanceof Byte;
+    }
+
+    private static <T> void store(ConcurrentMap<String, ConcurrentMap<Integer, T>> store, String name, int pid, T value) {
+        ConcurrentMap<Integer, T> perVm = store.get(name);
+        if (perVm == null) {
+            ConcurrentMap<Integer, T> newMap = new ConcurrentHashMap<>();
+            perVm = store.putIfAbsent(name, newMap);
+            if (perVm == null) {
+                perVm = newMap;
+            }
+        }
+        perVm.put(pid, value);
+    }
+
+    private Set<MessageDispatcher> getDispatchers() {
+        synchronized (messageDispatchers) {
+            return new HashSet<>(messageDispatchers);
+        }
+    }
+
+    /**
+     * Tags the commands of a particular task by its PID and keeps the latest data
+     */
+    private final class TaskDispatcher extends BTraceTask.MessageDispatcher {
+        private final int pid;
+
+        TaskDispatcher(int pid) {
+            this.pid = pid;
+        }
+
+        @Override
+        public void onPrintMessage(String message) {
+            for (MessageDispatcher d : getDispatchers()) {
+                d.onPrintMessage(pid, message);
+            }
+        }
+
+        @Override
+        public void onNumberMessage(String name, Number value) {
+            store(numbers, name, pid, value);
+            for (MessageDispatcher d : getDispatchers()) {
+                d.onNumberMessage(pid, name, value);
+            }
+        }
+
+        @Override
+        public void onGrid(String name, List<Object[]> data) {
+            store(grids, name, pid, data);
+            for (MessageDispatcher d : getDispatchers()) {
+                d.onGrid(pid, name, data);
+            }
+        }
+
+        @Override
+        public void onNumberMap(String name, Map<String, ? extends Number> data) {
+            store(numberMaps, name, pid, data);
+            for (MessageDispatcher d : getDispatchers()) {
+                d.onNumberMap(pid, name, data);
+            }
+        }
+
+        @Override
+        public void onStringMap(String name, Map<String, String> data) {
+            for (MessageDispatcher d : getDispatchers()) {
+                d.onStringMap(pid, name, data);
+            }
+        }
+
+        @Override
+        public void onClassInstrumented(String name) {
+            for (MessageDispatcher d : getDispatchers()) {
+                d.onClassInstrumented(pid, name);
+            }
+        }
+
+        @Override
+        public void onError(Throwable cause) {
+            for (MessageDispatcher d : getDispatchers()) {
+                d.onError(pid, cause);
+            }
+        }
+    }
+}
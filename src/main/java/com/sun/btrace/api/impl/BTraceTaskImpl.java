@@ -42,8 +42,11 @@ import com.sun.btrace.comm.NumberDataCommand;
 import com.sun.btrace.comm.NumberMapDataCommand;
 import com.sun.btrace.comm.RetransformClassNotification;
 import com.sun.btrace.comm.StringMapDataCommand;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -60,7 +63,16 @@ public class BTraceTaskImpl extends BTraceTask implements BTraceEngineImpl.State
     final private Set<StateListener> stateListeners = new HashSet<>();
     final private Set<MessageDispatcher> messageDispatchers = new HashSet<>();
 
-    final private static ExecutorService dispatcher = Executors.newSingleThreadExecutor();
+    // the maximum number of commands waiting for dispatch; the receiving thread blocks beyond it
+    final private static int DISPATCH_QUEUE_SIZE = 1024;
+    // how long an idle dispatching thread is kept alive [s]
+    final private static long DISPATCH_KEEP_ALIVE = 30;
+
+    /*
+     * Each task dispatches its commands on its own lane, in order.
+     * A slow dispatcher holds back only the task it is attached to.
+     */
+    final private ThreadPoolExecutor dispatcher;
 
     private final PrintWriter consoleWriter = new PrintWriter(System.out, true);
 
@@ -76,6 +88,35 @@ public class BTraceTaskImpl extends BTraceTask implements BTraceEngineImpl.State
         this.pid = pid;
         this.engine = (BTraceEngineImpl)engine;
         this.engine.addListener(this);
+        this.dispatcher = newDispatcher(pid);
+    }
+
+    private static ThreadPoolExecutor newDispatcher(final int pid) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            1, 1, DISPATCH_KEEP_ALIVE, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(DISPATCH_QUEUE_SIZE),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "BTrace Dispatcher [" + pid + "]");
+                    t.setDaemon(true);
+                    return t;
+                }
+            },
+            new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                    // apply back-pressure to the receiving thread of this task only
+                    try {
+                        executor.getQueue().put(r);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        );
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     @Override
@@ -287,46 +328,55 @@ public class BTraceTaskImpl extends BTraceTask implements BTraceEngineImpl.State
             @Override
             public void run() {
                 for(MessageDispatcher listener : dispatchingSet) {
-                    switch (cmd.getType()) {
-                        case Command.MESSAGE: {
-                            listener.onPrintMessage(((MessageCommand)cmd).getMessage());
-                            break;
-                        }
-                        case Command.RETRANSFORM_CLASS: {
-                            listener.onClassInstrumented(((RetransformClassNotification)cmd).getClassName());
-                            break;
-                        }
-                        case Command.NUMBER: {
-                            NumberDataCommand ndc = (NumberDataCommand)cmd;
-                            listener.onNumberMessage(ndc.getName(), ndc.getValue());
-                            break;
-                        }
-                        case Command.NUMBER_MAP: {
-                            NumberMapDataCommand nmdc = (NumberMapDataCommand)cmd;
-                            listener.onNumberMap(nmdc.getName(), nmdc.getData());
-                            break;
-                        }
-                        case Command.STRING_MAP: {
-                            StringMapDataCommand smdc = (StringMapDataCommand)cmd;
-                            listener.onStringMap(smdc.getName(), smdc.getData());
-                            break;
-                        }
-                        case Command.GRID_DATA: {
-                            GridDataCommand gdc = (GridDataCommand)cmd;
-                            listener.onGrid(gdc.getName(), gdc.getData());
-                            break;
-                        }
-                        case Command.ERROR: {
-                            ErrorCommand ec = (ErrorCommand)cmd;
-                            listener.onError(ec.getCause());
-                            break;
-                        }
-                    }
+                    dispatch(listener, cmd);
                 }
             }
         });
     }
 
+    /**
+     * Passes a command to the appropriate {@linkplain MessageDispatcher} callback
+     * @param listener the dispatcher
+     * @param cmd the command; the commands the dispatcher has no callback for are ignored
+     */
+    public static void dispatch(MessageDispatcher listener, Command cmd) {
+        switch (cmd.getType()) {
+            case Command.MESSAGE: {
+                listener.onPrintMessage(((MessageCommand)cmd).getMessage());
+                break;
+            }
+            case Command.RETRANSFORM_CLASS: {
+                listener.onClassInstrumented(((RetransformClassNotification)cmd).getClassName());
+                break;
+            }
+            case Command.NUMBER: {
+                NumberDataCommand ndc = (NumberDataCommand)cmd;
+                listener.onNumberMessage(ndc.getName(), ndc.getValue());
+                break;
+            }
+            case Command.NUMBER_MAP: {
+                NumberMapDataCommand nmdc = (NumberMapDataCommand)cmd;
+                listener.onNumberMap(nmdc.getName(), nmdc.getData());
+                break;
+            }
+            case Command.STRING_MAP: {
+                StringMapDataCommand smdc = (StringMapDataCommand)cmd;
+                listener.onStringMap(smdc.getName(), smdc.getData());
+                break;
+            }
+            case Command.GRID_DATA: {
+                GridDataCommand gdc = (GridDataCommand)cmd;
+                listener.onGrid(gdc.getName(), gdc.getData());
+                break;
+            }
+            case Command.ERROR: {
+                ErrorCommand ec = (ErrorCommand)cmd;
+                listener.onError(ec.getCause());
+                break;
+            }
+        }
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == null) {
@@ -103,6 +103,11 @@ public class Client {
         DTRACE_REF_DESC = Type.getDescriptor(DTraceRef.class);
     }
 
+    // how long to wait for the agent server to come up [ms]
+    private static final long CONNECT_TIMEOUT = 5000;
+    // the maximum delay between two connection attempts [ms]
+    private static final long MAX_CONNECT_BACKOFF = 100;
+
     // port on which BTrace agent listens
     private final int port;
     // the output file or null
@@ -324,6 +329,10 @@ public class Client {
             if (cmdQueueLimit != null) {
                 agentArgs += ",cmdQueueLimit=" + cmdQueueLimit;
             }
+            String cmdQueuePolicy = System.getProperty(BTraceRuntime.CMD_QUEUE_POLICY_KEY, null);
+            if (cmdQueuePolicy != null) {
+                agentArgs += ",cmdQueuePolicy=" + cmdQueuePolicy;
+            }
             agentArgs += ",probeDescPath=" + probeDescPath;
             if (debug) {
                 debugPrint("agent args: " + agentArgs);
@@ -357,15 +366,21 @@ public class Client {
             if (debug) {
                 debugPrint("opening socket to " + port);
             }
-            long timeout = System.currentTimeMillis() + 5000;
-            while (sock == null && System.currentTimeMillis() <= timeout) {
+            // probe the port until the agent server is up, backing off up to MAX_CONNECT_BACKOFF
+            long timeout = System.currentTimeMillis() + CONNECT_TIMEOUT;
+            long backoff = 5;
+            while (sock == null) {
                 try {
                     sock = new Socket("localhost", port);
                 } catch (ConnectException e) {
+                    if (System.currentTimeMillis() > timeout) {
+                        throw new IOException("BTrace agent not available on port " + port, e);
+                    }
                     if (debug) {
                         debugPrint("server not yet available; retrying ...");
                     }
-                    Thread.sleep(20);
+                    Thread.sleep(backoff);
+                    backoff = Math.min(backoff * 2, MAX_CONNECT_BACKOFF);
                 }
             }
             oos = new ObjectOutputStream(sock.getOutputStream());
@@ -379,6 +394,20 @@ public class Client {
             settings.put(SharedSettings.TRUSTED_KEY, trusted);
             settings.put(SharedSettings.PROBE_DESC_PATH_KEY, probeDescPath);
             settings.put(SharedSettings.OUTPUT_FILE_KEY, outputFile);
+            String cmdQueueLimit = System.getProperty(BTraceRuntime.CMD_QUEUE_LIMIT_KEY, null);
+            if (cmdQueueLimit != null) {
+                try {
+                    settings.put(SharedSettings.CMD_QUEUE_LIMIT_KEY, Integer.parseInt(cmdQueueLimit));
+                } catch (NumberFormatException e) {
+                    debugPrint("invalid command queue limit: " + cmdQueueLimit);
+                }
+            }
+            String cmdQueuePolicy = System.getProperty(BTraceRuntime.CMD_QUEUE_POLICY_KEY, null);
+            if (cmdQueuePolicy != null) {
+                settings.put(SharedSettings.CMD_QUEUE_POLICY_KEY, cmdQueuePolicy);
+            }
+            // an agent supporting the binary protocol will switch to it
+            settings.put(SharedSettings.WIRE_PROTOCOL_KEY, WireIO.PROTOCOL_VERSION);
 
             WireIO.write(oos, new SetSettingsCommand(settings));
 
@@ -496,9 +525,10 @@ public class Client {
             throws IOException {
         assert ois != null : "null input stream?";
         final AtomicBoolean exited = new AtomicBoolean(false);
+        WireIO.Reader reader = new WireIO.Reader(ois);
         while (true) {
             try {
-                Command cmd = WireIO.read(ois);
+                Command cmd = reader.read();
                 if (debug) {
                     debugPrint("received " + cmd);
                 }
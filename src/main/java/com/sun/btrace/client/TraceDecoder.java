@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the Classpath exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.btrace.client;
+
+import com.sun.btrace.CommandListener;
+import com.sun.btrace.api.BTraceTask;
+import com.sun.btrace.api.impl.BTraceTaskImpl;
+import com.sun.btrace.comm.Command;
+import com.sun.btrace.comm.MappedTraceReader;
+import com.sun.btrace.comm.PrintableCommand;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts a binary recording (scriptOutputFile ending with '.btrc' or
+ * scriptOutputFormat=binary) back to the usual textual output or
+ * streams it to a {@linkplain BTraceTask.MessageDispatcher}.
+ *
+ * @author Jaroslav Bachorik
+ */
+public final class TraceDecoder {
+    private TraceDecoder() {}
+
+    /**
+     * Prints the recorded commands the same way they would have been printed
+     * to a text output file
+     * @param recording the base name of the recording or one of its segments
+     * @param out the writer
+     * @throws IOException
+     */
+    public static void print(File recording, final PrintWriter out) throws IOException {
+        new MappedTraceReader(recording).replay(new CommandListener() {
+            @Override
+            public void onCommand(Command cmd) throws IOException {
+                if (cmd instanceof PrintableCommand) {
+                    ((PrintableCommand)cmd).print(out);
+                }
+            }
+        });
+        out.flush();
+    }
+
+    /**
+     * Passes the recorded commands to the dispatcher
+     * @param recording the base name of the recording or one of its segments
+     * @param dispatcher the dispatcher
+     * @throws IOException
+     */
+    public static void dispatch(File recording, final BTraceTask.MessageDispatcher dispatcher) throws IOException {
+        new MappedTraceReader(recording).replay(new CommandListener() {
+            @Override
+            public void onCommand(Command cmd) throws IOException {
+                BTraceTaskImpl.dispatch(dispatcher, cmd);
+            }
+        });
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java " + TraceDecoder.class.getName() + " <recording> [<output file>]");
+            System.exit(1);
+        }
+        try {
+            PrintWriter out = args.length == 2 ?
+                new PrintWriter(new OutputStreamWriter(new FileOutputStream(args[1]), StandardCharsets.UTF_8)) :
+                new PrintWriter(System.out);
+            try {
+                print(new File(args[0]), out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the Classpath exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.comm;
+
+import com.sun.btrace.aggregation.HistogramData;
+import com.sun.btrace.aggregation.PercentileData;
+import java.io.DataInput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.sun.btrace.comm.BinaryOutput.*;
+
+/**
+ * Decoder of the binary wire protocol payloads written by {@linkplain BinaryOutput}.
+ * <p>
+ * Keeps the mirror of the encoder's string dictionary and therefore
+ * must see all the payloads of one connection, in order.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class BinaryInput {
+    private final List<String> dictionary = new ArrayList<>();
+    private byte[] buf = new byte[1024];
+    private int pos = 0;
+    private int limit = 0;
+
+    /**
+     * Reads the length prefixed payload of one frame
+     */
+    void readFrom(DataInput in) throws IOException {
+        int len = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift > 28) {
+                throw new IOException("malformed frame length");
+            }
+            b = in.readUnsignedByte();
+            len |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (len < 0) {
+            throw new IOException("malformed frame length");
+        }
+        if (len > buf.length) {
+            buf = new byte[len];
+        }
+        in.readFully(buf, 0, len);
+        pos = 0;
+        limit = len;
+    }
+
+    /**
+     * Reads a payload of the given length from the buffer
+     */
+    void readFrom(ByteBuffer bb, int len) {
+        if (len > buf.length) {
+            buf = new byte[len];
+        }
+        bb.get(buf, 0, len);
+        pos = 0;
+        limit = len;
+    }
+
+    /**
+     * @see BinaryOutput#clearDictionary()
+     */
+    void clearDictionary() {
+        dictionary.clear();
+    }
+
+    int readByte() throws IOException {
+        if (pos >= limit) {
+            throw new IOException("truncated frame");
+        }
+        return buf[pos++];
+    }
+
+    int readVarInt() throws IOException {
+        return (int)readVarLong();
+    }
+
+    long readVarLong() throws IOException {
+        long val = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            val |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return val;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    long readSignedVarLong() throws IOException {
+        long val = readVarLong();
+        return (val >>> 1) ^ -(val & 1);
+    }
+
+    long readLong() throws IOException {
+        long val = 0;
+        for (int i = 0; i < 8; i++) {
+            val = (val << 8) | (readByte() & 0xFF);
+        }
+        return val;
+    }
+
+    byte[] readBytes() throws IOException {
+        int len = readVarInt();
+        if (len < 0 || len > limit - pos) {
+            throw new IOException("truncated frame");
+        }
+        byte[] bytes = new byte[len];
+        System.arraycopy(buf, pos, bytes, 0, len);
+        pos += len;
+        return bytes;
+    }
+
+    String readString() throws IOException {
+        int ref = readVarInt();
+        switch (ref) {
+            case STR_NULL: {
+                return null;
+            }
+            case STR_NEW: {
+                String s = decodeString();
+                dictionary.add(s);
+                return s;
+            }
+            case STR_LITERAL: {
+                return decodeString();
+            }
+            default: {
+                int idx = ref - STR_REF_BASE;
+                if (idx < 0 || idx >= dictionary.size()) {
+                    throw new IOException("invalid string reference: " + ref);
+                }
+                return dictionary.get(idx);
+            }
+        }
+    }
+
+    Object readValue() throws IOException {
+        int tag = readByte();
+        switch (tag) {
+            case T_NULL: {
+                return null;
+            }
+            case T_BYTE: {
+                return (byte)readSignedVarLong();
+            }
+            case T_SHORT: {
+                return (short)readSignedVarLong();
+            }
+            case T_INT: {
+                return (int)readSignedVarLong();
+            }
+            case T_LONG: {
+                return readSignedVarLong();
+            }
+            case T_FLOAT: {
+                return Float.intBitsToFloat(readVarInt());
+            }
+            case T_DOUBLE: {
+                return Double.longBitsToDouble(readLong());
+            }
+            case T_BIGINT: {
+                return new BigInteger(readBytes());
+            }
+            case T_BIGDEC: {
+                int scale = (int)readSignedVarLong();
+                return new BigDecimal(new BigInteger(readBytes()), scale);
+            }
+            case T_STRING: {
+                return readString();
+            }
+            case T_HISTOGRAM: {
+                int len = readVarInt();
+                if (len < 0 || len > limit - pos) {
+                    throw new IOException("truncated frame");
+                }
+                long[] values = new long[len];
+                long[] counts = new long[len];
+                for (int i = 0; i < len; i++) {
+                    values[i] = readSignedVarLong();
+                    counts[i] = readVarLong();
+                }
+                return new HistogramData(values, counts);
+            }
+            case T_PERCENTILE: {
+                long count = readVarLong();
+                long p50 = readSignedVarLong();
+                long p90 = readSignedVarLong();
+                long p99 = readSignedVarLong();
+                long p999 = readSignedVarLong();
+                long max = readSignedVarLong();
+                return new PercentileData(count, p50, p90, p99, p999, max);
+            }
+            default: {
+                throw new IOException("invalid value tag: " + tag);
+            }
+        }
+    }
+
+    private String decodeString() throws IOException {
+        int len = readVarInt();
+        if (len < 0 || len > limit - pos) {
+            throw new IOException("truncated frame");
+        }
+        String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+        pos += len;
+        return s;
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the Classpath exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.comm;
+
+import com.sun.btrace.aggregation.HistogramData;
+import com.sun.btrace.aggregation.PercentileData;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encoder of the binary wire protocol payloads.
+ * <p>
+ * Integral numbers are written as zig-zag encoded varints. Strings are
+ * registered in a per-connection dictionary on their first occurrence and
+ * only their dictionary index is sent afterwards - the aggregation keys
+ * printed periodically are transferred just once.
+ * <p>
+ * An instance belongs to one connection and must be used by one thread at a time.
+ * The counterpart is {@linkplain BinaryInput}.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class BinaryOutput {
+    // string references
+    static final int STR_NULL = 0;
+    static final int STR_NEW = 1;
+    static final int STR_LITERAL = 2;
+    static final int STR_REF_BASE = 3;
+
+    // only strings up to this length are registered in the dictionary
+    static final int MAX_DICT_STRING_LENGTH = 1024;
+    static final int MAX_DICT_SIZE = 8192;
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    // a larger buffer left behind by an exceptionally big payload is released
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    // value tags
+    static final byte T_NULL = 0;
+    static final byte T_BYTE = 1;
+    static final byte T_SHORT = 2;
+    static final byte T_INT = 3;
+    static final byte T_LONG = 4;
+    static final byte T_FLOAT = 5;
+    static final byte T_DOUBLE = 6;
+    static final byte T_BIGINT = 7;
+    static final byte T_BIGDEC = 8;
+    static final byte T_STRING = 9;
+    static final byte T_HISTOGRAM = 10;
+    static final byte T_PERCENTILE = 11;
+
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+    private int pos = 0;
+
+    /**
+     * @param val a value
+     * @return {@code true} if the value can be written by {@linkplain #writeValue(java.lang.Object)}
+     */
+    static boolean isSupported(Object val) {
+        if (val == null) {
+            return true;
+        }
+        Class<?> c = val.getClass();
+        return c == Long.class || c == Integer.class || c == Short.class ||
+               c == Byte.class || c == Double.class || c == Float.class ||
+               c == String.class || c == BigInteger.class || c == BigDecimal.class ||
+               c == HistogramData.class || c == PercentileData.class;
+    }
+
+    void reset() {
+        pos = 0;
+        if (buf.length > MAX_RETAINED_BUFFER_SIZE) {
+            buf = new byte[INITIAL_BUFFER_SIZE];
+        }
+    }
+
+    int size() {
+        return pos;
+    }
+
+    /**
+     * Forgets the registered strings; the decoder must do the same at the same point
+     */
+    void clearDictionary() {
+        dictionary.clear();
+    }
+
+    /**
+     * Copies the payload, without the length, to the given buffer
+     */
+    void writeTo(ByteBuffer bb) {
+        bb.put(buf, 0, pos);
+    }
+
+    /**
+     * Writes the payload length followed by the payload
+     */
+    void writeTo(DataOutput out) throws IOException {
+        int len = pos;
+        while ((len & ~0x7F) != 0) {
+            out.writeByte((len & 0x7F) | 0x80);
+            len >>>= 7;
+        }
+        out.writeByte(len);
+        out.write(buf, 0, pos);
+    }
+
+    void writeByte(int b) {
+        ensure(1);
+        buf[pos++] = (byte)b;
+    }
+
+    void writeVarInt(int val) {
+        writeVarLong(val & 0xFFFFFFFFL);
+    }
+
+    void writeVarLong(long val) {
+        ensure(10);
+        while ((val & ~0x7FL) != 0) {
+            buf[pos++] = (byte)((val & 0x7F) | 0x80);
+            val >>>= 7;
+        }
+        buf[pos++] = (byte)val;
+    }
+
+    void writeSignedVarLong(long val) {
+        writeVarLong((val << 1) ^ (val >> 63));
+    }
+
+    void writeLong(long val) {
+        ensure(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buf[pos++] = (byte)(val >>> shift);
+        }
+    }
+
+    void writeBytes(byte[] bytes) {
+        writeVarInt(bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    void writeString(String s) {
+        if (s == null) {
+            writeVarInt(STR_NULL);
+            return;
+        }
+        Integer idx = dictionary.get(s);
+        if (idx != null) {
+            writeVarInt(STR_REF_BASE + idx);
+            return;
+        }
+        if (s.length() <= MAX_DICT_STRING_LENGTH && dictionary.size() < MAX_DICT_SIZE) {
+            dictionary.put(s, dictionary.size());
+            writeVarInt(STR_NEW);
+        } else {
+            writeVarInt(STR_LITERAL);
+        }
+        writeBytes(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes a tagged value. The value must be {@linkplain #isSupported(java.lang.Object) supported}.
+     */
+    void writeValue(Object val) {
+        if (val == null) {
+            writeByte(T_NULL);
+        } else if (val instanceof Long) {
+            writeByte(T_LONG);
+            writeSignedVarLong((Long)val);
+        } else if (val instanceof Integer) {
+            writeByte(T_INT);
+            writeSignedVarLong((Integer)val);
+        } else if (val instanceof String) {
+            writeByte(T_STRING);
+            writeString((String)val);
+        } else if (val instanceof Double) {
+            writeByte(T_DOUBLE);
+            writeLong(Double.doubleToRawLongBits((Double)val));
+        } else if (val instanceof Float) {
+            writeByte(T_FLOAT);
+            writeVarInt(Float.floatToRawIntBits((Float)val));
+        } else if (val instanceof Short) {
+            writeByte(T_SHORT);
+            writeSignedVarLong((Short)val);
+        } else if (val instanceof Byte) {
+            writeByte(T_BYTE);
+            writeSignedVarLong((Byte)val);
+        } else if (val instanceof BigInteger) {
+            writeByte(T_BIGINT);
+            writeBytes(((BigInteger)val).toByteArray());
+        } else if (val instanceof BigDecimal) {
+            writeByte(T_BIGDEC);
+            writeSignedVarLong(((BigDecimal)val).scale());
+            writeBytes(((BigDecimal)val).unscaledValue().toByteArray());
+        } else if (val instanceof HistogramData) {
+            HistogramData hd = (HistogramData)val;
+            writeByte(T_HISTOGRAM);
+            long[] values = hd.getValues();
+            long[] counts = hd.getCounts();
+            writeVarInt(values.length);
+            for (int i = 0; i < values.length; i++) {
+                writeSignedVarLong(values[i]);
+                writeVarLong(counts[i]);
+            }
+        } else if (val instanceof PercentileData) {
+            PercentileData pd = (PercentileData)val;
+            writeByte(T_PERCENTILE);
+            writeVarLong(pd.getCount());
+            writeSignedVarLong(pd.getP50());
+            writeSignedVarLong(pd.getP90());
+            writeSignedVarLong(pd.getP99());
+            writeSignedVarLong(pd.getP999());
+            writeSignedVarLong(pd.getMax());
+        } else {
+            throw new IllegalArgumentException("unsupported value type: " + val.getClass());
+        }
+    }
+
+    private void ensure(int len) {
+        if (pos + len > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + len));
+        }
+    }
+}
@@ -61,6 +61,26 @@ public abstract class Command implements Serializable {
     protected abstract void read(ObjectInput in)
         throws IOException, ClassNotFoundException;
 
+    /**
+     * Writes the command in the binary wire protocol.
+     * The default implementation leaves the command to be sent by {@linkplain #write(java.io.ObjectOutput)}.
+     * @param out the payload encoder
+     * @return {@code true} if the command has been written
+     * @throws IOException
+     */
+    boolean writeBinary(BinaryOutput out) throws IOException {
+        return false;
+    }
+
+    /**
+     * Reads the command written by {@linkplain #writeBinary(com.sun.btrace.comm.BinaryOutput)}
+     * @param in the payload decoder
+     * @throws IOException
+     */
+    void readBinary(BinaryInput in) throws IOException {
+        throw new IOException("no binary form of command: " + type);
+    }
+
     public byte getType() {
         return type;
     }
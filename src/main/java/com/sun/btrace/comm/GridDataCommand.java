@@ -33,9 +33,7 @@ import java.io.StringWriter;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.List;
 
 import com.sun.btrace.aggregation.HistogramData;
@@ -45,7 +43,7 @@ import java.util.regex.Pattern;
 /**
  * A data command that holds tabular data.
  * 
- * The elements contained within the grid must be of type Number, String or HistogramData.
+ * The elements contained within the grid must be of type Number, String, HistogramData or PercentileData.
  * 
  * @author Christian Glencross
  */
@@ -94,113 +92,197 @@ public class GridDataCommand extends DataCommand {
     /**
      * Calculates the necessary field width of each column
      * @param objects a list of objects
-     * @return a map containing as key the column number and as value the width of the longest value
+     * @return the width of the longest value per column
      */
-    private Map<Integer, Integer> getColumnWidth(List<Object[]> objects) {
-        Map<Integer, Integer> columnWidth = new LinkedHashMap<>();
+    private static int[] getColumnWidth(List<Object[]> objects) {
+        int[] columnWidth = new int[0];
         for (Object[] obj : objects) {
+            if (obj.length > columnWidth.length) {
+                columnWidth = Arrays.copyOf(columnWidth, obj.length);
+            }
             for (int column = 0; column < obj.length; ++column) {
-                int length = obj[column].toString().length();
-                Integer width = 0;
-                if (columnWidth.containsKey(column)) {
-                    width = columnWidth.get(column);
-                }
-                if (length > width) {
-                    columnWidth.put(column, length);
+                int length = getWidth(obj[column]);
+                if (length > columnWidth[column]) {
+                    columnWidth[column] = length;
                 }
             }
         }
         return columnWidth;
     }
 
-    public void print(PrintWriter out) {
+    /**
+     * @return the length of the string representation of the value
+     */
+    private static int getWidth(Object value) {
+        if (value == null) {
+            return NULL_VALUE.length();
+        }
+        Class<?> c = value.getClass();
+        if (c == Long.class || c == Integer.class || c == Short.class || c == Byte.class) {
+            // avoid creating the string just to measure it
+            long l = ((Number)value).longValue();
+            int width = l < 0 ? 2 : 1;
+            for (long v = l / 10; v != 0; v /= 10) {
+                width++;
+            }
+            return width;
+        }
+        return value.toString().length();
+    }
 
+    public void print(PrintWriter out) {
         if (data != null) {
             if (name != null && !name.equals("")) {
                 out.println(name);
             }
-            Map<Integer, Integer> columnWidth = getColumnWidth(data);
-            for (Object[] dataRow : data) {
-
-                // Convert histograms to strings, and pretty-print multi-line text
-                Object[] printRow = dataRow.clone();
-                for (int i = 0; i < printRow.length; i++) {
-                    if (printRow[i] == null) {
-                        printRow[i] = "<null>";
+            if (format == null || format.length() == 0) {
+                printAligned(out);
+            } else {
+                printFormatted(out);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Prints the rows with the columns aligned according to their types.
+     * The cells are written directly; only the floating point values go through a formatter.
+     */
+    private void printAligned(PrintWriter out) {
+        int[] columnWidth = getColumnWidth(data);
+        // the per-column formats of the floating point values, created on demand
+        String[] floatFormats = new String[columnWidth.length];
+        StringWriter scratch = null;
+        char[] digits = new char[20];
+        for (Object[] dataRow : data) {
+            for (int i = 0; i < dataRow.length; i++) {
+                out.write(SPACES, 0, 2);
+                Object value = dataRow[i];
+                if (value == null) {
+                    value = NULL_VALUE;
+                }
+                if (value instanceof HistogramData) {
+                    if (scratch == null) {
+                        scratch = new StringWriter();
+                    } else {
+                        scratch.getBuffer().setLength(0);
                     }
-                    if (printRow[i] instanceof HistogramData) {
-                        StringWriter buffer = new StringWriter();
-                        PrintWriter writer = new PrintWriter(buffer);
-                        ((HistogramData) printRow[i]).print(writer);
-                        writer.flush();
-                        printRow[i] = buffer.toString();
+                    PrintWriter writer = new PrintWriter(scratch);
+                    ((HistogramData) value).print(writer);
+                    writer.flush();
+                    value = scratch.toString();
+                }
+                Class<?> c = value.getClass();
+                if (c == String.class) {
+                    String str = (String) value;
+                    if (str.contains("\n")) {
+                        str = reformatMultilineValue(str);
                     }
-                    if (printRow[i] instanceof String) {
-                        String value = (String) printRow[i];
-                        if (value.contains("\n")) {
-                            printRow[i] = reformatMultilineValue(value);
-                        }
+                    out.write(str);
+                    pad(out, columnWidth[i] - str.length());
+                } else if (c == Long.class || c == Integer.class || c == Short.class || c == Byte.class) {
+                    int len = toChars(((Number) value).longValue(), digits);
+                    pad(out, columnWidth[i] - len);
+                    out.write(digits, digits.length - len, len);
+                } else if (c == BigInteger.class) {
+                    String str = value.toString();
+                    pad(out, columnWidth[i] - str.length());
+                    out.write(str);
+                } else if (c == Double.class || c == Float.class || c == BigDecimal.class) {
+                    if (floatFormats[i] == null) {
+                        floatFormats[i] = columnWidth[i] > 0 ? "%" + columnWidth[i] + "f" : "%f";
                     }
+                    out.format(floatFormats[i], value);
+                } else {
+                    String str = value.toString();
+                    out.write(str);
+                    pad(out, 15 - str.length());
                 }
+            }
+            out.println();
+        }
+    }
 
-                // Format the text
-                String usedFormat = this.format;
-                if (usedFormat == null || usedFormat.length() == 0) {
-                    StringBuilder buffer = new StringBuilder();
-                    for (int i = 0; i < printRow.length; i++) {
-                        buffer.append("  ");
-                        buffer.append(getFormat(printRow[i], columnWidth, i));
+    /**
+     * Prints the rows using the user provided format
+     */
+    private void printFormatted(PrintWriter out) {
+        Object[] printRow = null;
+        StringWriter scratch = null;
+        for (Object[] dataRow : data) {
+            if (printRow == null || printRow.length != dataRow.length) {
+                printRow = new Object[dataRow.length];
+            }
+            // Convert histograms to strings, and pretty-print multi-line text
+            for (int i = 0; i < dataRow.length; i++) {
+                Object value = dataRow[i];
+                if (value == null) {
+                    value = NULL_VALUE;
+                } else if (value instanceof HistogramData) {
+                    if (scratch == null) {
+                        scratch = new StringWriter();
+                    } else {
+                        scratch.getBuffer().setLength(0);
                     }
-                    usedFormat = buffer.toString();
+                    PrintWriter writer = new PrintWriter(scratch);
+                    ((HistogramData) value).print(writer);
+                    writer.flush();
+                    value = scratch.toString();
                 }
-                String line = String.format(usedFormat, printRow);
-
-                out.println(line);
+                if (value instanceof String && ((String) value).contains("\n")) {
+                    value = reformatMultilineValue((String) value);
+                }
+                printRow[i] = value;
             }
+            // the writer's formatter appends to the output directly
+            out.format(format, printRow);
+            out.println();
         }
-        out.flush();
     }
 
-    private static final HashMap<Class< ? >, String> typeFormats = new HashMap<Class< ? >, String>();
-    static {
-        typeFormats.put(Integer.class, "%15d");
-        typeFormats.put(Short.class, "%15d");
-        typeFormats.put(Byte.class, "%15d");
-        typeFormats.put(Long.class, "%15d");
-        typeFormats.put(BigInteger.class, "%15d");
-        typeFormats.put(Double.class, "%15f");
-        typeFormats.put(Float.class, "%15f");
-        typeFormats.put(BigDecimal.class, "%15f");
-        typeFormats.put(String.class, "%-50s");
+    private static void pad(PrintWriter out, int count) {
+        while (count > 0) {
+            int len = Math.min(count, SPACES.length);
+            out.write(SPACES, 0, len);
+            count -= len;
+        }
     }
 
     /**
-     * Get the format of an object
-     * @param object get the format of this object
-     * @param columnWidth a map containing as key the column number and as value the width of the longest value
-     * @param column get the format of that column number
-     * @return the format of an object
+     * Writes the decimal representation of the value to the end of the buffer
+     * @return the number of the used characters
      */
-    private String getFormat(Object object, Map<Integer, Integer> columnWidth, Integer column) {
-        if (object == null) {
-            return "%-15s";
-        }
-        String usedFormat = typeFormats.get(object.getClass());
-        if (usedFormat == null) {
-            return "%-15s";
+    private static int toChars(long value, char[] buf) {
+        int pos = buf.length;
+        if (value == Long.MIN_VALUE) {
+            String str = Long.toString(value);
+            str.getChars(0, str.length(), buf, pos - str.length());
+            return str.length();
         }
-        if (columnWidth != null && column != null && columnWidth.containsKey(column)) {
-            usedFormat = usedFormat.replaceFirst("\\d+", String.valueOf(columnWidth.get(column)));
+        boolean negative = value < 0;
+        long v = negative ? -value : value;
+        do {
+            buf[--pos] = (char) ('0' + (v % 10));
+            v /= 10;
+        } while (v != 0);
+        if (negative) {
+            buf[--pos] = '-';
         }
-        return usedFormat;
+        return buf.length - pos;
+    }
+
+    private static final String NULL_VALUE = "<null>";
+    private static final char[] SPACES = new char[64];
+    static {
+        Arrays.fill(SPACES, ' ');
     }
 
     /**
      * Takes a multi-line value, prefixes and appends a blank line, and inserts tab characters at the start of every
      * line. This is derived from how dtrace displays stack traces, and it makes for pretty readable output.
      */
-    private String reformatMultilineValue(String value) {
-        StringBuilder result = new StringBuilder();
+    private static String reformatMultilineValue(String value) {
+        StringBuilder result = new StringBuilder(value.length() + 16);
         result.append("\n");
         for (String line : value.split("\n")) {
             result.append("\t").append(line);
@@ -241,4 +323,48 @@ public class GridDataCommand extends DataCommand {
             data.add(row);
         }
     }
+
+    @Override
+    boolean writeBinary(BinaryOutput out) throws IOException {
+        if (data != null) {
+            // check first; the string dictionary must not register anything for a command which is not sent
+            for (Object[] row : data) {
+                for (Object cell : row) {
+                    if (!BinaryOutput.isSupported(cell)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        out.writeString(name != null ? name : "");
+        out.writeString(format);
+        if (data != null) {
+            out.writeVarInt(data.size());
+            for (Object[] row : data) {
+                out.writeVarInt(row.length);
+                for (Object cell : row) {
+                    out.writeValue(cell);
+                }
+            }
+        } else {
+            out.writeVarInt(0);
+        }
+        return true;
+    }
+
+    @Override
+    void readBinary(BinaryInput in) throws IOException {
+        name = in.readString();
+        format = in.readString();
+        int rowCount = in.readVarInt();
+        data = new ArrayList<Object[]>(Math.min(rowCount, 1024));
+        for (int i = 0; i < rowCount; i++) {
+            int cellCount = in.readVarInt();
+            Object[] row = new Object[cellCount];
+            for (int j = 0; j < cellCount; j++) {
+                row[j] = in.readValue();
+            }
+            data.add(row);
+        }
+    }
 }
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the Classpath exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.btrace.comm;
+
+import com.sun.btrace.CommandListener;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Decodes the segments recorded by {@linkplain MappedTraceWriter}.
+ * <p>
+ * The records of all the chunks of all the segments are merged by their
+ * timestamps; the chunks with equal timestamps are taken in the recording order.
+ *
+ * @author Jaroslav Bachorik
+ */
+public final class MappedTraceReader {
+    /**
+     * A read position within one chunk
+     */
+    private static final class ChunkReader {
+        private static final Comparator<ChunkReader> ORDER = new Comparator<ChunkReader>() {
+            @Override
+            public int compare(ChunkReader o1, ChunkReader o2) {
+                int c = Long.compare(o1.timestamp, o2.timestamp);
+                return c != 0 ? c : Integer.compare(o1.seq, o2.seq);
+            }
+        };
+
+        private final ByteBuffer view;
+        private final int bound;
+        private final long startNanos;
+        private final int seq;
+        private final BinaryInput in = new BinaryInput();
+        private int pos;
+
+        // the current record
+        long timestamp;
+        byte type;
+
+        ChunkReader(ByteBuffer view, int offset, int bound, long startNanos, int seq) {
+            this.view = view;
+            this.pos = offset;
+            this.bound = bound;
+            this.startNanos = startNanos;
+            this.seq = seq;
+        }
+
+        /**
+         * Moves to the next record
+         * @return {@code false} if there are no more records in the chunk
+         */
+        boolean advance() throws IOException {
+            if (pos + 4 > bound) {
+                return false;
+            }
+            int len = view.getInt(pos);
+            if (len <= 0 || pos + 4 + len > bound) {
+                return false;
+            }
+            view.position(pos + 4);
+            in.readFrom(view, len);
+            pos += 4 + len;
+            type = (byte)in.readByte();
+            timestamp = startNanos + in.readVarLong();
+            return true;
+        }
+
+        Command command() throws IOException {
+            Command cmd = WireIO.newCommand(type);
+            cmd.readBinary(in);
+            return cmd;
+        }
+    }
+
+    private final File[] segments;
+
+    /**
+     * @param base the base file name the recording was started with or
+     *             a particular segment file
+     * @throws IOException if there is no such recording
+     */
+    public MappedTraceReader(File base) throws IOException {
+        File[] files = MappedTraceWriter.listSegments(base);
+        if (files.length == 0) {
+            if (!base.isFile()) {
+                throw new IOException("No recording found: " + base);
+            }
+            files = new File[]{base};
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Long.compare(segmentNumber(o1), segmentNumber(o2));
+            }
+        });
+        this.segments = files;
+    }
+
+    /**
+     * Passes all the recorded commands to the listener in the order of their recording
+     * @param l the listener
+     * @throws IOException
+     */
+    public void replay(CommandListener l) throws IOException {
+        PriorityQueue<ChunkReader> queue = new PriorityQueue<>(64, ChunkReader.ORDER);
+        int seq = 0;
+        for (File f : segments) {
+            for (ChunkReader cr : open(f, seq)) {
+                if (cr.advance()) {
+                    queue.add(cr);
+                }
+            }
+            seq += 1 << 20;
+        }
+        ChunkReader cr;
+        while ((cr = queue.poll()) != null) {
+            l.onCommand(cr.command());
+            if (cr.advance()) {
+                queue.add(cr);
+            }
+        }
+    }
+
+    private static long segmentNumber(File f) {
+        String name = f.getName();
+        try {
+            return Long.parseLong(name.substring(name.lastIndexOf('.') + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static List<ChunkReader> open(File segment, int seq) throws IOException {
+        MappedByteBuffer map;
+        try (FileChannel fc = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            map = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        }
+        if (map.capacity() < MappedTraceWriter.INDEX_OFFSET || map.getInt(0) != MappedTraceWriter.MAGIC) {
+            throw new IOException("Not a BTrace recording: " + segment);
+        }
+        if (map.getInt(4) != MappedTraceWriter.VERSION) {
+            throw new IOException("Unsupported recording version " + map.getInt(4) + ": " + segment);
+        }
+        int chunkSize = map.getInt(8);
+        int chunkCount = map.getInt(12);
+        long startNanos = map.getLong(24);
+        int headerSize = map.capacity() - chunkCount * chunkSize;
+        if (chunkSize <= 0 || chunkCount <= 0 || headerSize < MappedTraceWriter.INDEX_OFFSET + chunkCount * 4) {
+            throw new IOException("Corrupted recording header: " + segment);
+        }
+
+        List<ChunkReader> chunks = new ArrayList<>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            int offset = headerSize + i * chunkSize;
+            int used = map.getInt(MappedTraceWriter.INDEX_OFFSET + i * 4);
+            // an unsealed chunk is read up to the terminating zero length
+            int bound = used > 0 ? offset + Math.min(used, chunkSize) : offset + chunkSize;
+            chunks.add(new ChunkReader(map.duplicate(), offset, bound, startNanos, seq + i));
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the Classpath exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.btrace.comm;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Pattern;
+
+/**
+ * Records the data commands in a compact binary form into rotating
+ * memory-mapped segment files.
+ * <p>
+ * A segment starts with a header followed by fixed size chunks which are
+ * filled one after another; a new segment is created once all the chunks of
+ * the current one are used and only the configured number of the most recent
+ * segments is kept.
+ * <p>
+ * The commands are recorded by the command thread of the client, after they
+ * have left the command queue, so there is normally one writer only. Several
+ * clients may share one recording; their writes are serialized.
+ * <p>
+ * The segment layout is
+ * <pre>
+ * header:  int magic, int version, int chunk size, int chunk count,
+ *          long start time (ms), long start nanotime, int segment number,
+ *          padding up to {@linkplain #INDEX_OFFSET}
+ * index:   int used bytes per chunk; 0 while the chunk is still being appended to
+ * chunks:  records - int length, byte command type, varlong nanotime delta, binary payload;
+ *          a zero length terminates the chunk
+ * </pre>
+ * Each chunk has its own string dictionary so the chunks can be decoded
+ * independently. A command whose binary form does not fit in a chunk is
+ * recorded as its textual rendering split into several messages. The records are read back by {@linkplain MappedTraceReader}.
+ *
+ * @author Jaroslav Bachorik
+ */
+public final class MappedTraceWriter {
+    static final int MAGIC = 0x42545243; // BTRC
+    static final int VERSION = 1;
+    static final int INDEX_OFFSET = 64;
+    static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private static final int PAGE_SIZE = 4096;
+
+    /**
+     * A mapped segment file
+     */
+    private final class Segment {
+        final int number;
+        final MappedByteBuffer map;
+        final long startNanos;
+        int nextChunk;
+
+        Segment(int number) throws IOException {
+            this.number = number;
+            this.startNanos = System.nanoTime();
+            try (FileChannel fc = FileChannel.open(segmentFile(base, number).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                // the mapping stays valid after the channel is closed
+                map = fc.map(FileChannel.MapMode.READ_WRITE, 0, headerSize + (long)chunkCount * chunkSize);
+            }
+            map.putInt(0, MAGIC);
+            map.putInt(4, VERSION);
+            map.putInt(8, chunkSize);
+            map.putInt(12, chunkCount);
+            map.putLong(16, System.currentTimeMillis());
+            map.putLong(24, startNanos);
+            map.putInt(32, number);
+        }
+
+        int chunkOffset(int chunk) {
+            return headerSize + chunk * chunkSize;
+        }
+
+        void seal(int chunk, int used) {
+            map.putInt(INDEX_OFFSET + chunk * 4, used);
+        }
+    }
+
+    /**
+     * The append cursor; guarded by the writer instance
+     */
+    private final class Cursor {
+        final BinaryOutput record = new BinaryOutput();
+        Segment segment;
+        ByteBuffer view;
+        int chunk = -1, start, pos, end;
+
+        /**
+         * @return {@code false} if the command has no binary form or its binary
+         *         form does not fit in a whole chunk
+         */
+        boolean write(Command cmd) throws IOException {
+            if (segment == null) {
+                nextChunk();
+            }
+            if (!encode(cmd)) {
+                return false;
+            }
+            if (!fits()) {
+                if (pos > start) {
+                    nextChunk();
+                    if (!encode(cmd)) {
+                        return false;
+                    }
+                }
+                if (!fits()) {
+                    // the strings it registered have not made it to the chunk
+                    record.clearDictionary();
+                    return false;
+                }
+            }
+            int len = record.size();
+            view.position(pos + 4);
+            record.writeTo(view);
+            // the length goes last; a reader never sees an incomplete record
+            view.putInt(pos, len);
+            pos += 4 + len;
+            return true;
+        }
+
+        private boolean encode(Command cmd) throws IOException {
+            record.reset();
+            record.writeByte(cmd.getType());
+            record.writeVarLong(System.nanoTime() - segment.startNanos);
+            return cmd.writeBinary(record);
+        }
+
+        private boolean fits() {
+            // keep space for the terminating zero length
+            return pos + 4 + record.size() + 4 <= end;
+        }
+
+        private void nextChunk() throws IOException {
+            seal();
+            if (current.nextChunk == chunkCount) {
+                rotate();
+            }
+            Segment s = current;
+            segment = s;
+            chunk = s.nextChunk++;
+            view = s.map.duplicate();
+            start = pos = s.chunkOffset(chunk);
+            end = start + chunkSize;
+            // the chunk must be decodable on its own
+            record.clearDictionary();
+        }
+
+        /**
+         * Records the used length of the current chunk in the index
+         */
+        void seal() {
+            if (segment != null) {
+                segment.seal(chunk, pos - start);
+            }
+        }
+    }
+
+    private final File base;
+    private final int chunkSize, chunkCount, headerSize, maxSegments;
+    // the longest text whose message record always fits in an empty chunk
+    private final int maxTextLength;
+    private final Cursor cursor = new Cursor();
+
+    private volatile Segment current;
+    private volatile boolean closed = false;
+
+    /**
+     * @param base the base file name; the segments are named {@code <base>.<number>}
+     * @param segmentSize the approximate size of one segment in bytes
+     * @param maxSegments the number of the most recent segments to keep
+     * @throws IOException
+     */
+    public MappedTraceWriter(File base, long segmentSize, int maxSegments) throws IOException {
+        this.base = base.getAbsoluteFile();
+        if (segmentSize <= 0) {
+            segmentSize = DEFAULT_SEGMENT_SIZE;
+        }
+        this.chunkSize = (int)Math.min(DEFAULT_CHUNK_SIZE, Math.max(PAGE_SIZE, segmentSize / 16));
+        this.chunkCount = (int)Math.max(1, Math.min(segmentSize / chunkSize, Integer.MAX_VALUE / chunkSize - 1));
+        this.headerSize = ((INDEX_OFFSET + chunkCount * 4 + PAGE_SIZE - 1) / PAGE_SIZE) * PAGE_SIZE;
+        this.maxSegments = Math.max(maxSegments, 1);
+        // the length and the terminator, the type, the timestamp, the message time and length;
+        // a char takes up to 3 bytes in UTF-8
+        this.maxTextLength = (chunkSize - 8 - 1 - 10 - 1 - 5) / 3;
+
+        File parent = this.base.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        // the segments left by a previous recording would be mixed with the new ones
+        for (File f : listSegments(this.base)) {
+            f.delete();
+        }
+        current = new Segment(0);
+    }
+
+    /**
+     * Records a printable command. The commands having no binary form are
+     * recorded as their textual rendering; the other commands are ignored.
+     * @param cmd the command
+     * @throws IOException
+     */
+    public synchronized void write(Command cmd) throws IOException {
+        if (closed) {
+            throw new IOException("Recording closed");
+        }
+        if (cmd instanceof PrintableCommand) {
+            Cursor c = cursor;
+            if (!c.write(cmd)) {
+                StringWriter sw = new StringWriter();
+                PrintWriter pw = new PrintWriter(sw);
+                ((PrintableCommand)cmd).print(pw);
+                pw.flush();
+                writeText(sw.toString());
+            }
+        }
+    }
+
+    /**
+     * Records the text as messages small enough to fit in a chunk;
+     * printing the messages one after another reproduces the text
+     */
+    private void writeText(String text) throws IOException {
+        int from = 0;
+        do {
+            int to = Math.min(text.length(), from + maxTextLength);
+            if (to < text.length() && Character.isHighSurrogate(text.charAt(to - 1))) {
+                to--;
+            }
+            cursor.write(new MessageCommand(text.substring(from, to)));
+            from = to;
+        } while (from < text.length());
+    }
+
+    /**
+     * Forces the current segment to the storage
+     */
+    public void flush() {
+        current.map.force();
+    }
+
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            cursor.seal();
+            flush();
+        }
+    }
+
+    private void rotate() throws IOException {
+        Segment full = current;
+        current = new Segment(full.number + 1);
+        segmentFile(base, full.number + 1 - maxSegments).delete();
+    }
+
+    static File segmentFile(File base, int number) {
+        return new File(base.getPath() + "." + number);
+    }
+
+    /**
+     * @param base the base file name
+     * @return the existing segment files, in no particular order
+     */
+    static File[] listSegments(final File base) {
+        File dir = base.getAbsoluteFile().getParentFile();
+        final Pattern p = Pattern.compile(Pattern.quote(base.getName()) + "\\.\\d+");
+        File[] files = dir != null ? dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return p.matcher(name).matches();
+            }
+        }) : null;
+        return files != null ? files : new File[0];
+    }
+}
@@ -29,6 +29,7 @@ import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
@@ -74,6 +75,19 @@ public class MessageCommand extends DataCommand {
         msg = new String(bytes, "utf-8");
     }
 
+    @Override
+    boolean writeBinary(BinaryOutput out) throws IOException {
+        out.writeVarLong(time);
+        out.writeBytes(msg != null ? msg.getBytes(StandardCharsets.UTF_8) : new byte[0]);
+        return true;
+    }
+
+    @Override
+    void readBinary(BinaryInput in) throws IOException {
+        time = in.readVarLong();
+        msg = new String(in.readBytes(), StandardCharsets.UTF_8);
+    }
+
     public long getTime() {
         return time;
     }
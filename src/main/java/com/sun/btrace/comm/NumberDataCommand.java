@@ -69,4 +69,20 @@ public class NumberDataCommand extends DataCommand {
         this.name = in.readUTF();
         this.value = (Number) in.readObject();
     }
+
+    @Override
+    boolean writeBinary(BinaryOutput out) throws IOException {
+        if (!BinaryOutput.isSupported(value)) {
+            return false;
+        }
+        out.writeString(name != null ? name : "");
+        out.writeValue(value);
+        return true;
+    }
+
+    @Override
+    void readBinary(BinaryInput in) throws IOException {
+        this.name = in.readString();
+        this.value = (Number) in.readValue();
+    }
 }
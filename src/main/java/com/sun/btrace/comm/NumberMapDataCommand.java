@@ -89,4 +89,38 @@ public class NumberMapDataCommand extends DataCommand {
         }
         this.data = map;
     }
+
+    @Override
+    boolean writeBinary(BinaryOutput out) throws IOException {
+        if (data != null) {
+            for (Number n : data.values()) {
+                if (!BinaryOutput.isSupported(n)) {
+                    return false;
+                }
+            }
+        }
+        out.writeString(name != null ? name : "");
+        if (data != null) {
+            out.writeVarInt(data.size());
+            for (Map.Entry<String, ? extends Number> e : data.entrySet()) {
+                out.writeString(e.getKey());
+                out.writeValue(e.getValue());
+            }
+        } else {
+            out.writeVarInt(0);
+        }
+        return true;
+    }
+
+    @Override
+    void readBinary(BinaryInput in) throws IOException {
+        this.name = in.readString();
+        Map<String, Number> map = new HashMap<String, Number>();
+        int sz = in.readVarInt();
+        for (int i = 0; i < sz; i++) {
+            String key = in.readString();
+            map.put(key, (Number) in.readValue());
+        }
+        this.data = map;
+    }
 }
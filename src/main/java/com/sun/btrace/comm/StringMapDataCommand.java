@@ -88,4 +88,30 @@ public class StringMapDataCommand extends DataCommand {
             data.put(in.readUTF(), (String) in.readUTF());
         }
     }
+
+    @Override
+    boolean writeBinary(BinaryOutput out) throws IOException {
+        out.writeString(name != null ? name : "");
+        if (data != null) {
+            out.writeVarInt(data.size());
+            for (Map.Entry<String, String> e : data.entrySet()) {
+                out.writeString(e.getKey());
+                out.writeString(e.getValue());
+            }
+        } else {
+            out.writeVarInt(0);
+        }
+        return true;
+    }
+
+    @Override
+    void readBinary(BinaryInput in) throws IOException {
+        name = in.readString();
+        data = new HashMap<String, String>();
+        int sz = in.readVarInt();
+        for (int i = 0; i < sz; i++) {
+            String key = in.readString();
+            data.put(key, in.readString());
+        }
+    }
 }
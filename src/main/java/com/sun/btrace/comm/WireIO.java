@@ -24,77 +24,182 @@
  */
 package com.sun.btrace.comm;
 
+import com.sun.btrace.SharedSettings;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.util.Map;
 
+/**
+ * Reading and writing of the commands exchanged by the agent and the client.
+ * <p>
+ * Originally each command is written as its type byte followed by the command
+ * specific data; values of an arbitrary type are Java-serialized. This format
+ * is still used by default.
+ * <p>
+ * A client which understands the binary protocol announces the highest
+ * version it supports by the {@linkplain com.sun.btrace.SharedSettings#WIRE_PROTOCOL_KEY}
+ * parameter of its {@linkplain SetSettingsCommand}. An agent not knowing
+ * the parameter simply ignores it. The agent then sends the data commands
+ * in binary frames - the type byte flagged by {@linkplain #BINARY_FRAME},
+ * a varint payload length and the payload written by {@linkplain BinaryOutput}.
+ * The other commands, and those containing values the binary protocol
+ * can not represent, are still sent in the original format; a {@linkplain Reader}
+ * understands both.
+ */
 public class WireIO {
+    /**
+     * The original, serialization based protocol
+     */
+    public static final int LEGACY_PROTOCOL = 0;
+    /**
+     * The binary protocol; data commands are sent in length prefixed binary frames
+     */
+    public static final int BINARY_PROTOCOL = 1;
+    /**
+     * The highest protocol version supported by this implementation
+     */
+    public static final int PROTOCOL_VERSION = BINARY_PROTOCOL;
+
+    static final int BINARY_FRAME = 0x40;
+
+    /**
+     * Extracts the protocol version announced by the client. Each connection
+     * negotiates its own version; a client not announcing any gets the
+     * {@linkplain #LEGACY_PROTOCOL}.
+     * @param params the parameters of a {@linkplain SetSettingsCommand}
+     * @return the announced protocol version or {@linkplain #LEGACY_PROTOCOL}
+     */
+    public static int getProtocolVersion(Map<String, Object> params) {
+        Object v = params != null ? params.get(SharedSettings.WIRE_PROTOCOL_KEY) : null;
+        return v instanceof Integer ? (Integer)v : LEGACY_PROTOCOL;
+    }
+
+    /**
+     * Writes the commands to one connection using the negotiated protocol version.
+     */
+    public static final class Writer {
+        private final ObjectOutput out;
+        private final int version;
+        private final BinaryOutput payload;
+
+        /**
+         * @param out the connection output
+         * @param version the protocol version supported by the other side;
+         *                the lower of it and {@linkplain #PROTOCOL_VERSION} is used
+         */
+        public Writer(ObjectOutput out, int version) {
+            this.out = out;
+            this.version = Math.max(LEGACY_PROTOCOL, Math.min(version, PROTOCOL_VERSION));
+            this.payload = this.version >= BINARY_PROTOCOL ? new BinaryOutput() : null;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public synchronized void write(Command cmd) throws IOException {
+            if (payload != null) {
+                payload.reset();
+                if (cmd.writeBinary(payload)) {
+                    out.writeByte(cmd.getType() | BINARY_FRAME);
+                    payload.writeTo(out);
+                    // the frames carry no object references; no stream reset is
+                    // necessary but a frame must not wait for the next one
+                    out.flush();
+                    return;
+                }
+            }
+            if (out instanceof ObjectOutputStream) {
+                // do not let the stream hold the references to the written objects
+                ((ObjectOutputStream)out).reset();
+            }
+            WireIO.write(out, cmd);
+        }
+    }
+
+    /**
+     * Reads the commands from one connection. Understands both the original
+     * and the binary frames.
+     */
+    public static final class Reader {
+        private final ObjectInput in;
+        private final BinaryInput payload = new BinaryInput();
+
+        public Reader(ObjectInput in) {
+            this.in = in;
+        }
+
+        public synchronized Command read() throws IOException {
+            byte b = in.readByte();
+            if ((b & BINARY_FRAME) != 0) {
+                Command cmd = newCommand((byte)(b & ~BINARY_FRAME));
+                payload.readFrom(in);
+                cmd.readBinary(payload);
+                return cmd;
+            }
+            return WireIO.read(in, b);
+        }
+    }
 
     private WireIO() {}
 
     public static Command read(ObjectInput in) throws IOException {
-        byte type = in.readByte();
-        Command cmd;
+        return read(in, in.readByte());
+    }
+
+    public static void write(ObjectOutput out, Command cmd)
+            throws IOException {
+        out.writeByte(cmd.getType());
+        cmd.write(out);
+        if (cmd.isUrgent()) {
+            out.flush();
+        }
+    }
+
+    private static Command read(ObjectInput in, byte type) throws IOException {
+        Command cmd = newCommand(type);
+        try {
+            cmd.read(in);
+        } catch (ClassNotFoundException cnfe) {
+            throw new IOException(cnfe);
+        }
+        return cmd;
+    }
+
+    static Command newCommand(byte type) {
         switch (type) {
             case Command.ERROR:
-                cmd = new ErrorCommand();
-                break;
+                return new ErrorCommand();
             case Command.EVENT:
-                cmd = new EventCommand();
-                break;
+                return new EventCommand();
             case Command.EXIT:
-                cmd = new ExitCommand();
-                break;
+                return new ExitCommand();
             case Command.INSTRUMENT:
-                cmd = new InstrumentCommand();
-                break;
+                return new InstrumentCommand();
             case Command.MESSAGE:
-                cmd = new MessageCommand();
-                break;
+                return new MessageCommand();
             case Command.RENAME:
-                cmd = new RenameCommand();
-                break;
+                return new RenameCommand();
             case Command.SUCCESS:
-                cmd = new OkayCommand();
-                break;
+                return new OkayCommand();
             case Command.NUMBER_MAP:
-                cmd = new NumberMapDataCommand();
-                break;
+                return new NumberMapDataCommand();
             case Command.STRING_MAP:
-                cmd = new StringMapDataCommand();
-                break;
+                return new StringMapDataCommand();
             case Command.NUMBER:
-                cmd = new NumberDataCommand();
-                break;
+                return new NumberDataCommand();
             case Command.GRID_DATA:
-                cmd = new GridDataCommand();
-                break;
+                return new GridDataCommand();
             case Command.RETRANSFORMATION_START:
-                cmd = new RetransformationStartNotification();
-                break;
+                return new RetransformationStartNotification();
             case Command.RETRANSFORM_CLASS:
-                cmd = new RetransformClassNotification();
-                break;
+                return new RetransformClassNotification();
             case Command.SET_PARAMS:
-                cmd = new SetSettingsCommand();
-                break;
-           default:
+                return new SetSettingsCommand();
+            default:
                 throw new RuntimeException("invalid command: " + type);
         }
-        try {
-            cmd.read(in);
-        } catch (ClassNotFoundException cnfe) {
-            throw new IOException(cnfe);
-        }
-        return cmd;
-    }
-
-    public static void write(ObjectOutput out, Command cmd)
-            throws IOException {
-        out.writeByte(cmd.getType());
-        cmd.write(out);
-        if (cmd.isUrgent()) {
-            out.flush();
-        }
     }
 }
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the Classpath exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.btrace.compiler;
+
+import com.sun.btrace.util.Messages;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.tools.JavaFileObject;
+
+/**
+ * An on-disk cache of the verified and post-processed BTrace classes.
+ * <p>
+ * The entries are addressed by a digest of the preprocessed sources (and
+ * thus of all the included files), the javac options, the classpath
+ * fingerprint and the BTrace and Java versions. The classpath fingerprint
+ * covers each file of the classpath directories; a compilation with too large
+ * directories on its classpath is not cached. An entry is never updated;
+ * any change of the inputs yields a new key.
+ * </p>
+ *
+ * @author Jaroslav Bachorik
+ */
+final class CompiledScriptCache {
+    private static final String ENTRY_SUFFIX = ".btclass";
+    private static final int ENTRY_MAGIC = 0x42544343; // "BTCC"
+    // the classpath directories with more files are not worth fingerprinting
+    private static final int MAX_DIR_FILES = 10000;
+
+    private final File dir;
+
+    private CompiledScriptCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @return the cache configured by {@linkplain Compiler#CACHE_DIR_KEY} or null if caching is disabled
+     */
+    static CompiledScriptCache getDefault() {
+        String path = System.getProperty(Compiler.CACHE_DIR_KEY);
+        if (path == null) {
+            path = System.getProperty("user.home") + File.separator + ".btrace" + File.separator + "cache";
+        }
+        if (path.isEmpty()) {
+            return null;
+        }
+        return new CompiledScriptCache(new File(path));
+    }
+
+    /**
+     * Computes the cache key of a compilation
+     * @return the key or null if any of the inputs could not be read
+     */
+    String key(Iterable<? extends JavaFileObject> compUnits, List<String> options, String classPath) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            update(md, Messages.get("btrace.version"));
+            update(md, System.getProperty("java.version"));
+            for (String option : options) {
+                update(md, option);
+            }
+            if (classPath != null) {
+                for (String entry : classPath.split(File.pathSeparator)) {
+                    // the verified classes may depend on the classpath; modified entries invalidate the key
+                    File f = new File(entry).getAbsoluteFile();
+                    if (f.isDirectory()) {
+                        int[] budget = new int[]{MAX_DIR_FILES};
+                        if (!updateDir(md, f, budget)) {
+                            // too expensive to fingerprint; do not cache at all
+                            return null;
+                        }
+                    } else {
+                        update(md, f);
+                    }
+                }
+            }
+            for (JavaFileObject jfo : compUnits) {
+                update(md, jfo.getName());
+                update(md, jfo.getCharContent(true).toString());
+            }
+            StringBuilder sb = new StringBuilder(64);
+            for (byte b : md.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Fingerprints all the files of a directory tree. The directory itself
+     * does not change when a nested file is modified.
+     * @param budget the remaining number of files allowed to be visited
+     * @return {@code false} if the tree has more files than allowed
+     */
+    private static boolean updateDir(MessageDigest md, File dir, int[] budget) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            update(md, dir);
+            return true;
+        }
+        Arrays.sort(files);
+        for (File f : files) {
+            if (--budget[0] < 0) {
+                return false;
+            }
+            if (f.isDirectory()) {
+                if (!updateDir(md, f, budget)) {
+                    return false;
+                }
+            } else {
+                update(md, f);
+            }
+        }
+        return true;
+    }
+
+    private static void update(MessageDigest md, File f) {
+        update(md, f.getPath() + ":" + f.length() + ":" + f.lastModified());
+    }
+
+    private static void update(MessageDigest md, String value) {
+        byte[] data = value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        md.update((byte)(data.length >>> 24));
+        md.update((byte)(data.length >>> 16));
+        md.update((byte)(data.length >>> 8));
+        md.update((byte)data.length);
+        md.update(data);
+    }
+
+    /**
+     * @return the cached classes or null if there is no valid entry for the key
+     */
+    Map<String, byte[]> get(String key) {
+        File f = new File(dir, key + ENTRY_SUFFIX);
+        if (!f.isFile()) {
+            return null;
+        }
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (dis.readInt() != ENTRY_MAGIC) {
+                return null;
+            }
+            int count = dis.readInt();
+            Map<String, byte[]> classes = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                String name = dis.readUTF();
+                byte[] code = new byte[dis.readInt()];
+                dis.readFully(code);
+                classes.put(name, code);
+            }
+            return classes;
+        } catch (IOException e) {
+            // a truncated or otherwise unreadable entry is just a miss
+            return null;
+        }
+    }
+
+    /**
+     * Stores the classes under the given key.
+     * The entry is written to a temporary file first so that the concurrent
+     * readers will never see a partial entry.
+     */
+    void put(String key, Map<String, byte[]> classes) {
+        File tmp = null;
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                return;
+            }
+            tmp = File.createTempFile(key, ".tmp", dir);
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                dos.writeInt(ENTRY_MAGIC);
+                dos.writeInt(classes.size());
+                for (Map.Entry<String, byte[]> e : classes.entrySet()) {
+                    dos.writeUTF(e.getKey());
+                    dos.writeInt(e.getValue().length);
+                    dos.write(e.getValue());
+                }
+            }
+            File target = new File(dir, key + ENTRY_SUFFIX);
+            try {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmp = null;
+        } catch (IOException e) {
+            // the cache is only an optimization; failing to store an entry is not an error
+        } finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+}
@@ -50,6 +50,7 @@ import javax.tools.FileObject;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaFileObject;
 import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
 import javax.tools.ToolProvider;
 
 /**
@@ -63,9 +64,26 @@ import javax.tools.ToolProvider;
  * @author A. Sundararajan
  */
 public class Compiler {
+    /**
+     * The system property specifying the directory of the compiled script cache;
+     * defaults to <code>~/.btrace/cache</code>. An empty value disables the cache.
+     */
+    public static final String CACHE_DIR_KEY = "com.sun.btrace.compiler.cacheDir";
+
+    /**
+     * The JSR 199 compiler and its file manager are expensive to create and warm up;
+     * they are shared by all the compilations in this process. The file manager is
+     * not thread safe so the compilations are serialized on it.
+     */
+    private static final class Javac {
+        static final JavaCompiler COMPILER = ToolProvider.getSystemJavaCompiler();
+        static final StandardJavaFileManager STD_MANAGER = COMPILER.getStandardFileManager(null, null, null);
+    }
+
     // JSR 199 compiler
     private JavaCompiler compiler;
     private StandardJavaFileManager stdManager;
+    private final CompiledScriptCache cache;
     // null means no preprocessing isf done.
     public List<String> includeDirs;
 
@@ -75,8 +93,9 @@ public class Compiler {
             String[] paths = includePath.split(File.pathSeparator);
             includeDirs.addAll(Arrays.asList(paths));
         }
-        this.compiler = ToolProvider.getSystemJavaCompiler();
-        this.stdManager = compiler.getStandardFileManager(null, null, null);
+        this.compiler = Javac.COMPILER;
+        this.stdManager = Javac.STD_MANAGER;
+        this.cache = CompiledScriptCache.getDefault();
     }
 
     public Compiler() {
@@ -202,15 +221,17 @@ public class Compiler {
 
     public Map<String, byte[]> compile(File[] files,
             Writer err, String sourcePath, String classPath) {
-        Iterable<? extends JavaFileObject> compUnits =
-                stdManager.getJavaFileObjects(files);
         List<JavaFileObject> preprocessedCompUnits = new ArrayList<>();
-        try {
-            for (JavaFileObject jfo : compUnits) {
-                preprocessedCompUnits.add(MemoryJavaFileManager.preprocessedFileObject(jfo, includeDirs));
+        synchronized (stdManager) {
+            Iterable<? extends JavaFileObject> compUnits =
+                    stdManager.getJavaFileObjects(files);
+            try {
+                for (JavaFileObject jfo : compUnits) {
+                    preprocessedCompUnits.add(MemoryJavaFileManager.preprocessedFileObject(jfo, includeDirs));
+                }
+            } catch (IOException ioExp) {
+                throw new RuntimeException(ioExp);
             }
-        } catch (IOException ioExp) {
-            throw new RuntimeException(ioExp);
         }
         return compile(preprocessedCompUnits, err, sourcePath, classPath);
     }
@@ -226,10 +247,39 @@ public class Compiler {
     private Map<String, byte[]> compile(MemoryJavaFileManager manager,
             Iterable<? extends JavaFileObject> compUnits,
             Writer err, String sourcePath, final String classPath) {
-        // to collect errors, warnings etc.
-        DiagnosticCollector<JavaFileObject> diagnostics =
-                new DiagnosticCollector<>();
+        List<String> options = getOptions(sourcePath, classPath);
 
+        // the same script with the same inputs has been compiled and verified already
+        String cacheKey = cache != null ? cache.key(compUnits, options, classPath) : null;
+        if (cacheKey != null) {
+            Map<String, byte[]> cached = cache.get(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        Map<String, byte[]> result;
+        synchronized (stdManager) {
+            try {
+                // the shared file manager keeps the locations of the previous compilation
+                if (sourcePath == null) {
+                    stdManager.setLocation(StandardLocation.SOURCE_PATH, null);
+                }
+                if (classPath == null) {
+                    stdManager.setLocation(StandardLocation.CLASS_PATH, null);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            result = compile(manager, compUnits, err, options, classPath);
+        }
+        if (result != null && cacheKey != null) {
+            cache.put(cacheKey, result);
+        }
+        return result;
+    }
+
+    private static List<String> getOptions(String sourcePath, String classPath) {
         // javac options
         List<String> options = new ArrayList<>();
         options.add("-Xlint:all");
@@ -248,6 +298,15 @@ public class Compiler {
             options.add("-classpath");
             options.add(classPath);
         }
+        return options;
+    }
+
+    private Map<String, byte[]> compile(MemoryJavaFileManager manager,
+            Iterable<? extends JavaFileObject> compUnits,
+            Writer err, List<String> options, String classPath) {
+        // to collect errors, warnings etc.
+        DiagnosticCollector<JavaFileObject> diagnostics =
+                new DiagnosticCollector<>();
 
         // create a compilation task
         JavacTask task =
@@ -26,51 +26,104 @@ package com.sun.btrace.instr;
 
 import com.sun.btrace.util.MethodID;
 import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Provides a centralized place to track the fundamental metrics for
  * method execution.
  * It is mostly called from the injected code to support sampling and timing.
+ * <p>
+ * The sampling countdowns and the timestamps are kept per thread, in primitive
+ * arrays indexed by the method id, so that the threads calling the same method
+ * never write to a shared memory location unless the invocation is sampled.
  * @author Jaroslav Bachorik
  */
 final public class MethodTracker {
+    /**
+     * The per-thread sampling state
+     */
+    private static final class ThreadState {
+        private int[] countdowns;
+        private long[] timestamps;
+
+        ThreadState(int size) {
+            countdowns = new int[size];
+            timestamps = new long[size];
+        }
+
+        ThreadState ensureCapacity(int methodId) {
+            if (methodId >= countdowns.length) {
+                int newLen = Math.max(methodId + 1, countdowns.length * 2);
+                countdowns = Arrays.copyOf(countdowns, newLen);
+                timestamps = Arrays.copyOf(timestamps, newLen);
+            }
+            return this;
+        }
+    }
+
     private static final RandomIntProvider rndIntProvider = RandomIntProvider.getInstance();
 
-    private static AtomicLong[] counters = new AtomicLong[50];
-    private static ThreadLocal<Long>[] tsArray = new ThreadLocal[50];
-    private static Object[] rLocks = new Object[50];
-    private static int[] means = new int[50];
-    private static int[] origMeans = new int[50];
-    private static int[] samplers = new int[50];
+    private static final ThreadLocal<ThreadState> threadState = new ThreadLocal<ThreadState>() {
+        @Override
+        protected ThreadState initialValue() {
+            return new ThreadState(50);
+        }
+    };
+
+    /**
+     * The shared per-method sampling configuration
+     */
+    private static final class Sampler {
+        private final int origMean;
+        // adapted concurrently by the sampled invocations
+        private volatile int mean;
+
+        Sampler(int mean) {
+            this.origMean = mean;
+            this.mean = mean * 2;
+        }
+    }
+
+    /**
+     * The samplers indexed by the method id; the table is replaced by a larger
+     * copy when a method id does not fit. The registration does not take a lock.
+     * The growth is serialized and copies the old table once more after the new
+     * one has been published, so a registration landing in the old table is
+     * either caught by that copy or repeated in the new table.
+     */
+    private static final AtomicReference<AtomicReferenceArray<Sampler>> samplers =
+        new AtomicReference<>(new AtomicReferenceArray<Sampler>(50));
+    private static final Object growLock = new Object();
+
+    // used for the method ids which have not been registered (yet); never samples
+    private static final Sampler NO_SAMPLING = new Sampler(0);
 
     /**
      * Creates a supporting structures for a new method id
      * @param methodId The method id - generated by the {@linkplain MethodID} class
      * @param mean The sampler mean or 0 if not applicable
      */
-    public static synchronized void registerCounter(int methodId, int mean) {
-        if (counters.length <= methodId) {
-            int newLen = methodId * 2;
-            counters = Arrays.copyOf(counters, newLen);
-            rLocks = Arrays.copyOf(rLocks, newLen);
-            means = Arrays.copyOf(means, newLen);
-            origMeans = Arrays.copyOf(means, newLen);
-            samplers = Arrays.copyOf(samplers, newLen);
-            tsArray = Arrays.copyOf(tsArray, newLen);
-        }
-        if (counters[methodId] == null) {
-            counters[methodId] = new AtomicLong(0);
-            rLocks[methodId] = new Object();
-            means[methodId] = mean * 2;
-            origMeans[methodId] = mean;
-            tsArray[methodId] = new ThreadLocal<Long>() {
-                @Override
-                protected Long initialValue() {
-                    return 0L;
-                }
-            };
-            samplers[methodId] = 0;
+    public static void registerCounter(int methodId, int mean) {
+        Sampler s = new Sampler(mean);
+        while (true) {
+            AtomicReferenceArray<Sampler> table = samplers.get();
+            if (methodId >= table.length()) {
+                grow(table, methodId);
+                continue;
+            }
+            Sampler prev = table.get(methodId);
+            if (prev != null) {
+                // the first registration wins
+                s = prev;
+            } else if (!table.compareAndSet(methodId, null, s)) {
+                continue;
+            }
+            if (samplers.get() == table) {
+                return;
+            }
+            // the table has been grown in the meantime and the copy might
+            // have missed this registration
         }
     }
 
@@ -83,17 +136,11 @@ final public class MethodTracker {
      * @return {@code true} if the invocation should be traced
      */
     public static boolean hit(int methodId) {
-        int mean = means[methodId];
+        int mean = sampler(methodId).mean;
         if (mean == 0) {
             return true;
         }
-        AtomicLong l = counters[methodId];
-        if (l.getAndDecrement() <= 0) {
-            int inc = rndIntProvider.nextInt(mean) + 1;
-            l.addAndGet(inc);
-            return true;
-        }
-        return false;
+        return countdown(threadState(methodId).countdowns, methodId, mean);
     }
 
     /**
@@ -105,18 +152,11 @@ final public class MethodTracker {
      * @return a positive number (invocation time stamp) if the invocation should be traced
      */
     public static long hitTimed(int methodId) {
-        int mean = means[methodId];
-        if (mean == 0) {
-            long ts = System.nanoTime();
-            tsArray[methodId].set(ts);
-            return ts;
-        }
-        AtomicLong l = counters[methodId];
-        if (l.getAndDecrement() <= 0) {
+        int mean = sampler(methodId).mean;
+        ThreadState state = threadState(methodId);
+        if (mean == 0 || countdown(state.countdowns, methodId, mean)) {
             long ts = System.nanoTime();
-            int inc = rndIntProvider.nextInt(mean) + 1;
-            l.addAndGet(inc);
-            tsArray[methodId].set(ts);
+            state.timestamps[methodId] = ts;
             return ts;
         }
         return 0L;
@@ -130,33 +170,7 @@ final public class MethodTracker {
      * @return {@code true} if the invocation should be traced
      */
     public static boolean hitAdaptive(int methodId) {
-        AtomicLong cntr = counters[methodId];
-        int origMean = origMeans[methodId];
-        int mean = means[methodId];
-        if (cntr.getAndDecrement() <= 0) {
-            long ts = System.nanoTime();
-            ThreadLocal<Long> tsRef = (ThreadLocal<Long>)tsArray[methodId];
-            long ts1 = tsRef.get();
-            if (ts1 != 0) {
-                long diff = ts - ts1;
-                if (mean < 1500 && diff < origMean) {
-                    synchronized(rLocks[methodId]) {
-                        means[methodId] = ++mean;
-                    }
-                } else if (mean > 1 && diff > origMean) {
-                    synchronized(rLocks[methodId]) {
-                        means[methodId] = --mean;
-                    }
-                }
-            }
-            tsRef.set(ts);
-
-            int inc = rndIntProvider.nextInt(mean) + 1;
-            cntr.addAndGet(inc);
-
-            return true;
-        }
-        return false;
+        return hitTimedAdaptive(methodId) != 0L;
     }
 
     /**
@@ -168,33 +182,32 @@ final public class MethodTracker {
      * @return a positive number (invocation time stamp) if the invocation should be traced
      */
     public static long hitTimedAdaptive(int methodId) {
-        AtomicLong cntr = counters[methodId];
-        int mean = means[methodId];
-        int origMean = origMeans[methodId];
-        if (cntr.getAndDecrement() <= 0) {
-            long ts = System.nanoTime();
-            ThreadLocal<Long> tsRef = (ThreadLocal<Long>)tsArray[methodId];
-            long ts1 = tsRef.get();
-            if (ts1 != 0) {
-                long diff = ts - ts1;
-                if (mean < 1500 && diff < origMean) {
-                    synchronized(rLocks[methodId]) {
-                        means[methodId] = ++mean;
-                    }
-                } else if (mean > 1 && diff > origMean) {
-                    synchronized(rLocks[methodId]) {
-                        means[methodId] = --mean;
-                    }
-                }
+        ThreadState state = threadState(methodId);
+        int[] countdowns = state.countdowns;
+        int cnt = countdowns[methodId];
+        if (cnt > 0) {
+            countdowns[methodId] = cnt - 1;
+            return 0L;
+        }
+        Sampler sampler = sampler(methodId);
+        int mean = sampler.mean;
+        int origMean = sampler.origMean;
+        long ts = System.nanoTime();
+        long ts1 = state.timestamps[methodId];
+        if (ts1 != 0) {
+            long diff = ts - ts1;
+            // the adaptation is only a heuristics; a lost update from a racing
+            // thread is harmless and is not worth any synchronization
+            if (mean < 1500 && diff < origMean) {
+                sampler.mean = ++mean;
+            } else if (mean > 1 && diff > origMean) {
+                sampler.mean = --mean;
             }
-            tsRef.set(ts);
-
-            int inc = rndIntProvider.nextInt(mean) + 1;
-            cntr.addAndGet(inc);
-
-            return ts;
         }
-        return 0L;
+        state.timestamps[methodId] = ts;
+        countdowns[methodId] = rndIntProvider.nextInt(Math.max(mean, 1));
+
+        return ts;
     }
 
     /**
@@ -205,7 +218,7 @@ final public class MethodTracker {
      */
     public static long getEndTs(int methodId) {
         long ts = System.nanoTime();
-        tsArray[methodId].set(ts);
+        threadState(methodId).timestamps[methodId] = ts;
         return ts;
     }
 
@@ -215,6 +228,55 @@ final public class MethodTracker {
      * @param methodId The method id generated by {@linkplain MethodID} class
      */
     public static void updateEndTs(int methodId) {
-        tsArray[methodId].set(System.nanoTime());
+        threadState(methodId).timestamps[methodId] = System.nanoTime();
+    }
+
+    private static Sampler sampler(int methodId) {
+        AtomicReferenceArray<Sampler> table = samplers.get();
+        Sampler s = methodId < table.length() ? table.get(methodId) : null;
+        return s != null ? s : NO_SAMPLING;
+    }
+
+    private static void grow(AtomicReferenceArray<Sampler> table, int methodId) {
+        synchronized (growLock) {
+            if (samplers.get() != table) {
+                // already grown; the caller will retry with the current table
+                return;
+            }
+            int len = table.length();
+            AtomicReferenceArray<Sampler> newTable = new AtomicReferenceArray<>(Math.max(methodId + 1, len * 2));
+            for (int i = 0; i < len; i++) {
+                newTable.set(i, table.get(i));
+            }
+            samplers.set(newTable);
+            // a registration which has seen the old table still current
+            // has already stored its sampler there - pick it up
+            for (int i = 0; i < len; i++) {
+                Sampler s = table.get(i);
+                if (s != null) {
+                    newTable.compareAndSet(i, null, s);
+                }
+            }
+        }
+    }
+
+    private static ThreadState threadState(int methodId) {
+        ThreadState state = threadState.get();
+        return state.countdowns.length > methodId ? state : state.ensureCapacity(methodId);
+    }
+
+    /**
+     * Decrements the current thread's countdown for the method.
+     * When it is exhausted the invocation is sampled and the countdown
+     * is reset to a random value with the given mean.
+     */
+    private static boolean countdown(int[] countdowns, int methodId, int mean) {
+        int cnt = countdowns[methodId];
+        if (cnt <= 0) {
+            countdowns[methodId] = rndIntProvider.nextInt(mean);
+            return true;
+        }
+        countdowns[methodId] = cnt - 1;
+        return false;
     }
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.profiling;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Global registry of the profiled block names.
+ * <p>
+ * Each distinct block name is assigned a small, dense integer id once;
+ * the recorders work with the ids only and the names are resolved
+ * when a snapshot is created.
+ *
+ * @author Jaroslav Bachorik
+ */
+public final class BlockRegistry {
+    private static final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[256];
+    private static int lastId = 0;
+
+    private BlockRegistry() {}
+
+    /**
+     * Resolves the id of the given block, registering the block if necessary
+     * @param blockName the block name
+     * @return the block id; always non-negative
+     */
+    public static int idOf(String blockName) {
+        Integer id = ids.get(blockName);
+        return id != null ? id : register(blockName);
+    }
+
+    /**
+     * @param id a block id obtained from {@linkplain #idOf(java.lang.String)}
+     * @return the name of the block or {@code null} for an unknown id
+     */
+    public static String nameOf(int id) {
+        String[] n = names;
+        return id >= 0 && id < n.length ? n[id] : null;
+    }
+
+    private static synchronized int register(String blockName) {
+        Integer id = ids.get(blockName);
+        if (id != null) {
+            return id;
+        }
+        int newId = lastId++;
+        String[] n = names;
+        if (newId >= n.length) {
+            n = Arrays.copyOf(n, n.length * 2);
+        }
+        n[newId] = blockName;
+        // publish the name before the id becomes visible
+        names = n;
+        ids.put(blockName, newId);
+        return newId;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.btrace.profiling;
+
+import com.sun.btrace.Profiler;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Calling context tree implementation of {@linkplain Profiler}.
+ * <p>
+ * Unlike {@linkplain MethodInvocationProfiler} the data are kept per
+ * calling context (the path of the entered blocks) so that the time spent in
+ * a block can be attributed to its callers. The flat per-block totals are
+ * derived from the tree when a snapshot is taken.
+ *
+ * @author Jaroslav Bachorik
+ */
+public class CallTreeProfiler extends Profiler implements Profiler.MBeanValueProvider {
+    private static final class RecorderRef {
+        final CallTreeRecorder recorder;
+        final WeakReference<Thread> thread;
+
+        RecorderRef(CallTreeRecorder recorder, Thread thread) {
+            this.recorder = recorder;
+            this.thread = new WeakReference<>(thread);
+        }
+
+        boolean isAlive() {
+            Thread t = thread.get();
+            return t != null && t.isAlive();
+        }
+    }
+
+    /**
+     * A mutable node used for merging the per-thread trees
+     */
+    private static final class Node {
+        final int block;
+        long invocations, selfTime, wallTime;
+        Map<Integer, Node> children;
+
+        Node(int block) {
+            this.block = block;
+        }
+
+        Node child(int blockId) {
+            if (children == null) {
+                children = new HashMap<>();
+            }
+            Node n = children.get(blockId);
+            if (n == null) {
+                n = new Node(blockId);
+                children.put(blockId, n);
+            }
+            return n;
+        }
+    }
+
+    private static final Comparator<Profiler.CallNode> WALLTIME_DESC = new Comparator<Profiler.CallNode>() {
+        @Override
+        public int compare(Profiler.CallNode o1, Profiler.CallNode o2) {
+            return Long.compare(o2.wallTime, o1.wallTime);
+        }
+    };
+
+    private static final Profiler.CallNode[] NO_CHILDREN = new Profiler.CallNode[0];
+
+    final private ConcurrentLinkedDeque<RecorderRef> recorders = new ConcurrentLinkedDeque<>();
+
+    final private ThreadLocal<CallTreeRecorder> recorder = new ThreadLocal<CallTreeRecorder>() {
+        @Override
+        protected CallTreeRecorder initialValue() {
+            CallTreeRecorder ctr = new CallTreeRecorder(expectedNodeCnt);
+            recorders.add(new RecorderRef(ctr, Thread.currentThread()));
+            return ctr;
+        }
+    };
+
+    // the data of the already terminated threads
+    private Node retired = new Node(-1);
+
+    volatile private Snapshot lastValidSnapshot = null;
+
+    private final int expectedNodeCnt;
+
+    private long lastTs = START_TIME;
+
+    public CallTreeProfiler(int expectedBlockCnt) {
+        // there are usually several calling contexts per block
+        this.expectedNodeCnt = expectedBlockCnt * 2;
+    }
+
+    @Override
+    public void recordEntry(String blockName) {
+        recorder.get().recordEntry(BlockRegistry.idOf(blockName));
+    }
+
+    @Override
+    public void recordExit(String blockName, long duration) {
+        recorder.get().recordExit(BlockRegistry.idOf(blockName), duration);
+    }
+
+    @Override
+    public void recordEntry(int blockId) {
+        recorder.get().recordEntry(blockId);
+    }
+
+    @Override
+    public void recordExit(int blockId, long duration) {
+        recorder.get().recordExit(blockId, duration);
+    }
+
+    @Override
+    public synchronized void reset() {
+        for (RecorderRef ref : recorders) {
+            ref.recorder.reset();
+        }
+        retired = new Node(-1);
+    }
+
+    @Override
+    public synchronized Snapshot snapshot(boolean reset) {
+        Node root = new Node(-1);
+        Iterator<RecorderRef> iter = recorders.iterator();
+        while (iter.hasNext()) {
+            RecorderRef ref = iter.next();
+            if (ref.isAlive()) {
+                merge(root, ref.recorder.getData(reset));
+            } else {
+                // the thread is gone; its data will not change any more
+                merge(retired, ref.recorder.getData(false));
+                iter.remove();
+            }
+        }
+        merge(root, retired);
+        if (reset) {
+            retired = new Node(-1);
+        }
+
+        Map<Integer, Record> flat = new HashMap<>();
+        Profiler.CallNode tree = toCallNode(root, new HashMap<Integer, Integer>(), flat);
+        Record[] total = flat.values().toArray(new Record[flat.size()]);
+        Arrays.sort(total, Record.COMPARATOR);
+
+        long curTs = System.currentTimeMillis();
+        Snapshot snp = new Snapshot(total, tree, lastTs, curTs);
+        lastTs = curTs;
+        lastValidSnapshot = snp;
+        return snp;
+    }
+
+    @Override
+    public Snapshot getMBeanValue() {
+        return lastValidSnapshot;
+    }
+
+    private static void merge(Node target, CallTreeRecorder.TreeData data) {
+        Node[] mapped = new Node[data.size];
+        mapped[CallTreeRecorder.ROOT] = target;
+        // a parent is always created before its children
+        for (int i = 1; i < data.size; i++) {
+            Node n = mapped[data.parent[i]].child(data.block[i]);
+            n.invocations += data.invocations[i];
+            n.selfTime += data.selfTime[i];
+            n.wallTime += data.wallTime[i];
+            mapped[i] = n;
+        }
+    }
+
+    private static void merge(Node target, Node source) {
+        if (source.children == null) {
+            return;
+        }
+        for (Node s : source.children.values()) {
+            Node t = target.child(s.block);
+            t.invocations += s.invocations;
+            t.selfTime += s.selfTime;
+            t.wallTime += s.wallTime;
+            merge(t, s);
+        }
+    }
+
+    /**
+     * @return the immutable copy of the given subtree or {@code null} if there is no data in it
+     */
+    private static Profiler.CallNode toCallNode(Node n, Map<Integer, Integer> onPath, Map<Integer, Record> flat) {
+        Profiler.CallNode[] children = NO_CHILDREN;
+        if (n.children != null) {
+            if (n.block != -1) {
+                Integer cnt = onPath.get(n.block);
+                onPath.put(n.block, cnt == null ? 1 : cnt + 1);
+            }
+            List<Profiler.CallNode> list = new ArrayList<>(n.children.size());
+            for (Node c : n.children.values()) {
+                Profiler.CallNode cn = toCallNode(c, onPath, flat);
+                if (cn != null) {
+                    list.add(cn);
+                }
+            }
+            if (n.block != -1) {
+                int cnt = onPath.get(n.block);
+                if (cnt == 1) {
+                    onPath.remove(n.block);
+                } else {
+                    onPath.put(n.block, cnt - 1);
+                }
+            }
+            children = list.toArray(new Profiler.CallNode[list.size()]);
+            Arrays.sort(children, WALLTIME_DESC);
+        }
+        String name = n.block != -1 ? BlockRegistry.nameOf(n.block) : null;
+        if (n.block != -1 && n.invocations > 0) {
+            Record r = flat.get(n.block);
+            if (r == null) {
+                r = new Record(name);
+                r.invocations = 0;
+                flat.put(n.block, r);
+            }
+            r.invocations += n.invocations;
+            r.selfTime += n.selfTime;
+            // the recursive invocations are already included in the outermost one
+            if (!onPath.containsKey(n.block)) {
+                r.wallTime += n.wallTime;
+            }
+        }
+        if (n.block != -1 && n.invocations == 0 && children.length == 0) {
+            // nothing recorded in this context since the last reset
+            return null;
+        }
+        return new Profiler.CallNode(name, n.invocations, n.selfTime, n.wallTime, children);
+    }
+}
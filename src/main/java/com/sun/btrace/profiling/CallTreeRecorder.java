@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.profiling;
+
+import java.util.Arrays;
+
+/**
+ * Per-thread calling context tree.
+ * <p>
+ * The nodes live in preallocated parallel arrays and are addressed by
+ * their index; node 0 is the root. A node is created the first time its block
+ * is entered from a particular calling context and is kept even after
+ * {@linkplain #reset()} so that a steady-state entry/exit does not allocate.
+ * <p>
+ * All the recording is done by the owning thread. The monitor is contended
+ * only while a snapshot is being taken.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class CallTreeRecorder {
+    static final int ROOT = 0;
+
+    /**
+     * A detached copy of the recorded tree
+     */
+    static final class TreeData {
+        final int size;
+        final int[] block;
+        final int[] parent;
+        final long[] invocations;
+        final long[] selfTime;
+        final long[] wallTime;
+
+        private TreeData(CallTreeRecorder r) {
+            size = r.size;
+            block = Arrays.copyOf(r.block, size);
+            parent = Arrays.copyOf(r.parent, size);
+            invocations = Arrays.copyOf(r.invocations, size);
+            selfTime = Arrays.copyOf(r.selfTime, size);
+            wallTime = Arrays.copyOf(r.wallTime, size);
+        }
+    }
+
+    private int[] block;
+    private int[] parent;
+    private int[] firstChild;
+    private int[] nextSibling;
+    private long[] invocations;
+    private long[] selfTime;
+    private long[] wallTime;
+    private int size = 1;
+
+    // the entered nodes; stack[0] is the root
+    private int[] stack = new int[64];
+    // the total duration of the already exited children of each entered node
+    private long[] childTime = new long[64];
+    private int depth = 0;
+
+    CallTreeRecorder(int expectedNodeCnt) {
+        int capacity = Math.max(expectedNodeCnt, 16);
+        block = new int[capacity];
+        parent = new int[capacity];
+        firstChild = new int[capacity];
+        nextSibling = new int[capacity];
+        invocations = new long[capacity];
+        selfTime = new long[capacity];
+        wallTime = new long[capacity];
+        block[ROOT] = -1;
+        parent[ROOT] = -1;
+        firstChild[ROOT] = -1;
+        nextSibling[ROOT] = -1;
+        stack[0] = ROOT;
+    }
+
+    synchronized void recordEntry(int blockId) {
+        int node = child(stack[depth], blockId);
+        if (++depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+            childTime = Arrays.copyOf(childTime, depth * 2);
+        }
+        stack[depth] = node;
+        childTime[depth] = 0L;
+    }
+
+    synchronized void recordExit(int blockId, long duration) {
+        int d = depth;
+        // tolerate the unbalanced entries by unwinding to the matching one
+        while (d > 0 && block[stack[d]] != blockId) {
+            d--;
+        }
+        if (d == 0) {
+            // no matching entry; nothing to attribute the time to
+            return;
+        }
+        int node = stack[d];
+        depth = d - 1;
+        invocations[node]++;
+        wallTime[node] += duration;
+        selfTime[node] += duration - childTime[d];
+        childTime[depth] += duration;
+    }
+
+    /**
+     * @param reset clear the collected values after copying them
+     * @return a copy of the recorded tree
+     */
+    synchronized TreeData getData(boolean reset) {
+        TreeData data = new TreeData(this);
+        if (reset) {
+            clear();
+        }
+        return data;
+    }
+
+    synchronized void reset() {
+        clear();
+    }
+
+    private void clear() {
+        // the tree shape is kept - the nodes will be most probably needed again
+        Arrays.fill(invocations, 0, size, 0L);
+        Arrays.fill(selfTime, 0, size, 0L);
+        Arrays.fill(wallTime, 0, size, 0L);
+        Arrays.fill(childTime, 0, depth + 1, 0L);
+    }
+
+    private int child(int node, int blockId) {
+        int prev = -1;
+        for (int c = firstChild[node]; c != -1; c = nextSibling[c]) {
+            if (block[c] == blockId) {
+                if (prev != -1) {
+                    // move to front; the hot children are found faster
+                    nextSibling[prev] = nextSibling[c];
+                    nextSibling[c] = firstChild[node];
+                    firstChild[node] = c;
+                }
+                return c;
+            }
+            prev = c;
+        }
+        if (size == block.length) {
+            grow();
+        }
+        int c = size++;
+        block[c] = blockId;
+        parent[c] = node;
+        firstChild[c] = -1;
+        nextSibling[c] = firstChild[node];
+        firstChild[node] = c;
+        return c;
+    }
+
+    private void grow() {
+        int capacity = block.length * 2;
+        block = Arrays.copyOf(block, capacity);
+        parent = Arrays.copyOf(parent, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+        invocations = Arrays.copyOf(invocations, capacity);
+        selfTime = Arrays.copyOf(selfTime, capacity);
+        wallTime = Arrays.copyOf(wallTime, capacity);
+    }
+}
@@ -28,29 +28,45 @@ package com.sun.btrace.profiling;
 import com.sun.btrace.Profiler;
 import java.lang.ref.WeakReference;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentSkipListSet;
 
 /**
  * Implementation of {@linkplain Profiler}
  * @author Jaroslav Bachorik
  */
 public class MethodInvocationProfiler extends Profiler implements Profiler.MBeanValueProvider {
+    private static final class RecorderRef {
+        final MethodInvocationRecorder recorder;
+        final WeakReference<Thread> thread;
 
-    final private Collection<WeakReference<MethodInvocationRecorder>> recorders = new ConcurrentLinkedDeque<>();
+        RecorderRef(MethodInvocationRecorder recorder, Thread thread) {
+            this.recorder = recorder;
+            this.thread = new WeakReference<>(thread);
+        }
+
+        boolean isAlive() {
+            Thread t = thread.get();
+            return t != null && t.isAlive();
+        }
+    }
+
+    final private Collection<RecorderRef> recorders = new ConcurrentLinkedDeque<>();
 
     final private ThreadLocal<MethodInvocationRecorder> recorder = new ThreadLocal<MethodInvocationRecorder>(){
         @Override
         protected MethodInvocationRecorder initialValue() {
             MethodInvocationRecorder mir = new MethodInvocationRecorder(expectedBlockCnt);
-            recorders.add(new WeakReference<>(mir));
+            recorders.add(new RecorderRef(mir, Thread.currentThread()));
             return mir;
         }
     };
 
+    // the data of the already terminated threads
+    private final Map<String, Record> retired = new LinkedHashMap<>();
+
     volatile private Snapshot lastValidSnapshot = null;
 
     private final int expectedBlockCnt;
@@ -61,75 +77,60 @@ public class MethodInvocationProfiler extends Profiler implements Profiler.MBean
 
     @Override
     public void recordEntry(String blockName) {
-        recorder.get().recordEntry(blockName);
+        recorder.get().recordEntry(BlockRegistry.idOf(blockName));
     }
 
     @Override
     public void recordExit(String blockName, long duration) {
-        recorder.get().recordExit(blockName, duration);
+        recorder.get().recordExit(BlockRegistry.idOf(blockName), duration);
     }
 
     @Override
-    public void reset() {
-        for(WeakReference<MethodInvocationRecorder> mirRef : recorders) {
-            MethodInvocationRecorder mir = mirRef.get();
-            if (mir != null) {
-                mir.reset();
-            }
+    public void recordEntry(int blockId) {
+        recorder.get().recordEntry(blockId);
+    }
+
+    @Override
+    public void recordExit(int blockId, long duration) {
+        recorder.get().recordExit(blockId, duration);
+    }
+
+    @Override
+    public synchronized void reset() {
+        for(RecorderRef ref : recorders) {
+            ref.recorder.reset();
         }
+        retired.clear();
     }
 
     private long lastTs = START_TIME;
 
     @Override
-    public Snapshot snapshot(boolean reset) {
-        Map<String, Integer> idMap = new HashMap<>();
-
-        Record[] mergedRecords = null;
-        int mergedEntries = 0, mergedCapacity = 0;
-        for(WeakReference<MethodInvocationRecorder> mirRef : recorders) {
-            MethodInvocationRecorder mir = mirRef.get();
-            if (mir == null) continue;
-
-            final Record[] records = mir.getRecords(reset);
-            if (records == null || records.length == 0) continue; // just skip the empty data
-
-            if (mergedRecords == null) {
-                mergedRecords = records;
-                mergedCapacity = mergedRecords.length;
-                for(int i=0;i<records.length;i++) {
-                    if (records[i] != null) {
-                        mergedEntries = i + 1;
-                    }
-                    idMap.put(records[i].blockName, i);
+    public synchronized Snapshot snapshot(boolean reset) {
+        Map<String, Record> merged = new LinkedHashMap<>();
+
+        Iterator<RecorderRef> iter = recorders.iterator();
+        while (iter.hasNext()) {
+            RecorderRef ref = iter.next();
+            if (ref.isAlive()) {
+                for (Record r : ref.recorder.getRecords(reset)) {
+                    MethodInvocationRecorder.merge(merged, r);
                 }
-                continue;
-            }
-
-            for (Record r : records) {
-                Integer id = idMap.get(r.blockName);
-                if (id == null) {
-                    id = mergedEntries++;
-                    if (mergedEntries > mergedCapacity) {
-                        mergedCapacity = ((int)((mergedEntries + 1) * 5) >> 2);
-                        Record[] newRecs = new Record[mergedCapacity];
-                        System.arraycopy(mergedRecords, 0, newRecs, 0, mergedEntries - 1);
-                        mergedRecords = newRecs;
-                    }
-                    idMap.put(r.blockName, id);
-                    mergedRecords[id] = r;
-                } else {
-                    Record merged = mergedRecords[id];
-                    merged.invocations += r.invocations;
-                    merged.selfTime += r.selfTime;
-                    merged.wallTime += r.wallTime;
+            } else {
+                // the thread is gone; keep its data and let the recorder be collected
+                for (Record r : ref.recorder.getRecords(false)) {
+                    MethodInvocationRecorder.merge(retired, r);
                 }
+                iter.remove();
             }
         }
-        Record[] rslt = new Record[mergedEntries];
-        if (mergedRecords != null) {
-            System.arraycopy(mergedRecords, 0, rslt, 0, mergedEntries);
+        for (Record r : retired.values()) {
+            MethodInvocationRecorder.merge(merged, r);
+        }
+        if (reset) {
+            retired.clear();
         }
+        Record[] rslt = merged.values().toArray(new Record[merged.size()]);
 
         long curTs = System.currentTimeMillis();
         Snapshot snp = new Snapshot(rslt, lastTs, curTs);
@@ -26,12 +26,8 @@ package com.sun.btrace.profiling;
 
 import com.sun.btrace.Profiler;
 import java.util.Arrays;
-import java.util.Deque;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.LockSupport;
 
 /**
  * An invocation recorder class. All the invocations must be coming from the
@@ -40,313 +36,221 @@ import java.util.concurrent.locks.LockSupport;
  * The only time multithreaded access must be resolved is when a snapshot of the
  * measured data is being externally requested or the recorder is to be reset.
  * <p>
- * For this an atomic state variable is introduced to prevent simultaneous
- * invocation processing and generating snapshot/resetting.
+ * For this the completed invocations are aggregated in one of two buffers.
+ * A snapshot swaps in the spare buffer and waits only for an aggregation
+ * which might be in progress on the retired one; the recording thread is never
+ * blocked - at worst it retries the aggregation in the newly activated buffer.
  *
  * @author Jaroslav Bachorik
  */
 class MethodInvocationRecorder {
+    /**
+     * The per-block aggregates of the completed invocations, indexed by the
+     * {@linkplain BlockRegistry} block id
+     */
+    private static final class Buffer {
+        // set by the recording thread for the time it is updating this buffer
+        volatile boolean writing = false;
 
-    private static class DelayedRecord {
+        private long[] invocations, selfTime, selfTimeMin, selfTimeMax, wallTime, wallTimeMin, wallTimeMax;
+        // the ids with non-zero invocations
+        private int[] used;
+        private int usedCnt = 0;
 
-        private final String blockName;
-        private final long duration;
+        Buffer(int expectedBlockCnt) {
+            int capacity = Math.max(expectedBlockCnt, 8);
+            invocations = new long[capacity];
+            selfTime = new long[capacity];
+            selfTimeMin = new long[capacity];
+            selfTimeMax = new long[capacity];
+            wallTime = new long[capacity];
+            wallTimeMin = new long[capacity];
+            wallTimeMax = new long[capacity];
+            used = new int[capacity];
+        }
+
+        void add(int blockId, long self, long wall) {
+            if (blockId >= invocations.length) {
+                grow(blockId + 1);
+            }
+            if (invocations[blockId]++ == 0) {
+                if (usedCnt == used.length) {
+                    used = Arrays.copyOf(used, usedCnt * 2);
+                }
+                used[usedCnt++] = blockId;
+                selfTime[blockId] = selfTimeMin[blockId] = selfTimeMax[blockId] = self;
+                wallTime[blockId] = wallTimeMin[blockId] = wallTimeMax[blockId] = wall;
+                return;
+            }
+            selfTime[blockId] += self;
+            wallTime[blockId] += wall;
+            if (self > selfTimeMax[blockId]) {
+                selfTimeMax[blockId] = self;
+            }
+            if (self < selfTimeMin[blockId]) {
+                selfTimeMin[blockId] = self;
+            }
+            if (wall > wallTimeMax[blockId]) {
+                wallTimeMax[blockId] = wall;
+            }
+            if (wall < wallTimeMin[blockId]) {
+                wallTimeMin[blockId] = wall;
+            }
+        }
 
-        public DelayedRecord(String blockName, long duration) {
-            this.blockName = blockName;
-            this.duration = duration;
+        /**
+         * Moves the aggregated values to the given accumulator, resolving
+         * the block names.
+         */
+        void drainTo(Map<String, Profiler.Record> target) {
+            for (int i = 0; i < usedCnt; i++) {
+                int id = used[i];
+                Profiler.Record r = new Profiler.Record(BlockRegistry.nameOf(id));
+                r.invocations = invocations[id];
+                r.selfTime = selfTime[id];
+                r.selfTimeMin = selfTimeMin[id];
+                r.selfTimeMax = selfTimeMax[id];
+                r.wallTime = wallTime[id];
+                r.wallTimeMin = wallTimeMin[id];
+                r.wallTimeMax = wallTimeMax[id];
+                merge(target, r);
+                invocations[id] = 0;
+            }
+            usedCnt = 0;
+        }
+
+        private void grow(int minCapacity) {
+            int capacity = Math.max(invocations.length * 2, minCapacity);
+            invocations = Arrays.copyOf(invocations, capacity);
+            selfTime = Arrays.copyOf(selfTime, capacity);
+            selfTimeMin = Arrays.copyOf(selfTimeMin, capacity);
+            selfTimeMax = Arrays.copyOf(selfTimeMax, capacity);
+            wallTime = Arrays.copyOf(wallTime, capacity);
+            wallTimeMin = Arrays.copyOf(wallTimeMin, capacity);
+            wallTimeMax = Arrays.copyOf(wallTimeMax, capacity);
         }
     }
 
-    private int stackSize = 200;
     private int stackPtr = -1;
-    private int stackBndr = 150;
-    private Profiler.Record[] stackArr = new Profiler.Record[stackSize];
-    private int measuredSize = 0;
-    private int measuredPtr = 0;
-
-    private Profiler.Record[] measured = new Profiler.Record[0];
+    private int[] stackBlocks = new int[64];
+    // the total duration of the already exited children of each entered block
+    private long[] stackChildTime = new long[64];
+    // the number of the entered frames per block id; used to detect recursion
+    private int[] onStack;
 
     private long carryOver = 0L;
-    private final int defaultBufferSize;
-    private final Map<String, Integer> indexMap = new HashMap<String, Integer>();
-    private volatile int lastIndex = 0;
 
-    // 0 - available; 1 - processing invocation; 2 - generating snapshot; 3 - resetting
-    private final AtomicInteger writerStatus = new AtomicInteger(0);
-
-    private final Deque<DelayedRecord> delayedRecords = new LinkedList<DelayedRecord>();
+    private volatile Buffer active;
+    // the fields below are guarded by 'this'; accessed by the snapshotting threads only
+    private Buffer spare;
+    private final Map<String, Profiler.Record> accumulated = new LinkedHashMap<>();
 
     public MethodInvocationRecorder(int expectedBlockCnt) {
-        defaultBufferSize = expectedBlockCnt << 8;
-        measuredSize = defaultBufferSize;
-        measured = new Profiler.Record[measuredSize];
+        active = new Buffer(expectedBlockCnt);
+        spare = new Buffer(expectedBlockCnt);
+        onStack = new int[Math.max(expectedBlockCnt, 8)];
     }
 
-    void recordEntry(String blockName) {
-        while (true) {
-            processDelayedRecords();
-            if (writerStatus.compareAndSet(0, 1)) {
-                //System.out.println("== 0->1");
-                try {
-                    processEntry(blockName);
-                    return;
-                } finally {
-                    //System.out.println("== 1->0");
-                    writerStatus.compareAndSet(1, 0);
-                }
-            } else {
-                while (writerStatus.get() == 3) {
-                    LockSupport.parkNanos(this, 600);
-                }
-                if (writerStatus.compareAndSet(1, 3)) {
-                    //System.out.println("== 1->3");
-                    try {
-                        delayedRecords.add(new DelayedRecord(blockName, -1L));
-                        return;
-                    } finally {
-                        //System.out.println("== 3->1");
-                        writerStatus.compareAndSet(3, 1);
-                    }
-                } else if (writerStatus.compareAndSet(2, 3)) {
-                    //System.out.println("== 2->3");
-                    try {
-                        delayedRecords.add(new DelayedRecord(blockName, -1L));
-                        return;
-                    } finally {
-                        //System.out.println("== 3->2");
-                        writerStatus.compareAndSet(3, 2);
-                    }
-                }
-            }
-            LockSupport.parkNanos(this, 600);
+    void recordEntry(int blockId) {
+        if (++stackPtr == stackBlocks.length) {
+            stackBlocks = Arrays.copyOf(stackBlocks, stackPtr * 2);
+            stackChildTime = Arrays.copyOf(stackChildTime, stackPtr * 2);
         }
-    }
-
-    private void processEntry(String blockName) {
-        Profiler.Record r = new Profiler.Record(blockName);
-        addMeasured(r);
-        push(r);
-        carryOver = 0L; // clear the carryOver; not 2 subsequent calls to recordExit
-    }
-
-    void recordExit(String blockName, long duration) {
-        while (true) {
-            processDelayedRecords();
-            if (writerStatus.compareAndSet(0, 1)) {
-                //System.out.println("== 0->1");
-                try {
-                    processExit(blockName, duration);
-                    return;
-                } finally {
-                    //System.out.println("== 1->0");
-                    writerStatus.compareAndSet(1, 0);
-                }
-            } else {
-                while (writerStatus.get() == 3) {
-                    LockSupport.parkNanos(this, 600);
-                }
-                if (writerStatus.compareAndSet(1, 3)) {
-                    //System.out.println("== 1->3");
-                    try {
-                        delayedRecords.add(new DelayedRecord(blockName, duration));
-                        return;
-                    } finally {
-                        //System.out.println("== 3->1");
-                        writerStatus.compareAndSet(3, 1);
-                    }
-                } else if (writerStatus.compareAndSet(2, 3)) {
-                    //System.out.println("== 2->3");
-                    try {
-                        delayedRecords.add(new DelayedRecord(blockName, duration));
-                        return;
-                    } finally {
-                        //System.out.println("== 3->2");
-                        writerStatus.compareAndSet(3, 2);
-                    }
-                }
-            }
-            LockSupport.parkNanos(this, 600);
+        if (blockId >= onStack.length) {
+            onStack = Arrays.copyOf(onStack, Math.max(onStack.length * 2, blockId + 1));
         }
+        stackBlocks[stackPtr] = blockId;
+        stackChildTime[stackPtr] = 0L;
+        onStack[blockId]++;
+        carryOver = 0L; // clear the carryOver; not 2 subsequent calls to recordExit
     }
 
-    private void processExit(String blockName, long duration) {
-        Profiler.Record r = pop();
-        if (r == null) {
-            r = new Profiler.Record(blockName);
-            addMeasured(r);
+    void recordExit(int blockId, long duration) {
+        long selfTime, wallTime = duration;
+        if (stackPtr > -1) {
+            selfTime = duration - stackChildTime[stackPtr];
+            onStack[stackBlocks[stackPtr--]]--;
+        } else {
+            // exiting a block entered before the recording started
+            selfTime = duration - carryOver;
         }
-        r.wallTime = duration;
-        r.selfTime += duration - carryOver;
-        for (int i = 0; i < stackPtr; i++) {
-            if (stackArr[i].blockName.equals(blockName)) {
-                r.wallTime = 0;
-                break;
-            }
+        if (blockId < onStack.length && onStack[blockId] > 0) {
+            // the wall time of a recursive call is already included in the outer one
+            wallTime = 0;
         }
-        r.selfTimeMin = r.selfTimeMax = r.selfTime;
-        r.wallTimeMin = r.wallTimeMax = r.wallTime;
-        Profiler.Record parent = peek();
-        if (parent != null) {
-            parent.selfTime -= duration;
+        if (stackPtr > -1) {
+            stackChildTime[stackPtr] += duration;
         } else {
             carryOver = duration;
         }
-    }
-
-    private void processDelayedRecords() {
-        DelayedRecord dr = null;
 
-        while (!writerStatus.compareAndSet(0, 3)) {
-            LockSupport.parkNanos(this, 600);
-        }
-
-        //System.out.println("== 0->3");
-        try {
-            while ((dr = delayedRecords.poll()) != null) {
-                if (dr.duration == -1) {
-                    processEntry(dr.blockName);
-                } else {
-                    processExit(dr.blockName, dr.duration);
-                }
+        Buffer b;
+        while (true) {
+            b = active;
+            b.writing = true;
+            // the buffer may have been swapped out meanwhile; if not it will stay until 'writing' is cleared
+            if (b == active) {
+                break;
             }
-        } finally {
-            //System.out.println("== 3->0");
-            writerStatus.compareAndSet(3, 0);
+            b.writing = false;
         }
-    }
-
-    Profiler.Record[] getRecords(boolean reset) {
-        Profiler.Record[] recs = null;
         try {
-            processDelayedRecords();
-
-            //System.out.println("== 0->2");
-            while (!writerStatus.compareAndSet(0, 2)) {
-                LockSupport.parkNanos(this, 600);
-            }
-            compactMeasured();
-
-            recs = new Profiler.Record[lastIndex];
-            // copy and detach the record array
-            for (int i = 0; i < recs.length; i++) {
-                Profiler.Record r = measured[i];
-                if (r != null) {
-                    recs[i] = r.duplicate();
-                } else {
-                    System.err.println("Unexpected NULL record at position " + i + "; ignoring");
-                }
-            }
-
-            return recs;
+            b.add(blockId, selfTime, wallTime);
         } finally {
-            //System.out.println("== 2->0");
-            while (!writerStatus.compareAndSet(2, 0)) {
-                LockSupport.parkNanos(this, 600);
-            }
+            b.writing = false;
         }
     }
-
-    private void push(Profiler.Record r) {
-        if (stackPtr > stackBndr) {
-            stackSize = (stackSize * 3) >> 1;
-            stackBndr = (stackBndr * 3) >> 1;
-            Profiler.Record[] newStack = new Profiler.Record[stackSize];
-            System.arraycopy(stackArr, 0, newStack, 0, stackPtr + 1);
-            stackArr = newStack;
+    synchronized Profiler.Record[] getRecords(boolean reset) {
+        swap();
+        Profiler.Record[] recs = new Profiler.Record[accumulated.size()];
+        int i = 0;
+        // copy and detach the records
+        for (Profiler.Record r : accumulated.values()) {
+            recs[i++] = r.duplicate();
         }
-        stackArr[++stackPtr] = r;
-        r.onStack = true;
-    }
-
-    private Profiler.Record pop() {
-        Profiler.Record r = stackPtr > -1 ? stackArr[stackPtr--] : null;
-        if (r != null) {
-            r.onStack = false;
+        if (reset) {
+            accumulated.clear();
         }
-        return r;
+        return recs;
     }
 
-    private Profiler.Record peek() {
-        return stackPtr > -1 ? stackArr[stackPtr] : null;
+    synchronized void reset() {
+        swap();
+        accumulated.clear();
     }
 
-    private void addMeasured(Profiler.Record r) {
-        if (measuredPtr == measuredSize) {
-            compactMeasured();
+    /**
+     * Activates the spare buffer and moves the data from the previously
+     * active one to the accumulator
+     */
+    private void swap() {
+        Buffer old = active;
+        active = spare;
+        while (old.writing) {
+            // the recording thread is in the middle of a single aggregation
+            Thread.yield();
         }
-        measured[measuredPtr++] = r;
+        old.drainTo(accumulated);
+        spare = old;
     }
 
-    void reset() {
-        Profiler.Record[] newMeasured = new Profiler.Record[defaultBufferSize + stackPtr + 1];
-        try {
-            while (!writerStatus.compareAndSet(0, 4)) {
-                LockSupport.parkNanos(this, 600);
-            }
-            //System.out.println("== 4->0");
-            if (stackPtr > -1) {
-                System.arraycopy(stackArr, 0, newMeasured, 0, stackPtr + 1);
-            }
-            Arrays.fill(stackArr, null);
-            indexMap.clear();
-            measuredPtr = stackPtr + 1;
-            measured = newMeasured;
-            measuredSize = measured.length;
-            lastIndex = measuredPtr;
-            carryOver = 0L;
-        } finally {
-            //System.out.println("== 4->0");
-            writerStatus.compareAndSet(4, 0);
-        }
-    }
-
-    private void compactMeasured() {
-        int lastMeasurePtr = lastIndex;
-        if (lastIndex >= measuredPtr) {
-            return;
-        }
-
-        for (int i = lastIndex; i < measuredPtr; i++) {
-            Profiler.Record m = measured[i];
-            if (!m.onStack) {
-                Integer newIndex = indexMap.get(m.blockName);
-                if (newIndex == null) {
-                    newIndex = lastMeasurePtr++;
-                    indexMap.put(m.blockName, newIndex);
-                    measured[newIndex] = m;
-                } else {
-                    Profiler.Record mr = measured[newIndex];
-                    mr.selfTime += m.selfTime;
-                    mr.wallTime += m.wallTime;
-                    mr.invocations++;
-                    mr.selfTimeMax = m.selfTime > mr.selfTimeMax ? m.selfTime : mr.selfTimeMax;
-                    mr.selfTimeMin = m.selfTime < mr.selfTimeMin ? m.selfTime : mr.selfTimeMin;
-                    mr.wallTimeMax = m.wallTime > mr.wallTimeMax ? m.wallTime : mr.wallTimeMax;
-                    mr.wallTimeMin = m.wallTime < mr.wallTimeMin ? m.wallTime : mr.wallTimeMin;
-                    m.referring = mr;
-                }
-            }
-        }
-        for (int j = 0; j < stackPtr; j++) {
-            // if the old ref is kept on stack replace it with the compacted ref
-            Profiler.Record mr = stackArr[j].referring;
-            if (mr != null) {
-                stackArr[j] = mr;
-            }
-        }
-        if ((lastMeasurePtr + stackPtr + 1) == measuredSize) {
-            int newMeasuredSize = ((int) (measuredSize * 5) >> 2) + (stackPtr + 1); // make room for the methods on the stack
-            if (newMeasuredSize == measuredSize) {
-                newMeasuredSize = (measuredSize << 2) + (stackPtr + 1); // make room for the methods on the stack
-            }
-            Profiler.Record[] newMeasured = new Profiler.Record[newMeasuredSize];
-            System.arraycopy(measured, 0, newMeasured, 0, lastMeasurePtr); // copy the compacted values
-            measured = newMeasured;
-            measuredSize = newMeasuredSize;
+    /**
+     * Merges the given record into the map of records keyed by the block name
+     * @param target the target map
+     * @param r the record to merge; will not be modified
+     */
+    static void merge(Map<String, Profiler.Record> target, Profiler.Record r) {
+        Profiler.Record mr = target.get(r.blockName);
+        if (mr == null) {
+            target.put(r.blockName, r.duplicate());
+        } else {
+            mr.invocations += r.invocations;
+            mr.selfTime += r.selfTime;
+            mr.wallTime += r.wallTime;
+            mr.selfTimeMax = r.selfTimeMax > mr.selfTimeMax ? r.selfTimeMax : mr.selfTimeMax;
+            mr.selfTimeMin = r.selfTimeMin < mr.selfTimeMin ? r.selfTimeMin : mr.selfTimeMin;
+            mr.wallTimeMax = r.wallTimeMax > mr.wallTimeMax ? r.wallTimeMax : mr.wallTimeMax;
+            mr.wallTimeMin = r.wallTimeMin < mr.wallTimeMin ? r.wallTimeMin : mr.wallTimeMin;
         }
-        System.arraycopy(stackArr, 0, measured, lastMeasurePtr, stackPtr + 1); // add the not processed methods on the stack
-        measuredPtr = lastMeasurePtr + stackPtr + 1; // move the pointer behind the methods on the stack
-        lastIndex = lastMeasurePtr;
     }
 }
@@ -27,9 +27,8 @@ package com.sun.btrace.runtime;
 import com.sun.btrace.org.objectweb.asm.ClassVisitor;
 import com.sun.btrace.org.objectweb.asm.ClassWriter;
 import java.util.Deque;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.Set;
 
 /**
  * A hacked version of <a href="http://asm.ow2.org/asm50/javadoc/user/org/objectweb/asm/ClassWriter.html">ClassWriter</a>
@@ -83,19 +82,18 @@ final class BTraceClassWriter extends ClassWriter {
 
     @Override
     protected String getCommonSuperClass(String type1, String type2) {
-        // Using type closures resolved via the associate classloader
-        LinkedHashSet<String> type1Closure = new LinkedHashSet<>();
-        LinkedHashSet<String> type2Closure = new LinkedHashSet<>();
-        InstrumentUtils.collectHierarchyClosure(targetCL, type1, type1Closure, true);
-        InstrumentUtils.collectHierarchyClosure(targetCL, type2, type2Closure, true);
-        // basically, do intersection
-        type1Closure.retainAll(type2Closure);
-
-        // if the intersection is not empty the first element is the closest common ancestor
-        Iterator<String> iter = type1Closure.iterator();
-        if (iter.hasNext()) {
-            String common = iter.next();
-            return common;
+        if (type1 == null || type2 == null ||
+            type1.equals(Constants.OBJECT_INTERNAL) || type2.equals(Constants.OBJECT_INTERNAL)) {
+            return Constants.OBJECT_INTERNAL;
+        }
+        // Using the memoized type hierarchies resolved via the associate classloader
+        ClassCache cc = ClassCache.getInstance();
+        Set<String> type2Hierarchy = cc.get(targetCL, type2).getClassHierarchy();
+        // the first common element is the closest common ancestor
+        for (String type : cc.get(targetCL, type1).getClassHierarchy()) {
+            if (type2Hierarchy.contains(type)) {
+                return type;
+            }
         }
         return Constants.OBJECT_INTERNAL;
     }
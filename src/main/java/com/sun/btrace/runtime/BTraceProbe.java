@@ -41,10 +41,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
 import java.util.Collections;
 import java.util.Iterator;
-import static com.sun.btrace.runtime.ClassFilter.isSubTypeOf;
 
 /**
  *
@@ -126,52 +124,14 @@ public final class BTraceProbe extends ClassNode {
     }
 
     public Collection<OnMethod> getApplicableHandlers(BTraceClassReader cr) {
-        final Collection<OnMethod> applicables = new ArrayList<>(onMethods.size());
-        final String targetName = cr.getJavaClassName();
-
-        outer:
-        for(OnMethod om : onMethods) {
-            String probeClass = om.getClazz();
-            if (probeClass == null && probeClass.isEmpty()) continue;
-
-            if (probeClass.equals(targetName)) {
-                applicables.add(om);
-                continue;
-            }
-            // Check regex match
-            if (om.isClassRegexMatcher() && !om.isClassAnnotationMatcher()) {
-                Pattern p = Pattern.compile(probeClass);
-                if (p.matcher(targetName).matches()) {
-                    applicables.add(om);
-                    continue;
-                }
-            }
-            if (om.isClassAnnotationMatcher()) {
-                Collection<String> annoTypes = cr.getAnnotationTypes();
-                if (om.isClassRegexMatcher()) {
-                    Pattern p = Pattern.compile(probeClass);
-                    for(String annoType : annoTypes) {
-                        if (p.matcher(annoType).matches()) {
-                            applicables.add(om);
-                            continue outer;
-                        }
-                    }
-                } else {
-                    if (annoTypes.contains(probeClass)) {
-                        applicables.add(om);
-                        continue;
-                    }
-                }
-            }
-            // And, finally, check the class hierarchy
-            if (om.isSubtypeMatcher()) {
-                // internal name of super type.
-                if (isSubTypeOf(cr.getClassName(), cr.getClassLoader(), probeClass)) {
-                    applicables.add(om);
-                }
-            }
+        if (filter == null) {
+            return Collections.emptyList();
         }
-        return applicables;
+        return filter.getApplicableHandlers(cr);
+    }
+
+    MethodMatcher getMethodMatcher(OnMethod om) {
+        return filter != null ? filter.getMethodMatcher(om) : new MethodMatcher(om);
     }
 
     public Iterable<OnMethod> onmethods() {
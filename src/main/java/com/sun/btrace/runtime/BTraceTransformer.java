@@ -29,10 +29,12 @@ import com.sun.btrace.DebugSupport;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 /**
@@ -42,87 +44,61 @@ import java.util.regex.Pattern;
  * asked for the appropriate instrumentation. When there are no registered probes or none of
  * the registered probes is able to instrument the class it will not be transformed.
  * </p>
+ * <p>
+ * Classes are transformed concurrently - the transformation works on an immutable
+ * snapshot of the registered probes and their class filter which is replaced
+ * whenever a probe is registered or unregistered.
+ * </p>
  *
  * @since 1.3.5
  * @author Jaroslav Bachorik
  */
 public final class BTraceTransformer implements ClassFileTransformer {
-    static class Filter {
+    /**
+     * A prebuilt, immutable class name filter for a set of probes.
+     * Safe to use from any number of threads without locking.
+     */
+    static final class Filter {
         static enum Result {
             TRUE, FALSE, MAYBE
         }
-        private boolean isFast = true;
-        private boolean isRegex = false;
-
-
-        private final Map<String, Integer> nameMap = new HashMap<>();
-        private final Map<Pattern, Integer> nameRegexMap = new HashMap<>();
-
-        void add(OnMethod om) {
-            if (om.isSubtypeMatcher() || om.isClassAnnotationMatcher()) {
-                isFast = false;
-            } else {
-                if (om.isClassRegexMatcher()) {
-                    isRegex = true;
-                    String name = om.getClazz().replace("\\.", "/");
-                    addToMap(nameRegexMap, Pattern.compile(name));
-                } else {
-                    String name = om.getClazz().replace('.', '/');
-                    addToMap(nameMap, name);
-                }
-            }
-
-        }
-
-        void remove(OnMethod om) {
-            String name = om.getClazz().replace('.', '/');
-            if (!(om.isSubtypeMatcher() || om.isClassAnnotationMatcher())) {
-                if (om.isClassRegexMatcher()) {
-                    removeFromMap(nameRegexMap, Pattern.compile(name));
-                } else {
-                    removeFromMap(nameMap, name);
-                }
-            }
-        }
-
-        private static <K> void addToMap(Map<K, Integer> map, K name) {
-            synchronized(map) {
-                Integer i = map.get(name);
-                if (i == null) {
-                    map.put(name, 1);
-                } else {
-                    map.put(name, i + 1);
-                }
-            }
-        }
-
-        private static <K> void removeFromMap(Map<K, Integer> map, K name) {
-            synchronized(map) {
-                Integer i = map.get(name);
-                if (i == null) {
-                    return;
-                }
-                int freq = i - 1;
-                if (freq == 0) {
-                    map.remove(name);
+        private static final Filter EMPTY = new Filter(new BTraceProbe[0]);
+
+        private final boolean isFast;
+        private final Set<String> names;
+        private final Pattern[] namePatterns;
+
+        private Filter(BTraceProbe[] probes) {
+            boolean fast = true;
+            Set<String> nameSet = new HashSet<>();
+            Map<String, Pattern> patternMap = new LinkedHashMap<>();
+            for (BTraceProbe p : probes) {
+                for (OnMethod om : p.onmethods()) {
+                    if (om.isSubtypeMatcher() || om.isClassAnnotationMatcher()) {
+                        fast = false;
+                    } else if (om.isClassRegexMatcher()) {
+                        String name = om.getClazz().replace("\\.", "/");
+                        if (!patternMap.containsKey(name)) {
+                            patternMap.put(name, Pattern.compile(name));
+                        }
+                    } else {
+                        nameSet.add(om.getClazz().replace('.', '/'));
+                    }
                 }
             }
+            this.isFast = fast;
+            this.names = nameSet;
+            this.namePatterns = patternMap.values().toArray(new Pattern[patternMap.size()]);
         }
 
         public Result matchClass(String className) {
             if (isFast) {
-                synchronized(nameMap) {
-                    if (nameMap.containsKey(className)) {
-                        return Result.TRUE;
-                    }
+                if (names.contains(className)) {
+                    return Result.TRUE;
                 }
-                if (isRegex) {
-                    synchronized(nameRegexMap) {
-                        for(Pattern p : nameRegexMap.keySet()) {
-                            if (p.matcher(className).matches()) {
-                                return Result.TRUE;
-                            }
-                        }
+                for (Pattern p : namePatterns) {
+                    if (p.matcher(className).matches()) {
+                        return Result.TRUE;
                     }
                 }
                 return Result.FALSE;
@@ -130,9 +106,37 @@ public final class BTraceTransformer implements ClassFileTransformer {
             return Result.MAYBE;
         }
     }
+
+    /**
+     * An immutable view of the registered probes together with their filter.
+     * A new instance is published on each (un)registration so that
+     * {@linkplain #transform(ClassLoader, String, Class, ProtectionDomain, byte[])}
+     * never needs to take a lock.
+     */
+    private static final class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(new BTraceProbe[0], Filter.EMPTY);
+
+        private final BTraceProbe[] probes;
+        private final Filter filter;
+
+        private Snapshot(BTraceProbe[] probes, Filter filter) {
+            this.probes = probes;
+            this.filter = filter;
+        }
+
+        private static Snapshot of(Collection<BTraceProbe> probes) {
+            if (probes.isEmpty()) {
+                return EMPTY;
+            }
+            BTraceProbe[] arr = probes.toArray(new BTraceProbe[probes.size()]);
+            return new Snapshot(arr, new Filter(arr));
+        }
+    }
+
     private final DebugSupport debug;
-    private final Collection<BTraceProbe> probes = new LinkedList<>();
-    private final Filter filter = new Filter();
+    // guarded by 'this'; only the registration path touches it
+    private final Collection<BTraceProbe> probes = new ArrayList<>();
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
 
     public BTraceTransformer(DebugSupport d) {
         debug = d;
@@ -140,25 +144,24 @@ public final class BTraceTransformer implements ClassFileTransformer {
 
     public final synchronized void register(BTraceProbe p) {
         probes.add(p);
-        for(OnMethod om : p.onmethods()) {
-            filter.add(om);
-        }
+        snapshot = Snapshot.of(probes);
     }
 
     public final synchronized void unregister(BTraceProbe p) {
         probes.remove(p);
-        for(OnMethod om : p.onmethods()) {
-            filter.remove(om);
-        }
+        snapshot = Snapshot.of(probes);
     }
 
     Filter getFilter() {
-        return filter;
+        return snapshot.filter;
     }
 
     @Override
-    public synchronized byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
-        if (probes.isEmpty()) return null;
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+        // a consistent view for the whole transformation; registrations happening
+        // concurrently will be picked up by the next transformation
+        Snapshot current = snapshot;
+        if (current.probes.length == 0) return null;
 
         className = className != null ? className : "<anonymous>";
 
@@ -169,13 +172,13 @@ public final class BTraceTransformer implements ClassFileTransformer {
             return null;
         }
 
-        if (filter.matchClass(className) == Filter.Result.FALSE) return null;
+        if (current.filter.matchClass(className) == Filter.Result.FALSE) return null;
 
         boolean entered = BTraceRuntime.enter();
         try {
             BTraceClassReader cr = InstrumentUtils.newClassReader(loader, classfileBuffer);
             BTraceClassWriter cw = InstrumentUtils.newClassWriter(cr);
-            for(BTraceProbe p : probes) {
+            for(BTraceProbe p : current.probes) {
                 p.notifyTransform(className);
                 cw.addInstrumentor(p);
             }
@@ -25,13 +25,22 @@
 package com.sun.btrace.runtime;
 
 import com.sun.btrace.runtime.ClassInfo.ClassName;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.WeakHashMap;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * A simple class cache holding {@linkplain ClassInfo} instances and being
  * searchable either by {@linkplain Class} or a tuple of {@code (className, classLoader)}
+ * <p>
+ * The cache may be accessed concurrently from multiple transforming threads.
+ * It does not keep the class loaders alive and the number of classes cached per
+ * class loader is bounded by the {@code com.sun.btrace.runtime.classCacheSize}
+ * system property (default {@value #DEFAULT_MAX_SIZE}). When a loader exceeds
+ * the limit a quarter of its cached classes are evicted.
  *
  * @author Jaroslav Bachorik
  */
@@ -40,8 +49,50 @@ public final class ClassCache {
         private static final ClassCache INSTANCE = new ClassCache();
     }
 
-    private final Map<ClassLoader, Map<ClassName, ClassInfo>> cacheMap = new WeakHashMap<>();
-    private final Map<ClassName, ClassInfo> bootstrapInfos = new HashMap<>(500);
+    /**
+     * Weak, identity based class loader key
+     */
+    private static final class LoaderKey extends WeakReference<ClassLoader> {
+        private final int hash;
+
+        LoaderKey(ClassLoader cl, ReferenceQueue<ClassLoader> queue) {
+            super(cl, queue);
+            this.hash = System.identityHashCode(cl);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof LoaderKey)) {
+                return false;
+            }
+            ClassLoader cl = get();
+            return cl != null && cl == ((LoaderKey)obj).get();
+        }
+    }
+
+    static final String MAX_SIZE_KEY = "com.sun.btrace.runtime.classCacheSize";
+    static final int DEFAULT_MAX_SIZE = 16384;
+
+    private final ConcurrentMap<LoaderKey, ConcurrentMap<ClassName, ClassInfo>> cacheMap = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ClassName, ClassInfo> bootstrapInfos = new ConcurrentHashMap<>(500);
+    private final ReferenceQueue<ClassLoader> staleLoaders = new ReferenceQueue<>();
+    private final int maxSize;
+
+    private ClassCache() {
+        this(Integer.getInteger(MAX_SIZE_KEY, DEFAULT_MAX_SIZE));
+    }
+
+    ClassCache(int maxSize) {
+        this.maxSize = Math.max(maxSize, 16);
+    }
 
     public static ClassCache getInstance() {
         return Singleton.INSTANCE;
@@ -64,25 +115,58 @@ public final class ClassCache {
     }
 
     ClassInfo get(ClassLoader cl, ClassName className) {
-        Map<ClassName, ClassInfo> infos = getInfos(cl);
+        ConcurrentMap<ClassName, ClassInfo> infos = getInfos(cl);
 
         ClassInfo ci = infos.get(className);
         if (ci == null) {
+            // resolving the class info may recursively access the cache
+            // so it must be done without holding any lock
             ci = new ClassInfo(this, cl, className);
-            infos.put(className, ci);
+            ClassInfo prev = infos.putIfAbsent(className, ci);
+            if (prev != null) {
+                ci = prev;
+            } else {
+                evict(infos);
+            }
         }
         return ci;
     }
 
-    private Map<ClassName, ClassInfo> getInfos(ClassLoader cl) {
+    private ConcurrentMap<ClassName, ClassInfo> getInfos(ClassLoader cl) {
         if (cl == null) {
             return bootstrapInfos;
         }
-        Map<ClassName, ClassInfo> infos = cacheMap.get(cl);
+        ConcurrentMap<ClassName, ClassInfo> infos = cacheMap.get(new LoaderKey(cl, null));
         if (infos == null) {
-            infos = new HashMap<>(500);
-            cacheMap.put(cl, infos);
+            expungeStaleLoaders();
+            infos = new ConcurrentHashMap<>(500);
+            ConcurrentMap<ClassName, ClassInfo> prev = cacheMap.putIfAbsent(new LoaderKey(cl, staleLoaders), infos);
+            if (prev != null) {
+                infos = prev;
+            }
         }
         return infos;
     }
+
+    private void evict(ConcurrentMap<ClassName, ClassInfo> infos) {
+        if (infos.size() <= maxSize) {
+            return;
+        }
+        synchronized(infos) {
+            // the iteration order of a hash map is as good as a random pick
+            int toEvict = infos.size() - (maxSize - maxSize / 4);
+            Iterator<ClassInfo> iter = infos.values().iterator();
+            while (toEvict-- > 0 && iter.hasNext()) {
+                iter.next();
+                iter.remove();
+            }
+        }
+    }
+
+    private void expungeStaleLoaders() {
+        Reference<? extends ClassLoader> ref;
+        while ((ref = staleLoaders.poll()) != null) {
+            cacheMap.remove(ref);
+        }
+    }
 }
@@ -47,11 +47,25 @@ import java.util.regex.PatternSyntaxException;
  * @author A. Sundararajan
  */
 public class ClassFilter {
+    /**
+     * An indexed {@linkplain OnMethod} together with its precompiled class pattern
+     */
+    private static final class Handler {
+        private final int idx;
+        private final OnMethod om;
+        private final Pattern pattern;
+
+        Handler(int idx, OnMethod om, Pattern pattern) {
+            this.idx = idx;
+            this.om = om;
+            this.pattern = pattern;
+        }
+    }
+
     private static final Class<?> REFERENCE_CLASS = Reference.class;
-    private static final PrefixMap SENSITIVE_CLASSES = new PrefixMap();
+    private static final PrefixMap<Void> SENSITIVE_CLASSES = new PrefixMap<>();
 
     private Set<String> sourceClasses;
-    private Pattern[] sourceClassPatterns;
     private String[] annotationClasses;
     private Pattern[] annotationClassPatterns;
     // +foo type class pattern in any @OnMethod.
@@ -61,6 +75,14 @@ public class ClassFilter {
 
     private final List<OnMethod> onMethods;
 
+    // the index of the handlers; built once and only read afterwards
+    private final Map<String, List<Handler>> exactHandlers = new HashMap<>();
+    // class regex handlers keyed by the literal prefix of their pattern
+    private final PrefixMap<Handler> regexHandlers = new PrefixMap<>();
+    private final List<Handler> annotationHandlers = new ArrayList<>();
+    private final List<Handler> subtypeHandlers = new ArrayList<>();
+    private final Map<OnMethod, MethodMatcher> methodMatchers = new IdentityHashMap<>();
+
     static {
         ClassReader.class.getClassLoader();
         AnnotationVisitor.class.getClassLoader();
@@ -117,12 +139,6 @@ public class ClassFilter {
             return true;
         }
 
-        for (Pattern pat : sourceClassPatterns) {
-            if (pat.matcher(className).matches()) {
-                return true;
-            }
-        }
-
         for (String st : superTypes) {
             if (isSubTypeOf(target, st)) {
                 return true;
@@ -155,60 +171,83 @@ public class ClassFilter {
     }
 
     Collection<OnMethod> getApplicableHandlers(BTraceClassReader cr) {
-        final Collection<OnMethod> applicables = new ArrayList<>(onMethods.size());
         final String targetName = cr.getClassName().replace('/', '.');
-
-        outer:
-        for(OnMethod om : onMethods) {
-            String probeClass = om.getClazz();
-            if (probeClass == null || probeClass.isEmpty()) continue;
-
-            if (probeClass.equals(targetName)) {
-                applicables.add(om);
-                continue;
+        // the handlers must be reported in the order of their declaration
+        final boolean[] matched = new boolean[onMethods.size()];
+        boolean any = false;
+
+        List<Handler> exact = exactHandlers.get(targetName);
+        if (exact != null) {
+            for (Handler h : exact) {
+                matched[h.idx] = true;
             }
-            // Check regex match
-            if (om.isClassRegexMatcher() && !om.isClassAnnotationMatcher()) {
-                if (Pattern.matches(probeClass, targetName)) {
-                    applicables.add(om);
-                    continue;
-                }
+            any = true;
+        }
+        // Check regex match
+        List<Handler> candidates = new ArrayList<>();
+        regexHandlers.collect(targetName, candidates);
+        for (Handler h : candidates) {
+            if (!matched[h.idx] && h.pattern.matcher(targetName).matches()) {
+                matched[h.idx] = true;
+                any = true;
             }
-            if (om.isClassAnnotationMatcher()) {
-                Collection<String> annoTypes = cr.getAnnotationTypes();
-                if (om.isClassRegexMatcher()) {
-                    Pattern annoCheck = Pattern.compile(probeClass);
-                    for(String annoType : annoTypes) {
-                        if (annoCheck.matcher(annoType).matches()) {
-                            applicables.add(om);
-                            continue outer;
+        }
+        if (!annotationHandlers.isEmpty()) {
+            Collection<String> annoTypes = cr.getAnnotationTypes();
+            for (Handler h : annotationHandlers) {
+                if (matched[h.idx]) continue;
+                if (h.pattern != null) {
+                    for (String annoType : annoTypes) {
+                        if (h.pattern.matcher(annoType).matches()) {
+                            matched[h.idx] = true;
+                            any = true;
+                            break;
                         }
                     }
-                } else {
-                    if (annoTypes.contains(probeClass)) {
-                        applicables.add(om);
-                        continue;
-                    }
+                } else if (annoTypes.contains(h.om.getClazz())) {
+                    matched[h.idx] = true;
+                    any = true;
                 }
             }
-            // And, finally, check the class hierarchy
-            if (om.isSubtypeMatcher()) {
-                // internal name of super type.
-                if (isSubTypeOf(cr.getClassName(), cr.getClassLoader(), probeClass)) {
-                    applicables.add(om);
-                }
+        }
+        // And, finally, check the class hierarchy
+        for (Handler h : subtypeHandlers) {
+            // internal name of super type.
+            if (!matched[h.idx] && isSubTypeOf(cr.getClassName(), cr.getClassLoader(), h.om.getClazz())) {
+                matched[h.idx] = true;
+                any = true;
+            }
+        }
+        if (!any) {
+            return Collections.emptyList();
+        }
+        final Collection<OnMethod> applicables = new ArrayList<>(matched.length);
+        for (int i = 0; i < matched.length; i++) {
+            if (matched[i]) {
+                applicables.add(onMethods.get(i));
             }
         }
         return applicables;
     }
 
+    /**
+     * @param om an {@linkplain OnMethod} of this filter
+     * @return the precompiled method matcher for the given {@linkplain OnMethod}
+     */
+    MethodMatcher getMethodMatcher(OnMethod om) {
+        MethodMatcher mm = methodMatchers.get(om);
+        return mm != null ? mm : new MethodMatcher(om);
+    }
+
     public boolean isNameMatching(String clzName) {
         if (sourceClasses.contains(clzName))  {
             return true;
         }
 
-        for (Pattern pat : sourceClassPatterns) {
-            if (pat.matcher(clzName).matches()) {
+        List<Handler> candidates = new ArrayList<>();
+        regexHandlers.collect(clzName, candidates);
+        for (Handler h : candidates) {
+            if (h.pattern.matcher(clzName).matches()) {
                 return true;
             }
         }
@@ -250,27 +289,22 @@ public class ClassFilter {
             return false;
         }
 
-        boolean internal = types[0].contains("/");
-
         loader = (loader != null ? loader : ClassLoader.getSystemClassLoader());
 
-        if (internal) {
-            typeA = typeA.replace('.', '/');
-        } else {
-            typeA = typeA.replace('/', '.');
-        }
-
-        Set<String> typeSet = new HashSet<>(Arrays.asList(types));
-        if (typeSet.contains(typeA)) {
-            return true;
+        String internalA = typeA.replace('.', '/');
+        for (String type : types) {
+            if (type.replace('.', '/').equals(internalA)) {
+                return true;
+            }
         }
+        // the supertype closure is memoized in the cached class info
         ClassInfo ci = ClassCache.getInstance().get(loader, typeA);
-        Collection<String> sTypes = new LinkedList<>();
-        for (ClassInfo sCi : ci.getSupertypes(false)) {
-            sTypes.add(internal ? sCi.getClassName() : sCi.getJavaClassName());
+        for (String type : types) {
+            if (ci.isSubtypeOf(type)) {
+                return true;
+            }
         }
-        sTypes.retainAll(typeSet);
-        return !sTypes.isEmpty();
+        return false;
     }
 
     /*
@@ -286,35 +320,78 @@ public class ClassFilter {
         return SENSITIVE_CLASSES.contains(name);
     }
 
+    /**
+     * Extracts the literal prefix of a regular expression. All the strings
+     * matched by the expression are guaranteed to start with this prefix.
+     * @param regex the regular expression
+     * @return the literal prefix; possibly empty
+     */
+    static String literalPrefix(String regex) {
+        if (regex.indexOf('|') > -1) {
+            // alternatives; don't bother
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i++);
+            if (c == '\\') {
+                if (i == regex.length() || Character.isLetterOrDigit(regex.charAt(i))) {
+                    // character class or quotation
+                    break;
+                }
+                c = regex.charAt(i++);
+            } else if ("[](){}.*+?^$".indexOf(c) > -1) {
+                break;
+            }
+            if (i < regex.length() && "?*{".indexOf(regex.charAt(i)) > -1) {
+                // the character is optional
+                break;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
     private void init() {
         List<String> strSrcList = new ArrayList<>();
-        List<Pattern> patSrcList = new ArrayList<>();
         List<String> superTypesList = new ArrayList<>();
         List<String> superTypesInternalList = new ArrayList<>();
         List<String> strAnoList = new ArrayList<>();
         List<Pattern> patAnoList = new ArrayList<>();
 
-        for (OnMethod om : onMethods) {
+        for (int i = 0; i < onMethods.size(); i++) {
+            OnMethod om = onMethods.get(i);
+            methodMatchers.put(om, new MethodMatcher(om));
             String className = om.getClazz();
             if (className.length() == 0) {
                 continue;
             }
+            List<Handler> exact = exactHandlers.get(className);
+            if (exact == null) {
+                exact = new ArrayList<>(1);
+                exactHandlers.put(className, exact);
+            }
+            exact.add(new Handler(i, om, null));
             if (om.isClassRegexMatcher()) {
                 try {
                     Pattern p = Pattern.compile(className);
                     if (om.isClassAnnotationMatcher()) {
                         patAnoList.add(p);
+                        annotationHandlers.add(new Handler(i, om, p));
                     } else {
-                        patSrcList.add(p);
+                        regexHandlers.put(literalPrefix(className), new Handler(i, om, p));
                     }
                 } catch (PatternSyntaxException pse) {
-                    System.err.println("btrace ERROR: invalid regex pattern - " + className.substring(1, className.length() - 1));
+                    System.err.println("btrace ERROR: invalid regex pattern - " + className);
                 }
             } else if (om.isClassAnnotationMatcher()) {
                 strAnoList.add(className);
+                annotationHandlers.add(new Handler(i, om, null));
             } else if (om.isSubtypeMatcher()) {
                 superTypesList.add(className);
                 superTypesInternalList.add(className.replace('.', '/'));
+                subtypeHandlers.add(new Handler(i, om, null));
             } else {
                 strSrcList.add(className);
             }
@@ -322,8 +399,6 @@ public class ClassFilter {
 
         sourceClasses = new HashSet(strSrcList.size());
         sourceClasses.addAll(strSrcList);
-        sourceClassPatterns = new Pattern[patSrcList.size()];
-        patSrcList.toArray(sourceClassPatterns);
         superTypes = new String[superTypesList.size()];
         superTypesList.toArray(superTypes);
         superTypesInternal = new String[superTypesInternalList.size()];
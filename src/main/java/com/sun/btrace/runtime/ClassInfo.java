@@ -29,6 +29,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Method;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.Objects;
@@ -177,7 +179,6 @@ public final class ClassInfo {
                         }
                     }
                 }
-                return true;
             }
             return true;
         }
@@ -190,6 +191,12 @@ public final class ClassInfo {
     private final Collection<ClassInfo> supertypes = new LinkedList<>();
     private final ClassCache cache;
     private boolean isInterface = false;
+    private ClassInfo superclass = null;
+
+    // memoized views of the hierarchy; it can not change once the class info is created
+    private volatile Collection<ClassInfo> allSupertypes = null;
+    private volatile Set<String> supertypeNames = null;
+    private volatile Set<String> classHierarchy = null;
 
     ClassInfo(ClassCache cache, Class clz) {
         this.cache = cache;
@@ -198,7 +205,8 @@ public final class ClassInfo {
         classId = new ClassName(clz.getName());
         Class supr = clz.getSuperclass();
         if (supr != null) {
-            supertypes.add(cache.get(supr));
+            superclass = cache.get(supr);
+            supertypes.add(superclass);
         }
         for (Class itfc : clz.getInterfaces()) {
             if (itfc != null) {
@@ -224,14 +232,60 @@ public final class ClassInfo {
         if (onlyDirect) {
             return supertypes;
         }
-        Set<ClassInfo> supers = new LinkedHashSet<>();
-        supers.addAll(supertypes);
-        for (ClassInfo ci : supertypes) {
-            supers.addAll(ci.getSupertypes(onlyDirect));
+        Collection<ClassInfo> supers = allSupertypes;
+        if (supers == null) {
+            Set<ClassInfo> closure = new LinkedHashSet<>();
+            closure.addAll(supertypes);
+            for (ClassInfo ci : supertypes) {
+                closure.addAll(ci.getSupertypes(false));
+            }
+            supers = Collections.unmodifiableSet(closure);
+            allSupertypes = supers;
         }
         return supers;
     }
 
+    /**
+     * Checks whether the given type is a direct or indirect supertype (including interfaces)
+     * @param typeName the Java or internal type name
+     * @return {@code true} if this class is a subtype of the given type
+     */
+    public boolean isSubtypeOf(String typeName) {
+        Set<String> names = supertypeNames;
+        if (names == null) {
+            Set<String> closure = new HashSet<>();
+            for (ClassInfo ci : getSupertypes(false)) {
+                closure.add(ci.getClassName());
+            }
+            names = Collections.unmodifiableSet(closure);
+            supertypeNames = names;
+        }
+        return names.contains(typeName.replace('.', '/'));
+    }
+
+    /**
+     * The internal names of this class and its superclasses, except {@code java.lang.Object},
+     * ordered from this class up.
+     * @return the class hierarchy
+     */
+    public Set<String> getClassHierarchy() {
+        Set<String> hierarchy = classHierarchy;
+        if (hierarchy == null) {
+            hierarchy = new LinkedHashSet<>();
+            hierarchy.add(getClassName());
+            for (ClassInfo ci = superclass; ci != null; ci = ci.superclass) {
+                String name = ci.getClassName();
+                if (name.equals(Constants.OBJECT_INTERNAL)) {
+                    break;
+                }
+                hierarchy.add(name);
+            }
+            hierarchy = Collections.unmodifiableSet(hierarchy);
+            classHierarchy = hierarchy;
+        }
+        return hierarchy;
+    }
+
     /**
      * Associated class loader string representation as returned by {@code cl.toString()} or {@code "<null>"}
      * @return associated class loader id
@@ -269,7 +323,8 @@ public final class ClassInfo {
                 String superName = info[0];
                 if (superName != null) {
                     ClassName superClassName = new ClassName(superName);
-                    supertypes.add(cache.get(inferClassLoader(cl, superClassName), superClassName));
+                    superclass = cache.get(inferClassLoader(cl, superClassName), superClassName);
+                    supertypes.add(superclass);
                 }
                 if (info.length > 1) {
                     for(int i = 1; i < info.length; i++) {
@@ -31,7 +31,6 @@ import com.sun.btrace.org.objectweb.asm.ClassWriter;
 import static com.sun.btrace.org.objectweb.asm.Opcodes.*;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.LinkedHashSet;
 import java.util.Set;
 import static com.sun.btrace.runtime.Constants.OBJECT_INTERNAL;
 
@@ -56,18 +55,8 @@ public final class InstrumentUtils {
         }
         ClassInfo ci = ClassCache.getInstance().get(cl, type);
 
-        Set<ClassInfo> ciSet = new LinkedHashSet<>();
-
-        // add self
-        ciSet.add(ci);
-        for(ClassInfo sci : ci.getSupertypes(false)) {
-            if (!sci.isInterface() && !sci.getClassName().equals(OBJECT_INTERNAL)) {
-                ciSet.add(sci);
-            }
-        }
-
-        for (ClassInfo sci : ciSet) {
-            closure.add(useInternal ? sci.getClassName() : sci.getJavaClassName());
+        for (String name : ci.getClassHierarchy()) {
+            closure.add(useInternal ? name : name.replace('/', '.'));
         }
     }
 
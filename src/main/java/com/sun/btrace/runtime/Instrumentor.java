@@ -54,6 +54,7 @@ import com.sun.btrace.org.objectweb.asm.Opcodes;
 import com.sun.btrace.org.objectweb.asm.Type;
 import com.sun.btrace.org.objectweb.asm.tree.MethodNode;
 import com.sun.btrace.util.templates.TemplateExpanderVisitor;
+import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import static com.sun.btrace.runtime.Constants.*;
 import com.sun.btrace.util.LocalVariableHelperImpl;
@@ -61,7 +62,9 @@ import com.sun.btrace.util.LocalVariableHelper;
 import com.sun.btrace.util.MethodID;
 import com.sun.btrace.util.templates.impl.MethodTrackingExpander;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.TreeSet;
 
 /**
@@ -71,8 +74,15 @@ import java.util.TreeSet;
  * @author A. Sundararajan
  */
 public class Instrumentor extends ClassVisitor {
+    private static final Pattern INVALID_PATTERN = Pattern.compile("");
+
     private final BTraceProbe bcn;
     private final Collection<OnMethod> applicableOnMethods;
+    // precompiled matchers in the order of 'applicableOnMethods'
+    private final MethodMatcher[] methodMatchers;
+    // when all the handlers match by the exact method name only the names in this set need to be checked
+    private final Set<String> exactMethodNames;
+    private final Map<String, Pattern> locationPatterns = new HashMap<>();
     private final Set<OnMethod> calledOnMethods = new HashSet<>();
     private String className, superName;
 
@@ -93,6 +103,21 @@ public class Instrumentor extends ClassVisitor {
         super(ASM5, cv);
         this.bcn = bcn;
         this.applicableOnMethods = applicables;
+        this.methodMatchers = new MethodMatcher[applicables.size()];
+        Set<String> exactNames = new HashSet<>();
+        int i = 0;
+        for (OnMethod om : applicables) {
+            MethodMatcher mm = bcn.getMethodMatcher(om);
+            methodMatchers[i++] = mm;
+            if (exactNames != null) {
+                if (mm.isExact()) {
+                    exactNames.add(mm.getExactName());
+                } else {
+                    exactNames = null;
+                }
+            }
+        }
+        this.exactMethodNames = exactNames;
     }
 
     final public boolean hasMatch() {
@@ -119,33 +144,14 @@ public class Instrumentor extends ClassVisitor {
             return super.visitMethod(access, name, desc, signature, exceptions);
         }
 
+        if (exactMethodNames != null && !exactMethodNames.contains(name)) {
+            return super.visitMethod(access, name, desc, signature, exceptions);
+        }
+
+        int idx = 0;
         for (OnMethod om : applicableOnMethods) {
-            if (om.getLocation().getValue() == Kind.LINE) {
+            if (methodMatchers[idx++].matches(name, desc)) {
                 appliedOnMethods.add(om);
-            } else {
-                String methodName = om.getMethod();
-                boolean regexMatch = om.isMethodRegexMatcher();
-                if (methodName.equals("")) {
-                    methodName = ".*"; // match all the methods
-                    regexMatch = true;
-                }
-                if (methodName.equals("#")) {
-                    methodName = om.getTargetName(); // match just the same-named method
-                }
-
-                if (methodName.equals(name) &&
-                    typeMatches(om.getType(), desc)) {
-                    appliedOnMethods.add(om);
-                } else if (regexMatch) {
-                    try {
-                        if (name.matches(methodName) &&
-                            typeMatches(om.getType(), desc)) {
-                            appliedOnMethods.add(om);
-                        }
-                    } catch (PatternSyntaxException pse) {
-                        reportPatternSyntaxException(name);
-                    }
-                }
             }
         }
 
@@ -175,21 +181,11 @@ public class Instrumentor extends ClassVisitor {
             public AnnotationVisitor visitAnnotation(String annoDesc,
                                   boolean visible) {
                 LocalVariableHelper visitor = (LocalVariableHelper)mv;
+                String extAnnoName = Type.getType(annoDesc).getClassName();
+                int idx = 0;
                 for (OnMethod om : applicableOnMethods) {
-                    String extAnnoName = Type.getType(annoDesc).getClassName();
-                    String annoName = om.getMethod();
-                    if (om.isMethodAnnotationMatcher()) {
-                        if (om.isMethodRegexMatcher()) {
-                            try {
-                                if (extAnnoName.matches(annoName)) {
-                                    visitor = instrumentorFor(om, visitor, mAccess, name, desc);
-                                }
-                            } catch (PatternSyntaxException pse) {
-                                reportPatternSyntaxException(extAnnoName);
-                            }
-                        } else if (annoName.equals(extAnnoName)) {
-                            visitor = instrumentorFor(om, visitor, mAccess, name, desc);
-                        }
+                    if (methodMatchers[idx++].matchesAnnotation(extAnnoName)) {
+                        visitor = instrumentorFor(om, visitor, mAccess, name, desc);
                     }
                 }
                 mv = (MethodVisitor)visitor;
@@ -1690,12 +1686,18 @@ public class Instrumentor extends ClassVisitor {
         }
         if (pattern.charAt(0) == '/' &&
             REGEX_SPECIFIER.matcher(pattern).matches()) {
-            try {
-                return input.matches(pattern.substring(1, pattern.length() - 1));
-            } catch (PatternSyntaxException pse) {
-                reportPatternSyntaxException(pattern.substring(1, pattern.length() - 1));
-                return false;
+            // compiled once per transformed class instead of once per call site
+            Pattern p = locationPatterns.get(pattern);
+            if (p == null) {
+                try {
+                    p = Pattern.compile(pattern.substring(1, pattern.length() - 1));
+                } catch (PatternSyntaxException pse) {
+                    reportPatternSyntaxException(pattern.substring(1, pattern.length() - 1));
+                    p = INVALID_PATTERN;
+                }
+                locationPatterns.put(pattern, p);
             }
+            return p != INVALID_PATTERN && p.matcher(input).matches();
         } else {
             return pattern.equals(input);
         }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the Classpath exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.runtime;
+
+import com.sun.btrace.annotations.Kind;
+import com.sun.btrace.org.objectweb.asm.Type;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A precompiled matcher for the method part of an {@linkplain OnMethod}.
+ * <p>
+ * Created once per {@linkplain OnMethod} when the probe is loaded so that
+ * neither regular expressions nor type declarations need to be parsed
+ * for each visited method.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class MethodMatcher {
+    private final OnMethod om;
+    // the exact method name or annotation type; 'null' to match any name
+    private final String name;
+    // 'null' unless the name is a regular expression
+    private final Pattern pattern;
+    // 'null' to match any method signature
+    private final Type[] argTypes;
+    private final boolean anyMethod;
+
+    MethodMatcher(OnMethod om) {
+        this.om = om;
+        String methodName = om.getMethod();
+        boolean regex = om.isMethodRegexMatcher();
+        if (om.getLocation().getValue() == Kind.LINE) {
+            anyMethod = true;
+            methodName = null;
+        } else if (methodName.equals("")) {
+            // match all the methods
+            anyMethod = true;
+            methodName = null;
+        } else {
+            anyMethod = false;
+        }
+        this.name = methodName;
+        this.pattern = regex && methodName != null ? compile(methodName) : null;
+        String type = om.getType();
+        this.argTypes = type.isEmpty() ? null : Type.getArgumentTypes(TypeUtils.declarationToDescriptor(type));
+    }
+
+    /**
+     * @return {@code true} if the matcher accepts a method only by its name;
+     *         in that case {@linkplain #getExactName()} is the name
+     */
+    boolean isExact() {
+        return !anyMethod && pattern == null;
+    }
+
+    /**
+     * @return the exact name of the matching method; '#' stands for the name of
+     *         the handler method
+     */
+    String getExactName() {
+        return name.equals("#") ? om.getTargetName() : name;
+    }
+
+    /**
+     * Checks the method name and signature
+     * @param methodName the method name
+     * @param desc the method descriptor
+     * @return {@code true} if the method is matched
+     */
+    boolean matches(String methodName, String desc) {
+        if (om.getLocation().getValue() == Kind.LINE) {
+            // line probes are applied to all methods
+            return true;
+        }
+        if (anyMethod || getExactName().equals(methodName) ||
+            (pattern != null && pattern.matcher(methodName).matches())) {
+            return argTypes == null || TypeUtils.isCompatible(argTypes, Type.getArgumentTypes(desc));
+        }
+        return false;
+    }
+
+    /**
+     * Checks the annotation of a method
+     * @param annoType the annotation type in the Java format
+     * @return {@code true} if the annotation is matched
+     */
+    boolean matchesAnnotation(String annoType) {
+        if (!om.isMethodAnnotationMatcher() || name == null) {
+            return false;
+        }
+        return pattern != null ? pattern.matcher(annoType).matches() : name.equals(annoType);
+    }
+
+    private static Pattern compile(String regex) {
+        try {
+            return Pattern.compile(regex);
+        } catch (PatternSyntaxException pse) {
+            System.err.println("btrace ERROR: invalid regex pattern - " + regex);
+            return null;
+        }
+    }
+}
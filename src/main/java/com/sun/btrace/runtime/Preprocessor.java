@@ -40,8 +40,10 @@ import com.sun.btrace.org.objectweb.asm.tree.InsnNode;
 import com.sun.btrace.org.objectweb.asm.tree.JumpInsnNode;
 import com.sun.btrace.org.objectweb.asm.tree.LabelNode;
 import com.sun.btrace.org.objectweb.asm.tree.LdcInsnNode;
+import com.sun.btrace.org.objectweb.asm.tree.LookupSwitchInsnNode;
 import com.sun.btrace.org.objectweb.asm.tree.MethodInsnNode;
 import com.sun.btrace.org.objectweb.asm.tree.MethodNode;
+import com.sun.btrace.org.objectweb.asm.tree.TableSwitchInsnNode;
 import com.sun.btrace.org.objectweb.asm.tree.TryCatchBlockNode;
 import com.sun.btrace.org.objectweb.asm.tree.TypeInsnNode;
 import com.sun.btrace.org.objectweb.asm.tree.VarInsnNode;
@@ -54,6 +56,8 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * This class preprocesses a compiled BTrace program.
@@ -78,6 +82,9 @@ import java.util.Set;
  *    7. initialize and reference any service instances
  *    8. add a field to store client's BTraceRuntime instance
  *    9. make all fields publicly accessible
+ *   10. replace matches(String, String) calls with a constant
+ *       regular expression by matches(Pattern, String) using
+ *       a pattern precompiled in <clinit>
  *
  *
  * @author A. Sundararajan
@@ -142,6 +149,13 @@ final class Preprocessor {
     private static final String BTRACERT_HANDLE_EXCEPTION_DESC = "(" + THROWABLE_DESC + ")" + VOID_DESC;
     private static final String RT_SERVICE_CTR_DESC = "(" + BTRACERT_DESC + ")V";
     private static final String SERVICE_CTR_DESC = "(" + STRING_DESC + ")" + VOID_DESC;
+    private static final String BTRACE_STRINGS = BTRACE_UTILS + "$Strings";
+    private static final String PATTERN_INTERNAL = "java/util/regex/Pattern";
+    private static final String PATTERN_DESC = "L" + PATTERN_INTERNAL + ";";
+    private static final String MATCHES_DESC = "(" + STRING_DESC + STRING_DESC + ")" + BOOLEAN_DESC;
+    private static final String MATCHES_PATTERN_DESC = "(" + PATTERN_DESC + STRING_DESC + ")" + BOOLEAN_DESC;
+    private static final String PATTERN_COMPILE_DESC = "(" + STRING_DESC + ")" + PATTERN_DESC;
+    private static final String PATTERN_FLD_PREFIX = "$btrace$$pattern$";
 
     private static final Map<String, String> BOX_TYPE_MAP = new HashMap<>();
     private static final Set<String> GUARDED_ANNOTS = new HashSet<>();
@@ -186,6 +200,8 @@ final class Preprocessor {
     private final Set<String> exportFldNames = new HashSet<>();
     private final Map<String, AnnotationNode> injectedFlds = new HashMap<>();
     private final Map<String, Integer> serviceLocals = new HashMap<>();
+    // constant regular expression -> the field holding its precompiled pattern
+    private final Map<String, FieldNode> patternFlds = new HashMap<>();
 
     public void process(ClassNode cn) {
         addLevelField(cn);
@@ -436,6 +452,7 @@ final class Preprocessor {
                                 injectedFlds.isEmpty());
 
         MethodClassifier clsf = getClassifier(mn);
+        Set<LabelNode> jumpTargets = null;
 
         int retopcode = Type.getReturnType(mn.desc).getOpcode(Opcodes.IRETURN);
         InsnList l = mn.instructions;
@@ -455,6 +472,12 @@ final class Preprocessor {
                 }
             } else if (type == AbstractInsnNode.METHOD_INSN) {
                 MethodInsnNode min = (MethodInsnNode)n;
+                if (isStringMatches(min)) {
+                    if (jumpTargets == null) {
+                        jumpTargets = getJumpTargets(mn);
+                    }
+                    precompilePattern(cn, min, l, jumpTargets);
+                }
                 n = unfoldServiceInstantiation(cn, min, l);
             } else if (n.getOpcode() == retopcode && isClassified(clsf, MethodClassifier.RT_AWARE)) {
                 addBTraceRuntimeExit((InsnNode)n, l, lvg);
@@ -462,6 +485,141 @@ final class Preprocessor {
         }
     }
 
+    private static boolean isStringMatches(MethodInsnNode min) {
+        return min.getOpcode() == Opcodes.INVOKESTATIC &&
+               min.name.equals("matches") &&
+               min.desc.equals(MATCHES_DESC) &&
+               (min.owner.equals(BTRACE_UTILS) || min.owner.equals(BTRACE_STRINGS));
+    }
+
+    /**
+     * If the regular expression passed to matches(String, String) is a constant
+     * the call is replaced by matches(Pattern, String) with the pattern compiled
+     * only once, in &lt;clinit&gt;. The invalid expressions are left alone to fail at the call.
+     */
+    private void precompilePattern(ClassNode cn, MethodInsnNode min, InsnList l, Set<LabelNode> jumpTargets) {
+        AbstractInsnNode src = findArgumentSource(min, 2, jumpTargets);
+        if (src == null || src.getType() != AbstractInsnNode.LDC_INSN) {
+            return;
+        }
+        Object cst = ((LdcInsnNode)src).cst;
+        if (!(cst instanceof String)) {
+            return;
+        }
+        String regex = (String)cst;
+        try {
+            Pattern.compile(regex);
+        } catch (PatternSyntaxException e) {
+            return;
+        }
+        FieldNode fn = patternFlds.get(regex);
+        if (fn == null) {
+            fn = new FieldNode(
+                Opcodes.ASM5,
+                Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL,
+                PATTERN_FLD_PREFIX + patternFlds.size(),
+                PATTERN_DESC, null, null
+            );
+            getFields(cn).add(fn);
+            patternFlds.put(regex, fn);
+            initPatternField(cn, fn, regex);
+        }
+        l.set(src, new FieldInsnNode(Opcodes.GETSTATIC, cn.name, fn.name, fn.desc));
+        min.desc = MATCHES_PATTERN_DESC;
+    }
+
+    private void initPatternField(ClassNode cn, FieldNode fn, String regex) {
+        InsnList init = new InsnList();
+        init.add(new LdcInsnNode(regex));
+        init.add(new MethodInsnNode(Opcodes.INVOKESTATIC, PATTERN_INTERNAL, "compile", PATTERN_COMPILE_DESC, false));
+        init.add(new FieldInsnNode(Opcodes.PUTSTATIC, cn.name, fn.name, fn.desc));
+
+        // the expression has been validated and compiling it does not need the runtime;
+        // the field is initialized before anything else in <clinit>
+        clinit.instructions.insert(init);
+    }
+
+    private static Set<LabelNode> getJumpTargets(MethodNode mn) {
+        Set<LabelNode> targets = new HashSet<>();
+        for (AbstractInsnNode n = mn.instructions.getFirst(); n != null; n = n.getNext()) {
+            if (n.getType() == AbstractInsnNode.JUMP_INSN) {
+                targets.add(((JumpInsnNode)n).label);
+            } else if (n.getType() == AbstractInsnNode.TABLESWITCH_INSN) {
+                TableSwitchInsnNode tsin = (TableSwitchInsnNode)n;
+                targets.add(tsin.dflt);
+                targets.addAll(getLabels(tsin.labels));
+            } else if (n.getType() == AbstractInsnNode.LOOKUPSWITCH_INSN) {
+                LookupSwitchInsnNode lsin = (LookupSwitchInsnNode)n;
+                targets.add(lsin.dflt);
+                targets.addAll(getLabels(lsin.labels));
+            }
+        }
+        if (mn.tryCatchBlocks != null) {
+            for (TryCatchBlockNode tcb : getTryCatchBlocks(mn)) {
+                targets.add(tcb.handler);
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Walks back from a method call to the instruction pushing one of its arguments.
+     * Only straight-line code with known stack effects is followed.
+     * @param min the method call
+     * @param depth the position of the argument counted from the last one, starting at 1
+     * @param jumpTargets the labels control can be transferred to
+     * @return the instruction pushing the argument or null if it can not be determined
+     */
+    private static AbstractInsnNode findArgumentSource(MethodInsnNode min, int depth, Set<LabelNode> jumpTargets) {
+        // the number of values to be passed, the argument included
+        int needed = depth;
+        for (AbstractInsnNode n = min.getPrevious(); n != null; n = n.getPrevious()) {
+            int type = n.getType();
+            if (type == AbstractInsnNode.LINE || type == AbstractInsnNode.FRAME) {
+                continue;
+            }
+            if (type == AbstractInsnNode.LABEL) {
+                if (jumpTargets.contains(n)) {
+                    return null;
+                }
+                continue;
+            }
+            int pops, pushes;
+            int opcode = n.getOpcode();
+            if ((opcode >= Opcodes.ACONST_NULL && opcode <= Opcodes.ALOAD) ||
+                opcode == Opcodes.GETSTATIC) {
+                pops = 0;
+                pushes = 1;
+            } else if ((opcode >= Opcodes.IALOAD && opcode <= Opcodes.SALOAD) ||
+                       (opcode >= Opcodes.IADD && opcode <= Opcodes.DREM) ||
+                       (opcode >= Opcodes.ISHL && opcode <= Opcodes.LXOR) ||
+                       (opcode >= Opcodes.LCMP && opcode <= Opcodes.DCMPG)) {
+                pops = 2;
+                pushes = 1;
+            } else if ((opcode >= Opcodes.INEG && opcode <= Opcodes.DNEG) ||
+                       (opcode >= Opcodes.I2L && opcode <= Opcodes.I2S) ||
+                       opcode == Opcodes.GETFIELD || opcode == Opcodes.CHECKCAST ||
+                       opcode == Opcodes.INSTANCEOF || opcode == Opcodes.ARRAYLENGTH) {
+                pops = 1;
+                pushes = 1;
+            } else if (type == AbstractInsnNode.METHOD_INSN) {
+                MethodInsnNode call = (MethodInsnNode)n;
+                pops = Type.getArgumentTypes(call.desc).length + (opcode == Opcodes.INVOKESTATIC ? 0 : 1);
+                pushes = Type.getReturnType(call.desc) == Type.VOID_TYPE ? 0 : 1;
+            } else {
+                return null;
+            }
+            if (pushes == 1 && needed == 1) {
+                return n;
+            }
+            needed += pops - pushes;
+            if (needed <= 0) {
+                return null;
+            }
+        }
+        return null;
+    }
+
     private void recalculateVars(MethodNode mn, LocalVarGenerator lvg) {
         for(AbstractInsnNode n = mn.instructions.getFirst(); n != null; n = n.getNext()) {
             if (n.getType() == AbstractInsnNode.VAR_INSN) {
@@ -612,6 +770,16 @@ final class Preprocessor {
         return (List<FieldNode>)cn.fields;
     }
 
+    @SuppressWarnings("unchecked")
+    private static List<TryCatchBlockNode> getTryCatchBlocks(MethodNode mn) {
+        return (List<TryCatchBlockNode>)mn.tryCatchBlocks;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<LabelNode> getLabels(List<?> switchLabels) {
+        return (List<LabelNode>)switchLabels;
+    }
+
     public static AnnotationNode getAnnotation(FieldNode fn, Type annotation) {
         if (fn == null || (fn.visibleAnnotations == null && fn.invisibleAnnotations == null)) return null;
         String targetDesc = annotation.getDescriptor();
@@ -28,19 +28,28 @@ import com.sun.btrace.BTraceRuntime;
 import com.sun.btrace.SharedSettings;
 import com.sun.btrace.services.spi.SimpleService;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.UnknownHostException;
-import java.nio.charset.Charset;
-import java.util.Collection;
-import java.util.Formatter;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * A simple way to submit <a href="https://github.com/etsy/statsd/">statsd</a> metrics.
@@ -52,10 +61,31 @@ import java.util.concurrent.ThreadFactory;
  *   private static Statsd s;
  * </code>
  * </pre>
+ * <p>
+ * Counters, gauges, timers and histograms are pre-aggregated in process and
+ * sent once per flush interval ({@code statsdFlush} agent argument, in ms):
+ * <ul>
+ * <li>counters are summed up; sampled increments are scaled by their sample rate</li>
+ * <li>a gauge reports its last value and the sum of the adjustments</li>
+ * <li>timers and histograms keep a uniform sample of at most {@value #RESERVOIR_SIZE}
+ * values per interval; the sample rate is adjusted accordingly</li>
+ * </ul>
+ * Sets and events are sent as they come. The metrics are packed into
+ * datagrams of at most {@code statsdMtu} bytes.
+ *
  * @author Jaroslav Bachorik
  */
 final public class Statsd extends SimpleService {
-    private static final Charset CHARSET = Charset.forName("ascii");
+    static final int RESERVOIR_SIZE = 128;
+    private static final int MIN_MTU = 64;
+    private static final int MAX_MTU = 65507;
+    private static final int MIN_FLUSH_MS = 10;
+    // metrics not updated for this many intervals are forgotten
+    private static final int MAX_IDLE_FLUSHES = 60;
+
+    private static final byte[] RATE_MARK = "|@".getBytes(StandardCharsets.US_ASCII);
+    private static final int RATE_SCALE = 6;
+    private static final int VALUE_SCALE = 3;
     public static enum Priority {
         NORMAL, LOW
     }
@@ -67,7 +97,435 @@ final public class Statsd extends SimpleService {
         private final static Statsd INSTANCE = new Statsd();
     }
 
-    private final BlockingQueue<String> q = new ArrayBlockingQueue<>(120000);
+    /**
+     * A metric identified by its name, type and tags. The encoded line
+     * parts are prepared once.
+     */
+    private abstract static class Metric {
+        final byte[] prefix;
+        final byte[] type;
+        final byte[] tags;
+        // accessed only by the sender thread
+        int idle;
+        // set when the metric is being evicted; the updaters must look it up again
+        volatile boolean retired;
+
+        Metric(String name, String type, String tags) {
+            this.prefix = ascii(name + ":");
+            this.type = ascii("|" + type);
+            this.tags = tags.isEmpty() ? new byte[0] : ascii("|#" + tags);
+        }
+
+        /**
+         * Writes the values aggregated since the last flush. Called only by the sender thread.
+         * @return {@code true} if there was anything to write
+         */
+        abstract boolean flush(Packer p);
+    }
+
+    private static final class Counter extends Metric {
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder scaled = new DoubleAdder();
+        // the sums already sent; accessed only by the sender thread
+        private long sentCount;
+        private double sentScaled;
+
+        Counter(String name, String tags) {
+            super(name, "c", tags);
+        }
+
+        void add(long value, double sampleRate) {
+            if (sampleRate > 0d && sampleRate < 1d) {
+                scaled.add(value / sampleRate);
+            } else {
+                count.add(value);
+            }
+        }
+
+        @Override
+        boolean flush(Packer p) {
+            // the adders are never reset; a concurrent update is just sent in the next interval
+            long c = count.sum();
+            double s = scaled.sum();
+            long dc = c - sentCount;
+            double ds = s - sentScaled;
+            sentCount = c;
+            sentScaled = s;
+            if (ds != 0d) {
+                p.write(this, dc + ds);
+                return true;
+            }
+            if (dc != 0) {
+                p.write(this, dc, 0d);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static final class Gauge extends Metric {
+        /**
+         * An absolute value together with the sum of the adjustments preceding it
+         */
+        private static final class Value {
+            private final long value;
+            private final long delta;
+
+            Value(long value, long delta) {
+                this.value = value;
+                this.delta = delta;
+            }
+        }
+
+        // the last value set since the previous flush or null
+        private final AtomicReference<Value> set = new AtomicReference<>();
+        private final LongAdder delta = new LongAdder();
+        private long sentDelta;
+
+        Gauge(String name, String tags) {
+            super(name, "g", tags);
+        }
+
+        void set(long val) {
+            // the adjustments made so far are overridden by the absolute value
+            set.set(new Value(val, delta.sum()));
+        }
+
+        void adjust(long val) {
+            delta.add(val);
+        }
+
+        @Override
+        boolean flush(Packer p) {
+            boolean written = false;
+            Value v = set.getAndSet(null);
+            if (v != null) {
+                p.write(this, v.value, 0d);
+                // only the adjustments following the value are sent
+                sentDelta = v.delta;
+                written = true;
+            }
+            long d = delta.sum();
+            long diff = d - sentDelta;
+            sentDelta = d;
+            if (diff != 0) {
+                p.writeDelta(this, diff);
+                written = true;
+            }
+            return written;
+        }
+    }
+
+    private static final class Timer extends Metric {
+        private final long[] reservoir = new long[RESERVOIR_SIZE];
+        private int count;
+        private double sampleRate;
+
+        Timer(String name, String type, String tags) {
+            super(name, type, tags);
+        }
+
+        synchronized void add(long value, double rate) {
+            if (count < reservoir.length) {
+                reservoir[count] = value;
+            } else {
+                int idx = ThreadLocalRandom.current().nextInt(count + 1);
+                if (idx < reservoir.length) {
+                    reservoir[idx] = value;
+                }
+            }
+            if (count < Integer.MAX_VALUE) {
+                count++;
+            }
+            sampleRate = rate;
+        }
+
+        @Override
+        boolean flush(Packer p) {
+            long[] values = p.values;
+            int seen, len;
+            double rate;
+            synchronized (this) {
+                seen = count;
+                len = Math.min(seen, reservoir.length);
+                System.arraycopy(reservoir, 0, values, 0, len);
+                rate = sampleRate;
+                count = 0;
+            }
+            if (len == 0) {
+                return false;
+            }
+            if (rate <= 0d || rate > 1d) {
+                rate = 1d;
+            }
+            rate = rate * len / seen;
+            for (int i = 0; i < len; i++) {
+                p.write(this, values[i], rate < 1d ? rate : 0d);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The metrics of one kind, looked up by the name and the tags
+     * without creating any composite key.
+     * <p>
+     * An idle metric is evicted in two steps. It is marked as retired and removed
+     * from the table first; {@linkplain #get(String, String)} never hands out
+     * a retired metric. It is flushed for the last time in the next interval,
+     * when the updates of the threads which had obtained it just before
+     * the eviction have landed.
+     */
+    private abstract static class MetricTable<M extends Metric> {
+        private final ConcurrentMap<String, ConcurrentMap<String, M>> metrics = new ConcurrentHashMap<>();
+        // evicted in the previous interval; accessed only by the sender thread
+        private final List<M> retiring = new ArrayList<>();
+
+        abstract M create(String name, String tags);
+
+        final M get(String name, String tags) {
+            String t = tags != null ? tags : "";
+            ConcurrentMap<String, M> byTags = metrics.get(name);
+            if (byTags == null) {
+                byTags = new ConcurrentHashMap<>();
+                ConcurrentMap<String, M> prev = metrics.putIfAbsent(name, byTags);
+                if (prev != null) {
+                    byTags = prev;
+                }
+            }
+            while (true) {
+                M m = byTags.get(t);
+                if (m == null) {
+                    m = create(name, t);
+                    M prev = byTags.putIfAbsent(t, m);
+                    if (prev != null) {
+                        m = prev;
+                    }
+                }
+                if (!m.retired) {
+                    return m;
+                }
+                // caught in the middle of the eviction; help to finish it and retry
+                byTags.remove(t, m);
+            }
+        }
+
+        final void flush(Packer p) {
+            for (M m : retiring) {
+                m.flush(p);
+            }
+            retiring.clear();
+            for (ConcurrentMap<String, M> byTags : metrics.values()) {
+                for (Map.Entry<String, M> e : byTags.entrySet()) {
+                    M m = e.getValue();
+                    if (m.flush(p)) {
+                        m.idle = 0;
+                    } else if (++m.idle > MAX_IDLE_FLUSHES) {
+                        m.retired = true;
+                        byTags.remove(e.getKey(), m);
+                        retiring.add(m);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes the metric lines into a reusable direct buffer and sends it
+     * as a datagram when the next line would not fit. Used only by the sender thread.
+     */
+    private static final class Packer {
+        private final DatagramChannel ch;
+        private final SocketAddress target;
+        private final ByteBuffer packet;
+        private final byte[] digits = new byte[20];
+        final long[] values = new long[RESERVOIR_SIZE];
+        private boolean failed = false;
+
+        Packer(DatagramChannel ch, SocketAddress target, int mtu) {
+            this.ch = ch;
+            this.target = target;
+            this.packet = ByteBuffer.allocateDirect(mtu);
+        }
+
+        void write(Metric m, long value, double rate) {
+            int len = m.prefix.length + longSize(value) + m.type.length + m.tags.length;
+            if (rate > 0d) {
+                len += RATE_MARK.length + decimalSize(rate, RATE_SCALE);
+            }
+            ByteBuffer bb = begin(len);
+            bb.put(m.prefix);
+            putLong(bb, value);
+            bb.put(m.type);
+            if (rate > 0d) {
+                bb.put(RATE_MARK);
+                putDecimal(bb, rate, RATE_SCALE);
+            }
+            bb.put(m.tags);
+            end(bb);
+        }
+
+        void write(Metric m, double value) {
+            ByteBuffer bb = begin(m.prefix.length + decimalSize(value, VALUE_SCALE) + m.type.length + m.tags.length);
+            bb.put(m.prefix);
+            putDecimal(bb, value, VALUE_SCALE);
+            bb.put(m.type);
+            bb.put(m.tags);
+            end(bb);
+        }
+
+        void writeDelta(Metric m, long delta) {
+            // a signed value adjusts the gauge
+            ByteBuffer bb = begin(m.prefix.length + (delta > 0 ? 1 : 0) + longSize(delta) + m.type.length + m.tags.length);
+            bb.put(m.prefix);
+            if (delta > 0) {
+                bb.put((byte)'+');
+            }
+            putLong(bb, delta);
+            bb.put(m.type);
+            bb.put(m.tags);
+            end(bb);
+        }
+
+        void write(String line) {
+            ByteBuffer bb = begin(line.length());
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                bb.put(c < 128 ? (byte)c : (byte)'?');
+            }
+            end(bb);
+        }
+
+        void send() {
+            if (packet.position() == 0) {
+                return;
+            }
+            packet.flip();
+            send(packet);
+            packet.clear();
+        }
+
+        private ByteBuffer begin(int len) {
+            int pos = packet.position();
+            if (pos > 0 && pos + 1 + len > packet.capacity()) {
+                send();
+                pos = 0;
+            }
+            if (len > packet.capacity()) {
+                // does not fit any packet; it is sent on its own
+                return ByteBuffer.allocate(len);
+            }
+            if (pos > 0) {
+                packet.put((byte)'\n');
+            }
+            return packet;
+        }
+
+        private void end(ByteBuffer bb) {
+            if (bb != packet) {
+                bb.flip();
+                send(bb);
+            }
+        }
+
+        private void send(ByteBuffer bb) {
+            try {
+                ch.send(bb, target);
+            } catch (IOException e) {
+                // statsd is best effort; do not flood the output
+                if (!failed) {
+                    failed = true;
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void putLong(ByteBuffer bb, long val) {
+            if (val == Long.MIN_VALUE) {
+                bb.put(ascii(Long.toString(val)));
+                return;
+            }
+            if (val < 0) {
+                bb.put((byte)'-');
+                val = -val;
+            }
+            int pos = digits.length;
+            do {
+                digits[--pos] = (byte)('0' + (val % 10));
+                val /= 10;
+            } while (val != 0);
+            bb.put(digits, pos, digits.length - pos);
+        }
+
+        private void putDecimal(ByteBuffer bb, double val, int scale) {
+            long factor = pow10(scale);
+            long scaled = Math.round(Math.abs(val) * factor);
+            if (val < 0) {
+                bb.put((byte)'-');
+            }
+            putLong(bb, scaled / factor);
+            bb.put((byte)'.');
+            long frac = scaled % factor;
+            for (long f = factor / 10; f > 0; f /= 10) {
+                bb.put((byte)('0' + (frac / f) % 10));
+            }
+        }
+
+        private static int longSize(long val) {
+            if (val == Long.MIN_VALUE) {
+                return 20;
+            }
+            int size = val < 0 ? 2 : 1;
+            val = Math.abs(val);
+            while (val >= 10) {
+                val /= 10;
+                size++;
+            }
+            return size;
+        }
+
+        private static int decimalSize(double val, int scale) {
+            long factor = pow10(scale);
+            long scaled = Math.round(Math.abs(val) * factor);
+            return (val < 0 ? 1 : 0) + longSize(scaled / factor) + 1 + scale;
+        }
+
+        private static long pow10(int scale) {
+            long f = 1;
+            for (int i = 0; i < scale; i++) {
+                f *= 10;
+            }
+            return f;
+        }
+    }
+
+    private final MetricTable<Counter> counters = new MetricTable<Counter>() {
+        @Override
+        Counter create(String name, String tags) {
+            return new Counter(name, tags);
+        }
+    };
+    private final MetricTable<Gauge> gauges = new MetricTable<Gauge>() {
+        @Override
+        Gauge create(String name, String tags) {
+            return new Gauge(name, tags);
+        }
+    };
+    private final MetricTable<Timer> timers = new MetricTable<Timer>() {
+        @Override
+        Timer create(String name, String tags) {
+            return new Timer(name, "ms", tags);
+        }
+    };
+    private final MetricTable<Timer> histograms = new MetricTable<Timer>() {
+        @Override
+        Timer create(String name, String tags) {
+            return new Timer(name, "h", tags);
+        }
+    };
+
+    // sets and events; not aggregated
+    private final BlockingQueue<String> q = new ArrayBlockingQueue<>(16384);
     private final ExecutorService e = Executors.newSingleThreadExecutor(
         new ThreadFactory() {
             @Override
@@ -87,39 +545,45 @@ final public class Statsd extends SimpleService {
         e.submit(new Runnable() {
             @Override
             public void run() {
-                DatagramSocket ds = null;
                 boolean entered = BTraceRuntime.enter();
-                try {
-                    ds = new DatagramSocket();
-                    DatagramPacket dp = new DatagramPacket(new byte[0], 0);
+                try (DatagramChannel ch = DatagramChannel.open()) {
+                    InetAddress address;
                     try {
-                        dp.setAddress(InetAddress.getByName(SharedSettings.GLOBAL.getStatsdHost()));
+                        address = InetAddress.getByName(SharedSettings.GLOBAL.getStatsdHost());
                     } catch (UnknownHostException e) {
                         System.err.println("[statsd] invalid host defined: " + SharedSettings.GLOBAL.getStatsdHost());
-                        dp.setAddress(InetAddress.getLoopbackAddress());
+                        address = InetAddress.getLoopbackAddress();
                     } catch (SecurityException e) {
-                        dp.setAddress(InetAddress.getLoopbackAddress());
+                        address = InetAddress.getLoopbackAddress();
                     }
-                    dp.setPort(SharedSettings.GLOBAL.getStatsdPort());
+                    int mtu = Math.min(Math.max(SharedSettings.GLOBAL.getStatsdMtu(), MIN_MTU), MAX_MTU);
+                    long interval = TimeUnit.MILLISECONDS.toNanos(Math.max(SharedSettings.GLOBAL.getStatsdFlush(), MIN_FLUSH_MS));
+                    Packer p = new Packer(ch, new InetSocketAddress(address, SharedSettings.GLOBAL.getStatsdPort()), mtu);
 
+                    long next = System.nanoTime() + interval;
                     while (true) {
-                        Collection<String> msgs = new LinkedList<>();
-                        msgs.add(q.take());
-                        q.drainTo(msgs);
-
-                        StringBuilder sb = new StringBuilder();
-                        for(String m : msgs) {
-                            if (sb.length() + m.length() < 511) {
-                                sb.append(m).append('\n');
-                            } else {
-                                dp.setData(sb.toString().getBytes(CHARSET));
-                                ds.send(dp);
-                                sb.setLength(0);
+                        long wait = next - System.nanoTime();
+                        String msg = wait > 0 ? q.poll(wait, TimeUnit.NANOSECONDS) : null;
+                        if (msg != null) {
+                            p.write(msg);
+                            if (q.isEmpty()) {
+                                // sets and events are not held back until the next flush
+                                p.send();
                             }
+                            continue;
                         }
-                        if (sb.length() > 0) {
-                            dp.setData(sb.toString().getBytes(CHARSET));
-                            ds.send(dp);
+                        long now = System.nanoTime();
+                        if (now - next >= 0) {
+                            counters.flush(p);
+                            gauges.flush(p);
+                            timers.flush(p);
+                            histograms.flush(p);
+                            p.send();
+                            next += interval;
+                            if (next - now < 0) {
+                                // do not try to catch up with the missed intervals
+                                next = now + interval;
+                            }
                         }
                     }
                 } catch (IOException | InterruptedException e) {
@@ -284,7 +748,7 @@ final public class Statsd extends SimpleService {
      *     Assigned comma delimited tags. A tag value is delimited by colon.
      */
     public void count(String name, long count, double sampleRate, String tags) {
-        submit(name, count, sampleRate, "c", tags);
+        counters.get(name, tags).add(count, sampleRate);
     }
 
     /**
@@ -311,7 +775,7 @@ final public class Statsd extends SimpleService {
      *     Assigned comma delimited tags. A tag value is delimited by colon.
      */
     public void gauge(String name, long value, String tags) {
-        submit(name, value, 0d, "g", tags);
+        gauges.get(name, tags).set(value);
     }
 
     /**
@@ -373,7 +837,7 @@ final public class Statsd extends SimpleService {
      *     Assigned comma delimited tags. A tag value is delimited by colon.
      */
     public void time(String name, long value, double sampleRate, String tags) {
-        submit(name, value, sampleRate, "ms", tags);
+        timers.get(name, tags).add(value, sampleRate);
     }
 
     /**
@@ -435,7 +899,7 @@ final public class Statsd extends SimpleService {
      *     Assigned comma delimited tags. A tag value is delimited by colon.
      */
     public void histo(String name, long value, double sampleRate, String tags) {
-        submit(name, value, sampleRate, "h", tags);
+        histograms.get(name, tags).add(value, sampleRate);
     }
 
     /**
@@ -546,29 +1010,8 @@ final public class Statsd extends SimpleService {
     }
 
     private void delta(String name, long value, double sampleRate, String tags) {
-        StringBuilder sb = new StringBuilder(name);
-        Formatter fmt = new Formatter(sb);
-
-        sb.append(':');
-        if (value > 0) {
-            sb.append('+');
-        } else if (value < 0) {
-            sb.append('-');
-        }
-        sb.append(value).append('|').append('g');
-        appendSampleRate(sampleRate, sb, fmt);
-        appendTags(tags, sb);
-        q.offer(sb.toString());
-    }
-
-    private void submit(String name, long value, double sampleRate, String type, String tags) {
-        StringBuilder sb = new StringBuilder(name);
-        Formatter fmt = new Formatter(sb);
-
-        sb.append(':').append(value).append('|').append(type);
-        appendSampleRate(sampleRate, sb, fmt);
-        appendTags(tags, sb);
-        q.offer(sb.toString());
+        // the sample rate has no meaning for a gauge
+        gauges.get(name, tags).adjust(value);
     }
 
     private void submit(String name, String value, String type, String tags) {
@@ -585,10 +1028,7 @@ final public class Statsd extends SimpleService {
         }
     }
 
-    private void appendSampleRate(double sampleRate, StringBuilder sb, Formatter fmt) {
-        if (sampleRate > 0) {
-            sb.append("|@");
-            fmt.format("%.3f", sampleRate);
-        }
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
     }
 }
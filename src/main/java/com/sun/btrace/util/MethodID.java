@@ -26,8 +26,8 @@
 
 package com.sun.btrace.util;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -35,7 +35,7 @@ import java.util.concurrent.atomic.AtomicInteger;
  * @author Jaroslav Bachorik
  */
 public class MethodID {
-    private static final Map<String, Integer> methodIds = new HashMap<>();
+    private static final ConcurrentMap<String, Integer> methodIds = new ConcurrentHashMap<>();
     static final AtomicInteger lastMehodId = new AtomicInteger(1);
 
     /**
@@ -44,12 +44,16 @@ public class MethodID {
      * @return An ID belonging to the provided method tag
      */
     public static int getMethodId(String methodTag) {
-        synchronized(methodIds) {
-            if (!methodIds.containsKey(methodTag)) {
-                methodIds.put(methodTag, lastMehodId.getAndIncrement());
+        Integer id = methodIds.get(methodTag);
+        if (id == null) {
+            Integer newId = lastMehodId.getAndIncrement();
+            id = methodIds.putIfAbsent(methodTag, newId);
+            if (id == null) {
+                id = newId;
             }
-            return methodIds.get(methodTag);
+            // else another thread has won the race; the new id is left unused
         }
+        return id;
     }
 
     public static int getMethodId(String className, String method, String desc) {
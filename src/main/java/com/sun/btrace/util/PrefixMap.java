@@ -21,26 +21,39 @@
  */
 package com.sun.btrace.util;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Simplified trie-based prefix map
+ * <p>
+ * Besides checking whether any of the stored prefixes is a prefix of a value
+ * it can associate payloads with the stored prefixes and collect the payloads
+ * of all the prefixes of a value in a single pass over that value.
+ * <p>
+ * The map is not thread safe; it is intended to be filled once and then
+ * only read.
+ *
+ * @param <T> the payload type
  */
-public class PrefixMap {
-    private static final class Node {
+public class PrefixMap<T> {
+    private static final class Node<T> {
         private CharSequence value;
-        private final Map<Character, Node> refs = new HashMap<>();
+        private List<T> payloads;
+        private final Map<Character, Node<T>> refs = new HashMap<>();
 
         public Node() {
             this.value = null;
         }
 
-        public Node getReferencedNode(char ch) {
+        public Node<T> getReferencedNode(char ch) {
             return refs.get(ch);
         }
 
-        public void addReferencedNode(char ch, Node n) {
+        public void addReferencedNode(char ch, Node<T> n) {
             if (!refs.containsKey(ch)) {
                 refs.put(ch, n);
             }
@@ -50,29 +63,36 @@ public class PrefixMap {
             this.value = val;
         }
 
+        public void addPayload(T payload) {
+            if (payloads == null) {
+                payloads = new ArrayList<>(2);
+            }
+            payloads.add(payload);
+        }
     }
 
-    private final Node root = new Node();
+    private final Node<T> root = new Node<>();
 
     public void add(CharSequence val) {
-        Node n = root;
-        for (int i = 0; i < val.length(); i++) {
-            char ch = val.charAt(i);
-            Node child = n.getReferencedNode(ch);
-            if (child == null) {
-                child = new Node();
-                n.addReferencedNode(ch, child);
-            }
-            n = child;
-        }
-        n.setValue(val);
+        getOrCreateNode(val).setValue(val);
+    }
+
+    /**
+     * Associates a payload with the given prefix. One prefix may hold
+     * any number of payloads.
+     * @param prefix the prefix; may be empty in which case the payload
+     *               is associated with all values
+     * @param payload the payload
+     */
+    public void put(CharSequence prefix, T payload) {
+        getOrCreateNode(prefix).addPayload(payload);
     }
 
     public boolean contains(CharSequence val) {
-        Node n = root;
+        Node<T> n = root;
         for (int i = 0; i < val.length(); i++) {
             char ch = val.charAt(i);
-            Node child = n.getReferencedNode(ch);
+            Node<T> child = n.getReferencedNode(ch);
             if (child == null) {
                 return false;
             }
@@ -83,4 +103,37 @@ public class PrefixMap {
         }
         return false;
     }
+
+    /**
+     * Collects the payloads of all the prefixes of the given value
+     * @param val the value
+     * @param target the collection to add the payloads to
+     */
+    public void collect(CharSequence val, Collection<? super T> target) {
+        Node<T> n = root;
+        int i = 0;
+        while (n != null) {
+            if (n.payloads != null) {
+                target.addAll(n.payloads);
+            }
+            if (i == val.length()) {
+                break;
+            }
+            n = n.getReferencedNode(val.charAt(i++));
+        }
+    }
+
+    private Node<T> getOrCreateNode(CharSequence val) {
+        Node<T> n = root;
+        for (int i = 0; i < val.length(); i++) {
+            char ch = val.charAt(i);
+            Node<T> child = n.getReferencedNode(ch);
+            if (child == null) {
+                child = new Node<>();
+                n.addReferencedNode(ch, child);
+            }
+            n = child;
+        }
+        return n;
+    }
 }
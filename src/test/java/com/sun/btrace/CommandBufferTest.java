@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the Classpath exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.btrace;
+
+import com.sun.btrace.comm.Command;
+import com.sun.btrace.comm.ExitCommand;
+import com.sun.btrace.comm.MessageCommand;
+import com.sun.btrace.comm.NumberDataCommand;
+import com.sun.btrace.org.jctools.queues.MessagePassingQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the overflow policies, the statistics, the ordering and the exit
+ * handling of {@linkplain CommandBuffer}.
+ *
+ * @author Jaroslav Bachorik
+ */
+public class CommandBufferTest {
+    private static final int CAPACITY = 16;
+
+    private static final class Collector implements MessagePassingQueue.Consumer<Command> {
+        final List<Command> commands = new ArrayList<>();
+
+        @Override
+        public void accept(Command cmd) {
+            commands.add(cmd);
+        }
+    }
+
+    @Test
+    public void dropNewest() {
+        CommandBuffer cb = new CommandBuffer(CAPACITY, CommandBuffer.OverflowPolicy.DROP_NEWEST);
+        int accepted = offer(cb, 0, CAPACITY + 4);
+        assertEquals(CAPACITY, accepted);
+        assertEquals(4, cb.getDropped());
+        assertValues(drain(cb), 0, CAPACITY);
+    }
+
+    @Test
+    public void dropOldest() {
+        CommandBuffer cb = new CommandBuffer(CAPACITY, CommandBuffer.OverflowPolicy.DROP_OLDEST);
+        int accepted = offer(cb, 0, CAPACITY + 4);
+        assertEquals(CAPACITY + 4, accepted);
+        assertEquals(4, cb.getDropped());
+        // the newest commands survive, in order
+        assertValues(drain(cb), 4, CAPACITY);
+    }
+
+    @Test
+    public void sample() {
+        CommandBuffer cb = new CommandBuffer(CAPACITY, CommandBuffer.OverflowPolicy.SAMPLE);
+        int overflowing = 10 * CommandBuffer.SAMPLE_RATE;
+        int accepted = offer(cb, 0, CAPACITY + overflowing);
+        int sampled = overflowing / CommandBuffer.SAMPLE_RATE;
+        assertEquals(CAPACITY + sampled, accepted);
+        // the discarded overflowing commands plus the ones evicted by the sampled ones
+        assertEquals(overflowing, cb.getDropped());
+
+        List<Command> cmds = drain(cb);
+        assertEquals(CAPACITY, cmds.size());
+        int kept = CAPACITY - sampled;
+        for (int i = 0; i < kept; i++) {
+            assertEquals(sampled + i, value(cmds.get(i)));
+        }
+        // every SAMPLE_RATE-th overflowing command is kept
+        for (int i = 0; i < sampled; i++) {
+            assertEquals(CAPACITY - 1 + (i + 1) * CommandBuffer.SAMPLE_RATE, value(cmds.get(kept + i)));
+        }
+    }
+
+    @Test
+    public void statistics() {
+        CommandBuffer cb = new CommandBuffer(CAPACITY, CommandBuffer.OverflowPolicy.DROP_NEWEST);
+        assertEquals("DROP_NEWEST", cb.getOverflowPolicy());
+        offer(cb, 0, 3);
+        drain(cb);
+        assertEquals(3, cb.getDelivered());
+        assertEquals(0, cb.getDropped());
+        assertEquals(0, cb.getCoalesced());
+        assertEquals(0, cb.getBackpressureStalls());
+    }
+
+    @Test
+    public void coalescesPlainMessages() {
+        CommandBuffer cb = new CommandBuffer(CAPACITY, CommandBuffer.OverflowPolicy.BLOCK);
+        cb.offer(new MessageCommand("a"));
+        cb.offer(new MessageCommand("b"));
+        cb.offer(new MessageCommand("c"));
+        cb.offer(new NumberDataCommand("n", 1));
+        // a timestamped message is kept apart
+        cb.offer(new MessageCommand(42L, "d"));
+        cb.offer(new MessageCommand("e"));
+
+        List<Command> cmds = drain(cb);
+        assertEquals(4, cmds.size());
+        assertEquals("abc", ((MessageCommand)cmds.get(0)).getMessage());
+        assertEquals(1, value(cmds.get(1)));
+        assertEquals("d", ((MessageCommand)cmds.get(2)).getMessage());
+        assertEquals("e", ((MessageCommand)cmds.get(3)).getMessage());
+        assertEquals(2, cb.getCoalesced());
+        assertEquals(4, cb.getDelivered());
+    }
+
+    @Test
+    public void exitAfterBufferedCommands() {
+        int count = 1000;
+        CommandBuffer cb = new CommandBuffer(1024, CommandBuffer.OverflowPolicy.BLOCK);
+        offer(cb, 0, count);
+        assertTrue(cb.offer(new ExitCommand(0)));
+
+        // a pending exit drains the stripes fully, not just one batch
+        Collector c = new Collector();
+        assertEquals(count + 1, cb.drain(c));
+        assertEquals(count + 1, c.commands.size());
+        assertValues(c.commands.subList(0, count), 0, count);
+        assertEquals(Command.EXIT, c.commands.get(count).getType());
+        assertEquals(0, cb.drain(new Collector()));
+    }
+
+    @Test
+    public void perThreadOrdering() throws Exception {
+        final int threads = 8;
+        final int perThread = 20000;
+        final CommandBuffer cb = new CommandBuffer(CAPACITY, CommandBuffer.OverflowPolicy.BLOCK);
+        final CountDownLatch consumerRunning = new CountDownLatch(1);
+        final List<Command> received = new ArrayList<>();
+        final boolean[] exited = new boolean[1];
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                cb.drain(new CommandBuffer.Sink() {
+                    @Override
+                    public boolean isReady() {
+                        consumerRunning.countDown();
+                        return true;
+                    }
+
+                    @Override
+                    public boolean flush() {
+                        return true;
+                    }
+
+                    @Override
+                    public void accept(Command cmd) {
+                        if (cmd.getType() == Command.EXIT) {
+                            exited[0] = true;
+                        } else {
+                            received.add(cmd);
+                        }
+                    }
+                }, new MessagePassingQueue.WaitStrategy() {
+                    @Override
+                    public int idle(int idleCounter) {
+                        LockSupport.parkNanos(10000);
+                        return idleCounter + 1;
+                    }
+                }, new MessagePassingQueue.ExitCondition() {
+                    @Override
+                    public boolean keepRunning() {
+                        return !exited[0];
+                    }
+                });
+            }
+        });
+        consumer.start();
+        assertTrue(consumerRunning.await(10, TimeUnit.SECONDS));
+
+        Thread[] producers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final String name = "producer" + t;
+            producers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        assertTrue(cb.offer(new NumberDataCommand(name, i)));
+                    }
+                }
+            });
+            producers[t].start();
+        }
+        for (Thread p : producers) {
+            p.join();
+        }
+        cb.offer(new ExitCommand(0));
+        consumer.join(TimeUnit.SECONDS.toMillis(30));
+        assertFalse(consumer.isAlive());
+
+        // nothing is dropped and each thread's commands arrive in the order they were sent
+        assertEquals(0, cb.getDropped());
+        assertEquals(threads * perThread, received.size());
+        int[] next = new int[threads];
+        for (Command cmd : received) {
+            int t = Integer.parseInt(((NumberDataCommand)cmd).getName().substring("producer".length()));
+            assertEquals(next[t]++, value(cmd));
+        }
+    }
+
+    @Test
+    public void parsePolicy() {
+        assertEquals(CommandBuffer.OverflowPolicy.DROP_NEWEST, CommandBuffer.OverflowPolicy.parse("drop"));
+        assertEquals(CommandBuffer.OverflowPolicy.DROP_OLDEST, CommandBuffer.OverflowPolicy.parse(" drop-oldest "));
+        assertEquals(CommandBuffer.OverflowPolicy.SAMPLE, CommandBuffer.OverflowPolicy.parse("Sample"));
+        assertEquals(CommandBuffer.OverflowPolicy.BLOCK, CommandBuffer.OverflowPolicy.parse("BLOCK"));
+        assertNull(CommandBuffer.OverflowPolicy.parse("wait"));
+    }
+
+    /**
+     * Offers numbered commands from the current thread; all of them go to the same stripe
+     * @return the number of accepted commands
+     */
+    private static int offer(CommandBuffer cb, int from, int count) {
+        int accepted = 0;
+        for (int i = from; i < from + count; i++) {
+            if (cb.offer(new NumberDataCommand("n", i))) {
+                accepted++;
+            }
+        }
+        return accepted;
+    }
+
+    private static List<Command> drain(CommandBuffer cb) {
+        Collector c = new Collector();
+        while (cb.drain(c) > 0) {
+            // drain all the batches
+        }
+        return c.commands;
+    }
+
+    private static void assertValues(List<Command> cmds, int from, int count) {
+        assertEquals(count, cmds.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(from + i, value(cmds.get(i)));
+        }
+    }
+
+    private static int value(Command cmd) {
+        return ((NumberDataCommand)cmd).getValue().intValue();
+    }
+}
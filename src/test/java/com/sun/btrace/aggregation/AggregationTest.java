@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the Classpath exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.btrace.aggregation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the top-N selection of {@linkplain Aggregation#getData(int)} and {@linkplain Aggregation#truncate(int)}
+ * against the fully sorted {@linkplain Aggregation#getData()}.
+ *
+ * @author Jaroslav Bachorik
+ */
+public class AggregationTest {
+    private static final int SIZE = 40;
+
+    @Test
+    public void selectMatchesSortedData() {
+        Aggregation a = newAggregation(AggregationFunction.SUM);
+        List<Object[]> sorted = a.getData();
+        assertEquals(SIZE, sorted.size());
+        assertAscending(sorted);
+
+        for (int count = -SIZE - 5; count <= SIZE + 5; count++) {
+            assertRows("count " + count, expected(sorted, count), a.getData(count));
+        }
+        // selecting does not modify the aggregation
+        assertRows("unmodified", sorted, a.getData());
+    }
+
+    @Test
+    public void truncateKeepsSelectedRows() {
+        List<Object[]> sorted = newAggregation(AggregationFunction.SUM).getData();
+        for (int count = -SIZE - 5; count <= SIZE + 5; count++) {
+            Aggregation a = newAggregation(AggregationFunction.SUM);
+            a.truncate(count);
+            assertRows("count " + count, expected(sorted, count), a.getData());
+        }
+    }
+
+    @Test
+    public void selectByPercentile() {
+        Aggregation a = new Aggregation(AggregationFunction.PERCENTILE);
+        for (long i = 0; i < SIZE; i++) {
+            // the value is distinct per key and exact in the linear region of the histogram
+            a.add(i, i * 3);
+            a.add(i, i * 5);
+        }
+        List<Object[]> top = a.getData(3);
+        assertEquals(3, top.size());
+        assertEquals(SIZE - 3L, top.get(0)[0]);
+        assertEquals(SIZE - 1L, top.get(2)[0]);
+
+        a.truncate(-2);
+        List<Object[]> rest = a.getData();
+        assertEquals(2, rest.size());
+        assertEquals(0L, rest.get(0)[0]);
+        assertEquals(1L, rest.get(1)[0]);
+    }
+
+    @Test
+    public void truncateToZero() {
+        Aggregation a = newAggregation(AggregationFunction.SUM);
+        assertTrue(a.getData(0).isEmpty());
+        assertEquals(SIZE, a.getData().size());
+        a.truncate(0);
+        assertTrue(a.getData().isEmpty());
+    }
+
+    @Test
+    public void keyFormsShareValues() {
+        Aggregation a = new Aggregation(AggregationFunction.SUM);
+        a.add(new AggregationKey(new Object[]{"foo"}), 1);
+        a.add("foo", 2);
+        a.add(new AggregationKey(new Object[]{5}), 10);
+        a.add(5L, 20);
+        a.add(new AggregationKey(new Object[]{(short)5}), 30);
+        a.add(new AggregationKey(new Object[]{'A'}), 100);
+        a.add(new AggregationKey(new Object[]{"foo", 5}), 1000);
+
+        List<Object[]> rows = a.getData();
+        assertEquals(4, rows.size());
+        assertRows("rows", Arrays.asList(
+            new Object[]{"foo", 3L},
+            new Object[]{5L, 60L},
+            new Object[]{'A', 100L},
+            new Object[]{"foo", 5, 1000L}
+        ), rows);
+
+        assertEquals(3L, (long)a.getValueForKey(new AggregationKey(new Object[]{"foo"})));
+        assertEquals(60L, (long)a.getValueForKey(new AggregationKey(new Object[]{5})));
+        assertEquals(60L, (long)a.getValueForKey(new AggregationKey(new Object[]{5L})));
+        // only the integral numbers are folded into the primitive keys
+        assertEquals(100L, (long)a.getValueForKey(new AggregationKey(new Object[]{'A'})));
+        assertEquals(0L, (long)a.getValueForKey(new AggregationKey(new Object[]{65})));
+        assertEquals(1000L, (long)a.getValueForKey(new AggregationKey(new Object[]{"foo", 5})));
+    }
+
+    /**
+     * An aggregation with all kinds of keys and distinct values added in random order
+     */
+    private static Aggregation newAggregation(AggregationFunction type) {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < SIZE; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(SIZE));
+        Aggregation a = new Aggregation(type);
+        for (int i : order) {
+            long value = (i - SIZE / 2) * 7L;
+            switch (i % 3) {
+                case 0:
+                    a.add(new AggregationKey(new Object[]{"key", i}), value);
+                    break;
+                case 1:
+                    a.add((long)i, value);
+                    break;
+                default:
+                    a.add("key" + i, value);
+                    break;
+            }
+        }
+        return a;
+    }
+
+    private static List<Object[]> expected(List<Object[]> sorted, int count) {
+        int n = Math.min(Math.abs(count), sorted.size());
+        return count > 0 ? sorted.subList(sorted.size() - n, sorted.size()) : sorted.subList(0, n);
+    }
+
+    private static void assertAscending(List<Object[]> rows) {
+        for (int i = 1; i < rows.size(); i++) {
+            assertTrue(value(rows.get(i - 1)) < value(rows.get(i)));
+        }
+    }
+
+    private static void assertRows(String msg, List<Object[]> expected, List<Object[]> actual) {
+        assertEquals(msg, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertTrue(msg + ": " + Arrays.toString(expected.get(i)) + " != " + Arrays.toString(actual.get(i)),
+                       Arrays.equals(expected.get(i), actual.get(i)));
+        }
+    }
+
+    private static long value(Object[] row) {
+        return ((Number)row[row.length - 1]).longValue();
+    }
+}
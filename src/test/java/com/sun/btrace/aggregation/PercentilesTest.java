@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the Classpath exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.btrace.aggregation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the bucket boundaries and the precision of the log-linear histogram.
+ *
+ * @author Jaroslav Bachorik
+ */
+public class PercentilesTest {
+    // precision of 2 digits gives an exact linear region of <0, 256) and 128 sub-buckets per octave
+    private static final int LINEAR = 256;
+
+    @Test
+    public void empty() {
+        Percentiles p = new Percentiles();
+        assertEquals(0, p.getValue());
+        assertEquals(0, p.getPercentile(50d));
+        assertEquals(0, p.getPercentile(100d));
+        PercentileData d = p.getData();
+        assertEquals(0, d.getCount());
+        assertEquals(0, d.getMax());
+    }
+
+    @Test
+    public void linearRegionIsExact() {
+        Percentiles p = new Percentiles(2);
+        for (int i = 1; i < 100; i++) {
+            p.add(i);
+        }
+        p.add(LINEAR - 1);
+        assertEquals(1, p.getPercentile(0d));
+        assertEquals(50, p.getPercentile(50d));
+        assertEquals(90, p.getPercentile(90d));
+        assertEquals(99, p.getPercentile(99d));
+        assertEquals(LINEAR - 1, p.getPercentile(100d));
+    }
+
+    @Test
+    public void octaveBoundaries() {
+        // 256 and 257 share the first bucket above the linear region
+        assertEquals(257, single(LINEAR, 1000));
+        assertEquals(257, single(LINEAR + 1, 1000));
+        assertEquals(259, single(LINEAR + 2, 1000));
+        // the last bucket of the first octave and the first one of the next octave
+        assertEquals(511, single(510, 1000));
+        assertEquals(515, single(512, 1000));
+        // the reported value never exceeds the recorded maximum
+        assertEquals(LINEAR, single(LINEAR, LINEAR));
+    }
+
+    @Test
+    public void relativeErrorWithinPrecision() {
+        for (int precision = Percentiles.MIN_PRECISION; precision <= Percentiles.MAX_PRECISION; precision++) {
+            double limit = Math.pow(10, -precision);
+            for (long v = 1; v > 0 && v < Long.MAX_VALUE / 3; v = v * 3 + 1) {
+                Percentiles p = new Percentiles(precision);
+                p.add(v);
+                p.add(Long.MAX_VALUE);
+                long reported = p.getPercentile(50d);
+                assertTrue(reported >= v);
+                assertTrue(v + " -> " + reported, (double)(reported - v) / v <= limit);
+            }
+        }
+    }
+
+    @Test
+    public void negativeValuesRecordedAsZero() {
+        Percentiles p = new Percentiles();
+        p.add(-1);
+        p.add(Long.MIN_VALUE);
+        p.add(10);
+        assertEquals(0, p.getPercentile(50d));
+        assertEquals(10, p.getPercentile(100d));
+        assertEquals(3, p.getData().getCount());
+    }
+
+    @Test
+    public void data() {
+        Percentiles p = new Percentiles(2);
+        for (int i = 1; i <= 1000; i++) {
+            p.add(i);
+        }
+        PercentileData d = p.getData();
+        assertEquals(1000, d.getCount());
+        assertEquals(1000, d.getMax());
+        assertWithin(500, d.getP50());
+        assertWithin(900, d.getP90());
+        assertWithin(990, d.getP99());
+        assertWithin(999, d.getP999());
+        assertEquals(d.getP99(), p.getValue());
+    }
+
+    @Test
+    public void clear() {
+        Percentiles p = new Percentiles();
+        p.add(1000);
+        p.clear();
+        assertEquals(0, p.getData().getCount());
+        assertEquals(0, p.getPercentile(100d));
+        p.add(5);
+        assertEquals(5, p.getPercentile(100d));
+    }
+
+    @Test
+    public void merge() {
+        Percentiles p1 = new Percentiles(2);
+        Percentiles p2 = new Percentiles(2);
+        for (int i = 1; i <= 50; i++) {
+            p1.add(i);
+            p2.add(i + 50);
+        }
+        p2.add(100000);
+        p1.merge(p2);
+        assertEquals(101, p1.getData().getCount());
+        assertEquals(51, p1.getPercentile(50d));
+        assertEquals(100000, p1.getPercentile(100d));
+        // the merged instance is left untouched
+        assertEquals(51, p2.getData().getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeDifferentPrecision() {
+        new Percentiles(1).merge(new Percentiles(3));
+    }
+
+    private static long single(long value, long max) {
+        Percentiles p = new Percentiles(2);
+        p.add(value);
+        p.add(max);
+        return p.getPercentile(50d);
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(expected + " ~ " + actual, actual >= expected && actual - expected <= expected / 100);
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the Classpath exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.btrace.comm;
+
+import com.sun.btrace.CommandListener;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes the commands with {@linkplain MappedTraceWriter} and reads them back
+ * with {@linkplain MappedTraceReader}.
+ *
+ * @author Jaroslav Bachorik
+ */
+public class MappedTraceTest {
+    // the smallest segments possible - 4 chunks of 4kB each
+    private static final long SEGMENT_SIZE = 16 * 1024;
+
+    private File dir;
+    private File base;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("btrace-recording").toFile();
+        base = new File(dir, "trace.btrc");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void commandsRoundTrip() throws Exception {
+        Map<String, Long> numbers = new LinkedHashMap<>();
+        numbers.put("a", 1L);
+        numbers.put("b", -1L);
+        List<Object[]> grid = new ArrayList<>();
+        grid.add(new Object[]{"row", 1, 2L});
+
+        MappedTraceWriter w = new MappedTraceWriter(base, SEGMENT_SIZE * 16, 16);
+        w.write(new MessageCommand(42L, "hello"));
+        w.write(new NumberDataCommand("num", 7L));
+        w.write(new NumberMapDataCommand("numbers", numbers));
+        w.write(new GridDataCommand("grid", grid));
+        // not printable
+        w.write(new OkayCommand());
+        w.close();
+
+        List<Command> cmds = replay();
+        assertEquals(4, cmds.size());
+        MessageCommand m = (MessageCommand)cmds.get(0);
+        assertEquals(42L, m.getTime());
+        assertEquals("hello", m.getMessage());
+        assertEquals(7L, ((NumberDataCommand)cmds.get(1)).getValue());
+        assertEquals(numbers, ((NumberMapDataCommand)cmds.get(2)).getData());
+        assertArrayEquals(grid.get(0), ((GridDataCommand)cmds.get(3)).getData().get(0));
+    }
+
+    @Test
+    public void chunksDecodeIndependently() throws Exception {
+        MappedTraceWriter w = new MappedTraceWriter(base, SEGMENT_SIZE * 64, 1);
+        // the repeated names are taken from the dictionary of each chunk
+        int count = 10000;
+        for (int i = 0; i < count; i++) {
+            w.write(new NumberDataCommand("counter" + (i % 10), i));
+        }
+        w.close();
+
+        List<Command> cmds = replay();
+        assertEquals(count, cmds.size());
+        for (int i = 0; i < count; i++) {
+            NumberDataCommand n = (NumberDataCommand)cmds.get(i);
+            assertEquals("counter" + (i % 10), n.getName());
+            assertEquals(i, n.getValue().intValue());
+        }
+    }
+
+    @Test
+    public void unsealedChunkIsReadable() throws Exception {
+        MappedTraceWriter w = new MappedTraceWriter(base, SEGMENT_SIZE, 4);
+        for (int i = 0; i < 10; i++) {
+            w.write(new NumberDataCommand("n", i));
+        }
+        // the chunk is read up to the terminating zero length
+        assertEquals(10, replay().size());
+        w.write(new NumberDataCommand("n", 10));
+        w.close();
+        assertEquals(11, replay().size());
+    }
+
+    @Test
+    public void rotationKeepsRecentSegments() throws Exception {
+        int maxSegments = 3;
+        MappedTraceWriter w = new MappedTraceWriter(base, SEGMENT_SIZE, maxSegments);
+        int count = 20000;
+        for (int i = 0; i < count; i++) {
+            w.write(new NumberDataCommand("counter", i));
+        }
+        w.close();
+        File[] segments = MappedTraceWriter.listSegments(base);
+        assertEquals(maxSegments, segments.length);
+        assertFalse(MappedTraceWriter.segmentFile(base, 0).exists());
+
+        List<Command> cmds = replay();
+        assertFalse(cmds.isEmpty());
+        assertTrue(cmds.size() < count);
+        // the most recent records survive, in the recording order
+        int first = count - cmds.size();
+        for (int i = 0; i < cmds.size(); i++) {
+            assertEquals(first + i, ((NumberDataCommand)cmds.get(i)).getValue().intValue());
+        }
+    }
+
+    @Test
+    public void newRecordingReplacesOldSegments() throws Exception {
+        MappedTraceWriter w = new MappedTraceWriter(base, SEGMENT_SIZE, 10);
+        for (int i = 0; i < 5000; i++) {
+            w.write(new NumberDataCommand("n", i));
+        }
+        w.close();
+        w = new MappedTraceWriter(base, SEGMENT_SIZE, 10);
+        w.write(new MessageCommand("new"));
+        w.close();
+        List<Command> cmds = replay();
+        assertEquals(1, cmds.size());
+        assertEquals("new", ((MessageCommand)cmds.get(0)).getMessage());
+    }
+
+    @Test
+    public void textFallback() throws Exception {
+        List<Object[]> grid = new ArrayList<>();
+        grid.add(new Object[]{"when", new Date(1234567890L)});
+        GridDataCommand cmd = new GridDataCommand("grid", grid);
+
+        MappedTraceWriter w = new MappedTraceWriter(base, SEGMENT_SIZE, 4);
+        w.write(cmd);
+        w.close();
+
+        List<Command> cmds = replay();
+        assertEquals(1, cmds.size());
+        assertEquals(print(cmd), ((MessageCommand)cmds.get(0)).getMessage());
+    }
+
+    @Test
+    public void oversizedMessageIsSplit() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            // 1, 2, 3 and 4 bytes in UTF-8; the last one is a surrogate pair
+            sb.append('a').append('\u00e9').append('\u20ac').append("\ud83d\ude00");
+        }
+        MessageCommand cmd = new MessageCommand(sb.toString());
+
+        MappedTraceWriter w = new MappedTraceWriter(base, SEGMENT_SIZE * 16, 16);
+        w.write(new MessageCommand("before"));
+        w.write(cmd);
+        w.write(new MessageCommand("after"));
+        w.close();
+
+        List<Command> cmds = replay();
+        assertTrue(cmds.size() > 3);
+        assertEquals("before", ((MessageCommand)cmds.get(0)).getMessage());
+        assertEquals("after", ((MessageCommand)cmds.get(cmds.size() - 1)).getMessage());
+        StringBuilder text = new StringBuilder();
+        for (Command c : cmds.subList(1, cmds.size() - 1)) {
+            text.append(((MessageCommand)c).getMessage());
+        }
+        assertEquals(sb.toString(), text.toString());
+    }
+
+    @Test
+    public void oversizedGridIsSplit() throws Exception {
+        List<Object[]> grid = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            grid.add(new Object[]{"row" + i, i});
+        }
+        GridDataCommand cmd = new GridDataCommand("grid", grid);
+
+        MappedTraceWriter w = new MappedTraceWriter(base, SEGMENT_SIZE * 16, 16);
+        w.write(cmd);
+        w.close();
+
+        StringBuilder text = new StringBuilder();
+        for (Command c : replay()) {
+            text.append(((MessageCommand)c).getMessage());
+        }
+        assertEquals(print(cmd), text.toString());
+    }
+
+    @Test(expected = IOException.class)
+    public void writeAfterClose() throws Exception {
+        MappedTraceWriter w = new MappedTraceWriter(base, SEGMENT_SIZE, 1);
+        w.close();
+        w.write(new MessageCommand("late"));
+    }
+
+    private List<Command> replay() throws IOException {
+        final List<Command> cmds = new ArrayList<>();
+        new MappedTraceReader(base).replay(new CommandListener() {
+            @Override
+            public void onCommand(Command cmd) throws IOException {
+                cmds.add(cmd);
+            }
+        });
+        return cmds;
+    }
+
+    private static String print(PrintableCommand cmd) {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        cmd.print(pw);
+        pw.flush();
+        return sw.toString();
+    }
+}
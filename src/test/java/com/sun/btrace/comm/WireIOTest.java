@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the Classpath exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.btrace.comm;
+
+import com.sun.btrace.SharedSettings;
+import com.sun.btrace.aggregation.HistogramData;
+import com.sun.btrace.aggregation.PercentileData;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round-trips the values and the data commands through the binary wire
+ * protocol and checks the protocol negotiation.
+ *
+ * @author Jaroslav Bachorik
+ */
+public class WireIOTest {
+    @Test
+    public void valuesRoundTrip() throws Exception {
+        char[] longChars = new char[BinaryOutput.MAX_DICT_STRING_LENGTH + 1];
+        Arrays.fill(longChars, 'x');
+        String longString = new String(longChars);
+        Object[] values = new Object[] {
+            null, (byte)-1, (short)300, 0, Integer.MIN_VALUE, Integer.MAX_VALUE,
+            0L, -1L, Long.MIN_VALUE, Long.MAX_VALUE, 1.5f, Float.NaN,
+            -0.25d, Double.NEGATIVE_INFINITY, new BigInteger("-123456789012345678901234567890"),
+            new BigDecimal("3.14159265358979323846"), "", "text", "text", "\u017elu\u0165ou\u010dk\u00fd k\u016f\u0148",
+            longString, longString
+        };
+        BinaryOutput out = new BinaryOutput();
+        for (Object v : values) {
+            assertTrue(String.valueOf(v), BinaryOutput.isSupported(v));
+            out.writeValue(v);
+        }
+        BinaryInput in = roundTrip(out);
+        for (Object v : values) {
+            Object read = in.readValue();
+            assertEquals(v, read);
+            if (v != null) {
+                assertSame(v.getClass(), read.getClass());
+            }
+        }
+    }
+
+    @Test
+    public void aggregatedValuesRoundTrip() throws Exception {
+        HistogramData hd = new HistogramData(new long[]{-8, 0, 1, 2, 4, 1L << 40}, new long[]{1, 2, 3, 4, 5, Long.MAX_VALUE});
+        PercentileData pd = new PercentileData(1000, 50, 90, 99, 999, 1L << 50);
+        BinaryOutput out = new BinaryOutput();
+        out.writeValue(hd);
+        out.writeValue(pd);
+        BinaryInput in = roundTrip(out);
+
+        HistogramData hd1 = (HistogramData)in.readValue();
+        assertArrayEquals(hd.getValues(), hd1.getValues());
+        assertArrayEquals(hd.getCounts(), hd1.getCounts());
+
+        PercentileData pd1 = (PercentileData)in.readValue();
+        assertEquals(pd.getCount(), pd1.getCount());
+        assertEquals(pd.getP50(), pd1.getP50());
+        assertEquals(pd.getP90(), pd1.getP90());
+        assertEquals(pd.getP99(), pd1.getP99());
+        assertEquals(pd.getP999(), pd1.getP999());
+        assertEquals(pd.getMax(), pd1.getMax());
+    }
+
+    @Test
+    public void unsupportedValues() {
+        assertFalse(BinaryOutput.isSupported(new Date()));
+        assertFalse(BinaryOutput.isSupported(new Object[0]));
+    }
+
+    @Test
+    public void commandsRoundTrip() throws Exception {
+        Map<String, Long> numbers = new LinkedHashMap<>();
+        numbers.put("a", 1L);
+        numbers.put("b", Long.MIN_VALUE);
+        Map<String, String> strings = new LinkedHashMap<>();
+        strings.put("key", "value");
+        strings.put("empty", "");
+        List<Object[]> grid = new ArrayList<>();
+        grid.add(new Object[]{"row", 1, 2L, 0.5d, null});
+        grid.add(new Object[]{"row", new HistogramData(new long[]{1, 2}, new long[]{3, 4})});
+
+        List<Command> cmds = writeAndRead(WireIO.BINARY_PROTOCOL,
+            new MessageCommand(42L, "hello"),
+            new MessageCommand("world"),
+            new NumberDataCommand("num", 7L),
+            new NumberMapDataCommand("numbers", numbers),
+            new StringMapDataCommand("strings", strings),
+            new GridDataCommand("grid", grid, "%1$s %2$s"),
+            new OkayCommand()
+        );
+
+        MessageCommand m = (MessageCommand)cmds.get(0);
+        assertEquals(42L, m.getTime());
+        assertEquals("hello", m.getMessage());
+        assertEquals("world", ((MessageCommand)cmds.get(1)).getMessage());
+
+        NumberDataCommand n = (NumberDataCommand)cmds.get(2);
+        assertEquals("num", n.getName());
+        assertEquals(7L, n.getValue());
+
+        NumberMapDataCommand nm = (NumberMapDataCommand)cmds.get(3);
+        assertEquals("numbers", nm.getName());
+        assertEquals(numbers, new HashMap<>(nm.getData()));
+
+        StringMapDataCommand sm = (StringMapDataCommand)cmds.get(4);
+        assertEquals("strings", sm.getName());
+        assertEquals(strings, new HashMap<>(sm.getData()));
+
+        GridDataCommand g = (GridDataCommand)cmds.get(5);
+        assertEquals("grid", g.getName());
+        assertEquals(2, g.getData().size());
+        assertArrayEquals(grid.get(0), g.getData().get(0));
+        HistogramData hd = (HistogramData)g.getData().get(1)[1];
+        assertArrayEquals(new long[]{1, 2}, hd.getValues());
+        assertArrayEquals(new long[]{3, 4}, hd.getCounts());
+
+        assertEquals(Command.SUCCESS, cmds.get(6).getType());
+    }
+
+    @Test
+    public void unsupportedCommandFallsBackToLegacyFormat() throws Exception {
+        Date d = new Date(1234567890L);
+        List<Object[]> grid = new ArrayList<>();
+        grid.add(new Object[]{"when", d});
+
+        List<Command> cmds = writeAndRead(WireIO.BINARY_PROTOCOL,
+            new GridDataCommand("grid", grid),
+            new MessageCommand("after")
+        );
+
+        GridDataCommand g = (GridDataCommand)cmds.get(0);
+        assertEquals(d, g.getData().get(0)[1]);
+        assertEquals("after", ((MessageCommand)cmds.get(1)).getMessage());
+    }
+
+    @Test
+    public void legacyClientGetsLegacyFrames() throws Exception {
+        Map<String, Object> params = new HashMap<>();
+        params.put(SharedSettings.DEBUG_KEY, Boolean.TRUE);
+        int version = WireIO.getProtocolVersion(params);
+        assertEquals(WireIO.LEGACY_PROTOCOL, version);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            WireIO.Writer w = new WireIO.Writer(oos, version);
+            w.write(new MessageCommand("legacy"));
+            w.write(new NumberDataCommand("num", 1));
+        }
+        // an old client reads the commands without knowing the binary frames
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+            assertEquals("legacy", ((MessageCommand)WireIO.read(ois)).getMessage());
+            assertEquals(1, ((NumberDataCommand)WireIO.read(ois)).getValue());
+        }
+    }
+
+    @Test
+    public void protocolNegotiation() {
+        Map<String, Object> params = new HashMap<>();
+        assertEquals(WireIO.LEGACY_PROTOCOL, WireIO.getProtocolVersion(null));
+        assertEquals(WireIO.LEGACY_PROTOCOL, WireIO.getProtocolVersion(params));
+
+        params.put(SharedSettings.WIRE_PROTOCOL_KEY, "1");
+        assertEquals(WireIO.LEGACY_PROTOCOL, WireIO.getProtocolVersion(params));
+
+        params.put(SharedSettings.WIRE_PROTOCOL_KEY, WireIO.BINARY_PROTOCOL);
+        assertEquals(WireIO.BINARY_PROTOCOL, WireIO.getProtocolVersion(params));
+
+        // a newer client gets the highest version known to the agent
+        params.put(SharedSettings.WIRE_PROTOCOL_KEY, WireIO.PROTOCOL_VERSION + 1);
+        assertEquals(WireIO.PROTOCOL_VERSION, new WireIO.Writer(null, WireIO.getProtocolVersion(params)).getVersion());
+        assertEquals(WireIO.LEGACY_PROTOCOL, new WireIO.Writer(null, -1).getVersion());
+    }
+
+    private static BinaryInput roundTrip(BinaryOutput out) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        out.writeTo(dos);
+        dos.flush();
+        BinaryInput in = new BinaryInput();
+        in.readFrom(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+        return in;
+    }
+
+    private static List<Command> writeAndRead(int version, Command ... cmds) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            WireIO.Writer w = new WireIO.Writer(oos, version);
+            assertEquals(version, w.getVersion());
+            for (Command cmd : cmds) {
+                w.write(cmd);
+            }
+        }
+        List<Command> result = new ArrayList<>();
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+            WireIO.Reader r = new WireIO.Reader(ois);
+            for (int i = 0; i < cmds.length; i++) {
+                Command cmd = r.read();
+                assertEquals(cmds[i].getType(), cmd.getType());
+                result.add(cmd);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the Classpath exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.btrace.runtime;
+
+import com.sun.btrace.BTraceUtils;
+import com.sun.btrace.org.objectweb.asm.ClassReader;
+import com.sun.btrace.org.objectweb.asm.Opcodes;
+import com.sun.btrace.org.objectweb.asm.tree.AbstractInsnNode;
+import com.sun.btrace.org.objectweb.asm.tree.ClassNode;
+import com.sun.btrace.org.objectweb.asm.tree.FieldInsnNode;
+import com.sun.btrace.org.objectweb.asm.tree.FieldNode;
+import com.sun.btrace.org.objectweb.asm.tree.LdcInsnNode;
+import com.sun.btrace.org.objectweb.asm.tree.MethodInsnNode;
+import com.sun.btrace.org.objectweb.asm.tree.MethodNode;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the constant regular expressions passed to {@code matches(String, String)}
+ * are precompiled by the {@linkplain Preprocessor} and the others are left alone.
+ *
+ * @author Jaroslav Bachorik
+ */
+public class PreprocessorPatternTest {
+    private static final String MATCHES_DESC = "(Ljava/lang/String;Ljava/lang/String;)Z";
+    private static final String MATCHES_PATTERN_DESC = "(Ljava/util/regex/Pattern;Ljava/lang/String;)Z";
+    private static final String PATTERN_DESC = "Ljava/util/regex/Pattern;";
+    private static final String PATTERN_FLD_PREFIX = "$btrace$$pattern$";
+
+    /**
+     * The preprocessed code; it is never run
+     */
+    public static class Sample {
+        public static boolean constant(String s) {
+            return BTraceUtils.matches("^/api/.*", s);
+        }
+
+        public static boolean sameConstant(String s) {
+            return BTraceUtils.Strings.matches("^/api/.*", s);
+        }
+
+        public static boolean otherConstant(Object o) {
+            return BTraceUtils.Strings.matches("x+", BTraceUtils.str(o));
+        }
+
+        public static boolean variable(String regex, String s) {
+            return BTraceUtils.matches(regex, s);
+        }
+
+        public static boolean branch(String s, boolean c) {
+            return BTraceUtils.matches(c ? "a+" : "b+", s);
+        }
+
+        public static boolean invalid(String s) {
+            return BTraceUtils.matches("(", s);
+        }
+    }
+
+    private ClassNode cn;
+
+    @Before
+    public void setUp() throws Exception {
+        cn = new ClassNode();
+        try (InputStream is = Sample.class.getResourceAsStream("PreprocessorPatternTest$Sample.class")) {
+            new ClassReader(is).accept(cn, 0);
+        }
+        new Preprocessor().process(cn);
+    }
+
+    @Test
+    public void constantRegexIsPrecompiled() {
+        MethodInsnNode call = getMatchesCall("constant");
+        assertEquals(MATCHES_PATTERN_DESC, call.desc);
+        FieldInsnNode arg = getPatternArgument(call);
+        FieldNode fn = getField(arg.name);
+        assertEquals(PATTERN_DESC, fn.desc);
+        assertEquals(Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, fn.access & (Opcodes.ACC_STATIC | Opcodes.ACC_FINAL));
+        assertEquals("^/api/.*", getInitializedRegex(arg.name));
+    }
+
+    @Test
+    public void sameRegexSharesPattern() {
+        FieldInsnNode arg1 = getPatternArgument(getMatchesCall("constant"));
+        FieldInsnNode arg2 = getPatternArgument(getMatchesCall("sameConstant"));
+        FieldInsnNode arg3 = getPatternArgument(getMatchesCall("otherConstant"));
+        assertEquals(arg1.name, arg2.name);
+        assertFalse(arg1.name.equals(arg3.name));
+        assertEquals("x+", getInitializedRegex(arg3.name));
+        assertEquals(2, getPatternFields().size());
+    }
+
+    @Test
+    public void nonConstantRegexIsLeftAlone() {
+        assertEquals(MATCHES_DESC, getMatchesCall("variable").desc);
+    }
+
+    @Test
+    public void branchingRegexIsLeftAlone() {
+        assertEquals(MATCHES_DESC, getMatchesCall("branch").desc);
+    }
+
+    @Test
+    public void invalidRegexIsLeftAlone() {
+        MethodInsnNode call = getMatchesCall("invalid");
+        assertEquals(MATCHES_DESC, call.desc);
+        // the call must still fail at runtime
+        AbstractInsnNode src = call.getPrevious().getPrevious();
+        assertEquals(Opcodes.LDC, src.getOpcode());
+        assertEquals("(", ((LdcInsnNode)src).cst);
+    }
+
+    private MethodInsnNode getMatchesCall(String methodName) {
+        for (MethodNode mn : getMethods()) {
+            if (mn.name.equals(methodName)) {
+                for (AbstractInsnNode n = mn.instructions.getFirst(); n != null; n = n.getNext()) {
+                    if (n.getOpcode() == Opcodes.INVOKESTATIC && ((MethodInsnNode)n).name.equals("matches")) {
+                        return (MethodInsnNode)n;
+                    }
+                }
+            }
+        }
+        fail("no matches() call in " + methodName);
+        return null;
+    }
+
+    private FieldInsnNode getPatternArgument(MethodInsnNode call) {
+        // the pattern is followed by the input argument
+        AbstractInsnNode n = call.getPrevious();
+        while (n != null && !(n.getOpcode() == Opcodes.GETSTATIC && ((FieldInsnNode)n).desc.equals(PATTERN_DESC))) {
+            n = n.getPrevious();
+        }
+        assertNotNull("no pattern argument", n);
+        FieldInsnNode fin = (FieldInsnNode)n;
+        assertEquals(cn.name, fin.owner);
+        assertTrue(fin.name.startsWith(PATTERN_FLD_PREFIX));
+        return fin;
+    }
+
+    /**
+     * @return the regular expression the field is initialized with in &lt;clinit&gt;
+     */
+    private String getInitializedRegex(String fieldName) {
+        for (MethodNode mn : getMethods()) {
+            if (mn.name.equals("<clinit>")) {
+                for (AbstractInsnNode n = mn.instructions.getFirst(); n != null; n = n.getNext()) {
+                    if (n.getOpcode() == Opcodes.PUTSTATIC && ((FieldInsnNode)n).name.equals(fieldName)) {
+                        MethodInsnNode compile = (MethodInsnNode)n.getPrevious();
+                        assertEquals("java/util/regex/Pattern", compile.owner);
+                        assertEquals("compile", compile.name);
+                        return (String)((LdcInsnNode)compile.getPrevious()).cst;
+                    }
+                }
+            }
+        }
+        fail(fieldName + " is not initialized");
+        return null;
+    }
+
+    private FieldNode getField(String name) {
+        for (FieldNode fn : getFields()) {
+            if (fn.name.equals(name)) {
+                return fn;
+            }
+        }
+        fail("no field " + name);
+        return null;
+    }
+
+    private List<FieldNode> getPatternFields() {
+        List<FieldNode> result = new ArrayList<>();
+        for (FieldNode fn : getFields()) {
+            if (fn.name.startsWith(PATTERN_FLD_PREFIX)) {
+                result.add(fn);
+            }
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<MethodNode> getMethods() {
+        return (List<MethodNode>)cn.methods;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<FieldNode> getFields() {
+        return (List<FieldNode>)cn.fields;
+    }
+}